@@ -0,0 +1,128 @@
+package de.appsist.service.msd.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.json.JsonObject;
+
+import de.appsist.service.middrv.entity.MachineValueType;
+import de.appsist.service.middrv.entity.VisualizationLevel;
+import de.appsist.service.middrv.entity.VisualizationType;
+import de.appsist.service.msd.MachineTemplate;
+import de.appsist.service.msd.MachineUpdate;
+import de.appsist.service.msd.MidMessageCodec;
+
+/**
+ * Benchmarks comparing the JSON and binary format of data messages: Encoding by the MSD and decoding by the MID stand-in. The size
+ * of the messages is reported as secondary result "bytesPerMessage".
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DataFormatBenchmark {
+	private static final MachineValueType[] TYPES = { MachineValueType.BOOL, MachineValueType.LONG, MachineValueType.DOUBLE, MachineValueType.STRING };
+
+	/** Format of the data messages. */
+	@Param({ "json", "binary" })
+	public String dataFormat;
+
+	/** Number of fields of the machine schema. The scenarios of the service have 7 to 9 fields. */
+	@Param({ "8", "32" })
+	public int fields;
+
+	/** Number of machines in one message. */
+	@Param({ "1", "100" })
+	public int machines;
+
+	/** Whether only a quarter of the fields is set, as with delta updates. Only applies to binary messages, as data messages of
+	 * the MID driver contain all values. */
+	@Param({ "false", "true" })
+	public boolean sparse;
+
+	private List<MachineUpdate> updates;
+	private MidMessageCodec codec;
+	private MidDataDecoder decoder;
+	private Buffer message;
+
+	/**
+	 * Size of the messages, reported per iteration.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class MessageSize {
+		public long bytesPerMessage;
+	}
+
+	@Setup
+	public void setUp() {
+		// Field names as long as those of the scenarios, e.g. "Fuellstand Loctite im Sollbereich".
+		MachineTemplate.Builder builder = new MachineTemplate.Builder("Festo", "Pilotanlage").station("Station", "Site");
+		for (int field = 0; field < fields; field++) {
+			builder.field("Fuellstand Sensor im Sollbereich " + field, TYPES[field % TYPES.length], "", VisualizationType.TEXT_FIELD,
+					VisualizationLevel.OVERVIEW);
+		}
+		MachineTemplate template = builder.build();
+		codec = new MidMessageCodec(MidMessageCodec.DataFormat.fromString(dataFormat));
+		boolean sparseValues = sparse && codec.getDataFormat() == MidMessageCodec.DataFormat.BINARY;
+		updates = new ArrayList<>(machines);
+		for (int machine = 0; machine < machines; machine++) {
+			MachineUpdate update = new MachineUpdate(template, "SN-" + machine);
+			for (int field = sparseValues ? machine % 4 : 0; field < fields; field += sparseValues ? 4 : 1) {
+				switch (template.getFieldType(field)) {
+				case BOOL:
+					update.set(field, machine % 2 == 0);
+					break;
+				case LONG:
+					update.set(field, (long) machine * 1000 + field);
+					break;
+				case DOUBLE:
+					update.set(field, machine / 100d + 0.5);
+					break;
+				default:
+					update.set(field, "Wert " + machine);
+				}
+			}
+			updates.add(update);
+		}
+		decoder = new MidDataDecoder();
+		if (codec.getDataFormat() == MidMessageCodec.DataFormat.BINARY) {
+			decoder.registerSchemas(new JsonObject(codec.encodeSchemas(updates).toString()));
+		}
+		message = codec.encodeData(updates);
+	}
+
+	@Benchmark
+	public Buffer encodeData(MessageSize size) {
+		Buffer data = codec.encodeData(updates);
+		size.bytesPerMessage = data.length();
+		return data;
+	}
+
+	/**
+	 * Decodes a data message as done by the MID stand-in: Parsing of the JSON message or binary decoding with the registered schemas.
+	 */
+	@Benchmark
+	public JsonObject decodeData() {
+		if (codec.getDataFormat() == MidMessageCodec.DataFormat.BINARY) {
+			return decoder.decode(message);
+		}
+		return new JsonObject(message.toString());
+	}
+}
@@ -0,0 +1,128 @@
+package de.appsist.service.msd.benchmark;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.http.HttpServer;
+import org.vertx.java.core.http.HttpServerRequest;
+import org.vertx.java.core.json.DecodeException;
+import org.vertx.java.core.json.JsonObject;
+
+import de.appsist.service.msd.MidMessageCodec;
+
+/**
+ * In-process stand-in for the REST endpoint of the MID. Every POST request below the base path is acknowledged, so the stand-in
+ * accepts the messages of the MID driver sent by both transports of the service. Bodies are checked to be JSON; binary data
+ * messages of the HTTP transport are decoded with the schemas received before in the layout of the MSD. Requests failing these
+ * checks are answered with status 400. The messages are not interpreted otherwise: The load test takes throughput and latency
+ * from the metrics of the service, not from the content of the messages.
+ */
+public class FakeMid {
+	private final Vertx vertx;
+	private final String basePath;
+	private final AtomicLong requests;
+	private final AtomicLong rejectedRequests;
+	private final AtomicLong bytes;
+	private final MidDataDecoder decoder; // Only used by the event loop of the server
+	private HttpServer server;
+
+	/**
+	 * Creates the endpoint.
+	 * @param vertx Vert.x instance to create the HTTP server with.
+	 * @param basePath Base path of the REST interface, e.g. "/services/mid".
+	 */
+	public FakeMid(Vertx vertx, String basePath) {
+		this.vertx = vertx;
+		this.basePath = basePath;
+		this.requests = new AtomicLong();
+		this.rejectedRequests = new AtomicLong();
+		this.bytes = new AtomicLong();
+		this.decoder = new MidDataDecoder();
+	}
+
+	/**
+	 * Starts listening.
+	 * @param port Port to listen on.
+	 * @param listenHandler Handler called when the server is listening.
+	 */
+	public void listen(int port, Handler<AsyncResult<HttpServer>> listenHandler) {
+		server = vertx.createHttpServer();
+		server.requestHandler(new Handler<HttpServerRequest>() {
+			@Override
+			public void handle(final HttpServerRequest request) {
+				if (!"POST".equals(request.method()) || !request.path().startsWith(basePath)) {
+					request.response().setStatusCode(404);
+					request.response().end();
+					return;
+				}
+				request.bodyHandler(new Handler<Buffer>() {
+					@Override
+					public void handle(Buffer body) {
+						requests.incrementAndGet();
+						bytes.addAndGet(body.length());
+						String error = check(request.headers().get("Content-Type"), body);
+						if (error != null) {
+							rejectedRequests.incrementAndGet();
+							request.response().setStatusCode(400);
+							request.response().end(error);
+							return;
+						}
+						request.response().end();
+					}
+				});
+			}
+		});
+		server.listen(port, listenHandler);
+	}
+
+	/**
+	 * Checks the body of a request.
+	 * @return Error message or <code>null</code> if the body is valid.
+	 */
+	private String check(String contentType, Buffer body) {
+		try {
+			if (MidMessageCodec.BINARY_CONTENT_TYPE.equals(contentType)) {
+				decoder.decode(body);
+				return null;
+			}
+			JsonObject message = new JsonObject(body.toString());
+			if (message.getArray("schemas") != null) {
+				// Schema message sent with binary data messages, required to decode them.
+				decoder.registerSchemas(message);
+			}
+			return null;
+		} catch (DecodeException | IllegalArgumentException e) {
+			return e.getMessage();
+		}
+	}
+
+	/**
+	 * Resets all counters, e.g. after a warmup.
+	 */
+	public void reset() {
+		requests.set(0);
+		rejectedRequests.set(0);
+		bytes.set(0);
+	}
+
+	public void close() {
+		if (server != null) {
+			server.close();
+		}
+	}
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	public long getRejectedRequests() {
+		return rejectedRequests.get();
+	}
+
+	public long getBytes() {
+		return bytes.get();
+	}
+}
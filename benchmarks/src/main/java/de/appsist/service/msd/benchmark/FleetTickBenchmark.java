@@ -0,0 +1,108 @@
+package de.appsist.service.msd.benchmark;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.VertxFactory;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import de.appsist.service.msd.FleetSimulation;
+import de.appsist.service.msd.MidSender;
+import de.appsist.service.msd.SchemaRegistry;
+import de.appsist.service.msd.SimulationClock;
+
+/**
+ * Benchmark for the ticks of the fleet simulation: Advancing the behaviour models, encoding and sending the data of the modified
+ * machines to the stub MID. Compare the throughput for different numbers of shards to see how the tick scales with the cores.
+ * The ticks run on the event loop of an embedded Vert.x instance, as sharded ticks complete on the event loop.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class FleetTickBenchmark {
+	/** Number of machines of the fleet. */
+	@Param({ "100000" })
+	public int size;
+
+	/** Number of shards advanced in parallel. */
+	@Param({ "1", "2", "4", "8" })
+	public int shards;
+
+	/** Probability of each value without behaviour model to be modified in a tick. */
+	@Param({ "0.01" })
+	public double changeProbability;
+
+	private Vertx vertx;
+	private FleetSimulation fleet;
+
+	@Setup
+	public void setUp() throws InterruptedException {
+		vertx = VertxFactory.newVertx();
+		MidSender sender = new MidSender(new StubMidTransport(), new SchemaRegistry());
+		sender.connect();
+		SimulationClock clock = new SimulationClock(null, new JsonObject().putNumber("seed", 42), sender.getTransport());
+		JsonArray fields = new JsonArray()
+				.addObject(createField("Tuer offen", "bool", new JsonObject().putString("model", "markov").putNumber("toTrue", 0.002).putNumber("toFalse", 0.05)))
+				.addObject(createField("Teilezaehler", "long", new JsonObject().putString("model", "counter").putNumber("rate", 0.2)))
+				.addObject(createField("Fuellstand", "double", new JsonObject().putString("model", "level").putNumber("rate", 0).putNumber("noise", 0.01).putNumber("resolution", 0.01)))
+				.addObject(createField("Temperatur", "double", null))
+				.addObject(createField("Programm", "long", null));
+		JsonObject template = new JsonObject().putString("vendorId", "Benchmark").putString("machineId", "Machine").putString("stationId", "Station")
+				.putString("siteId", "Site").putArray("fields", fields);
+		JsonObject fleetConfig = new JsonObject().putNumber("size", size).putNumber("shards", shards).putNumber("changeProbability", changeProbability)
+				.putObject("template", template);
+		fleet = new FleetSimulation(vertx, fleetConfig, sender, clock);
+		// The first tick sends the initial state of all machines.
+		tick();
+	}
+
+	@TearDown
+	public void tearDown() {
+		fleet.close();
+		vertx.stop();
+	}
+
+	private JsonObject createField(String name, String type, JsonObject behaviour) {
+		JsonObject field = new JsonObject().putString("name", name).putString("type", type).putString("visualizationType", "text_field");
+		if (behaviour != null) {
+			field.putObject("behaviour", behaviour);
+		}
+		return field;
+	}
+
+	@Benchmark
+	public void tick() throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(1);
+		vertx.runOnContext(new Handler<Void>() {
+			@Override
+			public void handle(Void event) {
+				fleet.tick(1d, new Handler<AsyncResult<Void>>() {
+					@Override
+					public void handle(AsyncResult<Void> result) {
+						done.countDown();
+					}
+				});
+			}
+		});
+		done.await();
+	}
+}
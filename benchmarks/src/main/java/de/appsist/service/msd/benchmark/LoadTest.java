@@ -0,0 +1,352 @@
+package de.appsist.service.msd.benchmark;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Context;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.VertxFactory;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.http.HttpClient;
+import org.vertx.java.core.http.HttpClientResponse;
+import org.vertx.java.core.http.HttpServer;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.platform.PlatformLocator;
+import org.vertx.java.platform.PlatformManager;
+
+import de.appsist.service.msd.MainVerticle;
+
+/**
+ * End-to-end load test of the service against an in-process {@link FakeMid}.
+ * The main verticle is deployed with a configuration built from the options and the simulations of the fleet and of the scenario
+ * "festoCebitRandom" are started with <code>/performAction</code>, as a client of the service would. After the run, the updates sent,
+ * failed and dropped per second and the round trip times to the MID are taken from <code>/metrics</code>, the achieved tick
+ * rates from <code>simulationStatus</code>. The requests and bytes received by the stand-in and the allocation rate of the
+ * process are reported in addition.
+ * <p>
+ * Options are passed as <code>--name value</code> pairs, see {@link #DEFAULTS}.
+ */
+public class LoadTest {
+	/** Default options. */
+	private static final JsonObject DEFAULTS = new JsonObject()
+			.putNumber("rate", 100) // Ticks per second of the simulation "festoCebitRandom", 0 to disable it.
+			.putNumber("fleetRate", 1) // Ticks per second of the fleet simulation, 0 to disable it.
+			.putNumber("fleet", 1000) // Number of machines in the fleet.
+			.putNumber("shards", 1) // See "fleet.shards" of the service configuration.
+			.putNumber("warmup", 5) // Warmup duration in seconds.
+			.putNumber("duration", 30) // Measurement duration in seconds.
+			.putNumber("port", 18095) // Port of the fake MID.
+			.putNumber("servicePort", 18080) // Port of the service.
+			.putString("transport", "http") // See "mid.transport" of the service configuration.
+			.putString("dataFormat", "json") // See "mid.dataFormat" of the service configuration.
+			.putNumber("batchWindow", 0) // See "mid.batchWindow" of the service configuration.
+			.putBoolean("deltaUpdates", false)
+			.putNumber("maxRetries", -1)
+			.putNumber("queueCapacity", 0)
+			.putNumber("maxInFlight", 32);
+	private static final String MID_BASE_PATH = "/services/mid";
+	private static final String BASE_PATH = "/services/msd";
+	private static final String FLEET_SIMULATION = "fleet";
+	private static final String SCENARIO_SIMULATION = "festoCebitRandom";
+
+	private final JsonObject options;
+	private final PlatformManager platformManager;
+	private final Vertx vertx; // Runs the fake MID and the client of the test, separately from the service
+	private final FakeMid fakeMid;
+	private Context context;
+	private HttpClient client;
+
+	public LoadTest(JsonObject options) {
+		this.options = options;
+		this.platformManager = PlatformLocator.factory.createPlatformManager();
+		this.vertx = VertxFactory.newVertx();
+		this.fakeMid = new FakeMid(vertx, MID_BASE_PATH);
+	}
+
+	public static void main(String[] args) throws Exception {
+		JsonObject options = DEFAULTS.copy();
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			String name = args[i].replaceFirst("^--", "");
+			Object defaultValue = DEFAULTS.getValue(name);
+			if (defaultValue == null) {
+				throw new IllegalArgumentException("Unknown option: " + args[i]);
+			}
+			if (defaultValue instanceof Boolean) {
+				options.putBoolean(name, Boolean.parseBoolean(args[i + 1]));
+			} else if (defaultValue instanceof Integer) {
+				options.putNumber(name, Integer.parseInt(args[i + 1]));
+			} else if (defaultValue instanceof String) {
+				options.putString(name, args[i + 1]);
+			} else {
+				options.putNumber(name, Double.parseDouble(args[i + 1]));
+			}
+		}
+		JsonObject result = new LoadTest(options).run();
+		System.out.println(result.encodePrettily());
+		System.exit(0);
+	}
+
+	/**
+	 * Runs the load test.
+	 * @return Results.
+	 * @throws Exception The test could not be run.
+	 */
+	public JsonObject run() throws Exception {
+		final CountDownLatch listening = new CountDownLatch(1);
+		fakeMid.listen(getInt("port"), new Handler<AsyncResult<HttpServer>>() {
+			@Override
+			public void handle(AsyncResult<HttpServer> result) {
+				if (result.failed()) {
+					result.cause().printStackTrace();
+				}
+				listening.countDown();
+			}
+		});
+		listening.await();
+		deploy();
+		final CountDownLatch created = new CountDownLatch(1);
+		vertx.runOnContext(new Handler<Void>() {
+			@Override
+			public void handle(Void event) {
+				// All requests are sent from the context of the client.
+				context = vertx.currentContext();
+				client = vertx.createHttpClient().setHost("localhost").setPort(getInt("servicePort"));
+				created.countDown();
+			}
+		});
+		created.await();
+
+		startSimulations();
+		TimeUnit.SECONDS.sleep(getInt("warmup"));
+		JsonObject startMetrics = request("GET", "/metrics", null);
+		fakeMid.reset();
+		long allocatedBytes = getAllocatedBytes();
+		long startTime = System.nanoTime();
+		TimeUnit.SECONDS.sleep(getInt("duration"));
+		JsonObject status = request("POST", "/performAction", new JsonObject().putString("method", "simulationStatus"));
+		JsonObject endMetrics = request("GET", "/metrics", null);
+		double duration = (System.nanoTime() - startTime) / 1e9d;
+		allocatedBytes = getAllocatedBytes() - allocatedBytes;
+		long requests = fakeMid.getRequests();
+		long rejectedRequests = fakeMid.getRejectedRequests();
+		long bytes = fakeMid.getBytes();
+		stopSimulations();
+		platformManager.stop();
+		vertx.stop();
+		return createResult(duration, allocatedBytes, startMetrics, endMetrics, status, requests, rejectedRequests, bytes);
+	}
+
+	/**
+	 * Deploys the main verticle of the service with the classpath of the load test.
+	 */
+	private void deploy() throws Exception {
+		final CountDownLatch deployed = new CountDownLatch(1);
+		final Throwable[] failure = new Throwable[1];
+		platformManager.deployVerticle(MainVerticle.class.getName(), createConfig(), getClasspath(), 1, null, new Handler<AsyncResult<String>>() {
+			@Override
+			public void handle(AsyncResult<String> result) {
+				failure[0] = result.cause();
+				deployed.countDown();
+			}
+		});
+		deployed.await();
+		if (failure[0] != null) {
+			throw new IllegalStateException("Failed to deploy the service.", failure[0]);
+		}
+	}
+
+	/**
+	 * Creates the configuration of the service. Features of the send path not enabled by the options are disabled.
+	 */
+	private JsonObject createConfig() {
+		JsonObject midConfig = new JsonObject()
+				.putString("host", "localhost")
+				.putNumber("port", getInt("port"))
+				.putString("basePath", MID_BASE_PATH)
+				.putBoolean("useForMIDGUI", true)
+				.putString("transport", options.getString("transport"))
+				.putString("dataFormat", options.getString("dataFormat"))
+				.putNumber("batchWindow", getInt("batchWindow"))
+				.putBoolean("deltaUpdates", options.getBoolean("deltaUpdates"))
+				.putNumber("maxRetries", getInt("maxRetries"))
+				.putNumber("queueCapacity", getInt("queueCapacity"))
+				.putNumber("maxInFlight", getInt("maxInFlight"));
+		JsonArray fleetFields = new JsonArray()
+				.addObject(createFleetField("Tuer offen", "bool", "on_off_light", new JsonObject()
+						.putString("model", "markov").putNumber("toTrue", 0.002).putNumber("toFalse", 0.05)))
+				.addObject(createFleetField("Handbetrieb", "bool", "on_off_light", new JsonObject()
+						.putString("model", "markov").putNumber("toTrue", 0.001).putNumber("toFalse", 0.01)))
+				.addObject(createFleetField("Teilezaehler", "long", "text_field", new JsonObject()
+						.putString("model", "counter").putNumber("rate", 0.2).putString("while", "!Handbetrieb")))
+				.addObject(createFleetField("Fuellstand", "double", "text_field", new JsonObject()
+						.putString("model", "level").putNumber("rate", -0.002).putNumber("noise", 0.001).putNumber("resolution", 0.01))
+						.putNumber("initial", 1.0));
+		JsonObject fleetConfig = new JsonObject()
+				.putNumber("size", getInt("fleet"))
+				.putNumber("shards", getInt("shards"))
+				.putObject("template", new JsonObject()
+						.putString("scenario", FLEET_SIMULATION)
+						.putString("vendorId", "MSD")
+						.putString("machineId", "LoadTestMachine")
+						.putString("stationId", "LoadTestStation")
+						.putString("siteId", "LoadTestSite")
+						.putArray("fields", fleetFields));
+		return new JsonObject()
+				.putObject("webserver", new JsonObject()
+						.putNumber("port", getInt("servicePort"))
+						.putString("basePath", BASE_PATH)
+						.putBoolean("secure", false))
+				.putObject("mid", midConfig)
+				.putObject("fleet", fleetConfig)
+				.putObject("processes", new JsonObject())
+				.putObject("metrics", new JsonObject().putNumber("publishInterval", 0))
+				.putObject("liveView", new JsonObject().putNumber("interval", 0));
+	}
+
+	private static JsonObject createFleetField(String name, String type, String visualizationType, JsonObject behaviour) {
+		return new JsonObject().putString("name", name).putString("type", type).putString("visualizationType", visualizationType)
+				.putObject("behaviour", behaviour);
+	}
+
+	private void startSimulations() throws Exception {
+		if (getInt("fleetRate") > 0) {
+			request("POST", "/performAction", new JsonObject().putString("method", "startSimulation")
+					.putString("scenario", FLEET_SIMULATION).putNumber("rate", getInt("fleetRate")));
+		}
+		if (getInt("rate") > 0) {
+			request("POST", "/performAction", new JsonObject().putString("method", "startSimulation")
+					.putString("scenario", SCENARIO_SIMULATION).putNumber("rate", getInt("rate")));
+		}
+	}
+
+	private void stopSimulations() throws Exception {
+		for (String scenario : new String[] { FLEET_SIMULATION, SCENARIO_SIMULATION }) {
+			request("POST", "/performAction", new JsonObject().putString("method", "stopSimulation").putString("scenario", scenario));
+		}
+	}
+
+	private JsonObject createResult(double duration, long allocatedBytes, JsonObject startMetrics, JsonObject endMetrics, JsonObject status,
+			long requests, long rejectedRequests, long bytes) {
+		JsonObject result = new JsonObject();
+		result.putObject("options", options);
+		result.putNumber("duration", duration);
+		JsonObject achievedRates = new JsonObject();
+		for (Object simulation : status.getArray("simulations", new JsonArray())) {
+			JsonObject simulationStatus = (JsonObject) simulation;
+			achievedRates.putNumber(simulationStatus.getString("name"), simulationStatus.getNumber("achievedRate"));
+		}
+		result.putObject("achievedTickRates", achievedRates);
+		JsonObject updatesPerSecond = new JsonObject();
+		JsonObject startScenarios = startMetrics.getObject("scenarios");
+		JsonObject endScenarios = endMetrics.getObject("scenarios");
+		for (String scenario : endScenarios.getFieldNames()) {
+			JsonObject start = startScenarios.getObject(scenario, new JsonObject());
+			JsonObject end = endScenarios.getObject(scenario);
+			JsonObject rates = new JsonObject();
+			for (String counter : new String[] { "sent", "failed", "retried", "dropped" }) {
+				rates.putNumber(counter, (end.getLong(counter, 0L) - start.getLong(counter, 0L)) / duration);
+			}
+			updatesPerSecond.putObject(scenario, rates);
+		}
+		result.putObject("updatesPerSecond", updatesPerSecond);
+		// Recorded since the deployment, including the warmup.
+		result.putObject("roundTripMillis", endMetrics.getObject("roundTrip"));
+		result.putNumber("midRequestsPerSecond", requests / duration);
+		result.putNumber("midRequestsRejected", rejectedRequests);
+		result.putNumber("midBytesPerSecond", bytes / duration);
+		// Includes the allocations of the fake MID and the HTTP client of the test running in the same process.
+		result.putNumber("allocationMBPerSecond", allocatedBytes / duration / (1024d * 1024d));
+		return result;
+	}
+
+	/**
+	 * Sends a request to the service and waits for its response.
+	 * @param method HTTP method.
+	 * @param path Path below the base path of the service.
+	 * @param body Body to send or <code>null</code>.
+	 * @return Body of the response as JSON object, empty if the body is not a JSON object.
+	 * @throws IllegalStateException The service answered with an error.
+	 */
+	private JsonObject request(final String method, final String path, final JsonObject body) throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(1);
+		final JsonObject response = new JsonObject();
+		final String[] error = new String[1];
+		context.runOnContext(new Handler<Void>() {
+			@Override
+			public void handle(Void event) {
+				client.request(method, BASE_PATH + path, new Handler<HttpClientResponse>() {
+					@Override
+					public void handle(final HttpClientResponse clientResponse) {
+						clientResponse.bodyHandler(new Handler<Buffer>() {
+							@Override
+							public void handle(Buffer buffer) {
+								String content = buffer.toString();
+								if (clientResponse.statusCode() != 200) {
+									error[0] = method + " " + path + ": " + clientResponse.statusCode() + " " + content;
+								} else if (content.startsWith("{")) {
+									response.mergeIn(new JsonObject(content));
+								}
+								done.countDown();
+							}
+						});
+					}
+				}).exceptionHandler(new Handler<Throwable>() {
+					@Override
+					public void handle(Throwable e) {
+						error[0] = method + " " + path + ": " + e.getMessage();
+						done.countDown();
+					}
+				}).end(body != null ? body.encode() : "");
+			}
+		});
+		if (!done.await(10, TimeUnit.SECONDS)) {
+			throw new IllegalStateException(method + " " + path + ": No response from the service.");
+		}
+		if (error[0] != null) {
+			throw new IllegalStateException(error[0]);
+		}
+		return response;
+	}
+
+	private int getInt(String name) {
+		return options.getNumber(name).intValue();
+	}
+
+	/**
+	 * Returns the classpath of the load test, which includes the service and its dependencies.
+	 */
+	private static URL[] getClasspath() throws MalformedURLException {
+		ClassLoader classLoader = LoadTest.class.getClassLoader();
+		if (classLoader instanceof URLClassLoader) {
+			return ((URLClassLoader) classLoader).getURLs();
+		}
+		List<URL> classpath = new ArrayList<>();
+		for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+			classpath.add(new File(entry).toURI().toURL());
+		}
+		return classpath.toArray(new URL[classpath.size()]);
+	}
+
+	private static long getAllocatedBytes() {
+		java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		if (!(threadBean instanceof com.sun.management.ThreadMXBean)) {
+			return 0;
+		}
+		long[] allocatedBytes = ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(threadBean.getAllThreadIds());
+		long sum = 0;
+		for (long bytes : allocatedBytes) {
+			sum += Math.max(0, bytes);
+		}
+		return sum;
+	}
+}
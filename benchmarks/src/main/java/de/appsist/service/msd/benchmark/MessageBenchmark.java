@@ -0,0 +1,122 @@
+package de.appsist.service.msd.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.vertx.java.core.buffer.Buffer;
+
+import de.appsist.service.middrv.entity.MachineSchema;
+import de.appsist.service.middrv.entity.MachineValueType;
+import de.appsist.service.middrv.entity.VisualizationLevel;
+import de.appsist.service.middrv.entity.VisualizationType;
+import de.appsist.service.middrv.rest.DataMessage;
+import de.appsist.service.middrv.rest.DataSchemaMismatchException;
+import de.appsist.service.msd.MachineTemplate;
+import de.appsist.service.msd.MachineUpdate;
+import de.appsist.service.msd.MidMessageCodec;
+
+/**
+ * Benchmarks for building and serializing the messages sent to the MID.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MessageBenchmark {
+	private static final MachineValueType[] TYPES = { MachineValueType.BOOL, MachineValueType.LONG, MachineValueType.DOUBLE, MachineValueType.STRING };
+
+	/** Number of fields of the machine schema. The scenarios of the service have 7 to 9 fields. */
+	@Param({ "8", "32", "128" })
+	public int fields;
+
+	/** Number of machines in one message. */
+	@Param({ "1", "100" })
+	public int machines;
+
+	private MachineTemplate template;
+	private MachineSchema schema;
+	private List<MachineUpdate> updates;
+	private MidMessageCodec codec;
+
+	@Setup
+	public void setUp() {
+		MachineTemplate.Builder builder = new MachineTemplate.Builder("Benchmark", "Machine").station("Station", "Site");
+		for (int field = 0; field < fields; field++) {
+			builder.field("Field " + field, TYPES[field % TYPES.length], "", VisualizationType.TEXT_FIELD, VisualizationLevel.OVERVIEW);
+		}
+		template = builder.build();
+		schema = template.createSchema(template.createMachine("0"));
+		updates = new ArrayList<>(machines);
+		for (int machine = 0; machine < machines; machine++) {
+			updates.add(createUpdate(String.valueOf(machine), machine));
+		}
+		codec = new MidMessageCodec();
+	}
+
+	private MachineUpdate createUpdate(String serialNumber, long value) {
+		MachineUpdate update = new MachineUpdate(template, serialNumber);
+		for (int field = 0; field < fields; field++) {
+			switch (template.getFieldType(field)) {
+			case BOOL:
+				update.set(field, value % 2 == 0);
+				break;
+			case LONG:
+				update.set(field, value);
+				break;
+			case DOUBLE:
+				update.set(field, value / 100d);
+				break;
+			default:
+				update.set(field, "Value " + value);
+			}
+		}
+		return update;
+	}
+
+	/**
+	 * Creates the updates and machine data entities of all machines, as done by the scenarios for each state change.
+	 */
+	@Benchmark
+	public void buildMachineData(Blackhole blackhole) {
+		for (int machine = 0; machine < machines; machine++) {
+			blackhole.consume(createUpdate(updates.get(machine).getSerialNumber(), machine).toMachineData());
+		}
+	}
+
+	/**
+	 * Builds a data message of the MID driver as sent by both transports.
+	 */
+	@Benchmark
+	public DataMessage buildDataMessage() throws DataSchemaMismatchException {
+		DataMessage dataMessage = new DataMessage();
+		for (MachineUpdate update : updates) {
+			dataMessage.addMachineData(update.toMachineData(), schema);
+		}
+		return dataMessage;
+	}
+
+	@Benchmark
+	public Buffer encodeSchemas() {
+		return codec.encodeSchemas(updates);
+	}
+
+	@Benchmark
+	public Buffer encodeData() {
+		return codec.encodeData(updates);
+	}
+}
@@ -0,0 +1,211 @@
+package de.appsist.service.msd.benchmark;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import de.appsist.service.middrv.entity.MachineValueType;
+import de.appsist.service.msd.MidMessageCodec;
+import de.appsist.service.msd.SchemaRegistry;
+
+/**
+ * Decoder for data messages in the binary format of the {@link MidMessageCodec}, for local stand-ins of the MID. As the binary
+ * format refers to fields by their position in the schema, the decoder has to know the schemas of the machines: All schema
+ * messages sent to the MID have to be registered before the data messages of their machines are decoded. Entries whose schema ID
+ * differs from the one of the registered schema are rejected, as their field positions may refer to another schema.
+ * A decoder instance is not thread-safe.
+ */
+public class MidDataDecoder {
+	private final Map<String, Schema> schemas; // Machine key -> schema
+
+	public MidDataDecoder() {
+		schemas = new HashMap<>();
+	}
+
+	/**
+	 * Registers the schemas of a schema message. Schemas registered earlier for the same machines are replaced.
+	 * @param schemaMessage Schema message as encoded by {@link MidMessageCodec#encodeSchemas(List)}.
+	 * @throws IllegalArgumentException A schema is incomplete or has a field of unknown type.
+	 */
+	public void registerSchemas(JsonObject schemaMessage) throws IllegalArgumentException {
+		JsonArray schemaArray = schemaMessage.getArray("schemas");
+		if (schemaArray == null) {
+			throw new IllegalArgumentException("Schema message without schemas.");
+		}
+		for (int i = 0; i < schemaArray.size(); i++) {
+			JsonObject schema = schemaArray.get(i);
+			JsonObject machine = schema.getObject("machine");
+			JsonArray fields = schema.getArray("fields");
+			Number schemaId = schema.getNumber("schemaId");
+			if (machine == null || fields == null || schemaId == null) {
+				throw new IllegalArgumentException("Schema without machine, fields or schema ID.");
+			}
+			String[] names = new String[fields.size()];
+			MachineValueType[] types = new MachineValueType[fields.size()];
+			for (int field = 0; field < names.length; field++) {
+				JsonObject fieldJson = fields.get(field);
+				names[field] = fieldJson.getString("name");
+				types[field] = MachineValueType.byIdentifier(fieldJson.getString("type"));
+				if (names[field] == null || types[field] == null) {
+					throw new IllegalArgumentException("Invalid field in schema: " + fieldJson.encode());
+				}
+			}
+			String machineKey = SchemaRegistry.machineKey(machine.getString("vendorId"), machine.getString("machineId"), machine.getString("serialNumber"));
+			schemas.put(machineKey, new Schema(schemaId.intValue(), names, types));
+		}
+	}
+
+	/**
+	 * Decodes a binary data message.
+	 * @param data Message body.
+	 * @return Data message in the JSON representation: <code>{ "data" : [ { "machine" : {...}, "values" : {...} } ] }</code>.
+	 * @throws IllegalArgumentException The message is malformed, refers to a machine or field of an unknown schema, or was encoded
+	 * for another schema than the registered one.
+	 */
+	public JsonObject decode(Buffer data) throws IllegalArgumentException {
+		Reader reader = new Reader(data.getBytes());
+		byte version = reader.readByte();
+		if (version != MidMessageCodec.BINARY_VERSION) {
+			throw new IllegalArgumentException("Unsupported version of binary data message: " + version);
+		}
+		int entries = reader.readInt();
+		List<String[]> types = new ArrayList<>(); // Vendor ID, machine ID and ontology URI of the types defined in the message
+		List<Integer> schemaIds = new ArrayList<>(); // Schema IDs of the types defined in the message
+		JsonArray entryArray = new JsonArray();
+		for (int entry = 0; entry < entries; entry++) {
+			int type = reader.readInt();
+			if (type == types.size()) {
+				types.add(new String[] { reader.readString(), reader.readString(), reader.readString() });
+				schemaIds.add((int) reader.readFixed(4));
+			} else if (type > types.size()) {
+				throw new IllegalArgumentException("Reference to undefined machine type " + type + ".");
+			}
+			String[] machineType = types.get(type);
+			String serialNumber = reader.readString();
+			String machineKey = SchemaRegistry.machineKey(machineType[0], machineType[1], serialNumber);
+			Schema schema = schemas.get(machineKey);
+			if (schema == null) {
+				throw new IllegalArgumentException("No schema registered for machine " + machineKey + ".");
+			}
+			if (schema.id != schemaIds.get(type)) {
+				throw new IllegalArgumentException("Data of machine " + machineKey + " encoded for schema " + schemaIds.get(type)
+						+ ", registered schema is " + schema.id + ".");
+			}
+			JsonObject machine = new JsonObject()
+					.putString("vendorId", machineType[0])
+					.putString("machineId", machineType[1])
+					.putString("serialNumber", serialNumber);
+			if (!machineType[2].isEmpty()) {
+				machine.putString("ontologyUri", machineType[2]);
+			}
+			JsonObject values = new JsonObject();
+			int numValues = reader.readInt();
+			for (int i = 0; i < numValues; i++) {
+				int field = reader.readInt();
+				if (field >= schema.names.length) {
+					throw new IllegalArgumentException("Field " + field + " not in schema of machine " + machineKey + ".");
+				}
+				switch (schema.types[field]) {
+				case BOOL:
+					values.putBoolean(schema.names[field], reader.readByte() != 0);
+					break;
+				case LONG:
+					long zigzag = reader.readVarint();
+					values.putNumber(schema.names[field], zigzag >>> 1 ^ -(zigzag & 1));
+					break;
+				case DOUBLE:
+					values.putNumber(schema.names[field], Double.longBitsToDouble(reader.readFixed(8)));
+					break;
+				default:
+					values.putString(schema.names[field], reader.readString());
+				}
+			}
+			entryArray.addObject(new JsonObject().putObject("machine", machine).putObject("values", values));
+		}
+		if (reader.position != reader.bytes.length) {
+			throw new IllegalArgumentException("Trailing bytes after binary data message.");
+		}
+		return new JsonObject().putArray("data", entryArray);
+	}
+
+	/**
+	 * Field names and types of a registered schema.
+	 */
+	private static class Schema {
+		private final int id;
+		private final String[] names;
+		private final MachineValueType[] types;
+
+		private Schema(int id, String[] names, MachineValueType[] types) {
+			this.id = id;
+			this.names = names;
+			this.types = types;
+		}
+	}
+
+	/**
+	 * Reader for the primitives of the binary format.
+	 */
+	private static class Reader {
+		private final byte[] bytes;
+		private int position = 0;
+
+		private Reader(byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		private byte readByte() throws IllegalArgumentException {
+			if (position >= bytes.length) {
+				throw new IllegalArgumentException("Unexpected end of binary data message.");
+			}
+			return bytes[position++];
+		}
+
+		private long readVarint() throws IllegalArgumentException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				byte b = readByte();
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new IllegalArgumentException("Malformed varint in binary data message.");
+		}
+
+		private int readInt() throws IllegalArgumentException {
+			long value = readVarint();
+			if (value < 0 || value > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("Number out of range in binary data message: " + value);
+			}
+			return (int) value;
+		}
+
+		/**
+		 * Reads a big-endian number of fixed length.
+		 */
+		private long readFixed(int length) throws IllegalArgumentException {
+			long value = 0;
+			for (int i = 0; i < length; i++) {
+				value = value << 8 | readByte() & 0xFF;
+			}
+			return value;
+		}
+
+		private String readString() throws IllegalArgumentException {
+			int length = readInt();
+			if (length > bytes.length - position) {
+				throw new IllegalArgumentException("Unexpected end of binary data message.");
+			}
+			String value = new String(bytes, position, length, StandardCharsets.UTF_8);
+			position += length;
+			return value;
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package de.appsist.service.msd.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.VertxFactory;
+import org.vertx.java.core.http.HttpServerResponse;
+import org.vertx.java.core.json.JsonObject;
+
+import de.appsist.service.msd.MidMessageCodec;
+import de.appsist.service.msd.MidSender;
+import de.appsist.service.msd.SchemaRegistry;
+import de.appsist.service.msd.StateController;
+
+/**
+ * Benchmark for the dispatch of <code>/performAction</code> requests including the update of the scenario state and sending to
+ * the stub MID.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PerformActionBenchmark {
+	/** Scenario to perform actions for. */
+	@Param({ "festoPilot", "festoCebit", "mbb" })
+	public String scenario;
+
+	/** Whether only changed values are sent, which requires binary data messages. */
+	@Param({ "false", "true" })
+	public boolean deltaUpdates;
+
+	private Vertx vertx;
+	private StateController stateController;
+	private HttpServerResponse response;
+	private JsonObject[] actions;
+	private int next = 0;
+
+	@Setup
+	public void setUp() {
+		vertx = VertxFactory.newVertx();
+		MidSender sender = new MidSender(new StubMidTransport(deltaUpdates ? MidMessageCodec.DataFormat.BINARY : MidMessageCodec.DataFormat.JSON),
+				new SchemaRegistry());
+		if (deltaUpdates) {
+			sender.enableDeltaUpdates(30000L);
+		}
+		stateController = new StateController(vertx, new JsonObject().putBoolean("autosend", true), sender);
+		stateController.initializeRESTConnection();
+		response = Stubs.response();
+		// Two actions toggling a value, so that every action changes the machine state.
+		switch (scenario) {
+		case "festoPilot":
+			actions = createActions("fillLoctite", "emptyLoctite");
+			break;
+		case "festoCebit":
+			actions = createActions("festoQ1ToTrue", "festoQ1ToFalse");
+			break;
+		default:
+			actions = createActions("mbbDoorOpenToTrue", "mbbDoorOpenToFalse");
+		}
+	}
+
+	private static JsonObject[] createActions(String... methods) {
+		JsonObject[] actions = new JsonObject[methods.length];
+		for (int i = 0; i < methods.length; i++) {
+			actions[i] = new JsonObject().putString("method", methods[i]);
+		}
+		return actions;
+	}
+
+	@TearDown
+	public void tearDown() {
+		stateController.stopSimulations();
+		vertx.stop();
+	}
+
+	@Benchmark
+	public void performAction() {
+		stateController.performAction(actions[next], response);
+		next ^= 1;
+	}
+}
@@ -0,0 +1,69 @@
+package de.appsist.service.msd.benchmark;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.appsist.service.msd.MidMessageCodec;
+import de.appsist.service.msd.MidSender;
+import de.appsist.service.msd.Scenario;
+import de.appsist.service.msd.SchemaRegistry;
+
+/**
+ * Benchmark for one tick of the simulation "festoCebitRandom": Setting random values, creating the update and sending it as a data
+ * message to the stub MID, as done by the simulation for each tick. Run it with the <code>gc</code> profiler, its
+ * <code>gc.alloc.rate.norm</code> is the allocation per message of the generation and send path.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RandomDataBenchmark {
+	private static final String SIMULATION = "festoCebitRandom";
+
+	/** Whether only changed values are sent, which requires binary data messages. */
+	@Param({ "false", "true" })
+	public boolean deltaUpdates;
+
+	private MidSender sender;
+	private Scenario.Action action;
+
+	@Setup
+	public void setUp() throws IOException {
+		sender = new MidSender(new StubMidTransport(deltaUpdates ? MidMessageCodec.DataFormat.BINARY : MidMessageCodec.DataFormat.JSON),
+				new SchemaRegistry());
+		if (deltaUpdates) {
+			sender.enableDeltaUpdates(30000L);
+		}
+		sender.connect();
+		for (Scenario scenario : Scenario.load("scenarios.json")) {
+			if (scenario.getSimulations().containsKey(SIMULATION)) {
+				scenario.setRandom(new Random(42));
+				action = scenario.getSimulations().get(SIMULATION);
+			}
+		}
+		if (action == null) {
+			throw new IllegalStateException("Simulation not found: " + SIMULATION);
+		}
+	}
+
+	@Benchmark
+	public void tick() {
+		action.perform();
+		sender.send(action.getScenario().createUpdate(), null);
+	}
+}
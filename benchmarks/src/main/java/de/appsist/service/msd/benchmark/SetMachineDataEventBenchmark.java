@@ -0,0 +1,85 @@
+package de.appsist.service.msd.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+
+import de.appsist.commons.event.SetMachineDataEvent;
+import de.appsist.commons.event.SetMachineDataEvent.Field;
+import de.appsist.service.msd.MidMessageCodec;
+import de.appsist.service.msd.MidSender;
+import de.appsist.service.msd.SchemaRegistry;
+import de.appsist.service.msd.SetMachineDataEventHandler;
+
+/**
+ * Benchmark for the handling of set machine data events: Parsing of the event, construction of the schema and sending to the
+ * stub MID.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SetMachineDataEventBenchmark {
+	private static final String[] TYPES = { "bool", "long", "double", "string" };
+
+	/** Number of fields of the event. */
+	@Param({ "4", "16" })
+	public int fields;
+
+	/** Whether only changed values are sent, which requires binary data messages. */
+	@Param({ "false", "true" })
+	public boolean deltaUpdates;
+
+	private SetMachineDataEventHandler handler;
+	private List<Message<JsonObject>> messages;
+	private int next = 0;
+
+	@Setup
+	public void setUp() {
+		MidSender sender = new MidSender(new StubMidTransport(deltaUpdates ? MidMessageCodec.DataFormat.BINARY : MidMessageCodec.DataFormat.JSON),
+				new SchemaRegistry());
+		if (deltaUpdates) {
+			sender.enableDeltaUpdates(30000L);
+		}
+		handler = new SetMachineDataEventHandler(sender);
+		handler.initializeRESTConnection();
+		// Two events with alternating values, so that every event changes the machine state.
+		messages = new ArrayList<>(2);
+		messages.add(createMessage(0));
+		messages.add(createMessage(1));
+	}
+
+	private Message<JsonObject> createMessage(int value) {
+		List<Field> eventFields = new ArrayList<>(fields);
+		for (int field = 0; field < fields; field++) {
+			String type = TYPES[field % TYPES.length];
+			String fieldValue = type.equals("bool") ? String.valueOf(value == 1) : String.valueOf(value);
+			eventFields.add(new Field("Field " + field, type, "", "text_field", "overview", fieldValue));
+		}
+		SetMachineDataEvent event = new SetMachineDataEvent(UUID.randomUUID().toString(), "Benchmark", "Machine", "0", "Station", "Site", eventFields);
+		return Stubs.message(SetMachineDataEventHandler.ADDRESS, new JsonObject(event.asMap()));
+	}
+
+	@Benchmark
+	public void handle() {
+		handler.handle(messages.get(next));
+		next ^= 1;
+	}
+}
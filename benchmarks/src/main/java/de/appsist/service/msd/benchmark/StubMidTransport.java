@@ -0,0 +1,86 @@
+package de.appsist.service.msd.benchmark;
+
+import java.util.List;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.impl.DefaultFutureResult;
+
+import de.appsist.service.msd.MachineUpdate;
+import de.appsist.service.msd.MidMessageCodec;
+import de.appsist.service.msd.EncodedMidTransport;
+
+/**
+ * Local stand-in for the MID. Messages are encoded like for the HTTP transport and acknowledged immediately, so the benchmarks
+ * include the serialization cost but not the network.
+ */
+public class StubMidTransport implements EncodedMidTransport {
+	private final MidMessageCodec.DataFormat dataFormat;
+	private final MidMessageCodec codec;
+	private long messages = 0;
+	private long bytes = 0;
+
+	/**
+	 * Creates a stand-in encoding the messages of the MID driver.
+	 */
+	public StubMidTransport() {
+		this(MidMessageCodec.DataFormat.JSON);
+	}
+
+	/**
+	 * Creates a stand-in.
+	 * @param dataFormat Format of data messages. Delta updates require the binary format, as data messages of the MID driver
+	 * contain all values.
+	 */
+	public StubMidTransport(MidMessageCodec.DataFormat dataFormat) {
+		this.dataFormat = dataFormat;
+		this.codec = new MidMessageCodec(dataFormat);
+	}
+
+	@Override
+	public void sendSchemas(List<MachineUpdate> machines, Handler<AsyncResult<Void>> doneHandler) {
+		acknowledge(codec.encodeSchemas(machines), doneHandler);
+	}
+
+	@Override
+	public void sendData(List<MachineUpdate> updates, Handler<AsyncResult<Void>> doneHandler) {
+		acknowledge(codec.encodeData(updates), doneHandler);
+	}
+
+	@Override
+	public MidMessageCodec createCodec() {
+		return new MidMessageCodec(dataFormat);
+	}
+
+	@Override
+	public void sendEncodedData(List<MachineUpdate> updates, Buffer data, Handler<AsyncResult<Void>> doneHandler) {
+		acknowledge(data, doneHandler);
+	}
+
+	private void acknowledge(Buffer body, Handler<AsyncResult<Void>> doneHandler) {
+		messages++;
+		bytes += body.length();
+		if (doneHandler != null) {
+			doneHandler.handle(new DefaultFutureResult<Void>((Void) null));
+		}
+	}
+
+	public long getMessages() {
+		return messages;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	@Override
+	public int getInFlight() {
+		return 0;
+	}
+
+	@Override
+	public void close() {
+		// Nothing to release.
+	}
+}
@@ -0,0 +1,88 @@
+package de.appsist.service.msd.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.vertx.java.core.MultiMap;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.http.CaseInsensitiveMultiMap;
+import org.vertx.java.core.http.HttpServerResponse;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Stubs for Vert.x objects the service expects from the platform.
+ */
+public final class Stubs {
+	private Stubs() {
+	}
+
+	/**
+	 * Creates a response discarding everything written to it.
+	 * @return HTTP server response.
+	 */
+	public static HttpServerResponse response() {
+		final MultiMap headers = new CaseInsensitiveMultiMap();
+		return (HttpServerResponse) Proxy.newProxyInstance(Stubs.class.getClassLoader(), new Class<?>[] { HttpServerResponse.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						switch (method.getName()) {
+						case "hashCode":
+						case "equals":
+						case "toString":
+							return objectMethod(proxy, method, args);
+						case "headers":
+						case "trailers":
+							return headers;
+						case "getStatusCode":
+							return 200;
+						case "isChunked":
+						case "writeQueueFull":
+							return false;
+						default:
+							return method.getReturnType() == HttpServerResponse.class ? proxy : null;
+						}
+					}
+				});
+	}
+
+	/**
+	 * Creates an event bus message ignoring replies.
+	 * @param address Address the message has been sent to.
+	 * @param body Message body.
+	 * @return Event bus message.
+	 */
+	@SuppressWarnings("unchecked")
+	public static Message<JsonObject> message(final String address, final JsonObject body) {
+		return (Message<JsonObject>) Proxy.newProxyInstance(Stubs.class.getClassLoader(), new Class<?>[] { Message.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						switch (method.getName()) {
+						case "hashCode":
+						case "equals":
+						case "toString":
+							return objectMethod(proxy, method, args);
+						case "address":
+							return address;
+						case "body":
+							return body;
+						default:
+							return null;
+						}
+					}
+				});
+	}
+
+	private static Object objectMethod(Object proxy, Method method, Object[] args) {
+		switch (method.getName()) {
+		case "hashCode":
+			return System.identityHashCode(proxy);
+		case "equals":
+			return proxy == args[0];
+		default:
+			return "Stub of " + proxy.getClass().getInterfaces()[0].getSimpleName();
+		}
+	}
+}
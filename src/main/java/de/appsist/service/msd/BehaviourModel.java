@@ -0,0 +1,354 @@
+package de.appsist.service.msd;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import de.appsist.service.middrv.entity.MachineValueType;
+
+/**
+ * Stochastic model of the values of one field over time. A model is evaluated for all machines of a {@link FleetState} at once,
+ * walking the column of its field, so large fleets are advanced without per-machine objects.
+ * <p>
+ * Models are defined by the <code>behaviour</code> object of a field specification:
+ * <ul>
+ * <li><code>{"model": "markov", "toTrue": 0.01, "toFalse": 0.5}</code>: Boolean switching between its two states with the given
+ * rates per second. The mean time a value stays false is <code>1 / toTrue</code> seconds.</li>
+ * <li><code>{"model": "level", "rate": -0.001, "noise": 0.0005, "min": 0, "max": 1, "resolution": 0.01}</code>: Level drifting
+ * by <code>rate</code> per second with Gaussian noise of <code>noise</code> per square root of a second, limited to
+ * <code>[min, max]</code>. The value is reported in steps of <code>resolution</code>, so the field only changes when the level
+ * crosses a step. Boolean fields report whether the level is at least <code>threshold</code>. Values assigned by actions, e.g. a
+ * refill, are taken over as new level.</li>
+ * <li><code>{"model": "counter", "rate": 0.5}</code>: Counter increased by a Poisson distributed number of events occurring with
+ * the given rate per second.</li>
+ * </ul>
+ * Each model may have a condition <code>while</code>: Name of a boolean field, prefixed with <code>!</code> to negate it. The
+ * model only advances machines for which the condition holds, e.g. a part counter <code>"while" : "!Handbetrieb"</code>.
+ * Machines the state does not simulate (see {@link FleetState#isSimulated(int)}) are never advanced.
+ */
+public abstract class BehaviourModel {
+	private static final String NEGATION_PREFIX = "!";
+
+	protected final MachineTemplate template;
+	protected final int field;
+	private final int conditionField; // -1 if the model is not conditional
+	private final boolean conditionNegated;
+
+	private BehaviourModel(MachineTemplate template, int field, JsonObject json) throws IllegalArgumentException {
+		this.template = template;
+		this.field = field;
+		String condition = json.getString("while");
+		if (condition != null) {
+			conditionNegated = condition.startsWith(NEGATION_PREFIX);
+			String conditionName = conditionNegated ? condition.substring(NEGATION_PREFIX.length()) : condition;
+			conditionField = template.getFieldIndex(conditionName);
+			if (conditionField < 0 || template.getFieldType(conditionField) != MachineValueType.BOOL) {
+				throw new IllegalArgumentException("Condition of behaviour of field " + template.getFieldName(field) + " is not a boolean field: " + conditionName);
+			}
+		} else {
+			conditionField = -1;
+			conditionNegated = false;
+		}
+	}
+
+	/**
+	 * Parses the model of a field.
+	 * @param template Template of the machines.
+	 * @param field Index of the field in the template.
+	 * @param json Behaviour specification of the field.
+	 * @param size Number of machines the model is evaluated for.
+	 * @return Model of the field.
+	 * @throws IllegalArgumentException The specification is invalid or does not match the type of the field.
+	 */
+	public static BehaviourModel fromJson(MachineTemplate template, int field, JsonObject json, int size) throws IllegalArgumentException {
+		String model = json.getString("model");
+		MachineValueType type = template.getFieldType(field);
+		if ("markov".equals(model) && type == MachineValueType.BOOL) {
+			return new MarkovModel(template, field, json);
+		} else if ("level".equals(model) && type != MachineValueType.STRING) {
+			return new LevelModel(template, field, json, size);
+		} else if ("counter".equals(model) && type == MachineValueType.LONG) {
+			return new CounterModel(template, field, json);
+		}
+		throw new IllegalArgumentException("Invalid behaviour of field " + template.getFieldName(field) + " of type " + type + ": " + json.encode());
+	}
+
+	/**
+	 * Parses the models of all fields having a <code>behaviour</code> specification.
+	 * @param template Template of the machines.
+	 * @param fields Field specifications the template has been created from.
+	 * @param size Number of machines the models are evaluated for.
+	 * @return Models in the order of the fields, empty if no field has a behaviour.
+	 * @throws IllegalArgumentException A specification is invalid.
+	 */
+	public static List<BehaviourModel> fromFields(MachineTemplate template, JsonArray fields, int size) throws IllegalArgumentException {
+		List<BehaviourModel> models = new ArrayList<>();
+		for (int field = 0; field < template.getFieldCount(); field++) {
+			JsonObject behaviour = ((JsonObject) fields.get(field)).getObject("behaviour");
+			if (behaviour != null) {
+				models.add(fromJson(template, field, behaviour, size));
+			}
+		}
+		return models;
+	}
+
+	/**
+	 * Returns the field the model computes values for.
+	 * @return Index of the field in the template.
+	 */
+	public int getField() {
+		return field;
+	}
+
+	/**
+	 * Advances the values of the field of all machines.
+	 * @param state State of the machines. Modified values are marked in the dirty set of the state.
+	 * @param seconds Simulated time passed since the last call.
+	 * @param random Random number generator of the simulation.
+	 */
+	public abstract void advance(FleetState state, double seconds, Random random);
+
+	/**
+	 * Discards the internal state of the model for a machine reset to its initial values.
+	 * @param machine Index of the machine.
+	 */
+	public void reset(int machine) {
+	}
+
+	/**
+	 * Returns whether the model only increases the value of its field.
+	 * @return <code>true</code> for counters.
+	 */
+	public boolean isMonotonic() {
+		return false;
+	}
+
+	/**
+	 * Checks whether a machine is simulated and the condition of the model holds for it.
+	 */
+	protected boolean isActive(FleetState state, int machine) {
+		return state.isSimulated(machine) && (conditionField < 0 || state.getBool(conditionField, machine) != conditionNegated);
+	}
+
+	/**
+	 * Returns the probability of at least one event of a Poisson process within the given time.
+	 */
+	private static double probability(double rate, double seconds) {
+		return rate > 0 ? -Math.expm1(-rate * seconds) : 0d;
+	}
+
+	/**
+	 * Returns the number of machines skipped until the next one selected with the given probability. The distance is drawn from the
+	 * geometric distribution, so sparse events cost one random number per event instead of one per machine.
+	 */
+	private static long nextSkip(Random random, double probability) {
+		if (probability >= 1) {
+			return 0;
+		}
+		return (long) (Math.log(1 - random.nextDouble()) / Math.log(1 - probability));
+	}
+
+	private static double getRate(JsonObject json, String name, MachineTemplate template, int field) throws IllegalArgumentException {
+		Number rate = json.getNumber(name);
+		if (rate == null || rate.doubleValue() < 0 || Double.isInfinite(rate.doubleValue())) {
+			throw new IllegalArgumentException("Behaviour of field " + template.getFieldName(field) + " requires a non-negative " + name + ".");
+		}
+		return rate.doubleValue();
+	}
+
+	/**
+	 * Boolean switching between its states as continuous time Markov chain.
+	 */
+	private static class MarkovModel extends BehaviourModel {
+		private final double toTrue;
+		private final double toFalse;
+
+		private MarkovModel(MachineTemplate template, int field, JsonObject json) throws IllegalArgumentException {
+			super(template, field, json);
+			toTrue = getRate(json, "toTrue", template, field);
+			toFalse = getRate(json, "toFalse", template, field);
+		}
+
+		@Override
+		public void advance(FleetState state, double seconds, Random random) {
+			double toTrueProbability = probability(toTrue, seconds);
+			double toFalseProbability = probability(toFalse, seconds);
+			double maxProbability = Math.max(toTrueProbability, toFalseProbability);
+			if (maxProbability <= 0) {
+				return;
+			}
+			// Candidates are selected with the larger probability, then accepted with the ratio of the probability of their state.
+			int size = state.getSize();
+			for (long machine = nextSkip(random, maxProbability); machine < size; machine += 1 + nextSkip(random, maxProbability)) {
+				int index = (int) machine;
+				if (!isActive(state, index)) {
+					continue;
+				}
+				boolean value = state.getBool(field, index);
+				double probability = value ? toFalseProbability : toTrueProbability;
+				if (probability >= maxProbability || random.nextDouble() * maxProbability < probability) {
+					state.setBool(field, index, !value);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Level drifting over time, reported in steps.
+	 */
+	private static class LevelModel extends BehaviourModel {
+		private final double rate;
+		private final double noise;
+		private final double min;
+		private final double max;
+		private final double steps; // Steps of the resolution per unit, 0 to report the level as is
+		private final double threshold;
+		private final double[] levels; // Level of each machine, NaN until taken over from the state
+
+		private LevelModel(MachineTemplate template, int field, JsonObject json, int size) throws IllegalArgumentException {
+			super(template, field, json);
+			rate = json.getNumber("rate", 0).doubleValue();
+			noise = json.getNumber("noise", 0).doubleValue();
+			min = json.getNumber("min", 0).doubleValue();
+			max = json.getNumber("max", 1).doubleValue();
+			double resolution = json.getNumber("resolution", template.getFieldType(field) == MachineValueType.LONG ? 1 : 0).doubleValue();
+			Number thresholdValue = json.getNumber("threshold");
+			threshold = thresholdValue != null ? thresholdValue.doubleValue() : (min + max) / 2;
+			if (!(min < max) || noise < 0 || resolution < 0) {
+				throw new IllegalArgumentException("Invalid level behaviour of field " + template.getFieldName(field) + ": " + json.encode());
+			}
+			steps = resolution > 0 ? 1 / resolution : 0;
+			levels = new double[size];
+			Arrays.fill(levels, Double.NaN);
+		}
+
+		@Override
+		public void advance(FleetState state, double seconds, Random random) {
+			double drift = rate * seconds;
+			double deviation = noise * Math.sqrt(seconds);
+			for (int machine = state.nextSimulated(0); machine >= 0; machine = state.nextSimulated(machine + 1)) {
+				if (!isActive(state, machine)) {
+					continue;
+				}
+				double level = synchronize(state, machine);
+				level += drift;
+				if (deviation > 0) {
+					level += deviation * random.nextGaussian();
+				}
+				level = Math.min(max, Math.max(min, level));
+				levels[machine] = level;
+				report(state, machine, level);
+			}
+		}
+
+		@Override
+		public void reset(int machine) {
+			levels[machine] = Double.NaN;
+		}
+
+		/**
+		 * Returns the level of a machine. If the value of the field is not the one reported for the level, it has been assigned by
+		 * an action and becomes the new level.
+		 */
+		private double synchronize(FleetState state, int machine) {
+			double level = levels[machine];
+			switch (template.getFieldType(field)) {
+			case BOOL:
+				boolean value = state.getBool(field, machine);
+				if (Double.isNaN(level) || value != (level >= threshold)) {
+					level = value ? max : min;
+				}
+				break;
+			case LONG:
+				long longValue = state.getLong(field, machine);
+				if (Double.isNaN(level) || longValue != (long) quantize(level)) {
+					level = longValue;
+				}
+				break;
+			default:
+				double doubleValue = state.getDouble(field, machine);
+				if (Double.isNaN(level) || doubleValue != quantize(level)) {
+					level = doubleValue;
+				}
+			}
+			return level;
+		}
+
+		private void report(FleetState state, int machine, double level) {
+			switch (template.getFieldType(field)) {
+			case BOOL:
+				state.setBool(field, machine, level >= threshold);
+				break;
+			case LONG:
+				state.setLong(field, machine, (long) quantize(level));
+				break;
+			default:
+				state.setDouble(field, machine, quantize(level));
+			}
+		}
+
+		private double quantize(double level) {
+			// Dividing by the number of steps keeps decimal resolutions exact, e.g. 0.57 instead of 0.5700000000000001.
+			return steps > 0 ? Math.round(level * steps) / steps : level;
+		}
+	}
+
+	/**
+	 * Counter advanced by a Poisson process.
+	 */
+	private static class CounterModel extends BehaviourModel {
+		private static final double NORMAL_APPROXIMATION_MEAN = 30d; // Mean above which the Poisson distribution is approximated
+
+		private final double rate;
+
+		private CounterModel(MachineTemplate template, int field, JsonObject json) throws IllegalArgumentException {
+			super(template, field, json);
+			rate = getRate(json, "rate", template, field);
+		}
+
+		@Override
+		public void advance(FleetState state, double seconds, Random random) {
+			double mean = rate * seconds;
+			double probability = probability(rate, seconds);
+			if (probability <= 0) {
+				return;
+			}
+			// Only machines with at least one event are visited, the number of events is drawn conditionally.
+			int size = state.getSize();
+			for (long machine = nextSkip(random, probability); machine < size; machine += 1 + nextSkip(random, probability)) {
+				int index = (int) machine;
+				if (isActive(state, index)) {
+					state.setLong(field, index, state.getLong(field, index) + nextEvents(random, mean, probability));
+				}
+			}
+		}
+
+		@Override
+		public boolean isMonotonic() {
+			return true;
+		}
+
+		/**
+		 * Draws the number of events of a Poisson distribution with the given mean, given that at least one event occurred.
+		 */
+		private static long nextEvents(Random random, double mean, double probability) {
+			if (mean > NORMAL_APPROXIMATION_MEAN) {
+				return Math.max(1, Math.round(mean + Math.sqrt(mean) * random.nextGaussian()));
+			}
+			double u = random.nextDouble() * probability;
+			double p = Math.exp(-mean) * mean;
+			double cumulative = p;
+			long events = 1;
+			while (u > cumulative && p > 0) {
+				events++;
+				p *= mean / events;
+				cumulative += p;
+			}
+			return events;
+		}
+	}
+}
@@ -0,0 +1,272 @@
+package de.appsist.service.msd;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.core.logging.impl.LoggerFactory;
+
+/**
+ * Membership of the MSD instances of a cluster, sharing the simulated machines via a consistent {@link HashRing}.
+ * <p>
+ * The instances publish heartbeats on the cluster address of the event bus. An instance whose heartbeats have not been received
+ * within the node timeout is considered to have left; an instance that is stopped announces that it leaves. Whenever the set of
+ * instances changes, the ring is rebuilt and the change handler is called, so that machines are moved to their new owners. As all
+ * instances build the ring from the same set of node IDs, they agree on the owners as soon as they have seen the same heartbeats.
+ * <p>
+ * A starting instance owns nothing until it has waited for the heartbeats of the running instances for the join delay, so it
+ * does not send the data of machines owned by others meanwhile. Heartbeats tell whether their node has joined, so that a joining
+ * node knows which nodes owned its keys before and hand them over (see {@link #getPreviousOwner(String)}). Without a clustered event bus, the instance only sees itself and
+ * owns all machines. All methods have to be called from the event loop of the verticle.
+ */
+public class ClusterMembership {
+	private static final Logger logger = LoggerFactory.getLogger(ClusterMembership.class);
+	public static final String DEFAULT_ADDRESS = "appsist:service:msd:cluster";
+
+	private final Vertx vertx;
+	private final String address;
+	private final String nodeId;
+	private final long nodeTimeout;
+	private final int virtualNodes;
+	private final long forwardTimeout;
+	private final Map<String, Long> nodes; // Other nodes -> time their last heartbeat has been received
+	private final Set<String> joinedNodes; // Other nodes which announced to have joined, i.e. may own keys
+	private final long heartbeatTimer;
+	private HashRing ring; // Null until joined
+	private HashRing previousRing; // Ring before the last change, of the joined nodes when this node joined
+	private boolean joined = false;
+	private final List<Handler<Void>> changeHandlers = new ArrayList<>();
+	private long changes = 0;
+	private boolean left = false;
+
+	/**
+	 * Joins the cluster.
+	 * @param vertx Vert.x instance to communicate with the other nodes.
+	 * @param config Cluster configuration.
+	 * @throws IllegalArgumentException The configuration is invalid.
+	 */
+	public ClusterMembership(Vertx vertx, JsonObject config) throws IllegalArgumentException {
+		long heartbeatInterval = config.getLong("heartbeatInterval", 1000L);
+		nodeTimeout = config.getLong("nodeTimeout", 3 * heartbeatInterval);
+		long joinDelay = config.getLong("joinDelay", 2 * heartbeatInterval);
+		virtualNodes = config.getInteger("virtualNodes", 100);
+		forwardTimeout = config.getLong("forwardTimeout", 5000L);
+		if (heartbeatInterval < 1 || nodeTimeout <= heartbeatInterval || joinDelay < 1 || virtualNodes < 1 || forwardTimeout < 1) {
+			throw new IllegalArgumentException("Cluster intervals, timeouts and virtual nodes must be positive, the node timeout must exceed the heartbeat interval.");
+		}
+		this.vertx = vertx;
+		this.address = config.getString("address", DEFAULT_ADDRESS);
+		this.nodeId = config.getString("nodeId", UUID.randomUUID().toString());
+		this.nodes = new HashMap<>();
+		this.joinedNodes = new HashSet<>();
+		vertx.eventBus().registerHandler(address, new Handler<Message<JsonObject>>() {
+			@Override
+			public void handle(Message<JsonObject> message) {
+				handleHeartbeat(message.body());
+			}
+		});
+		heartbeatTimer = vertx.setPeriodic(heartbeatInterval, new Handler<Long>() {
+			@Override
+			public void handle(Long timerId) {
+				publish("heartbeat");
+				expireNodes();
+			}
+		});
+		vertx.setTimer(joinDelay, new Handler<Long>() {
+			@Override
+			public void handle(Long timerId) {
+				if (!left) {
+					joined = true;
+					updateRing();
+					logger.info("Node " + nodeId + " joined cluster with " + nodes.size() + " other nodes.");
+				}
+			}
+		});
+		// Running nodes answer with a heartbeat, so they are known before the join delay has passed.
+		publish("hello");
+	}
+
+	private void publish(String type) {
+		vertx.eventBus().publish(address, new JsonObject().putString("type", type).putString("node", nodeId).putBoolean("joined", joined && !left));
+	}
+
+	private void handleHeartbeat(JsonObject heartbeat) {
+		String node = heartbeat.getString("node");
+		String type = heartbeat.getString("type");
+		if (node == null || node.equals(nodeId) || left) {
+			return;
+		}
+		if ("leave".equals(type)) {
+			joinedNodes.remove(node);
+			if (nodes.remove(node) != null) {
+				logger.info("Node " + node + " left the cluster.");
+				updateRing();
+			}
+			return;
+		}
+		if ("hello".equals(type)) {
+			publish("heartbeat");
+		}
+		if (heartbeat.getBoolean("joined", false)) {
+			joinedNodes.add(node);
+		}
+		if (nodes.put(node, System.currentTimeMillis()) == null) {
+			logger.info("Node " + node + " joined the cluster.");
+			updateRing();
+		}
+	}
+
+	private void expireNodes() {
+		long expiry = System.currentTimeMillis() - nodeTimeout;
+		boolean expired = false;
+		for (Iterator<Map.Entry<String, Long>> i = nodes.entrySet().iterator(); i.hasNext();) {
+			Map.Entry<String, Long> node = i.next();
+			if (node.getValue() < expiry) {
+				logger.warn("Node " + node.getKey() + " timed out, removed from the cluster.");
+				joinedNodes.remove(node.getKey());
+				i.remove();
+				expired = true;
+			}
+		}
+		if (expired) {
+			updateRing();
+		}
+	}
+
+	/**
+	 * Rebuilds the ring from the known nodes, if joined, and notifies the change handler.
+	 */
+	private void updateRing() {
+		if (!joined) {
+			return;
+		}
+		TreeSet<String> members = new TreeSet<>(nodes.keySet());
+		if (!left) {
+			members.add(nodeId);
+		}
+		if (ring != null) {
+			previousRing = ring;
+		} else {
+			// When this node joins, the keys it owns were owned by the nodes which joined before.
+			previousRing = joinedNodes.isEmpty() ? null : new HashRing(new TreeSet<>(joinedNodes), virtualNodes);
+		}
+		ring = new HashRing(members, virtualNodes);
+		changes++;
+		for (Handler<Void> changeHandler : changeHandlers) {
+			changeHandler.handle(null);
+		}
+	}
+
+	/**
+	 * Leaves the cluster: The machines of this node are handed over to the remaining nodes, which are notified immediately
+	 * instead of waiting for the heartbeats to time out.
+	 */
+	public void leave() {
+		if (left) {
+			return;
+		}
+		left = true;
+		vertx.cancelTimer(heartbeatTimer);
+		updateRing();
+		publish("leave");
+	}
+
+	/**
+	 * Adds a handler called whenever the owners of the keys may have changed, including when this node joins.
+	 * @param changeHandler Handler to call.
+	 */
+	public void addChangeHandler(Handler<Void> changeHandler) {
+		changeHandlers.add(changeHandler);
+	}
+
+	/**
+	 * Checks whether this node has waited for the join delay, so that the owners of keys are known.
+	 * @return <code>true</code> once joined, also after leaving.
+	 */
+	public boolean hasJoined() {
+		return joined;
+	}
+
+	/**
+	 * Returns the node that hands a key over to this node after the last change, i.e. its owner before the change if that node is
+	 * still a member of the cluster.
+	 * @param key Key to look up.
+	 * @return ID of the previous owner, <code>null</code> if it left or no node had joined before this node.
+	 */
+	public String getPreviousOwner(String key) {
+		String owner = previousRing != null ? previousRing.getOwner(key) : null;
+		return owner != null && nodes.containsKey(owner) ? owner : null;
+	}
+
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	/**
+	 * Returns the time to wait for the reply of a node a request has been forwarded to.
+	 * @return Timeout in milliseconds.
+	 */
+	public long getForwardTimeout() {
+		return forwardTimeout;
+	}
+
+	/**
+	 * Returns the owner of a key.
+	 * @param key Key to look up, e.g. the name of a scenario.
+	 * @return ID of the owning node or <code>null</code> if this node has not joined the cluster yet.
+	 */
+	public String getOwner(String key) {
+		return ring != null ? ring.getOwner(key) : null;
+	}
+
+	/**
+	 * Checks if a key is owned by this node.
+	 * @param key Key to look up.
+	 * @return <code>true</code> if this node owns the key.
+	 */
+	public boolean isLocal(String key) {
+		return nodeId.equals(getOwner(key));
+	}
+
+	/**
+	 * Returns the event bus address of a node, for requests to the node.
+	 * @param node ID of the node.
+	 * @return Event bus address.
+	 */
+	public String getNodeAddress(String node) {
+		return address + ":node:" + node;
+	}
+
+	/**
+	 * Returns the event bus address all nodes listen to.
+	 * @return Event bus address.
+	 */
+	public String getBroadcastAddress() {
+		return address + ":all";
+	}
+
+	/**
+	 * Returns a JSON representation of the membership.
+	 * @return JSON object.
+	 */
+	public JsonObject asJson() {
+		JsonObject json = new JsonObject();
+		json.putString("nodeId", nodeId);
+		json.putBoolean("joined", joined && !left);
+		json.putArray("nodes", new JsonArray(new ArrayList<Object>(new TreeSet<>(nodes.keySet()))));
+		json.putNumber("changes", changes);
+		return json;
+	}
+}
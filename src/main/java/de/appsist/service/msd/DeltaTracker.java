@@ -0,0 +1,129 @@
+package de.appsist.service.msd;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Tracker for the field values sent to the MID. Updates are reduced to the fields changed since the last update of the machine
+ * handed to the transport, regardless of whether that update has been acknowledged yet, so that a value changing back while an
+ * update is in flight is sent again. If sending an update fails, the next update of the machine is sent as keyframe. In the
+ * configured interval, a keyframe containing all known values of a machine is sent as well so that consumers can resynchronize.
+ */
+public class DeltaTracker {
+	private final long keyframeInterval;
+	private final Map<String, MachineEntry> entries;
+	private long fieldsSent = 0;
+	private long fieldsSuppressed = 0;
+	private long keyframesSent = 0;
+
+	/**
+	 * Creates a tracker.
+	 * @param keyframeInterval Interval for keyframes in milliseconds. If not positive, keyframes are only sent for new machines.
+	 */
+	public DeltaTracker(long keyframeInterval) {
+		this.keyframeInterval = keyframeInterval;
+		this.entries = new HashMap<>();
+	}
+
+	/**
+	 * Reduces an update to the values to send and records them as sent. The update is modified in place to avoid allocating a new
+	 * update per message. The update has to be handed to the transport afterwards.
+	 * @param update Update containing the current values of the machine, owned by the sender.
+	 * @param forceKeyframe Whether to send all known values, e.g. because the schema of the machine is sent as well.
+	 * @param now Current time in milliseconds.
+	 * @return Whether the update contains any value to send.
+	 */
+	public boolean prepare(MachineUpdate update, boolean forceKeyframe, long now) {
+		MachineEntry entry = entries.get(update.getMachineKey());
+		if (entry == null || entry.template != update.getTemplate()) {
+			entry = new MachineEntry(update.getTemplate());
+			entries.put(update.getMachineKey(), entry);
+			forceKeyframe = true;
+		} else if (entry.keyframeDue || (keyframeInterval > 0 && now - entry.lastKeyframe >= keyframeInterval)) {
+			forceKeyframe = true;
+		}
+
+		int numValues = 0;
+		for (int field = 0; field < entry.sentValues.length; field++) {
+			Object value = update.get(field);
+			Object sentValue = entry.sentValues[field];
+			if (value == null) {
+				if (forceKeyframe && sentValue != null) {
+					update.set(field, sentValue);
+					numValues++;
+				}
+			} else if (!forceKeyframe && value.equals(sentValue)) {
+				fieldsSuppressed++;
+				update.clear(field);
+			} else {
+				entry.sentValues[field] = value;
+				numValues++;
+			}
+		}
+		if (numValues == 0) {
+			return false;
+		}
+		if (forceKeyframe) {
+			entry.lastKeyframe = now;
+			entry.keyframeDue = false;
+			keyframesSent++;
+		}
+		fieldsSent += numValues;
+		return true;
+	}
+
+	/**
+	 * Records that an update could not be sent. As the MID may not have received its values, the next update of the machine is
+	 * sent as keyframe.
+	 * @param update Update prepared by this tracker.
+	 */
+	public void failed(MachineUpdate update) {
+		MachineEntry entry = entries.get(update.getMachineKey());
+		if (entry != null && entry.template == update.getTemplate()) {
+			entry.keyframeDue = true;
+		}
+	}
+
+	/**
+	 * Forgets the values of a machine. The next update of the machine is sent as keyframe.
+	 * @param machineKey Key of the machine.
+	 */
+	public void invalidate(String machineKey) {
+		entries.remove(machineKey);
+	}
+
+	/**
+	 * Forgets the values of all machines.
+	 */
+	public void invalidateAll() {
+		entries.clear();
+	}
+
+	/**
+	 * Returns a JSON representation of the tracker statistics.
+	 * @return JSON object.
+	 */
+	public JsonObject asJson() {
+		JsonObject json = new JsonObject();
+		json.putNumber("keyframeInterval", keyframeInterval);
+		json.putNumber("trackedMachines", entries.size());
+		json.putNumber("fieldsSent", fieldsSent);
+		json.putNumber("fieldsSuppressed", fieldsSuppressed);
+		json.putNumber("keyframesSent", keyframesSent);
+		return json;
+	}
+
+	private static class MachineEntry {
+		private final MachineTemplate template;
+		private final Object[] sentValues;
+		private long lastKeyframe;
+		private boolean keyframeDue = false; // Whether an update failed since the last keyframe
+
+		private MachineEntry(MachineTemplate template) {
+			this.template = template;
+			this.sentValues = new Object[template.getFieldCount()];
+		}
+	}
+}
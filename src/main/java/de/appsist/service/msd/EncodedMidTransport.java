@@ -0,0 +1,26 @@
+package de.appsist.service.msd;
+
+import java.util.List;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+
+/**
+ * Transport able to send data messages encoded in advance, e.g. by the shards of a fleet on other threads.
+ */
+public interface EncodedMidTransport extends MidTransport {
+	/**
+	 * Creates a codec to encode data messages in advance for {@link #sendEncodedData(List, Buffer, Handler)}.
+	 * @return New codec, not thread-safe.
+	 */
+	public MidMessageCodec createCodec();
+
+	/**
+	 * Sends a data message encoded with a codec created by {@link #createCodec()}.
+	 * @param updates Updates contained in the message. Their values may have changed since the message has been encoded.
+	 * @param data Encoded data message.
+	 * @param doneHandler Handler called when the MID acknowledged the message or the request failed.
+	 */
+	public void sendEncodedData(List<MachineUpdate> updates, Buffer data, Handler<AsyncResult<Void>> doneHandler);
+}
@@ -0,0 +1,494 @@
+package de.appsist.service.msd;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Context;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.impl.DefaultFutureResult;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.core.logging.impl.LoggerFactory;
+
+/**
+ * Simulation of a fleet of virtual machines created from one machine template.
+ * Each tick advances the behaviour models of the fields (see {@link BehaviourModel}), modifies randomly selected values of fields
+ * without model, and sends the data of all modified machines.
+ * <p>
+ * A large fleet can be split into shards, each owning the state of a contiguous range of machines. The shards are advanced in
+ * parallel on a thread pool and encode their own data messages, so that generating and serializing the updates can use several
+ * cores. Shards share no mutable state and take no locks. The event loop is not blocked during a sharded tick: The last shard
+ * to complete hands the tick back to the event loop, which passes the encoded messages to the sender in shard order. Ticks due
+ * meanwhile are combined into one tick started afterwards; in virtual time, the clock waits for the tick instead. The updates
+ * handed to the sender are created by the shards for each tick and not modified afterwards, so the sender never reads values a
+ * shard is writing. Sharding requires a transport sending encoded messages (see {@link EncodedMidTransport}); the messages of
+ * shards are sent as encoded (see {@link MidSender#sendEncoded}), so they are not batched, not reduced to changed values and not
+ * shown in the live view. How far the tick scales with the cores depends on the fleet and the machine, see the
+ * <code>FleetTickBenchmark</code>.
+ * <p>
+ * In a cluster, each node only advances and sends the machines it owns (see {@link #setOwnedMachines(BitSet)}), so the cost of
+ * a tick is split among the nodes. The state of a machine is not handed over: A machine moving to another node starts over with
+ * the initial values of the template there, so its values jump back, e.g. its counters.
+ * <p>
+ * The configuration is read from the "fleet" object of the service configuration:
+ * <pre>
+ * "fleet" : {
+ *   "size" : 10000,
+ *   "serialPrefix" : "VM-",
+ *   "changeProbability" : 0.01,
+ *   "shards" : 4,
+ *   "maxMessageSize" : 500,
+ *   "template" : { "vendorId" : ..., "machineId" : ..., "stationId" : ..., "siteId" : ..., "fields" : [ { ..., "behaviour" : { ... } } ] }
+ * }
+ * </pre>
+ */
+public class FleetSimulation {
+	private static final Logger logger = LoggerFactory.getLogger(FleetSimulation.class);
+	private static final AtomicInteger threadCount = new AtomicInteger();
+
+	private final MachineTemplate template;
+	private final int size;
+	private final String serialPrefix;
+	private final double changeProbability;
+	private final boolean[] modelled; // Fields computed by a behaviour model, not modified randomly
+	private final int numBehaviourModels;
+	private final int maxMessageSize;
+	private final Vertx vertx;
+	private final MidSender sender;
+	private final SimulationClock clock;
+	private final Shard[] shards;
+	private final ExecutorService executor; // Runs all shards but the first one, null if the fleet is not sharded
+	private final AtomicInteger runningShards; // Shards of the current tick not completed yet
+	private final AtomicReference<Throwable> shardFailure; // First failure of a shard in the current tick
+	private final Handler<Void> tickCompletionHandler;
+	private final List<Handler<AsyncResult<Void>>> tickHandlers; // Handlers of the current tick
+	private Context context; // Context the current tick is completed on
+	private boolean ticking = false;
+	private double pendingSeconds = 0; // Simulated time of ticks due while a sharded tick was running
+	private final List<Handler<AsyncResult<Void>>> pendingHandlers;
+	private long combinedTicks = 0;
+	private int modifiedMachines = 0; // Machines sent by the last completed tick, published on the event loop
+	private BitSet pendingOwned; // Machines owned after the running tick, if changed during it
+	private boolean ownedChanged = false;
+	private boolean closed = false;
+
+	/**
+	 * Creates a fleet simulation.
+	 * @param vertx Vert.x instance to complete sharded ticks on the event loop with.
+	 * @param fleetConfig Fleet configuration.
+	 * @param sender Sender for messages to the MID.
+	 * @param clock Clock of the simulation, providing the random number generators of the shards.
+	 * @throws IllegalArgumentException The configuration is invalid.
+	 */
+	public FleetSimulation(Vertx vertx, JsonObject fleetConfig, MidSender sender, SimulationClock clock) throws IllegalArgumentException {
+		JsonObject templateConfig = fleetConfig.getObject("template");
+		if (templateConfig == null) {
+			throw new IllegalArgumentException("Missing machine template in fleet configuration.");
+		}
+		size = fleetConfig.getInteger("size", 1000);
+		if (size < 1) {
+			throw new IllegalArgumentException("Fleet size must be positive.");
+		}
+		int numShards = fleetConfig.getInteger("shards", 1);
+		maxMessageSize = fleetConfig.getInteger("maxMessageSize", 500);
+		if (numShards < 1 || numShards > size || maxMessageSize < 1) {
+			throw new IllegalArgumentException("Number of shards must be between 1 and the fleet size, maximum message size must be positive.");
+		}
+		EncodedMidTransport encodedTransport = sender.getEncodedTransport();
+		if (numShards > 1 && encodedTransport == null) {
+			logger.warn("Transport does not send encoded messages, fleet is not sharded.");
+			numShards = 1;
+		}
+		this.template = MachineTemplate.fromJson(templateConfig);
+		this.serialPrefix = fleetConfig.getString("serialPrefix", "VM-");
+		Number changeProbability = fleetConfig.getNumber("changeProbability");
+		this.changeProbability = changeProbability != null ? changeProbability.doubleValue() : 0.01d;
+		this.vertx = vertx;
+		this.sender = sender;
+		this.clock = clock;
+		this.shards = new Shard[numShards];
+		for (int i = 0; i < numShards; i++) {
+			int offset = (int) ((long) size * i / numShards);
+			int shardSize = (int) ((long) size * (i + 1) / numShards) - offset;
+			Random random = clock.createRandom(numShards > 1 ? "fleet#" + i : "fleet");
+			shards[i] = new Shard(offset, shardSize, BehaviourModel.fromFields(template, templateConfig.getArray("fields"), shardSize), random,
+					numShards > 1 ? encodedTransport.createCodec() : null);
+		}
+		this.numBehaviourModels = shards[0].behaviour.size();
+		this.modelled = new boolean[template.getFieldCount()];
+		for (BehaviourModel model : shards[0].behaviour) {
+			modelled[model.getField()] = true;
+		}
+		if (numShards > 1) {
+			executor = Executors.newFixedThreadPool(numShards - 1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "msd-fleet-shard-" + threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		} else {
+			executor = null;
+		}
+		this.runningShards = new AtomicInteger();
+		this.shardFailure = new AtomicReference<>();
+		this.tickCompletionHandler = new Handler<Void>() {
+			@Override
+			public void handle(Void event) {
+				completeTick();
+			}
+		};
+		this.tickHandlers = new ArrayList<>();
+		this.pendingHandlers = new ArrayList<>();
+		logger.info("Created fleet of " + size + " virtual machines of type " + template.getMachineId() + " in " + numShards + " shards.");
+	}
+
+	/**
+	 * Returns the serial number of a machine of the fleet.
+	 * @param machine Index of the machine.
+	 * @return Serial number.
+	 */
+	public String getSerialNumber(int machine) {
+		return serialPrefix + machine;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Restricts the machines which are simulated and whose data is sent. Machines that are not owned keep their values and are
+	 * not advanced. Machines becoming owned are reset to the initial values of the template, as their state is not handed over by
+	 * their previous owner, and sent with all values in the next tick. If a sharded tick is running, the machines are changed once
+	 * it completed.
+	 * @param owned Indices of the machines to simulate and send, <code>null</code> for all machines.
+	 */
+	public void setOwnedMachines(BitSet owned) {
+		if (ticking) {
+			pendingOwned = owned;
+			ownedChanged = true;
+			return;
+		}
+		for (Shard shard : shards) {
+			BitSet shardOwned = owned != null ? owned.get(shard.offset, shard.offset + shard.state.getSize()) : null;
+			if (shard.owned != null) {
+				BitSet gained = shardOwned != null ? (BitSet) shardOwned.clone() : new BitSet(shard.state.getSize());
+				if (shardOwned == null) {
+					gained.set(0, shard.state.getSize());
+				}
+				gained.andNot(shard.owned);
+				for (int machine = gained.nextSetBit(0); machine >= 0; machine = gained.nextSetBit(machine + 1)) {
+					shard.state.reset(machine);
+					for (BehaviourModel model : shard.behaviour) {
+						model.reset(machine);
+					}
+				}
+			}
+			shard.owned = shardOwned;
+			shard.state.setSimulated(shardOwned);
+		}
+	}
+
+	/**
+	 * Performs one simulation step: Modifies field values and sends the data of all modified machines.
+	 * @param seconds Simulated time of the step, the behaviour models are advanced by.
+	 */
+	public void tick(double seconds) {
+		tick(seconds, null);
+	}
+
+	/**
+	 * Performs one simulation step: Modifies field values and sends the data of all modified machines.
+	 * If the fleet is sharded, the step completes asynchronously: The first shard is advanced on the calling thread while the others
+	 * are advanced by the thread pool, and the messages are sent on the event loop once all shards completed. If the previous step
+	 * has not completed yet, the step is combined with further steps due meanwhile and performed afterwards.
+	 * @param seconds Simulated time of the step, the behaviour models are advanced by.
+	 * @param doneHandler Handler called when the data of the step has been handed to the sender or a shard failed, may be
+	 * <code>null</code>.
+	 */
+	public void tick(double seconds, Handler<AsyncResult<Void>> doneHandler) {
+		if (closed) {
+			if (doneHandler != null) {
+				doneHandler.handle(new DefaultFutureResult<Void>(new IllegalStateException("Fleet simulation has been closed.")));
+			}
+			return;
+		}
+		if (executor == null) {
+			shards[0].advance(seconds);
+			shards[0].sendModifiedData();
+			modifiedMachines = shards[0].modifiedCount;
+			if (doneHandler != null) {
+				doneHandler.handle(new DefaultFutureResult<Void>((Void) null));
+			}
+			return;
+		}
+		if (ticking) {
+			pendingSeconds += seconds;
+			combinedTicks++;
+			if (doneHandler != null) {
+				pendingHandlers.add(doneHandler);
+			}
+			return;
+		}
+		if (doneHandler != null) {
+			tickHandlers.add(doneHandler);
+		}
+		startTick(seconds);
+	}
+
+	private void startTick(double seconds) {
+		ticking = true;
+		context = vertx.currentContext();
+		clock.hold();
+		runningShards.set(shards.length);
+		for (Shard shard : shards) {
+			shard.seconds = seconds;
+		}
+		for (int i = 1; i < shards.length; i++) {
+			executor.execute(shards[i]);
+		}
+		shards[0].run();
+	}
+
+	/**
+	 * Sends the messages of the completed shards in shard order and starts the ticks due meanwhile. Called on the event loop.
+	 */
+	private void completeTick() {
+		ticking = false;
+		Throwable failure = shardFailure.getAndSet(null);
+		if (failure != null) {
+			logger.error("Shard of the fleet failed, discarding the tick: " + failure.getMessage(), failure);
+		} else if (!closed) {
+			modifiedMachines = 0;
+			for (Shard shard : shards) {
+				for (EncodedMessage message : shard.messages) {
+					sender.sendEncoded(message.updates, message.data, null);
+				}
+				modifiedMachines += shard.modifiedCount;
+			}
+		}
+		for (Shard shard : shards) {
+			shard.messages = null;
+		}
+		if (ownedChanged) {
+			ownedChanged = false;
+			setOwnedMachines(pendingOwned);
+			pendingOwned = null;
+		}
+		completeHandlers(failure != null ? new DefaultFutureResult<Void>(failure) : new DefaultFutureResult<Void>((Void) null));
+		tickHandlers.addAll(pendingHandlers);
+		pendingHandlers.clear();
+		if (closed) {
+			completeHandlers(new DefaultFutureResult<Void>(new IllegalStateException("Fleet simulation has been closed.")));
+		} else if (pendingSeconds > 0 || !tickHandlers.isEmpty()) {
+			double seconds = pendingSeconds;
+			pendingSeconds = 0;
+			startTick(seconds);
+		}
+		clock.release();
+	}
+
+	private void completeHandlers(AsyncResult<Void> result) {
+		for (Handler<AsyncResult<Void>> handler : tickHandlers) {
+			handler.handle(result);
+		}
+		tickHandlers.clear();
+	}
+
+	/**
+	 * Stops the thread pool of the shards. A tick still running completes without sending its data; further ticks are rejected.
+	 */
+	public void close() {
+		closed = true;
+		if (executor != null) {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Returns a JSON representation of the fleet status. The state of the shards is not read, as they may be running a tick: The
+	 * number of modified machines is the one of the last completed tick.
+	 * @return JSON object.
+	 */
+	public JsonObject asJson() {
+		int ownedMachines = 0;
+		for (Shard shard : shards) {
+			ownedMachines += shard.owned != null ? shard.owned.cardinality() : shard.state.getSize();
+		}
+		JsonObject json = new JsonObject();
+		json.putString("machineId", template.getMachineId());
+		json.putNumber("size", size);
+		json.putNumber("shards", shards.length);
+		json.putNumber("fields", template.getFieldCount());
+		json.putNumber("changeProbability", changeProbability);
+		json.putNumber("behaviourModels", numBehaviourModels);
+		json.putNumber("modifiedMachines", modifiedMachines);
+		json.putNumber("ownedMachines", ownedMachines);
+		json.putNumber("combinedTicks", combinedTicks);
+		return json;
+	}
+
+	/**
+	 * Data message encoded by a shard and the updates it contains.
+	 */
+	private static class EncodedMessage {
+		private final List<MachineUpdate> updates;
+		private final Buffer data;
+
+		private EncodedMessage(List<MachineUpdate> updates, Buffer data) {
+			this.updates = updates;
+			this.data = data;
+		}
+	}
+
+	/**
+	 * Contiguous range of machines of the fleet. A shard is only accessed by one thread at a time: by a thread of the pool during a
+	 * tick, by the event loop in between. The counter of running shards orders the accesses: The last shard to decrement it hands
+	 * the tick to the event loop.
+	 */
+	private class Shard implements Runnable {
+		private final int offset; // Index of the first machine of the shard in the fleet
+		private final FleetState state;
+		private final List<BehaviourModel> behaviour;
+		private final Random random;
+		private final MidMessageCodec codec; // Null if the shard does not encode its messages
+		private final MachineUpdate[] updates; // Reused update per machine if the shard does not encode its messages
+		private final List<MachineUpdate> modifiedUpdates;
+		private BitSet owned; // Machines simulated and sent, null for all machines
+		private double seconds; // Simulated time of the tick, set before the shard is run
+		private List<EncodedMessage> messages; // Messages encoded in the current tick
+		private int modifiedCount; // Machines sent by the current tick
+
+		private Shard(int offset, int size, List<BehaviourModel> behaviour, Random random, MidMessageCodec codec) {
+			this.offset = offset;
+			this.state = new FleetState(template, size);
+			this.behaviour = behaviour;
+			this.random = random;
+			this.codec = codec;
+			this.updates = codec == null ? new MachineUpdate[size] : null;
+			this.modifiedUpdates = new ArrayList<>();
+		}
+
+		@Override
+		public void run() {
+			try {
+				advance(seconds);
+				List<MachineUpdate> modified = collectModified(new ArrayList<MachineUpdate>());
+				modifiedCount = modified.size();
+				messages = new ArrayList<>((modified.size() + maxMessageSize - 1) / maxMessageSize);
+				for (int from = 0; from < modified.size(); from += maxMessageSize) {
+					List<MachineUpdate> messageUpdates = modified.subList(from, Math.min(from + maxMessageSize, modified.size()));
+					messages.add(new EncodedMessage(messageUpdates, codec.encodeData(messageUpdates)));
+				}
+			} catch (RuntimeException e) {
+				shardFailure.compareAndSet(null, e);
+			} finally {
+				if (runningShards.decrementAndGet() == 0) {
+					context.runOnContext(tickCompletionHandler);
+				}
+			}
+		}
+
+		private void advance(double seconds) {
+			for (BehaviourModel model : behaviour) {
+				model.advance(state, seconds, random);
+			}
+			mutate();
+		}
+
+		/**
+		 * Modifies each value of fields without behaviour model with the configured probability.
+		 * Instead of drawing a random number for every value, the distance to the next modified value is drawn from the geometric distribution.
+		 */
+		private void mutate() {
+			if (changeProbability <= 0) {
+				return;
+			}
+			int numFields = template.getFieldCount();
+			long numValues = (long) state.getSize() * numFields;
+			double logInverse = changeProbability < 1 ? Math.log(1 - changeProbability) : 0;
+			long index = nextSkip(logInverse);
+			while (index < numValues) {
+				int machine = (int) (index / numFields);
+				int field = (int) (index % numFields);
+				mutateValue(field, machine);
+				index += 1 + nextSkip(logInverse);
+			}
+		}
+
+		private long nextSkip(double logInverse) {
+			if (logInverse == 0) {
+				return 0;
+			}
+			return (long) (Math.log(1 - random.nextDouble()) / logInverse);
+		}
+
+		private void mutateValue(int field, int machine) {
+			if (modelled[field] || !state.isSimulated(machine)) {
+				return;
+			}
+			switch (template.getFieldType(field)) {
+			case BOOL:
+				state.setBool(field, machine, !state.getBool(field, machine));
+				break;
+			case LONG:
+				state.setLong(field, machine, state.getLong(field, machine) + 1);
+				break;
+			case DOUBLE:
+				double value = state.getDouble(field, machine) + (random.nextDouble() - 0.5d) * 0.1d;
+				state.setDouble(field, machine, Math.min(1d, Math.max(0d, value)));
+				break;
+			default:
+				// Strings are not modified.
+			}
+		}
+
+		private void sendModifiedData() {
+			collectModified(modifiedUpdates);
+			modifiedCount = modifiedUpdates.size();
+			if (!modifiedUpdates.isEmpty()) {
+				// The sender copies the updates, so they can be reused in the next tick.
+				sender.send(modifiedUpdates, null);
+				modifiedUpdates.clear();
+			}
+		}
+
+		/**
+		 * Writes the values of all modified machines into their updates. Shards encoding their messages create a new update for each
+		 * machine and tick, as the updates are passed to the sender without copying and the shard modifies the machines again in the
+		 * next tick, possibly before the message has been sent.
+		 * @param modified List to add the updates to.
+		 * @return The given list.
+		 */
+		private List<MachineUpdate> collectModified(List<MachineUpdate> modified) {
+			for (int machine = state.nextDirty(0); machine >= 0; machine = state.nextDirty(machine + 1)) {
+				if (owned != null && !owned.get(machine)) {
+					state.clearDirty(machine);
+					continue;
+				}
+				MachineUpdate update = updates != null ? updates[machine] : null;
+				if (update == null) {
+					update = new MachineUpdate(template, getSerialNumber(offset + machine));
+					if (updates != null) {
+						updates[machine] = update;
+					}
+				}
+				state.writeTo(machine, update);
+				modified.add(update);
+				state.clearDirty(machine);
+			}
+			return modified;
+		}
+	}
+}
@@ -0,0 +1,284 @@
+package de.appsist.service.msd;
+
+import java.util.BitSet;
+
+import de.appsist.service.middrv.entity.MachineValueType;
+
+/**
+ * Column oriented state of a fleet of machines sharing one template.
+ * Every field is stored as one primitive array over all machines instead of one object graph per machine.
+ * Machines with modified values are tracked in a dirty set. The state may be restricted to the machines simulated by this node;
+ * behaviour models skip the others (see {@link #isSimulated(int)}).
+ * Instances are not thread-safe: A state is only accessed by the shard owning it during a tick and by the event loop between ticks.
+ */
+public class FleetState {
+	private final MachineTemplate template;
+	private final int size;
+	private final int[] columns; // Index of each field within the arrays of its type.
+	private final boolean[][] boolColumns;
+	private final long[][] longColumns;
+	private final double[][] doubleColumns;
+	private final String[][] stringColumns;
+	private final BitSet dirty;
+	private BitSet simulated; // Machines advanced by the simulation, null for all machines
+
+	/**
+	 * Creates the state for a fleet. All machines are initialized with the initial values of the template.
+	 * @param template Template of the machines.
+	 * @param size Number of machines.
+	 */
+	public FleetState(MachineTemplate template, int size) {
+		this.template = template;
+		this.size = size;
+		int numFields = template.getFieldCount();
+		columns = new int[numFields];
+		int numBool = 0, numLong = 0, numDouble = 0, numString = 0;
+		for (int field = 0; field < numFields; field++) {
+			switch (template.getFieldType(field)) {
+			case BOOL:
+				columns[field] = numBool++;
+				break;
+			case LONG:
+				columns[field] = numLong++;
+				break;
+			case DOUBLE:
+				columns[field] = numDouble++;
+				break;
+			default:
+				columns[field] = numString++;
+			}
+		}
+		boolColumns = new boolean[numBool][size];
+		longColumns = new long[numLong][size];
+		doubleColumns = new double[numDouble][size];
+		stringColumns = new String[numString][size];
+		dirty = new BitSet(size);
+		reset();
+	}
+
+	/**
+	 * Resets all machines to the initial values of the template and marks them as modified.
+	 */
+	public void reset() {
+		for (int field = 0; field < template.getFieldCount(); field++) {
+			Object initialValue = template.getInitialValue(field);
+			int column = columns[field];
+			for (int machine = 0; machine < size; machine++) {
+				switch (template.getFieldType(field)) {
+				case BOOL:
+					boolColumns[column][machine] = (Boolean) initialValue;
+					break;
+				case LONG:
+					longColumns[column][machine] = (Long) initialValue;
+					break;
+				case DOUBLE:
+					doubleColumns[column][machine] = (Double) initialValue;
+					break;
+				default:
+					stringColumns[column][machine] = (String) initialValue;
+				}
+			}
+		}
+		dirty.set(0, size);
+	}
+
+	/**
+	 * Resets a machine to the initial values of the template and marks it as modified.
+	 * @param machine Index of the machine.
+	 */
+	public void reset(int machine) {
+		for (int field = 0; field < template.getFieldCount(); field++) {
+			Object initialValue = template.getInitialValue(field);
+			int column = columns[field];
+			switch (template.getFieldType(field)) {
+			case BOOL:
+				boolColumns[column][machine] = (Boolean) initialValue;
+				break;
+			case LONG:
+				longColumns[column][machine] = (Long) initialValue;
+				break;
+			case DOUBLE:
+				doubleColumns[column][machine] = (Double) initialValue;
+				break;
+			default:
+				stringColumns[column][machine] = (String) initialValue;
+			}
+		}
+		dirty.set(machine);
+	}
+
+	/**
+	 * Restricts the machines advanced by the simulation, e.g. to those owned by this node of a cluster.
+	 * @param machines Indices of the simulated machines, <code>null</code> for all machines. Must not be modified afterwards.
+	 */
+	public void setSimulated(BitSet machines) {
+		this.simulated = machines;
+	}
+
+	/**
+	 * Checks whether a machine is advanced by the simulation.
+	 * @param machine Index of the machine.
+	 * @return <code>true</code> if the machine is simulated.
+	 */
+	public boolean isSimulated(int machine) {
+		return simulated == null || simulated.get(machine);
+	}
+
+	/**
+	 * Returns the next machine advanced by the simulation.
+	 * @param fromMachine Index to start searching from (inclusive).
+	 * @return Index of the next simulated machine or -1 if there is none.
+	 */
+	public int nextSimulated(int fromMachine) {
+		if (fromMachine >= size) {
+			return -1;
+		}
+		if (simulated == null) {
+			return fromMachine;
+		}
+		int machine = simulated.nextSetBit(fromMachine);
+		return machine < size ? machine : -1;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public MachineTemplate getTemplate() {
+		return template;
+	}
+
+	public boolean getBool(int field, int machine) {
+		return boolColumns[columns[field]][machine];
+	}
+
+	public void setBool(int field, int machine, boolean value) {
+		boolean[] column = boolColumns[columns[field]];
+		if (column[machine] != value) {
+			column[machine] = value;
+			dirty.set(machine);
+		}
+	}
+
+	public long getLong(int field, int machine) {
+		return longColumns[columns[field]][machine];
+	}
+
+	public void setLong(int field, int machine, long value) {
+		long[] column = longColumns[columns[field]];
+		if (column[machine] != value) {
+			column[machine] = value;
+			dirty.set(machine);
+		}
+	}
+
+	public double getDouble(int field, int machine) {
+		return doubleColumns[columns[field]][machine];
+	}
+
+	public void setDouble(int field, int machine, double value) {
+		double[] column = doubleColumns[columns[field]];
+		if (column[machine] != value) {
+			column[machine] = value;
+			dirty.set(machine);
+		}
+	}
+
+	public String getString(int field, int machine) {
+		return stringColumns[columns[field]][machine];
+	}
+
+	public void setString(int field, int machine, String value) {
+		String[] column = stringColumns[columns[field]];
+		if (!value.equals(column[machine])) {
+			column[machine] = value;
+			dirty.set(machine);
+		}
+	}
+
+	/**
+	 * Returns the value of a field of a machine as object.
+	 * @param field Index of the field in the template.
+	 * @param machine Index of the machine.
+	 * @return Boolean, Long, Double or String depending on the field type.
+	 */
+	public Object getValue(int field, int machine) {
+		switch (template.getFieldType(field)) {
+		case BOOL:
+			return getBool(field, machine);
+		case LONG:
+			return getLong(field, machine);
+		case DOUBLE:
+			return getDouble(field, machine);
+		default:
+			return getString(field, machine);
+		}
+	}
+
+	/**
+	 * Sets the value of a field of a machine from an object.
+	 * @param field Index of the field in the template.
+	 * @param machine Index of the machine.
+	 * @param value Boolean, Long, Double or String depending on the field type.
+	 */
+	public void setValue(int field, int machine, Object value) {
+		switch (template.getFieldType(field)) {
+		case BOOL:
+			setBool(field, machine, (Boolean) value);
+			break;
+		case LONG:
+			setLong(field, machine, (Long) value);
+			break;
+		case DOUBLE:
+			setDouble(field, machine, (Double) value);
+			break;
+		default:
+			setString(field, machine, (String) value);
+		}
+	}
+
+	/**
+	 * Returns the next machine with modified values.
+	 * @param fromMachine Index to start searching from (inclusive).
+	 * @return Index of the next modified machine or -1 if there is none.
+	 */
+	public int nextDirty(int fromMachine) {
+		return fromMachine < size ? dirty.nextSetBit(fromMachine) : -1;
+	}
+
+	public void markDirty(int machine) {
+		dirty.set(machine);
+	}
+
+	public void clearDirty(int machine) {
+		dirty.clear(machine);
+	}
+
+	public int getDirtyCount() {
+		return dirty.cardinality();
+	}
+
+	/**
+	 * Writes all field values of a machine into an update.
+	 * @param machine Index of the machine.
+	 * @param update Update to write values to.
+	 */
+	public void writeTo(int machine, MachineUpdate update) {
+		for (int field = 0; field < template.getFieldCount(); field++) {
+			MachineValueType type = template.getFieldType(field);
+			switch (type) {
+			case BOOL:
+				update.set(field, getBool(field, machine));
+				break;
+			case LONG:
+				update.set(field, getLong(field, machine));
+				break;
+			case DOUBLE:
+				update.set(field, getDouble(field, machine));
+				break;
+			default:
+				update.set(field, getString(field, machine));
+			}
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package de.appsist.service.msd;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring assigning keys to nodes. Each node is placed on the ring at a number of virtual positions, a key is owned
+ * by the node at the first position following the hash of the key. When a node joins or leaves, only the keys between its
+ * positions and their predecessors move, all other keys keep their owner.
+ * Instances are immutable.
+ */
+public class HashRing {
+	private final TreeMap<Integer, String> positions;
+
+	/**
+	 * Creates a ring.
+	 * @param nodes IDs of the nodes.
+	 * @param virtualNodes Number of positions of each node. More positions distribute the keys more evenly.
+	 * @throws IllegalArgumentException The number of positions is not positive.
+	 */
+	public HashRing(Collection<String> nodes, int virtualNodes) throws IllegalArgumentException {
+		if (virtualNodes < 1) {
+			throw new IllegalArgumentException("Number of virtual nodes must be positive.");
+		}
+		positions = new TreeMap<>();
+		for (String node : nodes) {
+			for (int i = 0; i < virtualNodes; i++) {
+				int position = hash(node + "#" + i);
+				String previous = positions.get(position);
+				// Collisions are resolved by the node ID, so that all nodes build the same ring.
+				if (previous == null || previous.compareTo(node) > 0) {
+					positions.put(position, node);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the owner of a key.
+	 * @param key Key to look up.
+	 * @return ID of the owning node or <code>null</code> if the ring has no nodes.
+	 */
+	public String getOwner(String key) {
+		if (positions.isEmpty()) {
+			return null;
+		}
+		Map.Entry<Integer, String> entry = positions.ceilingEntry(hash(key));
+		return entry != null ? entry.getValue() : positions.firstEntry().getValue();
+	}
+
+	/**
+	 * Hashes a string with FNV-1a, followed by the finalizer of MurmurHash3 to spread similar keys such as "fleet#1" and
+	 * "fleet#2" over the ring. Unlike {@link String#hashCode()}, similar keys do not end up next to each other.
+	 */
+	static int hash(String key) {
+		int hash = 0x811C9DC5;
+		for (int i = 0; i < key.length(); i++) {
+			hash ^= key.charAt(i);
+			hash *= 0x01000193;
+		}
+		hash ^= hash >>> 16;
+		hash *= 0x85EBCA6B;
+		hash ^= hash >>> 13;
+		hash *= 0xC2B2AE35;
+		hash ^= hash >>> 16;
+		return hash;
+	}
+}
@@ -0,0 +1,188 @@
+package de.appsist.service.msd;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.http.HttpClient;
+import org.vertx.java.core.http.HttpClientRequest;
+import org.vertx.java.core.http.HttpClientResponse;
+import org.vertx.java.core.impl.DefaultFutureResult;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Non-blocking transport sending messages to the MID with the Vert.x HTTP client. Messages are encoded with the
+ * {@link MidMessageCodec}: By default as the schema and data messages of the MID driver, the same messages the REST client of the
+ * driver sends, or with binary data messages if configured. Data messages can also be encoded in advance (see
+ * {@link EncodedMidTransport}).
+ * Connections are kept alive and pooled. The number of requests in flight is limited; additional requests are queued and sent as
+ * soon as an earlier request completes. All methods have to be called from the event loop of the verticle the transport was
+ * created by.
+ */
+public class HttpMidTransport implements EncodedMidTransport {
+	private final Vertx vertx;
+	private final HttpClient client;
+	private final MidMessageCodec.DataFormat dataFormat;
+	private final MidMessageCodec codec;
+	private final String schemaPath;
+	private final String dataPath;
+	private final int maxInFlight;
+	private final long requestTimeout;
+	private final Deque<PendingRequest> pendingRequests;
+	private int inFlight = 0;
+
+	/**
+	 * Creates the transport.
+	 * @param vertx Vert.x instance to create the HTTP client with.
+	 * @param midConfig Configuration of the MID connection ("mid" object of the service configuration).
+	 * @param secure Whether to use SSL.
+	 * @throws IllegalArgumentException The data format is unknown.
+	 */
+	public HttpMidTransport(Vertx vertx, JsonObject midConfig, boolean secure) throws IllegalArgumentException {
+		this.vertx = vertx;
+		client = vertx.createHttpClient();
+		client.setHost(midConfig.getString("host", "localhost"));
+		client.setPort(midConfig.getInteger("port"));
+		client.setSSL(secure);
+		client.setKeepAlive(true);
+		client.setMaxPoolSize(midConfig.getInteger("maxPoolSize", 8));
+		String basePath = midConfig.getString("basePath");
+		schemaPath = basePath + midConfig.getString("schemaPath", "/schema");
+		dataPath = basePath + midConfig.getString("dataPath", "/data");
+		maxInFlight = midConfig.getInteger("maxInFlight", 32);
+		requestTimeout = midConfig.getLong("requestTimeout", 5000L);
+		dataFormat = MidMessageCodec.DataFormat.fromString(midConfig.getString("dataFormat", "json"));
+		codec = new MidMessageCodec(dataFormat);
+		pendingRequests = new ArrayDeque<>();
+	}
+
+	@Override
+	public void sendSchemas(List<MachineUpdate> machines, Handler<AsyncResult<Void>> doneHandler) {
+		submit(new PendingRequest(schemaPath, MidMessageCodec.CONTENT_TYPE, codec.encodeSchemas(machines), doneHandler));
+	}
+
+	@Override
+	public void sendData(List<MachineUpdate> updates, final Handler<AsyncResult<Void>> doneHandler) {
+		final Buffer data;
+		try {
+			data = codec.encodeData(updates);
+		} catch (final IllegalArgumentException e) {
+			if (doneHandler != null) {
+				vertx.runOnContext(new Handler<Void>() {
+					@Override
+					public void handle(Void event) {
+						doneHandler.handle(new DefaultFutureResult<Void>(e));
+					}
+				});
+			}
+			return;
+		}
+		submit(new PendingRequest(dataPath, codec.getDataContentType(), data, doneHandler));
+	}
+
+	@Override
+	public MidMessageCodec createCodec() {
+		return new MidMessageCodec(dataFormat);
+	}
+
+	@Override
+	public void sendEncodedData(List<MachineUpdate> updates, Buffer data, Handler<AsyncResult<Void>> doneHandler) {
+		submit(new PendingRequest(dataPath, codec.getDataContentType(), data, doneHandler));
+	}
+
+	@Override
+	public int getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * Returns the number of requests waiting for a free slot.
+	 * @return Number of queued requests.
+	 */
+	public int getQueued() {
+		return pendingRequests.size();
+	}
+
+	@Override
+	public void close() {
+		client.close();
+	}
+
+	private void submit(PendingRequest request) {
+		if (inFlight < maxInFlight) {
+			execute(request);
+		} else {
+			pendingRequests.add(request);
+		}
+	}
+
+	private void execute(final PendingRequest pendingRequest) {
+		inFlight++;
+		HttpClientRequest request = client.post(pendingRequest.path, new Handler<HttpClientResponse>() {
+			@Override
+			public void handle(final HttpClientResponse response) {
+				response.bodyHandler(new Handler<Buffer>() {
+					@Override
+					public void handle(Buffer body) {
+						int statusCode = response.statusCode();
+						if (statusCode >= 200 && statusCode < 300) {
+							complete(pendingRequest, null);
+						} else {
+							complete(pendingRequest, new MidRequestException(statusCode, response.statusMessage() + " " + body.toString()));
+						}
+					}
+				});
+			}
+		});
+		request.exceptionHandler(new Handler<Throwable>() {
+			@Override
+			public void handle(Throwable cause) {
+				complete(pendingRequest, cause);
+			}
+		});
+		request.setTimeout(requestTimeout);
+		request.putHeader("Content-Type", pendingRequest.contentType);
+		request.putHeader("Content-Length", String.valueOf(pendingRequest.body.length()));
+		request.end(pendingRequest.body);
+	}
+
+	private void complete(PendingRequest pendingRequest, Throwable cause) {
+		if (pendingRequest.completed) {
+			// A request may fail after the response has been received, e.g. on connection reset.
+			return;
+		}
+		pendingRequest.completed = true;
+		inFlight--;
+		if (pendingRequest.doneHandler != null) {
+			DefaultFutureResult<Void> result = new DefaultFutureResult<>();
+			if (cause != null) {
+				result.setFailure(cause);
+			} else {
+				result.setResult(null);
+			}
+			pendingRequest.doneHandler.handle(result);
+		}
+		while (inFlight < maxInFlight && !pendingRequests.isEmpty()) {
+			execute(pendingRequests.poll());
+		}
+	}
+
+	private static class PendingRequest {
+		private final String path;
+		private final String contentType;
+		private final Buffer body;
+		private final Handler<AsyncResult<Void>> doneHandler;
+		private boolean completed = false;
+
+		private PendingRequest(String path, String contentType, Buffer body, Handler<AsyncResult<Void>> doneHandler) {
+			this.path = path;
+			this.contentType = contentType;
+			this.body = body;
+			this.doneHandler = doneHandler;
+		}
+	}
+}
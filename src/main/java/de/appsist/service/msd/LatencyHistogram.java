@@ -0,0 +1,108 @@
+package de.appsist.service.msd;
+
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Histogram of latencies with logarithmic buckets of constant relative precision, as used by HDR histograms.
+ * Values are recorded in microseconds. Each power of two is divided into 64 sub-buckets, so percentiles are accurate to about 1.6%.
+ * Values above one hour are recorded as one hour.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 6;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final long MAX_VALUE = 3600L * 1000L * 1000L;
+
+	private final long[] counts;
+	private long count = 0;
+	private long sum = 0;
+	private long max = 0;
+
+	public LatencyHistogram() {
+		counts = new long[indexOf(MAX_VALUE) + 1];
+	}
+
+	/**
+	 * Records a latency.
+	 * @param micros Latency in microseconds.
+	 */
+	public void record(long micros) {
+		long value = Math.max(0, Math.min(MAX_VALUE, micros));
+		counts[indexOf(value)]++;
+		count++;
+		sum += value;
+		max = Math.max(max, value);
+	}
+
+	private static int indexOf(long value) {
+		if (value < 2 * SUB_BUCKET_COUNT) {
+			return (int) value;
+		}
+		int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS - 1;
+		return (int) (SUB_BUCKET_COUNT * shift + (value >>> shift));
+	}
+
+	private static long highestValueOf(int index) {
+		if (index < 2 * SUB_BUCKET_COUNT) {
+			return index;
+		}
+		int shift = index / SUB_BUCKET_COUNT - 1;
+		long subBucket = index - SUB_BUCKET_COUNT * shift;
+		return ((subBucket + 1) << shift) - 1;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns the sum of all latencies recorded.
+	 * @return Sum in microseconds.
+	 */
+	public long getSum() {
+		return sum;
+	}
+
+	/**
+	 * Returns the highest latency recorded.
+	 * @return Latency in microseconds.
+	 */
+	public long getMax() {
+		return max;
+	}
+
+	/**
+	 * Returns the latency below or equal to which the given percentage of all latencies lies.
+	 * @param percentile Percentile, e.g. 99.9.
+	 * @return Latency in microseconds, 0 if no latency has been recorded.
+	 */
+	public long getValueAtPercentile(double percentile) {
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100d * count));
+		long seen = 0;
+		for (int index = 0; index < counts.length; index++) {
+			seen += counts[index];
+			if (seen >= rank) {
+				return Math.min(max, highestValueOf(index));
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * Returns a JSON representation of the histogram. Latencies are given in milliseconds.
+	 * @return JSON object.
+	 */
+	public JsonObject asJson() {
+		JsonObject json = new JsonObject();
+		json.putNumber("count", count);
+		json.putNumber("mean", count > 0 ? sum / (count * 1000d) : 0d);
+		json.putNumber("p50", getValueAtPercentile(50d) / 1000d);
+		json.putNumber("p90", getValueAtPercentile(90d) / 1000d);
+		json.putNumber("p99", getValueAtPercentile(99d) / 1000d);
+		json.putNumber("p999", getValueAtPercentile(99.9d) / 1000d);
+		json.putNumber("max", max / 1000d);
+		return json;
+	}
+}
@@ -0,0 +1,238 @@
+package de.appsist.service.msd;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.http.HttpServerResponse;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.core.logging.impl.LoggerFactory;
+
+/**
+ * Live view of the simulated machine states and the metrics, streamed to the control UI as server-sent events.
+ * <p>
+ * The view keeps the latest values of all machines submitted to the {@link MidSender}, whether or not the MID is available.
+ * Changes are not sent to the clients one by one, but collected and sent with a "state" event per flush interval, containing the
+ * fields changed since the last event the client received. A client whose connection cannot keep up is skipped and receives all changes missed meanwhile with its next
+ * event, so a simulation with a high rate costs each client at most one event per interval. Events are encoded once for all
+ * clients at the same version, so further clients watching the simulator add little more than the bandwidth. A "metrics" event
+ * is sent to all clients in the metrics interval.
+ * <p>
+ * Values of messages encoded in advance, i.e. of the fleet simulation, are not tracked, as the fleet has too many machines to
+ * show them individually. The fleet is visible in the metrics. All methods have to be called from the event loop of the verticle.
+ */
+public class LiveView {
+	private static final Logger logger = LoggerFactory.getLogger(LiveView.class);
+
+	private final SimulatorMetrics metrics;
+	private final int maxClients;
+	private final int maxMachines;
+	private final Map<String, MachineState> machines; // Machine key -> latest values
+	private final List<Client> clients;
+	private long version = 0; // Version of the last state event, changes after it are recorded with the next version
+	private boolean changed = false;
+	private long machinesIgnored = 0;
+
+	/**
+	 * Creates the view and starts the timers for its events.
+	 * @param vertx Vert.x instance to set the timers with.
+	 * @param metrics Metrics to stream.
+	 * @param interval Interval in milliseconds in which changed states are sent.
+	 * @param metricsInterval Interval in milliseconds in which the metrics are sent.
+	 * @param maxClients Maximum number of connected clients.
+	 * @param maxMachines Maximum number of machines tracked. Further machines are not shown.
+	 * @throws IllegalArgumentException An interval or maximum is not positive.
+	 */
+	public LiveView(Vertx vertx, SimulatorMetrics metrics, long interval, long metricsInterval, int maxClients, int maxMachines)
+			throws IllegalArgumentException {
+		if (interval < 1 || metricsInterval < 1 || maxClients < 1 || maxMachines < 1) {
+			throw new IllegalArgumentException("Intervals and maximum numbers of clients and machines of the live view must be positive.");
+		}
+		this.metrics = metrics;
+		this.maxClients = maxClients;
+		this.maxMachines = maxMachines;
+		this.machines = new LinkedHashMap<>();
+		this.clients = new ArrayList<>();
+		vertx.setPeriodic(interval, new Handler<Long>() {
+			@Override
+			public void handle(Long timerId) {
+				sendStates();
+			}
+		});
+		vertx.setPeriodic(metricsInterval, new Handler<Long>() {
+			@Override
+			public void handle(Long timerId) {
+				sendMetrics();
+			}
+		});
+	}
+
+	/**
+	 * Records the values of an update submitted to the sender.
+	 * @param update Update submitted, only read during the call.
+	 */
+	public void updateSubmitted(MachineUpdate update) {
+		MachineState state = machines.get(update.getMachineKey());
+		if (state == null || state.template != update.getTemplate()) {
+			if (state == null && machines.size() >= maxMachines) {
+				machinesIgnored++;
+				return;
+			}
+			state = new MachineState(update.getTemplate());
+			machines.put(update.getMachineKey(), state);
+		}
+		long nextVersion = version + 1;
+		for (int field = 0; field < state.values.length; field++) {
+			Object value = update.get(field);
+			if (value != null && !value.equals(state.values[field])) {
+				state.values[field] = value;
+				state.versions[field] = nextVersion;
+				state.version = nextVersion;
+				changed = true;
+			}
+		}
+	}
+
+	/**
+	 * Streams the view to a client. The client receives the current state of all machines and the metrics immediately.
+	 * @param response Response of a request for the event stream, ended when the maximum number of clients is reached.
+	 */
+	public void addClient(HttpServerResponse response) {
+		if (clients.size() >= maxClients) {
+			response.setStatusCode(503);
+			response.end("Maximum number of live view clients reached.");
+			return;
+		}
+		response.setChunked(true);
+		response.headers().set("Content-Type", "text/event-stream");
+		response.headers().set("Cache-Control", "no-cache");
+		final Client client = new Client(response);
+		clients.add(client);
+		response.closeHandler(new Handler<Void>() {
+			@Override
+			public void handle(Void event) {
+				clients.remove(client);
+				logger.debug("Live view client disconnected, " + clients.size() + " clients remaining.");
+			}
+		});
+		response.write("retry: 2000\n\n");
+		response.write(encodeStates(0));
+		response.write(encodeEvent("metrics", metrics.asJson(false)));
+		client.version = version;
+		logger.debug("Live view client connected, " + clients.size() + " clients connected.");
+	}
+
+	/**
+	 * Sends the changed states to all clients able to receive them.
+	 */
+	private void sendStates() {
+		if (changed) {
+			version++;
+			changed = false;
+		}
+		Map<Long, Buffer> events = null; // Event by the version of the clients it is sent to
+		for (Client client : clients) {
+			if (client.version == version || client.response.writeQueueFull()) {
+				continue;
+			}
+			if (events == null) {
+				events = new HashMap<>();
+			}
+			Buffer event = events.get(client.version);
+			if (event == null) {
+				event = encodeStates(client.version);
+				events.put(client.version, event);
+			}
+			client.response.write(event);
+			client.version = version;
+		}
+	}
+
+	private void sendMetrics() {
+		if (clients.isEmpty()) {
+			return;
+		}
+		Buffer event = encodeEvent("metrics", metrics.asJson(false));
+		for (Client client : clients) {
+			if (!client.response.writeQueueFull()) {
+				client.response.write(event);
+			}
+		}
+	}
+
+	/**
+	 * Encodes the state event for a client.
+	 * @param since Version the client received last, 0 for the state of all machines.
+	 * @return Event containing the values of the machines changed since the version.
+	 */
+	private Buffer encodeStates(long since) {
+		JsonObject machineStates = new JsonObject();
+		for (Map.Entry<String, MachineState> entry : machines.entrySet()) {
+			MachineState state = entry.getValue();
+			if (state.version <= since) {
+				continue;
+			}
+			JsonObject values = new JsonObject();
+			for (int field = 0; field < state.values.length; field++) {
+				if (state.versions[field] > since && state.values[field] != null) {
+					values.putValue(state.template.getFieldName(field), state.values[field]);
+				}
+			}
+			machineStates.putObject(entry.getKey(), new JsonObject()
+					.putString("scenario", state.template.getScenario())
+					.putObject("values", values));
+		}
+		return encodeEvent("state", new JsonObject().putBoolean("full", since == 0).putObject("machines", machineStates));
+	}
+
+	private static Buffer encodeEvent(String type, JsonObject data) {
+		return new Buffer("event: " + type + "\ndata: " + data.encode() + "\n\n");
+	}
+
+	/**
+	 * Returns a JSON representation of the view statistics.
+	 * @return JSON object.
+	 */
+	public JsonObject asJson() {
+		JsonObject json = new JsonObject();
+		json.putNumber("clients", clients.size());
+		json.putNumber("machines", machines.size());
+		json.putNumber("machinesIgnored", machinesIgnored);
+		json.putNumber("version", version);
+		return json;
+	}
+
+	/**
+	 * Latest values of a machine with the version they changed in.
+	 */
+	private static class MachineState {
+		private final MachineTemplate template;
+		private final Object[] values;
+		private final long[] versions;
+		private long version; // Latest version of any field
+
+		private MachineState(MachineTemplate template) {
+			this.template = template;
+			this.values = new Object[template.getFieldCount()];
+			this.versions = new long[template.getFieldCount()];
+		}
+	}
+
+	/**
+	 * Connected client with the version of the last state event it received.
+	 */
+	private static class Client {
+		private final HttpServerResponse response;
+		private long version;
+
+		private Client(HttpServerResponse response) {
+			this.response = response;
+		}
+	}
+}
@@ -0,0 +1,254 @@
+package de.appsist.service.msd;
+
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.core.logging.impl.LoggerFactory;
+
+/**
+ * Load generator calling a tick handler at a configurable target rate.
+ * The generator is driven by a Vert.x periodic timer. As timers have a resolution of one millisecond, rates above 1 kHz are
+ * reached by running several ticks per timer event. The number of ticks due is always computed from the time elapsed since
+ * the start, so the latency of a single tick does not accumulate as drift.
+ * With a virtual {@link SimulationClock}, the clock executes the ticks instead, as fast as the MID acknowledges the data.
+ * If an {@link OutboundQueue} blocks producers, ticks are held back until it has room again and then skipped like ticks behind schedule.
+ */
+public class LoadGenerator {
+	private static final Logger logger = LoggerFactory.getLogger(LoadGenerator.class);
+	private static final long NANOS_PER_SECOND = 1000000000L;
+	private static final long MAX_CATCH_UP_TIMER_PERIODS = 10; // Ticks due for more timer periods are skipped instead of being sent as burst.
+
+	public static final double MIN_RATE = 0.1d;
+	public static final double MAX_RATE = 100000d;
+
+	private final Vertx vertx;
+	private final String name;
+	private final Handler<Void> tickHandler;
+	private final SimulationClock clock; // Executes the ticks if virtual, null for the wall clock
+	private OutboundQueue queue;
+	private double targetRate;
+	private long timerId = -1;
+	private long periodMillis;
+	private boolean virtualRunning = false;
+	private long virtualStartNanos;
+
+	private long startNanos;
+	private long ticks;
+	private long skippedTicks;
+	private long windowStartNanos;
+	private long windowTicks;
+	private double achievedRate;
+
+	/**
+	 * Creates a load generator. The generator has to be started explicitly.
+	 * @param vertx Vert.x instance to register timers.
+	 * @param name Name of the generator, e.g. the scenario it generates load for.
+	 * @param targetRate Number of ticks per second.
+	 * @param tickHandler Handler called for each tick.
+	 */
+	public LoadGenerator(Vertx vertx, String name, double targetRate, Handler<Void> tickHandler) {
+		this(vertx, name, targetRate, tickHandler, null);
+	}
+
+	/**
+	 * Creates a load generator paced by the given clock. The generator has to be started explicitly.
+	 * @param vertx Vert.x instance to register timers.
+	 * @param name Name of the generator, e.g. the scenario it generates load for.
+	 * @param targetRate Number of ticks per second, of simulated time if the clock is virtual.
+	 * @param tickHandler Handler called for each tick.
+	 * @param clock Clock of the simulation, <code>null</code> for the wall clock.
+	 */
+	public LoadGenerator(Vertx vertx, String name, double targetRate, Handler<Void> tickHandler, SimulationClock clock) {
+		this.vertx = vertx;
+		this.name = name;
+		this.tickHandler = tickHandler;
+		this.clock = clock != null && clock.isVirtual() ? clock : null;
+		setTargetRate(targetRate);
+	}
+
+	/**
+	 * Sets the queue whose backpressure holds back the ticks.
+	 * @param queue Outbound queue to the MID, <code>null</code> to run the ticks regardless of the queue.
+	 */
+	public void setOutboundQueue(OutboundQueue queue) {
+		this.queue = queue;
+	}
+
+	/**
+	 * Starts the generator. If the generator is already running, it is restarted.
+	 */
+	public void start() {
+		cancelTimer();
+		startNanos = System.nanoTime();
+		windowStartNanos = startNanos;
+		ticks = 0;
+		skippedTicks = 0;
+		windowTicks = 0;
+		achievedRate = 0;
+		if (clock != null) {
+			virtualStartNanos = clock.getVirtualNanos();
+			virtualRunning = true;
+			clock.add(this);
+			logger.info("Load generator " + name + " started with " + targetRate + " Hz of simulated time.");
+			return;
+		}
+		periodMillis = Math.max(1L, Math.round(1000d / targetRate));
+		timerId = vertx.setPeriodic(periodMillis, new Handler<Long>() {
+			@Override
+			public void handle(Long timerId) {
+				onTimer();
+			}
+		});
+		logger.info("Load generator " + name + " started with " + targetRate + " Hz.");
+	}
+
+	/**
+	 * Stops the generator.
+	 */
+	public void stop() {
+		if (cancelTimer()) {
+			logger.info("Load generator " + name + " stopped after " + ticks + " ticks.");
+		}
+	}
+
+	private boolean cancelTimer() {
+		if (virtualRunning) {
+			virtualRunning = false;
+			clock.remove(this);
+			return true;
+		}
+		if (timerId < 0) {
+			return false;
+		}
+		vertx.cancelTimer(timerId);
+		timerId = -1;
+		return true;
+	}
+
+	private void onTimer() {
+		long now = System.nanoTime();
+		long due = (long) ((now - startNanos) * targetRate / NANOS_PER_SECOND);
+		long pending = due - ticks - skippedTicks;
+		long maxBurst = Math.max(1L, (long) (targetRate * periodMillis * MAX_CATCH_UP_TIMER_PERIODS / 1000d));
+		if (pending > maxBurst) {
+			skippedTicks += pending - maxBurst;
+			pending = maxBurst;
+		}
+		for (long i = 0; i < pending; i++) {
+			if (queue != null && queue.isBlocking()) {
+				// The ticks stay due and are skipped once the generator is too far behind schedule.
+				break;
+			}
+			if (!runTick()) {
+				return;
+			}
+		}
+		updateAchievedRate(now);
+	}
+
+	/**
+	 * Executes the next tick in virtual mode.
+	 */
+	void tick() {
+		if (runTick()) {
+			updateAchievedRate(System.nanoTime());
+		}
+	}
+
+	/**
+	 * Returns the simulated time the next tick is due in virtual mode.
+	 * @return Nanoseconds since the start time of the clock.
+	 */
+	long getNextTickNanos() {
+		return virtualStartNanos + (long) (ticks * NANOS_PER_SECOND / targetRate);
+	}
+
+	private boolean runTick() {
+		try {
+			tickHandler.handle(null);
+			ticks++;
+			windowTicks++;
+			return true;
+		} catch (RuntimeException e) {
+			logger.error("Load generator " + name + " failed, stopping.", e);
+			stop();
+			return false;
+		}
+	}
+
+	private void updateAchievedRate(long now) {
+		long windowNanos = now - windowStartNanos;
+		if (windowNanos >= NANOS_PER_SECOND) {
+			achievedRate = windowTicks * (double) NANOS_PER_SECOND / windowNanos;
+			windowStartNanos = now;
+			windowTicks = 0;
+		}
+	}
+
+	/**
+	 * Changes the target rate. A running generator is restarted with the new rate.
+	 * @param targetRate Number of ticks per second.
+	 * @throws IllegalArgumentException The rate is out of the supported range.
+	 */
+	public void setTargetRate(double targetRate) throws IllegalArgumentException {
+		if (Double.isNaN(targetRate) || targetRate < MIN_RATE || targetRate > MAX_RATE) {
+			throw new IllegalArgumentException("Rate must be between " + MIN_RATE + " and " + MAX_RATE + " Hz.");
+		}
+		this.targetRate = targetRate;
+		if (isRunning()) {
+			start();
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public boolean isRunning() {
+		return timerId >= 0 || virtualRunning;
+	}
+
+	public double getTargetRate() {
+		return targetRate;
+	}
+
+	/**
+	 * Returns the rate achieved within the last full measuring window of one second.
+	 * @return Ticks per second of wall clock time.
+	 */
+	public double getAchievedRate() {
+		return achievedRate;
+	}
+
+	/**
+	 * Returns the number of ticks executed since the last start.
+	 * @return Number of ticks.
+	 */
+	public long getTicks() {
+		return ticks;
+	}
+
+	/**
+	 * Returns the number of ticks skipped because the generator was too far behind schedule, e.g. because the outbound queue blocked.
+	 * @return Number of skipped ticks.
+	 */
+	public long getSkippedTicks() {
+		return skippedTicks;
+	}
+
+	/**
+	 * Returns a JSON representation of the generator status.
+	 * @return JSON object.
+	 */
+	public JsonObject asJson() {
+		JsonObject json = new JsonObject();
+		json.putString("name", name);
+		json.putBoolean("running", isRunning());
+		json.putNumber("targetRate", targetRate);
+		json.putNumber("achievedRate", achievedRate);
+		json.putNumber("ticks", ticks);
+		json.putNumber("skippedTicks", skippedTicks);
+		return json;
+	}
+}
@@ -0,0 +1,422 @@
+package de.appsist.service.msd;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import de.appsist.service.middrv.entity.Machine;
+import de.appsist.service.middrv.entity.MachineSchema;
+import de.appsist.service.middrv.entity.MachineValueSpecification;
+import de.appsist.service.middrv.entity.MachineValueType;
+import de.appsist.service.middrv.entity.Unit;
+import de.appsist.service.middrv.entity.VisualizationLevel;
+import de.appsist.service.middrv.entity.VisualizationType;
+
+/**
+ * Template for a machine type. A template contains the identity of the machine type, its station and the field specifications.
+ * It is used to create any number of machine instances differing in their serial number only.
+ */
+public class MachineTemplate {
+	private final String vendorId;
+	private final String machineId;
+	private final String ontologyUri;
+	private final String stationId;
+	private final String siteId;
+	private final String stationOntologyUri;
+	private final String scenario;
+	private final String[] fieldNames;
+	private final MachineValueType[] fieldTypes;
+	private final String[] fieldUnits;
+	private final VisualizationType[] visualizationTypes;
+	private final VisualizationLevel[] visualizationLevels;
+	private final MachineValueSpecification[] fieldSpecifications;
+	private final Object[] initialValues;
+	private final Map<String, Integer> fieldIndex;
+	private final String fingerprint;
+
+	private MachineTemplate(Builder builder) {
+		vendorId = builder.vendorId;
+		machineId = builder.machineId;
+		ontologyUri = builder.ontologyUri;
+		stationId = builder.stationId;
+		siteId = builder.siteId;
+		stationOntologyUri = builder.stationOntologyUri;
+		scenario = builder.scenario != null ? builder.scenario : machineId;
+
+		int numFields = builder.fieldNames.size();
+		fieldNames = builder.fieldNames.toArray(new String[numFields]);
+		fieldTypes = builder.fieldTypes.toArray(new MachineValueType[numFields]);
+		fieldUnits = builder.fieldUnits.toArray(new String[numFields]);
+		visualizationTypes = builder.visualizationTypes.toArray(new VisualizationType[numFields]);
+		visualizationLevels = builder.visualizationLevels.toArray(new VisualizationLevel[numFields]);
+		initialValues = builder.initialValues.toArray();
+		fieldSpecifications = new MachineValueSpecification[numFields];
+		fieldIndex = new HashMap<>();
+
+		StringBuilder fingerprintBuilder = new StringBuilder();
+		fingerprintBuilder.append(stationId).append('|').append(siteId).append('|').append(stationOntologyUri);
+		for (int i = 0; i < numFields; i++) {
+			Unit unit = fieldUnits[i].isEmpty() ? Unit.NONE : new Unit(fieldUnits[i]);
+			fieldSpecifications[i] = new MachineValueSpecification(fieldNames[i], fieldTypes[i], unit, visualizationTypes[i], visualizationLevels[i]);
+			fieldIndex.put(fieldNames[i], i);
+			fingerprintBuilder.append('|').append(fieldNames[i]).append(':').append(fieldTypes[i]).append(':').append(fieldUnits[i])
+					.append(':').append(visualizationTypes[i]).append(':').append(visualizationLevels[i]);
+		}
+		fingerprint = fingerprintBuilder.toString();
+	}
+
+	/**
+	 * Builder for machine templates.
+	 */
+	public static class Builder {
+		private final String vendorId;
+		private final String machineId;
+		private String ontologyUri;
+		private String stationId;
+		private String siteId;
+		private String stationOntologyUri;
+		private String scenario;
+		private final List<String> fieldNames = new ArrayList<>();
+		private final List<MachineValueType> fieldTypes = new ArrayList<>();
+		private final List<String> fieldUnits = new ArrayList<>();
+		private final List<VisualizationType> visualizationTypes = new ArrayList<>();
+		private final List<VisualizationLevel> visualizationLevels = new ArrayList<>();
+		private final List<Object> initialValues = new ArrayList<>();
+
+		/**
+		 * Creates a builder for a machine type.
+		 * @param vendorId ID of the vendor.
+		 * @param machineId ID of the machine type.
+		 */
+		public Builder(String vendorId, String machineId) {
+			this.vendorId = vendorId;
+			this.machineId = machineId;
+		}
+
+		public Builder ontologyUri(String ontologyUri) {
+			this.ontologyUri = ontologyUri;
+			return this;
+		}
+
+		public Builder station(String stationId, String siteId) {
+			this.stationId = stationId;
+			this.siteId = siteId;
+			return this;
+		}
+
+		public Builder stationOntologyUri(String stationOntologyUri) {
+			this.stationOntologyUri = stationOntologyUri;
+			return this;
+		}
+
+		/**
+		 * Sets the scenario the machines are simulated by. The scenario is not part of the schema, it is used for metrics only.
+		 * @param scenario Name of the scenario, the machine ID if not set.
+		 * @return Builder.
+		 */
+		public Builder scenario(String scenario) {
+			this.scenario = scenario;
+			return this;
+		}
+
+		/**
+		 * Adds a field initialized with the default value of its type.
+		 * @param name Name of the field.
+		 * @param type Type of the field values.
+		 * @param unit Unit of the field values, an empty string for none.
+		 * @param visualizationType Type of visualization in the MID.
+		 * @param visualizationLevel Level of visualization in the MID.
+		 * @return Builder.
+		 */
+		public Builder field(String name, MachineValueType type, String unit, VisualizationType visualizationType, VisualizationLevel visualizationLevel) {
+			return field(name, type, unit, visualizationType, visualizationLevel, defaultValue(type));
+		}
+
+		/**
+		 * Adds a field.
+		 * @param name Name of the field.
+		 * @param type Type of the field values.
+		 * @param unit Unit of the field values, an empty string for none.
+		 * @param visualizationType Type of visualization in the MID.
+		 * @param visualizationLevel Level of visualization in the MID.
+		 * @param initialValue Initial value of the field.
+		 * @return Builder.
+		 * @throws IllegalArgumentException The initial value does not match the field type.
+		 */
+		public Builder field(String name, MachineValueType type, String unit, VisualizationType visualizationType, VisualizationLevel visualizationLevel,
+				Object initialValue) throws IllegalArgumentException {
+			if (fieldNames.contains(name)) {
+				throw new IllegalArgumentException("Duplicate field in machine template: " + name);
+			}
+			fieldNames.add(name);
+			fieldTypes.add(type);
+			fieldUnits.add(unit != null ? unit : "");
+			visualizationTypes.add(visualizationType);
+			visualizationLevels.add(visualizationLevel);
+			initialValues.add(checkValue(name, type, initialValue));
+			return this;
+		}
+
+		/**
+		 * Creates the template.
+		 * @return Machine template.
+		 * @throws IllegalArgumentException The station is not set or the template has no fields.
+		 */
+		public MachineTemplate build() throws IllegalArgumentException {
+			if (stationId == null || siteId == null) {
+				throw new IllegalArgumentException("Machine template requires a station and site.");
+			}
+			if (fieldNames.isEmpty()) {
+				throw new IllegalArgumentException("Machine template requires at least one field.");
+			}
+			return new MachineTemplate(this);
+		}
+	}
+
+	/**
+	 * Parses a machine template.
+	 * @param json JSON object with the template specification.
+	 * @return Machine template.
+	 * @throws IllegalArgumentException The specification is invalid.
+	 */
+	public static MachineTemplate fromJson(JsonObject json) throws IllegalArgumentException {
+		Builder builder = new Builder(getRequiredString(json, "vendorId"), getRequiredString(json, "machineId"))
+				.ontologyUri(json.getString("ontologyUri"))
+				.station(getRequiredString(json, "stationId"), getRequiredString(json, "siteId"))
+				.stationOntologyUri(json.getString("stationOntologyUri"))
+				.scenario(json.getString("scenario"));
+		JsonArray fields = json.getArray("fields");
+		if (fields != null) {
+			for (int i = 0; i < fields.size(); i++) {
+				Object entry = fields.get(i);
+				if (!(entry instanceof JsonObject)) {
+					throw new IllegalArgumentException("Invalid field in machine template: " + entry);
+				}
+				JsonObject field = (JsonObject) entry;
+				String name = getRequiredString(field, "name");
+				MachineValueType type = MachineValueType.byIdentifier(getRequiredString(field, "type"));
+				if (type == null) {
+					throw new IllegalArgumentException("Invalid type for field " + name + ": " + field.getString("type"));
+				}
+				builder.field(name, type, getString(field, name, "unit", ""),
+						parseVisualizationType(getString(field, name, "visualizationType", "text_field")),
+						parseVisualizationLevel(name, getString(field, name, "visualizationLevel", "overview")),
+						field.getValue("initial") != null ? field.getValue("initial") : defaultValue(type));
+			}
+		}
+		return builder.build();
+	}
+
+	private static String getRequiredString(JsonObject json, String fieldName) throws IllegalArgumentException {
+		Object value = json.getValue(fieldName);
+		if (value == null) {
+			throw new IllegalArgumentException("Missing required field in machine template: " + fieldName);
+		} else if (!(value instanceof String)) {
+			throw new IllegalArgumentException("Invalid value for " + fieldName + " in machine template: " + value);
+		}
+		return (String) value;
+	}
+
+	private static String getString(JsonObject field, String name, String fieldName, String defaultValue) throws IllegalArgumentException {
+		Object value = field.getValue(fieldName);
+		if (value == null) {
+			return defaultValue;
+		} else if (!(value instanceof String)) {
+			throw new IllegalArgumentException("Invalid " + fieldName + " for field " + name + ": " + value);
+		}
+		return (String) value;
+	}
+
+	private static VisualizationType parseVisualizationType(String name) throws IllegalArgumentException {
+		VisualizationType visualizationType = VisualizationType.byName(name);
+		if (visualizationType == null) {
+			// Also accept the names of the constants, e.g. "precent_bar".
+			try {
+				visualizationType = VisualizationType.valueOf(name.toUpperCase());
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Invalid visualization type: " + name);
+			}
+		}
+		return visualizationType;
+	}
+
+	private static VisualizationLevel parseVisualizationLevel(String fieldName, String name) throws IllegalArgumentException {
+		VisualizationLevel visualizationLevel = VisualizationLevel.byName(name);
+		if (visualizationLevel == null) {
+			throw new IllegalArgumentException("Invalid visualization level for field " + fieldName + ": " + name);
+		}
+		return visualizationLevel;
+	}
+
+	private static Object defaultValue(MachineValueType type) {
+		switch (type) {
+		case BOOL:
+			return Boolean.FALSE;
+		case LONG:
+			return 0L;
+		case DOUBLE:
+			return 0d;
+		default:
+			return "";
+		}
+	}
+
+	/**
+	 * Checks if a value matches a field type. Integral numbers are accepted for double fields.
+	 * @param name Name of the field, used for the error message.
+	 * @param type Type of the field.
+	 * @param value Value to check.
+	 * @return Value converted to the representation of the field type: Boolean, Long, Double or String.
+	 * @throws IllegalArgumentException The value does not match the type.
+	 */
+	static Object checkValue(String name, MachineValueType type, Object value) throws IllegalArgumentException {
+		switch (type) {
+		case BOOL:
+			if (value instanceof Boolean) {
+				return value;
+			}
+			break;
+		case LONG:
+			if (value instanceof Long) {
+				return value;
+			} else if (value instanceof Integer) {
+				return ((Integer) value).longValue();
+			}
+			break;
+		case DOUBLE:
+			if (value instanceof Double) {
+				return value;
+			} else if (value instanceof Number) {
+				return ((Number) value).doubleValue();
+			}
+			break;
+		default:
+			if (value instanceof String) {
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("Invalid value for field " + name + " of type " + type + ": " + value);
+	}
+
+	/**
+	 * Creates a machine instance of this type.
+	 * @param serialNumber Serial number of the instance.
+	 * @return Machine.
+	 */
+	public Machine createMachine(String serialNumber) {
+		if (ontologyUri != null) {
+			return new Machine(vendorId, machineId, serialNumber, ontologyUri);
+		} else {
+			return new Machine(vendorId, machineId, serialNumber);
+		}
+	}
+
+	/**
+	 * Creates the schema for a machine instance of this type.
+	 * @param machine Machine instance as created by {@link #createMachine(String)}.
+	 * @return Machine schema containing all fields of the template.
+	 */
+	public MachineSchema createSchema(Machine machine) {
+		MachineSchema schema;
+		if (stationOntologyUri != null) {
+			schema = new MachineSchema(machine, stationId, siteId, stationOntologyUri);
+		} else {
+			schema = new MachineSchema(machine, stationId, siteId);
+		}
+		for (MachineValueSpecification specification : fieldSpecifications) {
+			schema.addField(specification);
+		}
+		return schema;
+	}
+
+	public String getVendorId() {
+		return vendorId;
+	}
+
+	public String getMachineId() {
+		return machineId;
+	}
+
+	public String getOntologyUri() {
+		return ontologyUri;
+	}
+
+	public String getStationId() {
+		return stationId;
+	}
+
+	public String getSiteId() {
+		return siteId;
+	}
+
+	public String getStationOntologyUri() {
+		return stationOntologyUri;
+	}
+
+	/**
+	 * Returns the scenario the machines are simulated by.
+	 * @return Name of the scenario.
+	 */
+	public String getScenario() {
+		return scenario;
+	}
+
+	/**
+	 * Returns a fingerprint of the schema created by this template. Templates creating equal schemas have equal fingerprints.
+	 * @return Schema fingerprint.
+	 */
+	public String getFingerprint() {
+		return fingerprint;
+	}
+
+	public int getFieldCount() {
+		return fieldNames.length;
+	}
+
+	/**
+	 * Returns the index of a field.
+	 * @param name Name of the field.
+	 * @return Index of the field or -1 if the template has no such field.
+	 */
+	public int getFieldIndex(String name) {
+		Integer index = fieldIndex.get(name);
+		return index != null ? index : -1;
+	}
+
+	public String getFieldName(int field) {
+		return fieldNames[field];
+	}
+
+	public MachineValueType getFieldType(int field) {
+		return fieldTypes[field];
+	}
+
+	public String getFieldUnit(int field) {
+		return fieldUnits[field];
+	}
+
+	public VisualizationType getVisualizationType(int field) {
+		return visualizationTypes[field];
+	}
+
+	public VisualizationLevel getVisualizationLevel(int field) {
+		return visualizationLevels[field];
+	}
+
+	public MachineValueSpecification getFieldSpecification(int field) {
+		return fieldSpecifications[field];
+	}
+
+	/**
+	 * Returns the initial value of a field.
+	 * @param field Index of the field.
+	 * @return Boolean, Long, Double or String depending on the field type.
+	 */
+	public Object getInitialValue(int field) {
+		return initialValues[field];
+	}
+}
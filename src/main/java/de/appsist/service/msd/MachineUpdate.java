@@ -0,0 +1,162 @@
+package de.appsist.service.msd;
+
+import de.appsist.service.middrv.entity.MachineData;
+
+/**
+ * Field values of a single machine to be sent to the MID.
+ * Values are stored by the field index of the machine template. Fields without a value are not sent.
+ */
+public class MachineUpdate {
+	private final MachineTemplate template;
+	private final String serialNumber;
+	private final String machineKey;
+	private final Object[] values;
+
+	/**
+	 * Creates an update without any values.
+	 * @param template Template of the machine.
+	 * @param serialNumber Serial number of the machine.
+	 */
+	public MachineUpdate(MachineTemplate template, String serialNumber) {
+		this.template = template;
+		this.serialNumber = serialNumber;
+		this.machineKey = SchemaRegistry.machineKey(template.getVendorId(), template.getMachineId(), serialNumber);
+		this.values = new Object[template.getFieldCount()];
+	}
+
+	private MachineUpdate(MachineUpdate update) {
+		this.template = update.template;
+		this.serialNumber = update.serialNumber;
+		this.machineKey = update.machineKey;
+		this.values = update.values.clone();
+	}
+
+	/**
+	 * Creates a copy of this update. The copy can be modified independently of this update.
+	 * @return New update of the same machine containing the same values.
+	 */
+	public MachineUpdate copy() {
+		return new MachineUpdate(this);
+	}
+
+	public MachineTemplate getTemplate() {
+		return template;
+	}
+
+	public String getSerialNumber() {
+		return serialNumber;
+	}
+
+	/**
+	 * Returns the key of the machine.
+	 * @return Machine key, see {@link SchemaRegistry#machineKey(String, String, String)}.
+	 */
+	public String getMachineKey() {
+		return machineKey;
+	}
+
+	/**
+	 * Sets the value of a field.
+	 * @param field Index of the field in the machine template.
+	 * @param value Value matching the field type.
+	 * @return This update.
+	 * @throws IllegalArgumentException The value does not match the field type.
+	 */
+	public MachineUpdate set(int field, Object value) throws IllegalArgumentException {
+		values[field] = MachineTemplate.checkValue(template.getFieldName(field), template.getFieldType(field), value);
+		return this;
+	}
+
+	/**
+	 * Sets the value of a field.
+	 * @param fieldName Name of the field.
+	 * @param value Value matching the field type.
+	 * @return This update.
+	 * @throws IllegalArgumentException The template has no such field or the value does not match the field type.
+	 */
+	public MachineUpdate put(String fieldName, Object value) throws IllegalArgumentException {
+		int field = template.getFieldIndex(fieldName);
+		if (field < 0) {
+			throw new IllegalArgumentException("Unknown field for machine " + machineKey + ": " + fieldName);
+		}
+		return set(field, value);
+	}
+
+	/**
+	 * Removes the value of a field.
+	 * @param field Index of the field in the machine template.
+	 */
+	void clear(int field) {
+		values[field] = null;
+	}
+
+	/**
+	 * Returns the value of a field.
+	 * @param field Index of the field in the machine template.
+	 * @return Boolean, Long, Double or String depending on the field type, or <code>null</code> if the field is not set.
+	 */
+	public Object get(int field) {
+		return values[field];
+	}
+
+	/**
+	 * Takes over all values set in another update of the same machine. Values of this update are overwritten.
+	 * @param update Newer update of the same machine.
+	 * @return This update.
+	 * @throws IllegalArgumentException The update belongs to another machine or template.
+	 */
+	public MachineUpdate merge(MachineUpdate update) throws IllegalArgumentException {
+		if (update.template != template || !update.machineKey.equals(machineKey)) {
+			throw new IllegalArgumentException("Cannot merge update of machine " + update.machineKey + " into " + machineKey + ".");
+		}
+		for (int field = 0; field < values.length; field++) {
+			if (update.values[field] != null) {
+				values[field] = update.values[field];
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Returns the number of fields set.
+	 * @return Number of values in this update.
+	 */
+	public int size() {
+		int size = 0;
+		for (Object value : values) {
+			if (value != null) {
+				size++;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Creates the machine data entity for this update.
+	 * @return Machine data containing all values set.
+	 */
+	public MachineData toMachineData() {
+		MachineData machineData = new MachineData(template.createMachine(serialNumber));
+		for (int field = 0; field < values.length; field++) {
+			Object value = values[field];
+			if (value == null) {
+				continue;
+			}
+			String name = template.getFieldName(field);
+			switch (template.getFieldType(field)) {
+			case BOOL:
+				machineData.put(name, (boolean) (Boolean) value);
+				break;
+			case LONG:
+				machineData.put(name, (long) (Long) value);
+				break;
+			case DOUBLE:
+				machineData.put(name, (double) (Double) value);
+				break;
+			default:
+				machineData.put(name, (String) value);
+			}
+		}
+		return machineData;
+	}
+}
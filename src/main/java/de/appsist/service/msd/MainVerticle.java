@@ -1,11 +1,22 @@
 package de.appsist.service.msd;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.UUID;
+
+import org.vertx.java.core.AsyncResult;
 import org.vertx.java.core.Handler;
 import org.vertx.java.core.buffer.Buffer;
 import org.vertx.java.core.eventbus.Message;
 import org.vertx.java.core.http.HttpServer;
 import org.vertx.java.core.http.HttpServerRequest;
+import org.vertx.java.core.http.HttpServerResponse;
 import org.vertx.java.core.http.RouteMatcher;
+import org.vertx.java.core.json.DecodeException;
+import org.vertx.java.core.json.JsonArray;
 import org.vertx.java.core.json.JsonObject;
 import org.vertx.java.core.logging.Logger;
 import org.vertx.java.core.logging.impl.LoggerFactory;
@@ -20,10 +31,14 @@ import de.appsist.commons.misc.StatusSignalSender;
  * @author simon.schwantzer(at)im-c.de
  */
 public class MainVerticle extends Verticle {
+	private static final String NODE_ID_FILE = "node-id";
+	
 	private Logger logger = LoggerFactory.getLogger(MainVerticle.class);
 	private JsonObject config;
 	private RouteMatcher routeMatcher;
 	private StateController stateController;
+	private MidSender midSender;
+	private SetMachineDataEventHandler setMachineDataEventHandler;
 	private JsonObject webserverConfig;
 	private JsonObject midConfig;
 	private boolean useForMIDGUI;
@@ -36,19 +51,60 @@ public class MainVerticle extends Verticle {
 			logger.error("Warning: No configuration applied! Aborting.");
 			System.exit(1);
 		}
+		int instances = config.getInteger("instances", 1);
+		if (instances < 1) {
+			instances = Runtime.getRuntime().availableProcessors();
+		}
+		if (instances > 1 && !config.containsField("instance")) {
+			deployInstances(instances);
+		}
+		int instance = config.getInteger("instance", 0);
 		
 		webserverConfig = config.getObject("webserver");
 		midConfig = config.getObject("mid");
 		useForMIDGUI = midConfig.getBoolean("useForMIDGUI", false);
 		
-		stateController = new StateController(vertx, midConfig.getInteger("port"), webserverConfig.getBoolean("secure"), midConfig.getString("basePath"),
-				config);
+		midSender = new MidSender(createMidTransport(), new SchemaRegistry());
+		// The optional stages of the send path are disabled unless configured, so that messages are sent as before by default.
+		long batchWindow = midConfig.getLong("batchWindow", 0L);
+		if (batchWindow > 0) {
+			midSender.enableBatching(vertx, batchWindow, midConfig.getInteger("maxBatchSize", 500));
+		}
+		int maxRetries = midConfig.getInteger("maxRetries", -1);
+		if (maxRetries >= 0) {
+			midSender.enableRetries(vertx, maxRetries, midConfig.getLong("retryDelay", 100L), midConfig.getLong("maxRetryDelay", 5000L),
+					midConfig.getInteger("failureThreshold", 5), midConfig.getLong("openDuration", 5000L));
+		}
+		int queueCapacity = midConfig.getInteger("queueCapacity", 0);
+		if (queueCapacity > 0) {
+			midSender.enableQueue(queueCapacity, midConfig.getInteger("maxInFlight", 32),
+					OutboundQueue.OverflowPolicy.fromString(midConfig.getString("overflowPolicy", "block")));
+		}
+		if (midConfig.getBoolean("deltaUpdates", false)) {
+			// Data messages of the MID driver have to contain all values of a machine, only binary data messages may omit values.
+			if ("restclient".equals(midConfig.getString("transport")) || !"binary".equals(midConfig.getString("dataFormat"))) {
+				throw new IllegalArgumentException("Delta updates require the binary data format of the http transport.");
+			}
+			midSender.enableDeltaUpdates(midConfig.getLong("keyframeInterval", 30000L));
+		}
+		JsonObject liveViewConfig = config.getObject("liveView", new JsonObject());
+		long liveViewInterval = liveViewConfig.getLong("interval", 0L);
+		// The live view is served with the HTTP API by the first instance only.
+		if (liveViewInterval > 0 && instance == 0) {
+			midSender.setLiveView(new LiveView(vertx, midSender.getMetrics(), liveViewInterval, liveViewConfig.getLong("metricsInterval", 1000L),
+					liveViewConfig.getInteger("maxClients", 50), liveViewConfig.getInteger("maxMachines", 1000)));
+		}
+		stateController = new StateController(vertx, config, midSender);
 		
 		initializeEventBusHandler();
-		initializeHTTPRouting();
-		HttpServer httpServer = vertx.createHttpServer();
-		httpServer.requestHandler(routeMatcher);
-		httpServer.listen(config.getObject("webserver").getInteger("port"));
+		// Only the first instance serves the HTTP API, so that replays, status, metrics and the live view are those of one
+		// instance. Actions, simulations and machine data of machines owned by other instances are forwarded to them.
+		if (instance == 0) {
+			initializeHTTPRouting();
+			HttpServer httpServer = vertx.createHttpServer();
+			httpServer.requestHandler(routeMatcher);
+			httpServer.listen(config.getObject("webserver").getInteger("port"));
+		}
 		
 		JsonObject statusSignalObject = config.getObject("statusSignal");
 		StatusSignalConfiguration statusSignalConfig;
@@ -58,9 +114,13 @@ public class MainVerticle extends Verticle {
 		  statusSignalConfig = new StatusSignalConfiguration();
 		}
 
-		StatusSignalSender statusSignalSender =
-		  new StatusSignalSender("msd", vertx, statusSignalConfig);
-		statusSignalSender.start();
+		// The service is only signalled once, not per instance.
+		if (instance == 0) {
+			StatusSignalSender statusSignalSender =
+			  new StatusSignalSender("msd", vertx, statusSignalConfig);
+			statusSignalSender.start();
+		}
+		startMetricsPublisher();
 
 		
 		logger.info("APPsist \"Machine State Simulation Service\" has been initialized.");
@@ -68,30 +128,149 @@ public class MainVerticle extends Verticle {
 		if (useForMIDGUI) {
 			logger.info("Use for GUI --> initializing RESTConnection");
 			stateController.initializeRESTConnection();
-			final SetMachineDataEventHandler setmachineDataEventHandler = new SetMachineDataEventHandler(vertx, midConfig.getInteger("port"), webserverConfig.getBoolean("secure"), midConfig.getString("basePath"));
-			setmachineDataEventHandler.initializeRESTConnection();
+			setMachineDataEventHandler.initializeRESTConnection();
 		}
 		
 	}
 	
 	@Override
 	public void stop() {
+		stateController.leaveCluster();
+		stateController.stopSimulations();
+		stateController.closePersistence();
+		// The transport is closed once the final batch has been sent. Vert.x closes the HTTP client of the verticle when it is
+		// undeployed, so with the HTTP transport, the batch only reaches the MID if its request completes before.
+		midSender.flush(new Handler<AsyncResult<Void>>() {
+			@Override
+			public void handle(AsyncResult<Void> result) {
+				midSender.getTransport().close();
+			}
+		});
 		logger.info("APPsist \"Machine State Simulation Service\" has been stopped.");
 	}
 	
+	/**
+	 * Deploys further instances of the service, each running on its own event loop, and configures this verticle as the first
+	 * instance. The instances form a cluster (see {@link ClusterMembership}) sharing the scenarios and the fleet, so that every
+	 * machine is sent by one instance only and the instances do not share any mutable state. Each instance simulates the whole
+	 * fleet, see {@link FleetSimulation}. Each instance uses its own connections to the MID and its own directory for the persisted
+	 * state. Only the first instance serves the HTTP API, requests for machines of other instances are forwarded to them.
+	 * @param instances Total number of instances.
+	 */
+	private void deployInstances(int instances) {
+		String nodeId = getNodeId();
+		for (int instance = 1; instance < instances; instance++) {
+			container.deployVerticle(MainVerticle.class.getName(), createInstanceConfig(nodeId, instance));
+		}
+		config = createInstanceConfig(nodeId, 0);
+		logger.info("Deployed " + instances + " instances of the service as nodes " + nodeId + "-<n>.");
+	}
+	
+	/**
+	 * Returns the prefix of the node IDs of the instances. It must differ between the processes forming a cluster, as a node
+	 * ignores the heartbeats carrying its own ID.
+	 * @return The node ID configured in "cluster.nodeId", else a random ID. With persistence, the random ID is stored in its
+	 * directory, so that each instance owns the same machines after a restart and restores their persisted state.
+	 */
+	private String getNodeId() {
+		String nodeId = config.getObject("cluster", new JsonObject()).getString("nodeId");
+		if (nodeId != null) {
+			return nodeId;
+		}
+		nodeId = UUID.randomUUID().toString();
+		JsonObject persistenceConfig = config.getObject("persistence");
+		if (persistenceConfig == null || persistenceConfig.getString("directory") == null) {
+			return nodeId;
+		}
+		Path nodeIdFile = Paths.get(persistenceConfig.getString("directory"), NODE_ID_FILE);
+		try {
+			if (Files.exists(nodeIdFile)) {
+				String persistedNodeId = new String(Files.readAllBytes(nodeIdFile), StandardCharsets.UTF_8).trim();
+				if (!persistedNodeId.isEmpty()) {
+					return persistedNodeId;
+				}
+			}
+			Files.createDirectories(nodeIdFile.getParent());
+			Files.write(nodeIdFile, nodeId.getBytes(StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			logger.error("Failed to persist node ID, instances will own other machines after a restart: " + e.getMessage());
+		}
+		return nodeId;
+	}
+	
+	private JsonObject createInstanceConfig(String nodeId, int instance) {
+		JsonObject instanceConfig = config.copy().putNumber("instance", instance);
+		JsonObject clusterConfig = config.getObject("cluster", new JsonObject()).copy();
+		clusterConfig.putString("nodeId", nodeId + "-" + instance);
+		instanceConfig.putObject("cluster", clusterConfig);
+		JsonObject persistenceConfig = config.getObject("persistence");
+		if (persistenceConfig != null && persistenceConfig.getString("directory") != null) {
+			instanceConfig.putObject("persistence", persistenceConfig.copy().putString("directory",
+					Paths.get(persistenceConfig.getString("directory"), "instance-" + instance).toString()));
+		}
+		return instanceConfig;
+	}
+	
+	/**
+	 * Creates the transport for messages to the MID as configured in "mid.transport".
+	 * @return Non-blocking HTTP transport by default, transport using the blocking REST client of the MID driver on a separate
+	 * thread if configured as "restclient".
+	 */
+	private MidTransport createMidTransport() {
+		switch (midConfig.getString("transport", "http")) {
+		case "restclient":
+			return new RestClientMidTransport(vertx, midConfig);
+		default:
+			return new HttpMidTransport(vertx, midConfig, webserverConfig.getBoolean("secure"));
+		}
+	}
+	
+	/**
+	 * Publishes the metrics on the event bus periodically, as configured in the "metrics" object.
+	 */
+	private void startMetricsPublisher() {
+		JsonObject metricsConfig = config.getObject("metrics", new JsonObject());
+		long publishInterval = metricsConfig.getLong("publishInterval", 10000L);
+		if (publishInterval <= 0) {
+			return;
+		}
+		final String address = metricsConfig.getString("address", "appsist:service:msd:metrics");
+		// Each instance publishes its own metrics, identified by its number.
+		final Integer instance = config.getInteger("instance");
+		vertx.setPeriodic(publishInterval, new Handler<Long>() {
+			@Override
+			public void handle(Long timerId) {
+				JsonObject metrics = midSender.getMetrics().asJson(false);
+				if (instance != null) {
+					metrics.putNumber("instance", instance);
+				}
+				vertx.eventBus().publish(address, metrics);
+			}
+		});
+	}
+	
 	/**
 	 * In this method the handlers for the event bus are initialized.
 	 */
 	private void initializeEventBusHandler() {
 		vertx.eventBus().registerHandler(ProcessCompleteEventHandler.ADDRESS, new ProcessCompleteEventHandler(config.getObject("processes"), stateController));	
-		final SetMachineDataEventHandler setmachineDataEventHandler = new SetMachineDataEventHandler(vertx, midConfig.getInteger("port"), webserverConfig.getBoolean("secure"), midConfig.getString("basePath"));
-		vertx.eventBus().registerHandler(SetMachineDataEventHandler.ADDRESS, setmachineDataEventHandler);
+		setMachineDataEventHandler = new SetMachineDataEventHandler(midSender);
+		if (stateController.getCluster() != null) {
+			setMachineDataEventHandler.setCluster(vertx, stateController.getCluster());
+		}
+		vertx.eventBus().registerHandler(SetMachineDataEventHandler.ADDRESS, setMachineDataEventHandler);
+		vertx.eventBus().registerHandler(SetMachineDataEventHandler.BULK_ADDRESS, new Handler<Message<JsonObject>>() {
+			@Override
+			public void handle(Message<JsonObject> message) {
+				setMachineDataEventHandler.handleBulk(message);
+			}
+		});
 		vertx.eventBus().registerHandler("appsist:event:" + StartupCompleteEvent.MODEL_ID, new Handler<Message<JsonObject>>() {
 			@Override
 			public void handle(Message<JsonObject> event) {
 				logger.info("Received StartupCompleteEvent --> initializing RESTConnection");
 				stateController.initializeRESTConnection();
-				setmachineDataEventHandler.initializeRESTConnection();
+				setMachineDataEventHandler.initializeRESTConnection();
 			}
 		});
 	}
@@ -141,6 +320,71 @@ public class MainVerticle extends Verticle {
 			}
 		});
 		
+		// Server-sent events with the machine states and metrics for the control UI.
+		routeMatcher.get("/live", new Handler<HttpServerRequest>() {
+			@Override
+			public void handle(HttpServerRequest request) {
+				if (midSender.getLiveView() == null) {
+					request.response().setStatusCode(404);
+					request.response().end("Live view is disabled.");
+					return;
+				}
+				midSender.getLiveView().addClient(request.response());
+			}
+		});
+		
+		// Data of multiple machines, forwarded to the MID as one batch. The response is sent when the MID acknowledged the data.
+		routeMatcher.post("/machineData", new Handler<HttpServerRequest>() {
+			@Override
+			public void handle(final HttpServerRequest request) {
+				request.bodyHandler(new Handler<Buffer>() {
+					
+					@Override
+					public void handle(Buffer buffer) {
+						final HttpServerResponse response = request.response();
+						response.headers().set("Content-Type", "application/json");
+						JsonArray machines;
+						try {
+							machines = SetMachineDataEventHandler.parseBulk(buffer.toString());
+						} catch (DecodeException e) {
+							response.setStatusCode(400);
+							response.end(new JsonObject().putString("message", "Invalid machine data: " + e.getMessage()).encode());
+							return;
+						}
+						setMachineDataEventHandler.handleBulk(machines, new Handler<AsyncResult<JsonObject>>() {
+							@Override
+							public void handle(AsyncResult<JsonObject> result) {
+								if (result.failed()) {
+									response.setStatusCode(502);
+									response.end(new JsonObject().putString("message", "Failed to send machine data to MID: " + result.cause().getMessage()).encode());
+									return;
+								}
+								if (result.result().getInteger("accepted") == 0 && result.result().getInteger("rejected") > 0) {
+									response.setStatusCode(400);
+								}
+								response.end(result.result().encode());
+							}
+						});
+					}
+				});
+			}
+		});
+		
+		// Metrics as JSON or, with "format=prometheus", in the text format of Prometheus. Counters per machine are included with "machines=true".
+		routeMatcher.get("/metrics", new Handler<HttpServerRequest>() {
+			@Override
+			public void handle(HttpServerRequest request) {
+				boolean includeMachines = Boolean.parseBoolean(request.params().get("machines"));
+				if ("prometheus".equals(request.params().get("format"))) {
+					request.response().headers().set("Content-Type", "text/plain; version=0.0.4");
+					request.response().end(midSender.getMetrics().asPrometheusText(includeMachines));
+				} else {
+					request.response().headers().set("Content-Type", "application/json");
+					request.response().end(midSender.getMetrics().asJson(includeMachines).encode());
+				}
+			}
+		});
+		
 		routeMatcher.getWithRegEx("/.+", new Handler<HttpServerRequest>() {
 			
 			@Override
@@ -0,0 +1,408 @@
+package de.appsist.service.msd;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.json.impl.Json;
+
+import de.appsist.service.middrv.rest.DataMessage;
+import de.appsist.service.middrv.rest.DataSchemaMismatchException;
+import de.appsist.service.middrv.rest.SchemaMessage;
+
+/**
+ * Encoder for the messages of the {@link HttpMidTransport}. Schema and data messages are the <code>SchemaMessage</code> and
+ * <code>DataMessage</code> of the MID driver, built as for its REST client (see {@link #createSchemaMessage(List)} and
+ * {@link #createDataMessage(List)}) and serialized to JSON with the data binding Vert.x encodes objects with, so that a MID
+ * receives the same messages from both transports. As the driver validates data against the full schema of the machine, JSON
+ * data messages have to contain all values of each machine.
+ * Data messages may be encoded in a compact binary format of the MSD instead, which is only understood by MIDs or stand-ins
+ * accepting it. It refers to the fields by their position in the schema registered at the MID rather than by name and may omit
+ * values. Numbers are unsigned LEB128 varints, strings are varints of their UTF-8 length followed by the UTF-8 bytes:
+ * <pre>
+ * message = version (1 byte, 2), number of entries, entry*
+ * entry   = machine type, serial number, number of values, (field position, value)*
+ * type    = index of a type defined earlier in the message, or the number of types defined so far followed by
+ *           vendor ID, machine ID, ontology URI (empty if none) and schema ID (4 bytes big-endian)
+ * value   = bool: 1 byte 0 or 1 | long: zigzag varint | double: 8 bytes IEEE 754 big-endian | string
+ * </pre>
+ * The schema ID of a type tells the receiver which schema the field positions refer to: Entries of machines whose registered
+ * schema has another ID have to be rejected, e.g. if the schema message of a changed template has not been processed yet.
+ * With the binary format, schema messages are sent in the layout of the MSD, which carries the schema ID, a 32 bit hash of the
+ * schema (see {@link #getSchemaId(MachineTemplate)}):
+ * <pre>
+ * { "schemas" : [ { "machine" : {...}, "schemaId" : ..., "stationId" : ..., "siteId" : ..., "fields" : [ { "name" : ..., "type" : ..., ... } ] } ] }
+ * </pre>
+ * Unpaired surrogates in strings of binary messages are written as U+FFFD.
+ * A codec instance is not thread-safe, as it reuses its encoding buffer.
+ */
+public class MidMessageCodec {
+	public static final String CONTENT_TYPE = "application/json; charset=UTF-8";
+	public static final String BINARY_CONTENT_TYPE = "application/x-appsist-machine-data";
+	public static final byte BINARY_VERSION = 2;
+
+	/**
+	 * Format of data messages.
+	 */
+	public enum DataFormat {
+		JSON, BINARY;
+
+		/**
+		 * Returns the format for its name in the configuration.
+		 * @param name "json" or "binary".
+		 * @return Format.
+		 * @throws IllegalArgumentException The name is unknown.
+		 */
+		public static DataFormat fromString(String name) throws IllegalArgumentException {
+			switch (name) {
+			case "json":
+				return JSON;
+			case "binary":
+				return BINARY;
+			default:
+				throw new IllegalArgumentException("Data format must be json or binary: " + name);
+			}
+		}
+	}
+
+	private static final char REPLACEMENT_CHARACTER = '\uFFFD';
+
+	private final DataFormat dataFormat;
+	private final Map<MachineTemplate, byte[]> binaryTypes = new WeakHashMap<>(); // Encoded type of each template in the binary format
+	private final Map<MachineTemplate, Integer> messageTypes = new IdentityHashMap<>(); // Types defined in the binary message being encoded
+	private byte[] bytes = new byte[4096];
+	private int length = 0;
+
+	/**
+	 * Creates a codec encoding data messages as JSON.
+	 */
+	public MidMessageCodec() {
+		this(DataFormat.JSON);
+	}
+
+	/**
+	 * Creates a codec.
+	 * @param dataFormat Format of data messages.
+	 */
+	public MidMessageCodec(DataFormat dataFormat) {
+		this.dataFormat = dataFormat;
+	}
+
+	public DataFormat getDataFormat() {
+		return dataFormat;
+	}
+
+	/**
+	 * Returns the content type of the data messages encoded by this codec.
+	 * @return Content type for the HTTP header.
+	 */
+	public String getDataContentType() {
+		return dataFormat == DataFormat.BINARY ? BINARY_CONTENT_TYPE : CONTENT_TYPE;
+	}
+
+	/**
+	 * Returns the ID of the schema created by a template: The hash code of its fingerprint (see
+	 * {@link MachineTemplate#getFingerprint()}). Templates creating equal schemas have equal IDs.
+	 * @param template Machine template.
+	 * @return Schema ID sent with the schema and with the types of binary data messages.
+	 */
+	public static int getSchemaId(MachineTemplate template) {
+		return template.getFingerprint().hashCode();
+	}
+
+	/**
+	 * Creates the schema message of the MID driver.
+	 * @param machines Machines to include the schema for.
+	 * @return Schema message.
+	 */
+	public static SchemaMessage createSchemaMessage(List<MachineUpdate> machines) {
+		SchemaMessage schemaMessage = new SchemaMessage();
+		for (MachineUpdate machine : machines) {
+			MachineTemplate template = machine.getTemplate();
+			schemaMessage.addSchema(template.createSchema(template.createMachine(machine.getSerialNumber())));
+		}
+		return schemaMessage;
+	}
+
+	/**
+	 * Creates the data message of the MID driver.
+	 * @param updates Machine updates to include.
+	 * @return Data message.
+	 * @throws DataSchemaMismatchException An update does not match the schema of its machine, e.g. because it lacks values.
+	 */
+	public static DataMessage createDataMessage(List<MachineUpdate> updates) throws DataSchemaMismatchException {
+		DataMessage dataMessage = new DataMessage();
+		for (MachineUpdate update : updates) {
+			MachineTemplate template = update.getTemplate();
+			dataMessage.addMachineData(update.toMachineData(), template.createSchema(template.createMachine(update.getSerialNumber())));
+		}
+		return dataMessage;
+	}
+
+	/**
+	 * Encodes a schema message: The schema message of the MID driver, or the one of the MSD if data messages are binary.
+	 * @param machines Machines to include the schema for.
+	 * @return Message body.
+	 */
+	public Buffer encodeSchemas(List<MachineUpdate> machines) {
+		if (dataFormat != DataFormat.BINARY) {
+			return new Buffer(Json.encode(createSchemaMessage(machines)));
+		}
+		JsonArray schemas = new JsonArray();
+		for (MachineUpdate machine : machines) {
+			MachineTemplate template = machine.getTemplate();
+			JsonObject schema = new JsonObject();
+			schema.putObject("machine", encodeMachine(machine));
+			schema.putNumber("schemaId", getSchemaId(template));
+			schema.putString("stationId", template.getStationId());
+			schema.putString("siteId", template.getSiteId());
+			if (template.getStationOntologyUri() != null) {
+				schema.putString("ontologyUri", template.getStationOntologyUri());
+			}
+			JsonArray fields = new JsonArray();
+			for (int field = 0; field < template.getFieldCount(); field++) {
+				JsonObject fieldJson = new JsonObject();
+				fieldJson.putString("name", template.getFieldName(field));
+				fieldJson.putString("type", template.getFieldType(field).name().toLowerCase());
+				fieldJson.putString("unit", template.getFieldUnit(field));
+				fieldJson.putString("visualizationType", template.getVisualizationType(field).name().toLowerCase());
+				fieldJson.putString("visualizationLevel", template.getVisualizationLevel(field).name().toLowerCase());
+				fields.addObject(fieldJson);
+			}
+			schema.putArray("fields", fields);
+			schemas.addObject(schema);
+		}
+		return new Buffer(new JsonObject().putArray("schemas", schemas).encode());
+	}
+
+	/**
+	 * Encodes a data message in the format of the codec. Binary messages are written directly into a reused buffer, with the static
+	 * parts of each machine type encoded once per template.
+	 * @param updates Machine updates to include.
+	 * @return Message body.
+	 * @throws IllegalArgumentException The message is JSON and an update does not match the schema of its machine.
+	 */
+	public Buffer encodeData(List<MachineUpdate> updates) throws IllegalArgumentException {
+		if (dataFormat == DataFormat.BINARY) {
+			return encodeBinaryData(updates);
+		}
+		try {
+			return new Buffer(Json.encode(createDataMessage(updates)));
+		} catch (DataSchemaMismatchException e) {
+			throw new IllegalArgumentException("Data does not match the schema of its machine: " + e.getMessage(), e);
+		}
+	}
+
+	private Buffer encodeBinaryData(List<MachineUpdate> updates) {
+		length = 0;
+		messageTypes.clear();
+		write(BINARY_VERSION);
+		writeVarint(updates.size());
+		for (MachineUpdate update : updates) {
+			MachineTemplate template = update.getTemplate();
+			Integer type = messageTypes.get(template);
+			if (type != null) {
+				writeVarint(type);
+			} else {
+				writeVarint(messageTypes.size());
+				messageTypes.put(template, messageTypes.size());
+				write(getBinaryType(template));
+			}
+			writeString(update.getSerialNumber());
+			writeVarint(update.size());
+			for (int field = 0; field < template.getFieldCount(); field++) {
+				Object value = update.get(field);
+				if (value == null) {
+					continue;
+				}
+				writeVarint(field);
+				switch (template.getFieldType(field)) {
+				case BOOL:
+					write((byte) ((Boolean) value ? 1 : 0));
+					break;
+				case LONG:
+					long longValue = (Long) value;
+					writeVarint(longValue << 1 ^ longValue >> 63);
+					break;
+				case DOUBLE:
+					long bits = Double.doubleToLongBits((Double) value);
+					ensureCapacity(8);
+					for (int shift = 56; shift >= 0; shift -= 8) {
+						bytes[length++] = (byte) (bits >>> shift);
+					}
+					break;
+				default:
+					writeString((String) value);
+				}
+			}
+		}
+		return new Buffer(Arrays.copyOf(bytes, length));
+	}
+
+	private byte[] getBinaryType(MachineTemplate template) {
+		byte[] binaryType = binaryTypes.get(template);
+		if (binaryType == null) {
+			binaryType = encodeBinaryType(template);
+			binaryTypes.put(template, binaryType);
+		}
+		return binaryType;
+	}
+
+	private void ensureCapacity(int additionalBytes) {
+		if (length + additionalBytes > bytes.length) {
+			bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + additionalBytes));
+		}
+	}
+
+	private void write(byte b) {
+		ensureCapacity(1);
+		bytes[length++] = b;
+	}
+
+	private void write(byte[] fragment) {
+		ensureCapacity(fragment.length);
+		System.arraycopy(fragment, 0, bytes, length, fragment.length);
+		length += fragment.length;
+	}
+
+	/**
+	 * Writes an unsigned LEB128 varint.
+	 */
+	private void writeVarint(long value) {
+		ensureCapacity(10);
+		while ((value & ~0x7FL) != 0) {
+			bytes[length++] = (byte) (value & 0x7F | 0x80);
+			value >>>= 7;
+		}
+		bytes[length++] = (byte) value;
+	}
+
+	/**
+	 * Writes a string of the binary format: The varint of its UTF-8 length and its UTF-8 bytes.
+	 */
+	private void writeString(String value) {
+		// One byte is reserved for the length, longer strings are moved once the length is known.
+		ensureCapacity(1);
+		int start = length++;
+		writeUtf8(value);
+		int stringLength = length - start - 1;
+		int prefixLength = varintLength(stringLength);
+		if (prefixLength > 1) {
+			ensureCapacity(prefixLength - 1);
+			System.arraycopy(bytes, start + 1, bytes, start + prefixLength, stringLength);
+			length += prefixLength - 1;
+		}
+		for (int i = start; i < start + prefixLength - 1; i++) {
+			bytes[i] = (byte) (stringLength & 0x7F | 0x80);
+			stringLength >>>= 7;
+		}
+		bytes[start + prefixLength - 1] = (byte) stringLength;
+	}
+
+	private static int varintLength(long value) {
+		int varintLength = 1;
+		while ((value & ~0x7FL) != 0) {
+			varintLength++;
+			value >>>= 7;
+		}
+		return varintLength;
+	}
+
+	/**
+	 * Writes a string encoded in UTF-8 without escaping.
+	 */
+	private void writeUtf8(String value) {
+		ensureCapacity(value.length() * 3);
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				bytes[length++] = (byte) c;
+			} else {
+				i = writeNonAscii(value, i);
+			}
+		}
+	}
+
+	/**
+	 * Writes a character outside of ASCII encoded in UTF-8, with a surrogate pair as one code point. Unpaired surrogates cannot be
+	 * encoded and are replaced by U+FFFD. The capacity for three bytes per character has to be ensured by the caller.
+	 * @param value String to write a character of.
+	 * @param i Position of the character.
+	 * @return Position of the last character written.
+	 */
+	private int writeNonAscii(String value, int i) {
+		char c = value.charAt(i);
+		if (c < 0x800) {
+			bytes[length++] = (byte) (0xC0 | c >> 6);
+			bytes[length++] = (byte) (0x80 | c & 0x3F);
+			return i;
+		}
+		if (Character.isSurrogate(c)) {
+			if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, value.charAt(++i));
+				bytes[length++] = (byte) (0xF0 | codePoint >> 18);
+				bytes[length++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+				bytes[length++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+				bytes[length++] = (byte) (0x80 | codePoint & 0x3F);
+				return i;
+			}
+			c = REPLACEMENT_CHARACTER;
+		}
+		bytes[length++] = (byte) (0xE0 | c >> 12);
+		bytes[length++] = (byte) (0x80 | c >> 6 & 0x3F);
+		bytes[length++] = (byte) (0x80 | c & 0x3F);
+		return i;
+	}
+
+	private static JsonObject encodeMachine(MachineUpdate machine) {
+		MachineTemplate template = machine.getTemplate();
+		JsonObject json = new JsonObject();
+		json.putString("vendorId", template.getVendorId());
+		json.putString("machineId", template.getMachineId());
+		json.putString("serialNumber", machine.getSerialNumber());
+		if (template.getOntologyUri() != null) {
+			json.putString("ontologyUri", template.getOntologyUri());
+		}
+		return json;
+	}
+
+	/**
+	 * Encodes the type of the machines of a template in the binary format: Vendor ID, machine ID, ontology URI and schema ID.
+	 */
+	private static byte[] encodeBinaryType(MachineTemplate template) {
+		byte[][] typeStrings = { utf8(template.getVendorId()), utf8(template.getMachineId()),
+				utf8(template.getOntologyUri() != null ? template.getOntologyUri() : "") };
+		int typeLength = 4;
+		for (byte[] typeString : typeStrings) {
+			typeLength += varintLength(typeString.length) + typeString.length;
+		}
+		byte[] binaryType = new byte[typeLength];
+		int position = 0;
+		for (byte[] typeString : typeStrings) {
+			for (int stringLength = typeString.length; ; stringLength >>>= 7) {
+				if ((stringLength & ~0x7F) == 0) {
+					binaryType[position++] = (byte) stringLength;
+					break;
+				}
+				binaryType[position++] = (byte) (stringLength & 0x7F | 0x80);
+			}
+			System.arraycopy(typeString, 0, binaryType, position, typeString.length);
+			position += typeString.length;
+		}
+		int schemaId = getSchemaId(template);
+		for (int shift = 24; shift >= 0; shift -= 8) {
+			binaryType[position++] = (byte) (schemaId >>> shift);
+		}
+		return binaryType;
+	}
+
+	private static byte[] utf8(String value) {
+		return value.getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,32 @@
+package de.appsist.service.msd;
+
+/**
+ * Exception for requests rejected by the MID.
+ */
+public class MidRequestException extends Exception {
+	private static final long serialVersionUID = 1L;
+
+	private final int statusCode;
+
+	/**
+	 * Creates the exception.
+	 * @param statusCode HTTP status code of the MID response.
+	 * @param message Message describing the failure.
+	 */
+	public MidRequestException(int statusCode, String message) {
+		super("MID responded with " + statusCode + ": " + message);
+		this.statusCode = statusCode;
+	}
+
+	public int getStatusCode() {
+		return statusCode;
+	}
+
+	/**
+	 * Checks if the request has been rejected because of its content, e.g. because the MID does not know the machine.
+	 * @return <code>true</code> for client errors, <code>false</code> for server errors.
+	 */
+	public boolean isClientError() {
+		return statusCode >= 400 && statusCode < 500;
+	}
+}
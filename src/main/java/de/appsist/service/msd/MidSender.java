@@ -0,0 +1,674 @@
+package de.appsist.service.msd;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.impl.DefaultFutureResult;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.core.logging.impl.LoggerFactory;
+
+/**
+ * Sender for messages to the MID. Schemas are only sent if they are not registered at the MID yet.
+ * Sending is asynchronous: Each send operation completes with a call of the given handler once the MID acknowledged all messages.
+ * If batching is enabled, updates are collected by an {@link UpdateBatcher} and sent as multi-machine data messages.
+ * If a queue is enabled, data messages wait in an {@link OutboundQueue} bounding the backlog if the MID is slower than the producers.
+ * If retries are enabled, failed requests are retried by a {@link RetryingMidTransport}. Updates sent before the sender has been
+ * connected or while the circuit to the MID is open are held, coalesced per machine, and sent once the MID is available.
+ * The sender copies the updates passed to it, so callers may reuse and modify their updates after sending them.
+ */
+public class MidSender {
+	private static final Logger logger = LoggerFactory.getLogger(MidSender.class);
+
+	private MidTransport transport;
+	private final SchemaRegistry schemaRegistry;
+	private final SimulatorMetrics metrics;
+	private boolean connected = false;
+	private boolean failing = false;
+	private UpdateBatcher batcher;
+	private OutboundQueue queue;
+	private RetryingMidTransport retryingTransport;
+	private Map<String, MachineUpdate> heldUpdates; // Latest update per machine sent before connecting, null if not held
+	private List<Handler<AsyncResult<Void>>> heldHandlers;
+	private final Map<String, List<Handler<AsyncResult<Void>>>> schemaHandlers; // Handlers waiting for a pending schema, by machine key
+	private DeltaTracker deltaTracker;
+	private SimulationClock clock;
+	private LiveView liveView;
+
+	/**
+	 * Creates the sender. Messages can be sent after the sender has been connected.
+	 * @param transport Transport to send messages with.
+	 * @param schemaRegistry Registry of the schemas already sent.
+	 */
+	public MidSender(MidTransport transport, SchemaRegistry schemaRegistry) {
+		this.transport = transport;
+		this.schemaHandlers = new HashMap<>();
+		this.schemaRegistry = schemaRegistry;
+		this.metrics = new SimulatorMetrics();
+		metrics.registerGauge("midInFlight", null, new SimulatorMetrics.Gauge() {
+			@Override
+			public double getValue() {
+				return MidSender.this.transport.getInFlight();
+			}
+		});
+		metrics.registerGauge("batchPending", null, new SimulatorMetrics.Gauge() {
+			@Override
+			public double getValue() {
+				return batcher != null ? batcher.getPending() : 0;
+			}
+		});
+		metrics.registerGauge("queueDepth", null, new SimulatorMetrics.Gauge() {
+			@Override
+			public double getValue() {
+				return queue != null ? queue.getQueued() : 0;
+			}
+		});
+	}
+
+	/**
+	 * Marks the MID as available. As the MID may have been restarted, all schema registrations are invalidated.
+	 */
+	public void connect() {
+		connected = true;
+		schemaRegistry.invalidateAll();
+		if (deltaTracker != null) {
+			deltaTracker.invalidateAll();
+		}
+		sendHeldUpdates();
+	}
+
+	/**
+	 * Sends the updates held while the sender was not connected or the circuit to the MID was open.
+	 */
+	private void sendHeldUpdates() {
+		if (heldUpdates != null && !heldUpdates.isEmpty() && !isHolding()) {
+			logger.info("Sending " + heldUpdates.size() + " updates held until the MID was available.");
+			List<MachineUpdate> updates = new ArrayList<>(heldUpdates.values());
+			heldUpdates.clear();
+			final List<Handler<AsyncResult<Void>>> handlers = heldHandlers;
+			heldHandlers = new ArrayList<>();
+			send(updates, new Handler<AsyncResult<Void>>() {
+				@Override
+				public void handle(AsyncResult<Void> result) {
+					for (Handler<AsyncResult<Void>> handler : handlers) {
+						handler.handle(result);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Enables delta updates. Only values changed since the last update of a machine handed to the transport are sent.
+	 * @param keyframeInterval Interval in milliseconds in which all values of a machine are sent.
+	 */
+	public void enableDeltaUpdates(long keyframeInterval) {
+		deltaTracker = new DeltaTracker(keyframeInterval);
+	}
+
+	/**
+	 * Returns the tracker for delta updates.
+	 * @return Tracker or <code>null</code> if delta updates are disabled.
+	 */
+	public DeltaTracker getDeltaTracker() {
+		return deltaTracker;
+	}
+
+	/**
+	 * Sets the clock the keyframes of delta updates are timed by, so that a simulation in virtual time sends the same messages in each run.
+	 * @param clock Clock of the simulation, <code>null</code> for the wall clock.
+	 */
+	public void setClock(SimulationClock clock) {
+		this.clock = clock;
+	}
+
+	/**
+	 * Sets the live view showing the updates submitted to the sender. Updates encoded in advance are not shown.
+	 * @param liveView Live view, <code>null</code> to disable it.
+	 */
+	public void setLiveView(LiveView liveView) {
+		this.liveView = liveView;
+	}
+
+	/**
+	 * Returns the live view showing the updates submitted to the sender.
+	 * @return Live view or <code>null</code> if disabled.
+	 */
+	public LiveView getLiveView() {
+		return liveView;
+	}
+
+	/**
+	 * Enables batching of updates. Updates sent within the window are merged into a single data message.
+	 * @param vertx Vert.x instance to set the window timer with.
+	 * @param window Coalescing window in milliseconds.
+	 * @param maxBatchSize Maximum number of machines in a data message.
+	 * @throws IllegalArgumentException The window or batch size is not positive.
+	 */
+	public void enableBatching(Vertx vertx, long window, int maxBatchSize) throws IllegalArgumentException {
+		batcher = new UpdateBatcher(vertx, window, maxBatchSize, new UpdateBatcher.FlushHandler() {
+			@Override
+			public void flush(List<MachineUpdate> updates, Handler<AsyncResult<Void>> doneHandler) {
+				sendBatch(updates, doneHandler);
+			}
+		});
+	}
+
+	/**
+	 * Returns the batcher collecting updates.
+	 * @return Batcher or <code>null</code> if batching is disabled.
+	 */
+	public UpdateBatcher getBatcher() {
+		return batcher;
+	}
+
+	/**
+	 * Enables the bounded queue for data messages.
+	 * @param capacity Maximum number of queued updates.
+	 * @param maxInFlight Maximum number of data messages handed to the transport and not acknowledged yet.
+	 * @param policy Policy applied when the queue is full.
+	 * @throws IllegalArgumentException The capacity or the number of messages in flight is not positive.
+	 */
+	public void enableQueue(int capacity, int maxInFlight, OutboundQueue.OverflowPolicy policy) throws IllegalArgumentException {
+		queue = new OutboundQueue(capacity, maxInFlight, policy, new OutboundQueue.Dispatcher() {
+			@Override
+			public void dispatch(List<MachineUpdate> updates, Buffer data, Handler<AsyncResult<Void>> doneHandler) {
+				MidSender.this.dispatch(updates, data, doneHandler);
+			}
+		}, metrics);
+	}
+
+	/**
+	 * Enables retries of failed requests with a circuit breaker for an unavailable MID (see {@link RetryingMidTransport}). Updates
+	 * sent before the sender has been connected or while the circuit is open are held instead of being rejected or queued, only
+	 * keeping the latest values of each machine.
+	 * @param vertx Vert.x instance to set the timers for retries and probes with.
+	 * @param maxRetries Maximum number of retries of a request.
+	 * @param retryDelay Delay before the first retry in milliseconds, doubled with each further retry.
+	 * @param maxRetryDelay Maximum delay before a retry in milliseconds.
+	 * @param failureThreshold Number of consecutive failures opening the circuit.
+	 * @param openDuration Time in milliseconds after which an open circuit probes the MID.
+	 * @throws IllegalArgumentException A parameter is out of range.
+	 */
+	public void enableRetries(Vertx vertx, int maxRetries, long retryDelay, long maxRetryDelay, int failureThreshold, long openDuration) throws IllegalArgumentException {
+		retryingTransport = RetryingMidTransport.create(vertx, transport, metrics, maxRetries, retryDelay, maxRetryDelay, failureThreshold, openDuration,
+				new Handler<Void>() {
+					@Override
+					public void handle(Void event) {
+						sendHeldUpdates();
+					}
+				});
+		transport = retryingTransport;
+		heldUpdates = new LinkedHashMap<>();
+		heldHandlers = new ArrayList<>();
+		metrics.registerGauge("circuitOpen", null, new SimulatorMetrics.Gauge() {
+			@Override
+			public double getValue() {
+				return retryingTransport.getState() != RetryingMidTransport.CircuitState.CLOSED ? 1 : 0;
+			}
+		});
+		metrics.registerGauge("heldUpdates", null, new SimulatorMetrics.Gauge() {
+			@Override
+			public double getValue() {
+				return heldUpdates.size();
+			}
+		});
+	}
+
+	/**
+	 * Returns the transport retrying failed requests.
+	 * @return Transport or <code>null</code> if retries are disabled.
+	 */
+	public RetryingMidTransport getRetryingTransport() {
+		return retryingTransport;
+	}
+
+	/**
+	 * Returns the queue for data messages.
+	 * @return Queue or <code>null</code> if the queue is disabled.
+	 */
+	public OutboundQueue getQueue() {
+		return queue;
+	}
+
+	/**
+	 * Sends all updates collected by the batcher immediately.
+	 */
+	public void flush() {
+		flush(null);
+	}
+
+	/**
+	 * Sends all updates collected by the batcher immediately.
+	 * @param doneHandler Handler called when the MID acknowledged the updates or sending them failed, immediately if no updates
+	 * are collected. May be <code>null</code>.
+	 */
+	public void flush(Handler<AsyncResult<Void>> doneHandler) {
+		if (batcher != null) {
+			batcher.flush(doneHandler);
+		} else if (doneHandler != null) {
+			doneHandler.handle(new DefaultFutureResult<Void>((Void) null));
+		}
+	}
+
+	public boolean isConnected() {
+		return connected;
+	}
+
+	private void checkConnected() throws IllegalStateException {
+		if (!connected) {
+			throw new IllegalStateException("RESTConnection was not initialized");
+		}
+	}
+
+	/**
+	 * Checks whether updates are held instead of being sent.
+	 * @return <code>true</code> if retries are enabled and the sender is not connected or the circuit to the MID is not closed.
+	 */
+	private boolean isHolding() {
+		return heldUpdates != null && (!connected || retryingTransport.getState() != RetryingMidTransport.CircuitState.CLOSED);
+	}
+
+	/**
+	 * Holds an update. Only the latest values of each machine are held.
+	 * @param update Update to hold.
+	 */
+	private void hold(MachineUpdate update) {
+		MachineUpdate heldUpdate = heldUpdates.get(update.getMachineKey());
+		if (heldUpdate != null && heldUpdate.getTemplate() == update.getTemplate()) {
+			heldUpdate.merge(update);
+		} else {
+			heldUpdates.put(update.getMachineKey(), update.copy());
+		}
+	}
+
+	/**
+	 * Holds updates if the sender is not connected or the circuit to the MID is open.
+	 * @param updates Updates to hold.
+	 * @param doneHandler Handler called when the held updates have been sent, may be <code>null</code>.
+	 * @return Whether the updates have been held.
+	 */
+	private boolean hold(List<MachineUpdate> updates, Handler<AsyncResult<Void>> doneHandler) {
+		if (!isHolding()) {
+			return false;
+		}
+		for (MachineUpdate update : updates) {
+			hold(update);
+		}
+		if (doneHandler != null) {
+			heldHandlers.add(doneHandler);
+		}
+		return true;
+	}
+
+	/**
+	 * Sends the update of a single machine. The schema of the machine is sent first if it is not registered yet.
+	 * @param update Update to send.
+	 * @param doneHandler Handler called when the MID acknowledged the update, may be <code>null</code>.
+	 * @throws IllegalStateException The sender is not connected and does not hold updates.
+	 */
+	public void send(MachineUpdate update, Handler<AsyncResult<Void>> doneHandler) throws IllegalStateException {
+		if (liveView != null) {
+			liveView.updateSubmitted(update);
+		}
+		if (hold(Collections.singletonList(update), doneHandler)) {
+			return;
+		}
+		checkConnected();
+		if (batcher != null) {
+			batcher.add(update, doneHandler);
+		} else {
+			sendBatch(Collections.singletonList(update.copy()), doneHandler);
+		}
+	}
+
+	/**
+	 * Sends the updates of multiple machines. Without batching, all updates are sent with a single data message.
+	 * @param updates Updates to send.
+	 * @param doneHandler Handler called when the MID acknowledged all updates, may be <code>null</code>.
+	 * @throws IllegalStateException The sender is not connected and does not hold updates.
+	 */
+	public void send(List<MachineUpdate> updates, Handler<AsyncResult<Void>> doneHandler) throws IllegalStateException {
+		if (liveView != null) {
+			for (MachineUpdate update : updates) {
+				liveView.updateSubmitted(update);
+			}
+		}
+		if (hold(updates, doneHandler)) {
+			return;
+		}
+		checkConnected();
+		if (batcher == null) {
+			List<MachineUpdate> batch = new ArrayList<>(updates.size());
+			for (MachineUpdate update : updates) {
+				batch.add(update.copy());
+			}
+			sendBatch(batch, doneHandler);
+			return;
+		}
+		Handler<AsyncResult<Void>> updateHandler = doneHandler != null ? new JoinHandler(updates.size(), doneHandler) : null;
+		for (MachineUpdate update : updates) {
+			batcher.add(update, updateHandler);
+		}
+	}
+
+	/**
+	 * Sends updates whose data message has been encoded in advance, e.g. by the shards of a fleet on other threads. The message is
+	 * sent as is: It is not batched with other updates, not reduced to the changed values and not tracked for later delta updates,
+	 * and its updates are not shown in the live view. Schemas of machines not registered yet are sent first.
+	 * @param updates Updates contained in the message, used for the schemas and metrics and held while the MID is unavailable.
+	 * Owned by the sender, they must not be modified afterwards.
+	 * @param data Data message encoded with a codec created by the transport (see {@link #getEncodedTransport()}).
+	 * @param doneHandler Handler called when the MID acknowledged the message, may be <code>null</code>.
+	 * @throws IllegalStateException The sender is not connected and does not hold updates, or its transport does not send encoded
+	 * messages.
+	 */
+	public void sendEncoded(List<MachineUpdate> updates, Buffer data, Handler<AsyncResult<Void>> doneHandler) throws IllegalStateException {
+		if (getEncodedTransport() == null) {
+			throw new IllegalStateException("Transport does not send encoded messages.");
+		}
+		if (hold(updates, doneHandler)) {
+			return;
+		}
+		checkConnected();
+		Set<String> pendingKeys = new HashSet<>();
+		List<MachineUpdate> missingSchemas = getMissingSchemas(updates, pendingKeys);
+		sendSchemasAndData(missingSchemas, pendingKeys, updates, data, doneHandler);
+	}
+
+	/**
+	 * Returns the updates of the machines whose schemas are neither registered at the MID nor pending.
+	 * @param batch Updates to check.
+	 * @param pendingKeys Set the keys of the machines whose schemas are pending are added to.
+	 * @return One update per machine missing a schema.
+	 */
+	private List<MachineUpdate> getMissingSchemas(List<MachineUpdate> batch, Set<String> pendingKeys) {
+		List<MachineUpdate> missingSchemas = new ArrayList<>();
+		Set<String> machineKeys = null;
+		for (MachineUpdate update : batch) {
+			Object fingerprint = update.getTemplate().getFingerprint();
+			if (schemaRegistry.needsSchema(update.getMachineKey(), fingerprint)) {
+				if (machineKeys == null) {
+					machineKeys = new HashSet<>();
+				}
+				if (machineKeys.add(update.getMachineKey())) {
+					missingSchemas.add(update);
+				}
+			} else if (schemaRegistry.isPending(update.getMachineKey(), fingerprint)) {
+				pendingKeys.add(update.getMachineKey());
+			}
+		}
+		return missingSchemas;
+	}
+
+	/**
+	 * Sends the updates of multiple machines with a single data message. Schemas of machines not registered yet are sent first
+	 * with a single schema message. If delta updates are enabled, unchanged values are removed from the updates.
+	 * @param batch Updates to send, owned by the sender.
+	 * @param doneHandler Handler called when the MID acknowledged all updates, may be <code>null</code>.
+	 */
+	private void sendBatch(List<MachineUpdate> batch, final Handler<AsyncResult<Void>> doneHandler) {
+		final Set<String> pendingKeys = new HashSet<>();
+		final List<MachineUpdate> missingSchemas = getMissingSchemas(batch, pendingKeys);
+		Set<String> machineKeys = null;
+		if (deltaTracker != null && !missingSchemas.isEmpty()) {
+			machineKeys = new HashSet<>();
+			for (MachineUpdate update : missingSchemas) {
+				machineKeys.add(update.getMachineKey());
+			}
+		}
+		final List<MachineUpdate> updates;
+		if (deltaTracker != null) {
+			updates = new ArrayList<>(batch.size());
+			long now = clock != null ? clock.currentTimeMillis() : System.currentTimeMillis();
+			for (MachineUpdate update : batch) {
+				boolean sendsSchema = machineKeys != null && machineKeys.contains(update.getMachineKey());
+				if (deltaTracker.prepare(update, sendsSchema, now)) {
+					updates.add(update);
+				}
+			}
+			if (updates.isEmpty()) {
+				// Nothing changed since the last acknowledged update.
+				if (doneHandler != null) {
+					doneHandler.handle(new DefaultFutureResult<Void>((Void) null));
+				}
+				return;
+			}
+		} else {
+			updates = batch;
+		}
+		sendSchemasAndData(missingSchemas, pendingKeys, updates, null, doneHandler);
+	}
+
+	/**
+	 * Sends a data message after the schemas it refers to have been acknowledged. Missing schemas are sent with a single schema
+	 * message and marked as pending, so that updates of the same machines dispatched before the acknowledgement do not send them
+	 * again but wait for the same message. The data is not sent if a schema failed.
+	 * @param missingSchemas One update per machine whose schema has to be sent.
+	 * @param pendingKeys Keys of the machines whose schemas have been sent with earlier messages but not acknowledged yet.
+	 * @param updates Updates to send.
+	 * @param data Message encoded in advance, <code>null</code> to let the transport encode the updates.
+	 * @param doneHandler Handler called when the MID acknowledged the message, may be <code>null</code>.
+	 */
+	private void sendSchemasAndData(List<MachineUpdate> missingSchemas, Set<String> pendingKeys, final List<MachineUpdate> updates, final Buffer data, final Handler<AsyncResult<Void>> doneHandler) {
+		for (MachineUpdate update : missingSchemas) {
+			pendingKeys.add(update.getMachineKey());
+		}
+		if (pendingKeys.isEmpty()) {
+			sendData(updates, data, doneHandler);
+			return;
+		}
+		Handler<AsyncResult<Void>> schemasHandler = new JoinHandler(pendingKeys.size(), new Handler<AsyncResult<Void>>() {
+			@Override
+			public void handle(AsyncResult<Void> result) {
+				if (result.failed()) {
+					// The failure has been logged with the schema message.
+					for (MachineUpdate update : updates) {
+						metrics.updateFailed(update);
+						if (deltaTracker != null && data == null) {
+							deltaTracker.failed(update);
+						}
+					}
+					if (doneHandler != null) {
+						doneHandler.handle(result);
+					}
+					return;
+				}
+				sendData(updates, data, doneHandler);
+			}
+		});
+		for (String machineKey : pendingKeys) {
+			List<Handler<AsyncResult<Void>>> handlers = schemaHandlers.get(machineKey);
+			if (handlers == null) {
+				handlers = new ArrayList<>();
+				schemaHandlers.put(machineKey, handlers);
+			}
+			handlers.add(schemasHandler);
+		}
+		if (!missingSchemas.isEmpty()) {
+			sendSchemas(missingSchemas);
+		}
+	}
+
+	/**
+	 * Sends a schema message and marks its schemas as pending until the MID acknowledged them. The handlers waiting for the
+	 * schemas are called with the result.
+	 * @param schemas One update per machine whose schema is sent.
+	 */
+	private void sendSchemas(final List<MachineUpdate> schemas) {
+		for (MachineUpdate update : schemas) {
+			schemaRegistry.markPending(update.getMachineKey(), update.getTemplate().getFingerprint());
+		}
+		final long schemaStartTime = System.nanoTime();
+		transport.sendSchemas(schemas, new Handler<AsyncResult<Void>>() {
+			@Override
+			public void handle(AsyncResult<Void> result) {
+				metrics.recordSchemaRoundTrip((System.nanoTime() - schemaStartTime) / 1000L);
+				if (result.failed()) {
+					logFailure("Failed to send schemas: ", result.cause());
+				}
+				for (MachineUpdate update : schemas) {
+					if (result.succeeded()) {
+						schemaRegistry.markSent(update.getMachineKey(), update.getTemplate().getFingerprint());
+					} else {
+						schemaRegistry.clearPending(update.getMachineKey(), update.getTemplate().getFingerprint());
+					}
+				}
+				for (MachineUpdate update : schemas) {
+					List<Handler<AsyncResult<Void>>> handlers = schemaHandlers.remove(update.getMachineKey());
+					if (handlers != null) {
+						for (Handler<AsyncResult<Void>> handler : handlers) {
+							handler.handle(result);
+						}
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Sends a data message and updates the metrics and the delta tracker when it has been acknowledged or failed.
+	 * @param updates Updates to send.
+	 * @param data Message encoded in advance, <code>null</code> to let the transport encode the updates.
+	 * @param doneHandler Handler called when the MID acknowledged the message, may be <code>null</code>.
+	 */
+	private void sendData(final List<MachineUpdate> updates, Buffer data, final Handler<AsyncResult<Void>> doneHandler) {
+		// Messages encoded in advance are not reduced to deltas, so they are not tracked for delta updates.
+		final boolean trackValues = deltaTracker != null && data == null;
+		Handler<AsyncResult<Void>> resultHandler = new Handler<AsyncResult<Void>>() {
+			@Override
+			public void handle(AsyncResult<Void> result) {
+				if (result.failed()) {
+					if (trackValues) {
+						// The MID may lack the values of the updates, so the next update of each machine is sent as keyframe.
+						for (MachineUpdate update : updates) {
+							deltaTracker.failed(update);
+						}
+					}
+					// Updates dropped from the queue are counted by the queue and not logged.
+					if (!(result.cause() instanceof QueueOverflowException)) {
+						logFailure("Failed to send data: ", result.cause());
+						for (MachineUpdate update : updates) {
+							metrics.updateFailed(update);
+						}
+						if (result.cause() instanceof MidRequestException && ((MidRequestException) result.cause()).isClientError()) {
+							// The MID may not know the machines (anymore), so their schemas are sent again with the next update.
+							for (MachineUpdate update : updates) {
+								schemaRegistry.invalidate(update.getMachineKey());
+								if (deltaTracker != null) {
+									deltaTracker.invalidate(update.getMachineKey());
+								}
+							}
+						}
+					}
+				} else {
+					if (failing) {
+						logger.info("Sending to MID succeeded again.");
+						failing = false;
+					}
+					for (MachineUpdate update : updates) {
+						metrics.updateSent(update);
+					}
+				}
+				if (doneHandler != null) {
+					doneHandler.handle(result);
+				}
+			}
+		};
+		if (queue != null) {
+			queue.offer(updates, data, resultHandler);
+		} else {
+			dispatch(updates, data, resultHandler);
+		}
+	}
+
+	/**
+	 * Hands a data message to the transport and records its round-trip time.
+	 */
+	private void dispatch(List<MachineUpdate> updates, Buffer data, final Handler<AsyncResult<Void>> doneHandler) {
+		final long startTime = System.nanoTime();
+		Handler<AsyncResult<Void>> roundTripHandler = new Handler<AsyncResult<Void>>() {
+			@Override
+			public void handle(AsyncResult<Void> result) {
+				metrics.recordDataRoundTrip((System.nanoTime() - startTime) / 1000L);
+				doneHandler.handle(result);
+			}
+		};
+		if (data != null) {
+			((EncodedMidTransport) transport).sendEncodedData(updates, data, roundTripHandler);
+		} else {
+			transport.sendData(updates, roundTripHandler);
+		}
+	}
+
+	/**
+	 * Logs a failure. Only the first failure after a successful request is logged as warning, so that an unavailable MID does not
+	 * flood the log.
+	 */
+	private void logFailure(String message, Throwable cause) {
+		if (failing) {
+			logger.debug(message + cause.getMessage());
+		} else {
+			logger.warn(message + cause.getMessage());
+			failing = true;
+		}
+	}
+
+	public SimulatorMetrics getMetrics() {
+		return metrics;
+	}
+
+	public SchemaRegistry getSchemaRegistry() {
+		return schemaRegistry;
+	}
+
+	public MidTransport getTransport() {
+		return transport;
+	}
+
+	/**
+	 * Returns the transport if it sends data messages encoded in advance.
+	 * @return Transport or <code>null</code> if messages cannot be encoded in advance.
+	 */
+	public EncodedMidTransport getEncodedTransport() {
+		return transport instanceof EncodedMidTransport ? (EncodedMidTransport) transport : null;
+	}
+
+	/**
+	 * Handler completing a handler after it has been called a given number of times, or on the first failure.
+	 */
+	static class JoinHandler implements Handler<AsyncResult<Void>> {
+		private final Handler<AsyncResult<Void>> doneHandler;
+		private int remaining;
+
+		JoinHandler(int count, Handler<AsyncResult<Void>> doneHandler) {
+			this.remaining = count;
+			this.doneHandler = doneHandler;
+			if (count == 0) {
+				doneHandler.handle(new DefaultFutureResult<Void>((Void) null));
+			}
+		}
+
+		@Override
+		public void handle(AsyncResult<Void> result) {
+			if (remaining <= 0) {
+				return;
+			}
+			if (result.failed()) {
+				remaining = 0;
+				doneHandler.handle(result);
+			} else if (--remaining == 0) {
+				doneHandler.handle(result);
+			}
+		}
+	}
+}
@@ -0,0 +1,38 @@
+package de.appsist.service.msd;
+
+import java.util.List;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+
+/**
+ * Transport for messages to the MID. Implementations send asynchronously and never block the calling thread.
+ * Completion handlers are called on the context of the caller. Transports sending data messages encoded in advance implement
+ * {@link EncodedMidTransport}.
+ */
+public interface MidTransport {
+	/**
+	 * Sends the schemas of the given machines with a single message.
+	 * @param machines Machines to send the schema for. Only the template and serial number of the updates are used.
+	 * @param doneHandler Handler called when the MID acknowledged the message or the request failed.
+	 */
+	public void sendSchemas(List<MachineUpdate> machines, Handler<AsyncResult<Void>> doneHandler);
+
+	/**
+	 * Sends the values of the given machine updates with a single message.
+	 * @param updates Updates to send.
+	 * @param doneHandler Handler called when the MID acknowledged the message or the request failed.
+	 */
+	public void sendData(List<MachineUpdate> updates, Handler<AsyncResult<Void>> doneHandler);
+
+	/**
+	 * Returns the number of requests currently sent but not yet acknowledged.
+	 * @return Number of requests in flight.
+	 */
+	public int getInFlight();
+
+	/**
+	 * Closes the transport and releases all connections.
+	 */
+	public void close();
+}
@@ -0,0 +1,329 @@
+package de.appsist.service.msd;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.impl.DefaultFutureResult;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Bounded queue for the data messages to the MID. At most the configured number of messages is handed to the transport at a time,
+ * further messages wait in the queue. If the MID is slower than the simulations, the queue fills up to its capacity, counted in
+ * updates, and then applies its overflow policy:
+ * <ul>
+ * <li>{@link OverflowPolicy#BLOCK}: Producers able to wait, such as the load generators of the simulations, pause until the queue
+ * has room again (see {@link #isBlocking()}). Messages not fitting into the remaining room are rejected, also those of producers
+ * which paused before; a single message larger than the capacity is only admitted into an empty queue.</li>
+ * <li>{@link OverflowPolicy#DROP_OLDEST}: The oldest queued messages are dropped to make room for the new one.</li>
+ * <li>{@link OverflowPolicy#COALESCE}: Updates of machines already queued are merged into the queued update, so that only the
+ * latest value of each field is sent. If the queue is still full, the oldest messages are dropped.</li>
+ * </ul>
+ * Handlers of rejected and dropped messages are failed with a {@link QueueOverflowException}. All methods have to be called from
+ * the event loop of the verticle.
+ */
+public class OutboundQueue {
+	/**
+	 * Policy applied when the queue is full.
+	 */
+	public enum OverflowPolicy {
+		BLOCK, DROP_OLDEST, COALESCE;
+
+		/**
+		 * Returns the policy for its name in the configuration.
+		 * @param name "block", "dropOldest" or "coalesce".
+		 * @return Policy.
+		 * @throws IllegalArgumentException The name is unknown.
+		 */
+		public static OverflowPolicy fromString(String name) throws IllegalArgumentException {
+			switch (name) {
+			case "block":
+				return BLOCK;
+			case "dropOldest":
+				return DROP_OLDEST;
+			case "coalesce":
+				return COALESCE;
+			default:
+				throw new IllegalArgumentException("Overflow policy must be block, dropOldest or coalesce: " + name);
+			}
+		}
+	}
+
+	/**
+	 * Receiver of the messages leaving the queue.
+	 */
+	public interface Dispatcher {
+		/**
+		 * Sends a data message.
+		 * @param updates Updates of the message.
+		 * @param data Message encoded in advance, <code>null</code> to let the transport encode the updates.
+		 * @param doneHandler Handler to call when the MID acknowledged the message.
+		 */
+		public void dispatch(List<MachineUpdate> updates, Buffer data, Handler<AsyncResult<Void>> doneHandler);
+	}
+
+	private final int capacity;
+	private final int maxInFlight;
+	private final OverflowPolicy policy;
+	private final Dispatcher dispatcher;
+	private final SimulatorMetrics metrics;
+	private final Deque<QueuedMessage> messages;
+	private final Map<String, QueuedUpdate> queuedMachines; // Machine key -> queued update, only maintained for coalescing
+	private int queuedUpdates = 0;
+	private int inFlight = 0;
+	private int maxDepth = 0;
+	private long updatesCoalesced = 0;
+	private long updatesDropped = 0;
+	private long updatesRejected = 0;
+
+	/**
+	 * Creates a queue.
+	 * @param capacity Maximum number of queued updates.
+	 * @param maxInFlight Maximum number of messages handed to the transport and not acknowledged yet.
+	 * @param policy Policy applied when the queue is full.
+	 * @param dispatcher Dispatcher to send the messages with.
+	 * @param metrics Metrics to count dropped and rejected updates in.
+	 * @throws IllegalArgumentException The capacity or the number of messages in flight is not positive.
+	 */
+	public OutboundQueue(int capacity, int maxInFlight, OverflowPolicy policy, Dispatcher dispatcher, SimulatorMetrics metrics) throws IllegalArgumentException {
+		if (capacity < 1 || maxInFlight < 1) {
+			throw new IllegalArgumentException("Queue capacity and maximum number of messages in flight must be positive.");
+		}
+		this.capacity = capacity;
+		this.maxInFlight = maxInFlight;
+		this.policy = policy;
+		this.dispatcher = dispatcher;
+		this.metrics = metrics;
+		this.messages = new ArrayDeque<>();
+		this.queuedMachines = policy == OverflowPolicy.COALESCE ? new HashMap<String, QueuedUpdate>() : null;
+	}
+
+	/**
+	 * Adds a data message to the queue. The message is dispatched immediately if the queue is empty and the maximum number of
+	 * messages in flight has not been reached.
+	 * @param updates Updates of the message, owned by the queue until the message has been dispatched.
+	 * @param data Message encoded in advance, <code>null</code> to let the transport encode the updates. Encoded messages are not
+	 * coalesced.
+	 * @param doneHandler Handler called when the MID acknowledged the message or the message has been dropped.
+	 */
+	public void offer(List<MachineUpdate> updates, Buffer data, Handler<AsyncResult<Void>> doneHandler) {
+		if (messages.isEmpty() && inFlight < maxInFlight) {
+			dispatch(new QueuedMessage(updates, data, doneHandler));
+			return;
+		}
+		if (queuedMachines != null && data == null) {
+			coalesce(updates, doneHandler);
+		} else if (policy == OverflowPolicy.BLOCK && !messages.isEmpty() && queuedUpdates + updates.size() > capacity) {
+			updatesRejected += updates.size();
+			fail(updates, doneHandler, "Outbound queue to the MID is full, update rejected.");
+		} else {
+			enqueue(updates, data, doneHandler);
+		}
+	}
+
+	/**
+	 * Merges the updates of machines already queued into the queued updates and adds the remaining updates to the queue.
+	 * @param updates Updates to add to the queue.
+	 * @param doneHandler Handler of the updates.
+	 */
+	private void coalesce(List<MachineUpdate> updates, Handler<AsyncResult<Void>> doneHandler) {
+		List<MachineUpdate> remainder = null;
+		List<QueuedMessage> targets = null;
+		for (int i = 0; i < updates.size(); i++) {
+			MachineUpdate update = updates.get(i);
+			QueuedUpdate queued = queuedMachines.get(update.getMachineKey());
+			if (queued != null && queued.update.getTemplate() == update.getTemplate()) {
+				queued.update.merge(update);
+				updatesCoalesced++;
+				if (remainder == null) {
+					remainder = new ArrayList<>(updates.subList(0, i));
+					targets = new ArrayList<>();
+				}
+				if (!targets.contains(queued.message)) {
+					targets.add(queued.message);
+				}
+			} else if (remainder != null) {
+				remainder.add(update);
+			}
+		}
+		if (remainder == null) {
+			enqueue(updates, null, doneHandler);
+			return;
+		}
+		if (doneHandler != null) {
+			// The handler completes when all messages the updates have been merged into and the remainder have been acknowledged.
+			int parts = targets.size() + (remainder.isEmpty() ? 0 : 1);
+			doneHandler = parts > 1 ? new MidSender.JoinHandler(parts, doneHandler) : doneHandler;
+			for (QueuedMessage target : targets) {
+				target.addHandler(doneHandler);
+			}
+		}
+		if (!remainder.isEmpty()) {
+			enqueue(remainder, null, doneHandler);
+		}
+	}
+
+	/**
+	 * Adds a message to the queue. Unless the policy is {@link OverflowPolicy#BLOCK}, the oldest messages are dropped if the queue
+	 * is full afterwards.
+	 */
+	private void enqueue(List<MachineUpdate> updates, Buffer data, Handler<AsyncResult<Void>> doneHandler) {
+		QueuedMessage message = new QueuedMessage(updates, data, doneHandler);
+		messages.add(message);
+		queuedUpdates += updates.size();
+		if (queuedMachines != null && data == null) {
+			for (MachineUpdate update : updates) {
+				queuedMachines.put(update.getMachineKey(), new QueuedUpdate(message, update));
+			}
+		}
+		while (policy != OverflowPolicy.BLOCK && queuedUpdates > capacity && messages.size() > 1) {
+			QueuedMessage oldest = messages.poll();
+			remove(oldest);
+			updatesDropped += oldest.updates.size();
+			fail(oldest.updates, oldest, "Update dropped from the full outbound queue to the MID.");
+		}
+		maxDepth = Math.max(maxDepth, queuedUpdates);
+	}
+
+	private void drain() {
+		while (inFlight < maxInFlight && !messages.isEmpty()) {
+			QueuedMessage message = messages.poll();
+			remove(message);
+			dispatch(message);
+		}
+	}
+
+	/**
+	 * Removes the updates of a message taken from the queue from the index of queued machines.
+	 */
+	private void remove(QueuedMessage message) {
+		queuedUpdates -= message.updates.size();
+		if (queuedMachines != null && message.data == null) {
+			for (MachineUpdate update : message.updates) {
+				QueuedUpdate queued = queuedMachines.get(update.getMachineKey());
+				if (queued != null && queued.message == message) {
+					queuedMachines.remove(update.getMachineKey());
+				}
+			}
+		}
+	}
+
+	private void dispatch(final QueuedMessage message) {
+		inFlight++;
+		dispatcher.dispatch(message.updates, message.data, new Handler<AsyncResult<Void>>() {
+			@Override
+			public void handle(AsyncResult<Void> result) {
+				inFlight--;
+				message.handle(result);
+				drain();
+			}
+		});
+	}
+
+	private void fail(List<MachineUpdate> updates, Handler<AsyncResult<Void>> doneHandler, String reason) {
+		for (MachineUpdate update : updates) {
+			metrics.updateDropped(update);
+		}
+		if (doneHandler != null) {
+			doneHandler.handle(new DefaultFutureResult<Void>(new QueueOverflowException(reason)));
+		}
+	}
+
+	/**
+	 * Checks whether producers able to wait should pause. This is only the case if the queue is full and its policy is
+	 * {@link OverflowPolicy#BLOCK}.
+	 * @return <code>true</code> if producers should not send further updates for now.
+	 */
+	public boolean isBlocking() {
+		return policy == OverflowPolicy.BLOCK && queuedUpdates >= capacity;
+	}
+
+	/**
+	 * Returns the policy applied when the queue is full.
+	 * @return Overflow policy.
+	 */
+	public OverflowPolicy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Returns the number of updates waiting in the queue.
+	 * @return Number of queued updates.
+	 */
+	public int getQueued() {
+		return queuedUpdates;
+	}
+
+	/**
+	 * Returns a JSON representation of the queue statistics.
+	 * @return JSON object.
+	 */
+	public JsonObject asJson() {
+		JsonObject json = new JsonObject();
+		json.putString("policy", policy.name());
+		json.putNumber("capacity", capacity);
+		json.putNumber("maxInFlight", maxInFlight);
+		json.putNumber("queuedUpdates", queuedUpdates);
+		json.putNumber("queuedMessages", messages.size());
+		json.putNumber("inFlight", inFlight);
+		json.putNumber("maxDepth", maxDepth);
+		json.putNumber("updatesCoalesced", updatesCoalesced);
+		json.putNumber("updatesDropped", updatesDropped);
+		json.putNumber("updatesRejected", updatesRejected);
+		return json;
+	}
+
+	/**
+	 * Data message waiting in the queue or in flight, completing all handlers of the updates it contains.
+	 */
+	private static class QueuedMessage implements Handler<AsyncResult<Void>> {
+		private final List<MachineUpdate> updates;
+		private final Buffer data;
+		private final Handler<AsyncResult<Void>> doneHandler;
+		private List<Handler<AsyncResult<Void>>> coalescedHandlers; // Handlers of updates merged into this message
+
+		private QueuedMessage(List<MachineUpdate> updates, Buffer data, Handler<AsyncResult<Void>> doneHandler) {
+			this.updates = updates;
+			this.data = data;
+			this.doneHandler = doneHandler;
+		}
+
+		private void addHandler(Handler<AsyncResult<Void>> handler) {
+			if (coalescedHandlers == null) {
+				coalescedHandlers = new ArrayList<>();
+			}
+			coalescedHandlers.add(handler);
+		}
+
+		@Override
+		public void handle(AsyncResult<Void> result) {
+			if (doneHandler != null) {
+				doneHandler.handle(result);
+			}
+			if (coalescedHandlers != null) {
+				for (Handler<AsyncResult<Void>> handler : coalescedHandlers) {
+					handler.handle(result);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Queued update of a machine, which later updates of the machine are merged into.
+	 */
+	private static class QueuedUpdate {
+		private final QueuedMessage message;
+		private final MachineUpdate update;
+
+		private QueuedUpdate(QueuedMessage message, MachineUpdate update) {
+			this.message = message;
+			this.update = update;
+		}
+	}
+}
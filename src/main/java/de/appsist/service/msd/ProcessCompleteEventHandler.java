@@ -1,5 +1,8 @@
 package de.appsist.service.msd;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import org.vertx.java.core.Handler;
 import org.vertx.java.core.eventbus.Message;
 import org.vertx.java.core.json.JsonObject;
@@ -10,7 +13,7 @@ import de.appsist.commons.event.ProcessCompleteEvent;
 import de.appsist.commons.util.EventUtil;
 
 /**
- * Handler for process completion messages.
+ * Handler for process completion messages. Each configured process performs a scenario action when it has been completed.
  * @author simon.schwantzer(at)im-c.de
  */
 public class ProcessCompleteEventHandler implements Handler<Message<JsonObject>> {
@@ -18,26 +21,42 @@ public class ProcessCompleteEventHandler implements Handler<Message<JsonObject>>
 	
 	public static String ADDRESS = "appsist:event:" + ProcessCompleteEvent.MODEL_ID;
 	
+	// Actions of the processes configured before actions could be configured
+	private static final Map<String, String> DEFAULT_ACTIONS = new HashMap<>();
+	static {
+		DEFAULT_ACTIONS.put("loctite-wechseln", "fillLoctite");
+		DEFAULT_ACTIONS.put("fett-wechseln", "fillFat");
+	}
+	
 	private StateController stateController;
 	
-	private final String loctiteProcessId;
-	private final String fatProcessId;
+	private final Map<String, String> actions; // Process ID -> scenario action
 	
 	public ProcessCompleteEventHandler(JsonObject processConfig, StateController stateController) {
 		this.stateController = stateController;
-		loctiteProcessId = processConfig.getObject("loctite-wechseln").getString("processId");
-		fatProcessId = processConfig.getObject("fett-wechseln").getString("processId");
+		actions = new HashMap<>();
+		for (String name : processConfig.getFieldNames()) {
+			JsonObject process = processConfig.getObject(name);
+			String action = process.getString("action", DEFAULT_ACTIONS.get(name));
+			if (action == null) {
+				logger.warn("No action configured for process " + name + ".");
+				continue;
+			}
+			actions.put(process.getString("processId"), action);
+		}
 	}
 	
 	@Override
 	public void handle(Message<JsonObject> message) {
 		ProcessCompleteEvent event = EventUtil.parseEvent(message.body().toMap(), ProcessCompleteEvent.class);
-		if (event.getProcessId().equals(loctiteProcessId)) {
-			stateController.festoPilotSetLoctite(true);
-			logger.info("The loctite process has been completed.");
-		} else if (event.getProcessId().equals(fatProcessId)) {
-			stateController.festoPilotSetFat(true);
-			logger.info("The fat process has been completed.");
+		String action = actions.get(event.getProcessId());
+		if (action == null) {
+			return;
+		}
+		if (stateController.performScenarioAction(action, null)) {
+			logger.info("Process " + event.getProcessId() + " has been completed, performed action " + action + ".");
+		} else {
+			logger.warn("Process " + event.getProcessId() + " has been completed, but no scenario defines action " + action + ".");
 		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,16 @@
+package de.appsist.service.msd;
+
+/**
+ * Exception for updates not sent because the outbound queue to the MID was full.
+ */
+public class QueueOverflowException extends Exception {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Creates the exception.
+	 * @param message Message describing why the update has not been sent.
+	 */
+	public QueueOverflowException(String message) {
+		super(message);
+	}
+}
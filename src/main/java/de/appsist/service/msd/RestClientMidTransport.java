@@ -0,0 +1,132 @@
+package de.appsist.service.msd;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Context;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.impl.DefaultFutureResult;
+import org.vertx.java.core.json.JsonObject;
+
+import de.appsist.service.middrv.rest.ContentType;
+import de.appsist.service.middrv.rest.DataMessage;
+import de.appsist.service.middrv.rest.DataSchemaMismatchException;
+import de.appsist.service.middrv.rest.SchemaMessage;
+import de.appsist.service.middrv.rest.client.RestClient;
+
+/**
+ * Transport sending messages with the blocking REST client of the MID driver.
+ * Messages are sent one after another by a dedicated thread, so the event loop is never blocked. The {@link HttpMidTransport}
+ * sends the same messages without the thread and with concurrent requests; use this transport only if the MID does not accept
+ * them from the HTTP transport, e.g. because the paths differ.
+ */
+public class RestClientMidTransport implements MidTransport {
+	private final Vertx vertx;
+	private final String host;
+	private final int port;
+	private final String basePath;
+	private final ExecutorService executor;
+	private final AtomicInteger inFlight;
+	private RestClient client; // Only accessed by the executor thread.
+
+	/**
+	 * Creates the transport.
+	 * @param vertx Vert.x instance to dispatch completion handlers with.
+	 * @param midConfig Configuration of the MID connection ("mid" object of the service configuration).
+	 */
+	public RestClientMidTransport(Vertx vertx, JsonObject midConfig) {
+		this.vertx = vertx;
+		this.host = midConfig.getString("host", "localhost");
+		this.port = midConfig.getInteger("port");
+		this.basePath = midConfig.getString("basePath");
+		this.executor = Executors.newSingleThreadExecutor();
+		this.inFlight = new AtomicInteger();
+	}
+
+	@Override
+	public void sendSchemas(List<MachineUpdate> machines, Handler<AsyncResult<Void>> doneHandler) {
+		final SchemaMessage schemaMessage = MidMessageCodec.createSchemaMessage(machines);
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				client.send(ContentType.JSON, schemaMessage);
+			}
+		}, doneHandler);
+	}
+
+	@Override
+	public void sendData(List<MachineUpdate> updates, Handler<AsyncResult<Void>> doneHandler) {
+		final DataMessage dataMessage;
+		try {
+			dataMessage = MidMessageCodec.createDataMessage(updates);
+		} catch (DataSchemaMismatchException e) {
+			complete(vertx.currentContext(), doneHandler, e);
+			return;
+		}
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				client.send(ContentType.JSON, dataMessage);
+			}
+		}, doneHandler);
+	}
+
+	private void execute(final Runnable send, final Handler<AsyncResult<Void>> doneHandler) {
+		final Context context = vertx.currentContext();
+		inFlight.incrementAndGet();
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					Throwable failure = null;
+					try {
+						if (client == null) {
+							client = new RestClient(host, port, basePath);
+						}
+						send.run();
+					} catch (RuntimeException e) {
+						failure = e;
+					}
+					inFlight.decrementAndGet();
+					complete(context, doneHandler, failure);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			inFlight.decrementAndGet();
+			complete(context, doneHandler, e);
+		}
+	}
+
+	private static void complete(Context context, final Handler<AsyncResult<Void>> doneHandler, final Throwable failure) {
+		if (doneHandler == null) {
+			return;
+		}
+		context.runOnContext(new Handler<Void>() {
+			@Override
+			public void handle(Void event) {
+				DefaultFutureResult<Void> result = new DefaultFutureResult<>();
+				if (failure != null) {
+					result.setFailure(failure);
+				} else {
+					result.setResult(null);
+				}
+				doneHandler.handle(result);
+			}
+		});
+	}
+
+	@Override
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	@Override
+	public void close() {
+		executor.shutdown();
+	}
+}
@@ -0,0 +1,374 @@
+package de.appsist.service.msd;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.impl.DefaultFutureResult;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.core.logging.impl.LoggerFactory;
+
+import de.appsist.service.middrv.rest.DataSchemaMismatchException;
+
+/**
+ * Transport retrying failed requests of another transport, with a circuit breaker for an unavailable MID.
+ * <p>
+ * A request failing with a transient error (connection failure, timeout, server error) is sent again after a delay growing
+ * exponentially with each retry, up to the configured number of retries. The delay is jittered so that the requests failed
+ * together are not retried together. Requests rejected because of their content (client errors, messages not matching the
+ * schema) are not retried.
+ * <p>
+ * After the configured number of consecutive failures, the circuit opens: Requests are held instead of being sent, and a single
+ * request probes the MID after the open duration. If the probe succeeds, the circuit closes and all held requests are sent;
+ * otherwise the MID is probed again after the next open duration. Held requests count as in flight, so the {@link OutboundQueue}
+ * stops handing data messages to the transport and buffers, coalesces or drops them according to its policy meanwhile.
+ * <p>
+ * When the transport is closed, held requests and requests waiting for a retry fail with an {@link IllegalStateException}.
+ * <p>
+ * Transports are wrapped with {@link #create}, which retries data messages encoded in advance as well if the wrapped transport
+ * sends them.
+ * <p>
+ * All methods have to be called from the event loop of the verticle.
+ */
+public class RetryingMidTransport implements MidTransport {
+	private static final Logger logger = LoggerFactory.getLogger(RetryingMidTransport.class);
+
+	/**
+	 * State of the circuit breaker.
+	 */
+	public enum CircuitState {
+		/** Requests are sent. */
+		CLOSED,
+		/** Requests are held until the MID is probed. */
+		OPEN,
+		/** A probe is sent or about to be sent, other requests are held. */
+		HALF_OPEN;
+	}
+
+	private final Vertx vertx;
+	private final MidTransport transport;
+	private final SimulatorMetrics metrics;
+	private final int maxRetries;
+	private final long retryDelay;
+	private final long maxRetryDelay;
+	private final int failureThreshold;
+	private final long openDuration;
+	private final Deque<Request> heldRequests;
+	private final Handler<Void> recoveryHandler;
+	private CircuitState state = CircuitState.CLOSED;
+	private Request probe; // Request probing the MID in half open state
+	private int consecutiveFailures = 0;
+	private final Map<Long, Request> waitingRequests; // Requests waiting for the delay of their retry by timer ID
+	private boolean closed = false;
+	private long requestsRetried = 0;
+	private long requestsFailed = 0;
+	private long circuitOpened = 0;
+
+	/**
+	 * Creates the transport. The returned transport implements {@link EncodedMidTransport} if the wrapped transport does.
+	 * @param vertx Vert.x instance to set the timers for retries and probes with.
+	 * @param transport Transport to send the requests with.
+	 * @param metrics Metrics to count retried updates in.
+	 * @param maxRetries Maximum number of retries of a request.
+	 * @param retryDelay Delay before the first retry in milliseconds, doubled with each further retry.
+	 * @param maxRetryDelay Maximum delay before a retry in milliseconds.
+	 * @param failureThreshold Number of consecutive failures opening the circuit.
+	 * @param openDuration Time in milliseconds after which an open circuit probes the MID.
+	 * @param recoveryHandler Handler called when the circuit closed again and the held requests have been sent, may be <code>null</code>.
+	 * @throws IllegalArgumentException A parameter is out of range.
+	 */
+	public static RetryingMidTransport create(Vertx vertx, MidTransport transport, SimulatorMetrics metrics, int maxRetries, long retryDelay,
+			long maxRetryDelay, int failureThreshold, long openDuration, Handler<Void> recoveryHandler) throws IllegalArgumentException {
+		if (transport instanceof EncodedMidTransport) {
+			return new Encoded(vertx, (EncodedMidTransport) transport, metrics, maxRetries, retryDelay, maxRetryDelay, failureThreshold,
+					openDuration, recoveryHandler);
+		}
+		return new RetryingMidTransport(vertx, transport, metrics, maxRetries, retryDelay, maxRetryDelay, failureThreshold, openDuration,
+				recoveryHandler);
+	}
+
+	private RetryingMidTransport(Vertx vertx, MidTransport transport, SimulatorMetrics metrics, int maxRetries, long retryDelay, long maxRetryDelay,
+			int failureThreshold, long openDuration, Handler<Void> recoveryHandler) throws IllegalArgumentException {
+		if (maxRetries < 0 || retryDelay < 1 || maxRetryDelay < retryDelay || failureThreshold < 1 || openDuration < 1) {
+			throw new IllegalArgumentException("Retries must not be negative, delays, failure threshold and open duration must be positive.");
+		}
+		this.vertx = vertx;
+		this.transport = transport;
+		this.metrics = metrics;
+		this.maxRetries = maxRetries;
+		this.retryDelay = retryDelay;
+		this.maxRetryDelay = maxRetryDelay;
+		this.failureThreshold = failureThreshold;
+		this.openDuration = openDuration;
+		this.heldRequests = new ArrayDeque<>();
+		this.waitingRequests = new LinkedHashMap<>();
+		this.recoveryHandler = recoveryHandler;
+	}
+
+	@Override
+	public void sendSchemas(List<MachineUpdate> machines, Handler<AsyncResult<Void>> doneHandler) {
+		submit(new Request(machines, null, true, doneHandler));
+	}
+
+	@Override
+	public void sendData(List<MachineUpdate> updates, Handler<AsyncResult<Void>> doneHandler) {
+		submit(new Request(updates, null, false, doneHandler));
+	}
+
+	private void submit(Request request) {
+		if (closed) {
+			fail(request);
+		} else if (state == CircuitState.CLOSED) {
+			send(request);
+		} else if (state == CircuitState.HALF_OPEN && probe == null) {
+			probe = request;
+			send(request);
+		} else {
+			heldRequests.add(request);
+		}
+	}
+
+	private void send(final Request request) {
+		Handler<AsyncResult<Void>> resultHandler = new Handler<AsyncResult<Void>>() {
+			@Override
+			public void handle(AsyncResult<Void> result) {
+				if (result.succeeded()) {
+					onSuccess();
+					request.complete(result);
+				} else {
+					onFailure(request, result);
+				}
+			}
+		};
+		if (request.schemas) {
+			transport.sendSchemas(request.updates, resultHandler);
+		} else if (request.data != null) {
+			// Only created by the encoded variant, whose transport sends encoded messages.
+			((EncodedMidTransport) transport).sendEncodedData(request.updates, request.data, resultHandler);
+		} else {
+			transport.sendData(request.updates, resultHandler);
+		}
+	}
+
+	private void onSuccess() {
+		consecutiveFailures = 0;
+		if (state == CircuitState.CLOSED || closed) {
+			return;
+		}
+		logger.info("MID is reachable again, closing circuit and sending " + heldRequests.size() + " held requests.");
+		state = CircuitState.CLOSED;
+		probe = null;
+		while (state == CircuitState.CLOSED && !heldRequests.isEmpty()) {
+			send(heldRequests.poll());
+		}
+		if (state == CircuitState.CLOSED && recoveryHandler != null) {
+			recoveryHandler.handle(null);
+		}
+	}
+
+	private void onFailure(final Request request, AsyncResult<Void> result) {
+		if (closed || !isTransient(result.cause())) {
+			requestsFailed++;
+			request.complete(result);
+			return;
+		}
+		consecutiveFailures++;
+		if (request == probe) {
+			// The probe failed, it is sent first once the MID is reachable again.
+			probe = null;
+			heldRequests.addFirst(request);
+			open(result.cause());
+			return;
+		}
+		if (state != CircuitState.CLOSED) {
+			heldRequests.add(request);
+			return;
+		}
+		if (consecutiveFailures >= failureThreshold) {
+			heldRequests.add(request);
+			open(result.cause());
+			return;
+		}
+		if (request.retries >= maxRetries) {
+			requestsFailed++;
+			request.complete(result);
+			return;
+		}
+		request.retries++;
+		requestsRetried++;
+		if (!request.schemas) {
+			for (MachineUpdate update : request.updates) {
+				metrics.updateRetried(update);
+			}
+		}
+		long timerId = vertx.setTimer(getRetryDelay(request.retries), new Handler<Long>() {
+			@Override
+			public void handle(Long timerId) {
+				waitingRequests.remove(timerId);
+				submit(request);
+			}
+		});
+		waitingRequests.put(timerId, request);
+	}
+
+	/**
+	 * Returns the jittered delay before a retry: A random time between half and the full exponential delay.
+	 * @param retry Number of the retry, starting with 1.
+	 * @return Delay in milliseconds.
+	 */
+	private long getRetryDelay(int retry) {
+		long delay = retryDelay << Math.min(retry - 1, 30);
+		if (delay <= 0 || delay > maxRetryDelay) {
+			delay = maxRetryDelay;
+		}
+		return delay / 2 + ThreadLocalRandom.current().nextLong(delay - delay / 2 + 1);
+	}
+
+	/**
+	 * Opens the circuit, either after too many consecutive failures or after a failed probe.
+	 */
+	private void open(Throwable cause) {
+		if (state == CircuitState.CLOSED) {
+			logger.warn("MID failed " + consecutiveFailures + " times in a row, opening circuit: " + cause.getMessage());
+			circuitOpened++;
+		}
+		state = CircuitState.OPEN;
+		vertx.setTimer(openDuration, new Handler<Long>() {
+			@Override
+			public void handle(Long timerId) {
+				probe();
+			}
+		});
+	}
+
+	private void probe() {
+		if (state != CircuitState.OPEN || closed) {
+			// Closed meanwhile by a request acknowledged late, or the transport has been closed.
+			return;
+		}
+		state = CircuitState.HALF_OPEN;
+		if (!heldRequests.isEmpty()) {
+			probe = heldRequests.poll();
+			send(probe);
+		}
+	}
+
+	/**
+	 * Checks whether a request may succeed if sent again.
+	 * @param cause Cause of the failure.
+	 * @return <code>false</code> if the MID rejected the content of the request, <code>true</code> otherwise.
+	 */
+	private static boolean isTransient(Throwable cause) {
+		if (cause instanceof MidRequestException) {
+			return !((MidRequestException) cause).isClientError();
+		}
+		return !(cause instanceof DataSchemaMismatchException);
+	}
+
+	public CircuitState getState() {
+		return state;
+	}
+
+	/**
+	 * Returns the number of requests sent, held or waiting for a retry, but not acknowledged yet.
+	 * @return Number of requests in flight.
+	 */
+	@Override
+	public int getInFlight() {
+		return transport.getInFlight() + heldRequests.size() + waitingRequests.size();
+	}
+
+	/**
+	 * Closes the transport. Held requests and requests waiting for a retry are failed, requests sent are completed by the wrapped
+	 * transport. Requests submitted afterwards fail immediately.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		for (Map.Entry<Long, Request> waiting : waitingRequests.entrySet()) {
+			vertx.cancelTimer(waiting.getKey());
+			heldRequests.add(waiting.getValue());
+		}
+		waitingRequests.clear();
+		while (!heldRequests.isEmpty()) {
+			fail(heldRequests.poll());
+		}
+		transport.close();
+	}
+
+	private void fail(Request request) {
+		requestsFailed++;
+		request.complete(new DefaultFutureResult<Void>(new IllegalStateException("Transport to the MID has been closed.")));
+	}
+
+	/**
+	 * Returns a JSON representation of the retry and circuit statistics.
+	 * @return JSON object.
+	 */
+	public JsonObject asJson() {
+		JsonObject json = new JsonObject();
+		json.putString("circuit", state.name());
+		json.putNumber("consecutiveFailures", consecutiveFailures);
+		json.putNumber("heldRequests", heldRequests.size());
+		json.putNumber("waitingRequests", waitingRequests.size());
+		json.putNumber("requestsRetried", requestsRetried);
+		json.putNumber("requestsFailed", requestsFailed);
+		json.putNumber("circuitOpened", circuitOpened);
+		return json;
+	}
+
+	/**
+	 * Retrying transport for a transport sending data messages encoded in advance.
+	 */
+	private static class Encoded extends RetryingMidTransport implements EncodedMidTransport {
+		private final EncodedMidTransport transport;
+
+		private Encoded(Vertx vertx, EncodedMidTransport transport, SimulatorMetrics metrics, int maxRetries, long retryDelay, long maxRetryDelay,
+				int failureThreshold, long openDuration, Handler<Void> recoveryHandler) throws IllegalArgumentException {
+			super(vertx, transport, metrics, maxRetries, retryDelay, maxRetryDelay, failureThreshold, openDuration, recoveryHandler);
+			this.transport = transport;
+		}
+
+		@Override
+		public MidMessageCodec createCodec() {
+			return transport.createCodec();
+		}
+
+		@Override
+		public void sendEncodedData(List<MachineUpdate> updates, Buffer data, Handler<AsyncResult<Void>> doneHandler) {
+			super.submit(new Request(updates, data, false, doneHandler));
+		}
+	}
+
+	/**
+	 * Schema or data message with its retries.
+	 */
+	private static class Request {
+		private final List<MachineUpdate> updates;
+		private final Buffer data;
+		private final boolean schemas;
+		private final Handler<AsyncResult<Void>> doneHandler;
+		private int retries = 0;
+
+		private Request(List<MachineUpdate> updates, Buffer data, boolean schemas, Handler<AsyncResult<Void>> doneHandler) {
+			this.updates = updates;
+			this.data = data;
+			this.schemas = schemas;
+			this.doneHandler = doneHandler;
+		}
+
+		private void complete(AsyncResult<Void> result) {
+			if (doneHandler != null) {
+				doneHandler.handle(result);
+			}
+		}
+	}
+}
@@ -0,0 +1,554 @@
+package de.appsist.service.msd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.vertx.java.core.json.DecodeException;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import de.appsist.service.middrv.entity.MachineValueType;
+
+/**
+ * Machine simulated according to a scenario definition in JSON. A scenario holds the current field values of a single machine and
+ * the actions modifying them. Field names are resolved when the definition is loaded, so performing an action only assigns values
+ * by field index.
+ * <p>
+ * Besides the machine template (see {@link MachineTemplate#fromJson(JsonObject)}), a definition contains:
+ * <ul>
+ * <li><code>serialNumber</code>: Serial number of the machine.</li>
+ * <li><code>derived</code> in a field specification: Name of the field the value is taken from, prefixed with <code>!</code> to negate a boolean.</li>
+ * <li><code>actions</code>: Actions by name, each with the field values to <code>set</code> and an optional <code>log</code> message.</li>
+ * <li><code>simulations</code>: Actions by simulation name, performed on each tick of a load generator.</li>
+ * <li><code>behaviour</code> in a field specification: Model computing the value of the field over time, see
+ * {@link BehaviourModel}. Scenarios with behaviour models can be simulated under their own name.</li>
+ * </ul>
+ * A value to set is either a constant, <code>{"random": true}</code> for a random boolean, <code>{"random": [min, max]}</code> for a
+ * random number in the given range or <code>{"add": n}</code> to increase a number. Random values are drawn from the generator set
+ * with {@link #setRandom(Random)}.
+ * All methods have to be called from the event loop of the verticle.
+ */
+public class Scenario {
+	private static final String NEGATION_PREFIX = "!";
+
+	private final MachineTemplate template;
+	private final String serialNumber;
+	private final FleetState state; // Values of the single machine, derived fields are not stored
+	private final int[] sourceFields; // Field a derived field is computed from, -1 for fields with a value of their own
+	private final boolean[] negated;
+	private final Map<String, Action> actions;
+	private final Map<String, Action> simulations;
+	private final List<BehaviourModel> behaviour;
+	private final boolean[] counters; // Fields increased by a counter model or an action adding a positive value
+	private final MachineUpdate update; // Reused for every update, the sender copies it
+	private Random random = new Random();
+
+	private Scenario(JsonObject json) throws IllegalArgumentException {
+		template = MachineTemplate.fromJson(json);
+		serialNumber = json.getString("serialNumber");
+		if (serialNumber == null) {
+			throw new IllegalArgumentException("Missing serial number in scenario " + template.getScenario() + ".");
+		}
+		int numFields = template.getFieldCount();
+		state = new FleetState(template, 1);
+		sourceFields = new int[numFields];
+		negated = new boolean[numFields];
+		JsonArray fields = json.getArray("fields");
+		for (int field = 0; field < numFields; field++) {
+			sourceFields[field] = -1;
+			String derived = ((JsonObject) fields.get(field)).getString("derived");
+			if (derived != null) {
+				parseDerived(field, derived);
+			}
+		}
+		for (int field = 0; field < numFields; field++) {
+			if (sourceFields[field] >= 0 && sourceFields[sourceFields[field]] >= 0) {
+				throw new IllegalArgumentException("Field " + template.getFieldName(field) + " cannot be derived from derived field "
+						+ template.getFieldName(sourceFields[field]) + ".");
+			}
+		}
+		behaviour = BehaviourModel.fromFields(template, fields, 1);
+		for (BehaviourModel model : behaviour) {
+			if (sourceFields[model.getField()] >= 0) {
+				throw new IllegalArgumentException("Derived field " + template.getFieldName(model.getField()) + " cannot have a behaviour.");
+			}
+		}
+		actions = parseActions(json.getObject("actions"));
+		simulations = parseActions(json.getObject("simulations"));
+		counters = new boolean[numFields];
+		for (BehaviourModel model : behaviour) {
+			counters[model.getField()] |= model.isMonotonic();
+		}
+		for (Action action : actions.values()) {
+			action.markCounters(counters);
+		}
+		for (Action action : simulations.values()) {
+			action.markCounters(counters);
+		}
+		update = new MachineUpdate(template, serialNumber);
+	}
+
+	/**
+	 * Parses a scenario definition.
+	 * @param json JSON object with the scenario definition.
+	 * @return Scenario in its initial state.
+	 * @throws IllegalArgumentException The definition is invalid.
+	 */
+	public static Scenario fromJson(JsonObject json) throws IllegalArgumentException {
+		return new Scenario(json);
+	}
+
+	/**
+	 * Loads scenario definitions.
+	 * @param location JSON file containing a definition or an array of definitions, directory containing such files, or name of
+	 * a resource on the class path.
+	 * @return Scenarios in the order of their definitions.
+	 * @throws IOException The definitions could not be read.
+	 * @throws IllegalArgumentException A definition is invalid.
+	 */
+	public static List<Scenario> load(String location) throws IOException, IllegalArgumentException {
+		List<Scenario> scenarios = new ArrayList<>();
+		File file = new File(location);
+		if (file.isDirectory()) {
+			File[] files = file.listFiles();
+			Arrays.sort(files);
+			for (File definitionFile : files) {
+				if (definitionFile.isFile() && definitionFile.getName().endsWith(".json")) {
+					parse(new String(Files.readAllBytes(definitionFile.toPath()), StandardCharsets.UTF_8), definitionFile.getPath(), scenarios);
+				}
+			}
+		} else if (file.isFile()) {
+			parse(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8), location, scenarios);
+		} else {
+			InputStream in = Scenario.class.getResourceAsStream(location.startsWith("/") ? location : "/" + location);
+			if (in == null) {
+				throw new FileNotFoundException("No such file or resource: " + location);
+			}
+			try {
+				parse(readFully(in), location, scenarios);
+			} finally {
+				in.close();
+			}
+		}
+		return scenarios;
+	}
+
+	private static String readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+			out.write(buffer, 0, read);
+		}
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private static void parse(String content, String location, List<Scenario> scenarios) throws IllegalArgumentException {
+		String definitions = content.trim();
+		try {
+			if (definitions.startsWith("[")) {
+				JsonArray array = new JsonArray(definitions);
+				for (int i = 0; i < array.size(); i++) {
+					Object definition = array.get(i);
+					if (!(definition instanceof JsonObject)) {
+						throw new IllegalArgumentException("Scenario definition must be an object: " + definition);
+					}
+					scenarios.add(fromJson((JsonObject) definition));
+				}
+			} else {
+				scenarios.add(fromJson(new JsonObject(definitions)));
+			}
+		} catch (DecodeException e) {
+			throw new IllegalArgumentException("Invalid JSON in " + location + ": " + e.getMessage());
+		}
+	}
+
+	private void parseDerived(int field, String derived) throws IllegalArgumentException {
+		boolean negate = derived.startsWith(NEGATION_PREFIX);
+		String sourceName = negate ? derived.substring(NEGATION_PREFIX.length()) : derived;
+		int source = template.getFieldIndex(sourceName);
+		if (source < 0) {
+			throw new IllegalArgumentException("Unknown source of derived field " + template.getFieldName(field) + ": " + sourceName);
+		}
+		if (template.getFieldType(source) != template.getFieldType(field) || (negate && template.getFieldType(field) != MachineValueType.BOOL)) {
+			throw new IllegalArgumentException("Derived field " + template.getFieldName(field) + " does not match type of " + derived + ".");
+		}
+		sourceFields[field] = source;
+		negated[field] = negate;
+	}
+
+	private Map<String, Action> parseActions(JsonObject json) throws IllegalArgumentException {
+		if (json == null) {
+			return Collections.emptyMap();
+		}
+		Map<String, Action> parsedActions = new LinkedHashMap<>();
+		for (String name : json.getFieldNames()) {
+			Object action = json.getValue(name);
+			if (!(action instanceof JsonObject)) {
+				throw new IllegalArgumentException("Action " + name + " of scenario " + getName() + " must be an object.");
+			}
+			parsedActions.put(name, new Action(name, (JsonObject) action));
+		}
+		return parsedActions;
+	}
+
+	private ValueSource parseValue(int field, Object spec) throws IllegalArgumentException {
+		String fieldName = template.getFieldName(field);
+		MachineValueType type = template.getFieldType(field);
+		if (!(spec instanceof JsonObject)) {
+			return new ConstantValue(MachineTemplate.checkValue(fieldName, type, spec));
+		}
+		JsonObject json = (JsonObject) spec;
+		boolean numeric = type == MachineValueType.LONG || type == MachineValueType.DOUBLE;
+		Object random = json.getValue("random");
+		if (Boolean.TRUE.equals(random) && type == MachineValueType.BOOL) {
+			return new RandomBooleanValue();
+		} else if (random instanceof JsonArray && numeric) {
+			JsonArray range = (JsonArray) random;
+			if (range.size() == 2 && range.get(0) instanceof Number && range.get(1) instanceof Number) {
+				return new RandomNumberValue(((Number) range.get(0)).doubleValue(), ((Number) range.get(1)).doubleValue(), type == MachineValueType.LONG);
+			}
+		} else if (json.getValue("add") instanceof Number && numeric) {
+			return new AddedValue((Number) json.getValue("add"));
+		}
+		throw new IllegalArgumentException("Invalid value for field " + fieldName + " of type " + type + ": " + json.encode());
+	}
+
+	public String getName() {
+		return template.getScenario();
+	}
+
+	public MachineTemplate getTemplate() {
+		return template;
+	}
+
+	public String getSerialNumber() {
+		return serialNumber;
+	}
+
+	/**
+	 * Returns the actions of the scenario.
+	 * @return Unmodifiable map of actions by name.
+	 */
+	public Map<String, Action> getActions() {
+		return Collections.unmodifiableMap(actions);
+	}
+
+	/**
+	 * Returns the actions performed by simulations of the scenario.
+	 * @return Unmodifiable map of actions by simulation name.
+	 */
+	public Map<String, Action> getSimulations() {
+		return Collections.unmodifiableMap(simulations);
+	}
+
+	/**
+	 * Sets the random number generator for random values and behaviour models, e.g. a seeded one for reproducible runs.
+	 * @param random Random number generator.
+	 */
+	public void setRandom(Random random) {
+		this.random = random;
+	}
+
+	/**
+	 * Checks whether fields of the scenario have behaviour models.
+	 * @return <code>true</code> if the scenario can be advanced in time.
+	 */
+	public boolean hasBehaviour() {
+		return !behaviour.isEmpty();
+	}
+
+	/**
+	 * Advances the behaviour models of the scenario. The values are not sent.
+	 * @param seconds Simulated time passed since the last call.
+	 * @return <code>true</code> if a value has been modified since the last update has been created.
+	 */
+	public boolean advance(double seconds) {
+		for (BehaviourModel model : behaviour) {
+			model.advance(state, seconds, random);
+		}
+		return state.getDirtyCount() > 0;
+	}
+
+	/**
+	 * Returns the current value of a field. Values of derived fields are computed from their source field.
+	 * @param field Index of the field in the machine template.
+	 * @return Boolean, Long, Double or String depending on the field type.
+	 */
+	public Object getValue(int field) {
+		int source = sourceFields[field];
+		if (source < 0) {
+			return state.getValue(field, 0);
+		}
+		return negated[field] ? !state.getBool(source, 0) : state.getValue(source, 0);
+	}
+
+	/**
+	 * Returns whether a field is derived from another field and thus has no value of its own.
+	 * @param field Index of the field in the machine template.
+	 * @return <code>true</code> if the value of the field is computed from its source field.
+	 */
+	public boolean isDerived(int field) {
+		return sourceFields[field] >= 0;
+	}
+
+	/**
+	 * Returns whether a field is a counter, i.e. it is increased by a counter model or by an action adding a positive value.
+	 * Other actions may still reset it.
+	 * @param field Index of the field in the machine template.
+	 * @return <code>true</code> if the value of the field is expected to grow over time.
+	 */
+	public boolean isCounter(int field) {
+		return counters[field];
+	}
+
+	/**
+	 * Returns the values of all fields with a value of their own, i.e. the state of the scenario.
+	 * @return JSON object with the values by field name.
+	 */
+	public JsonObject getValues() {
+		JsonObject values = new JsonObject();
+		for (int field = 0; field < sourceFields.length; field++) {
+			if (!isDerived(field)) {
+				values.putValue(template.getFieldName(field), state.getValue(field, 0));
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Sets the values of fields from their JSON representation, e.g. to restore a persisted state. The values are not sent.
+	 * Values of unknown or derived fields and values not matching the field type are ignored, as the scenario definition may
+	 * have changed since the values were stored.
+	 * @param values JSON object with the values by field name.
+	 * @return Names of the fields whose values have been ignored.
+	 */
+	public List<String> setValues(JsonObject values) {
+		List<String> ignored = new ArrayList<>();
+		for (String fieldName : values.getFieldNames()) {
+			int field = template.getFieldIndex(fieldName);
+			Object converted = field >= 0 && !isDerived(field) ? convert(field, values.getValue(fieldName)) : null;
+			if (converted != null) {
+				state.setValue(field, 0, converted);
+			} else {
+				ignored.add(fieldName);
+			}
+		}
+		return ignored;
+	}
+
+	/**
+	 * Applies the values of an update which has been sent for the machine of the scenario by other means, e.g. by a replay, so that
+	 * actions and simulations continue from these values. Values of derived fields and values not matching the field type are
+	 * ignored. The values are not sent again.
+	 * @param update Update of the machine of the scenario.
+	 * @throws IllegalArgumentException The update is not for the machine of the scenario.
+	 */
+	public void apply(MachineUpdate update) throws IllegalArgumentException {
+		if (update.getTemplate() != template || !serialNumber.equals(update.getSerialNumber())) {
+			throw new IllegalArgumentException("Update is not for the machine of scenario " + getName() + ".");
+		}
+		boolean dirty = state.getDirtyCount() > 0;
+		for (int field = 0; field < sourceFields.length; field++) {
+			Object converted = isDerived(field) ? null : convert(field, update.get(field));
+			if (converted != null) {
+				state.setValue(field, 0, converted);
+			}
+		}
+		if (!dirty) {
+			state.clearDirty(0);
+		}
+	}
+
+	private Object convert(int field, Object value) {
+		switch (template.getFieldType(field)) {
+		case BOOL:
+			return value instanceof Boolean ? value : null;
+		case LONG:
+			return value instanceof Number ? (Object) ((Number) value).longValue() : null;
+		case DOUBLE:
+			return value instanceof Number ? (Object) ((Number) value).doubleValue() : null;
+		default:
+			return value instanceof String ? value : null;
+		}
+	}
+
+	/**
+	 * Creates an update containing the current values of all fields.
+	 * @return Update of the machine. The same instance is returned by each call, it must not be kept by the caller.
+	 */
+	public MachineUpdate createUpdate() {
+		for (int field = 0; field < sourceFields.length; field++) {
+			update.set(field, getValue(field));
+		}
+		state.clearDirty(0);
+		return update;
+	}
+
+	/**
+	 * Returns a JSON representation of the scenario state.
+	 * @return JSON object.
+	 */
+	public JsonObject asJson() {
+		JsonObject json = new JsonObject();
+		json.putString("scenario", getName());
+		json.putString("machineKey", update.getMachineKey());
+		JsonObject valuesJson = new JsonObject();
+		for (int field = 0; field < sourceFields.length; field++) {
+			valuesJson.putValue(template.getFieldName(field), getValue(field));
+		}
+		json.putObject("values", valuesJson);
+		json.putArray("actions", new JsonArray(new ArrayList<Object>(actions.keySet())));
+		json.putArray("simulations", new JsonArray(new ArrayList<Object>(simulations.keySet())));
+		json.putBoolean("behaviour", hasBehaviour());
+		return json;
+	}
+
+	/**
+	 * Action assigning values to fields of the scenario.
+	 */
+	public class Action {
+		private final String name;
+		private final int[] fields;
+		private final ValueSource[] sources;
+		private final String logMessage;
+
+		private Action(String name, JsonObject json) throws IllegalArgumentException {
+			this.name = name;
+			this.logMessage = json.getString("log");
+			JsonObject set = json.getObject("set");
+			if (set == null || set.size() == 0) {
+				throw new IllegalArgumentException("Action " + name + " of scenario " + getName() + " does not set any field.");
+			}
+			fields = new int[set.size()];
+			sources = new ValueSource[set.size()];
+			int i = 0;
+			for (String fieldName : set.getFieldNames()) {
+				int field = template.getFieldIndex(fieldName);
+				if (field < 0) {
+					throw new IllegalArgumentException("Unknown field in action " + name + " of scenario " + getName() + ": " + fieldName);
+				}
+				if (sourceFields[field] >= 0) {
+					throw new IllegalArgumentException("Action " + name + " of scenario " + getName() + " sets derived field " + fieldName + ".");
+				}
+				fields[i] = field;
+				sources[i] = parseValue(field, set.getValue(fieldName));
+				i++;
+			}
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public Scenario getScenario() {
+			return Scenario.this;
+		}
+
+		/**
+		 * Returns the message to log when the action is performed.
+		 * @return Log message or <code>null</code> if the action is not logged.
+		 */
+		public String getLogMessage() {
+			return logMessage;
+		}
+
+		/**
+		 * Marks the fields the action adds a positive value to.
+		 */
+		private void markCounters(boolean[] counters) {
+			for (int i = 0; i < fields.length; i++) {
+				if (sources[i] instanceof AddedValue && ((AddedValue) sources[i]).delta.doubleValue() > 0) {
+					counters[fields[i]] = true;
+				}
+			}
+		}
+
+		/**
+		 * Assigns the values of the action. The values are not sent.
+		 */
+		public void perform() {
+			for (int i = 0; i < fields.length; i++) {
+				state.setValue(fields[i], 0, sources[i].next(state.getValue(fields[i], 0), random));
+			}
+		}
+	}
+
+	/**
+	 * Source of the values assigned by an action.
+	 */
+	private interface ValueSource {
+		/**
+		 * Returns the next value of a field.
+		 * @param current Current value of the field.
+		 * @param random Random number generator of the scenario.
+		 * @return New value of the field.
+		 */
+		public Object next(Object current, Random random);
+	}
+
+	private static class ConstantValue implements ValueSource {
+		private final Object value;
+
+		private ConstantValue(Object value) {
+			this.value = value;
+		}
+
+		@Override
+		public Object next(Object current, Random random) {
+			return value;
+		}
+	}
+
+	private static class RandomBooleanValue implements ValueSource {
+		@Override
+		public Object next(Object current, Random random) {
+			return random.nextBoolean();
+		}
+	}
+
+	private static class RandomNumberValue implements ValueSource {
+		private final double min;
+		private final double max;
+		private final boolean integral;
+
+		private RandomNumberValue(double min, double max, boolean integral) {
+			this.min = min;
+			this.max = max;
+			this.integral = integral;
+		}
+
+		@Override
+		public Object next(Object current, Random random) {
+			double value = min + random.nextDouble() * (max - min);
+			return integral ? (Object) (long) Math.floor(value) : (Object) value;
+		}
+	}
+
+	private static class AddedValue implements ValueSource {
+		private final Number delta;
+
+		private AddedValue(Number delta) {
+			this.delta = delta;
+		}
+
+		@Override
+		public Object next(Object current, Random random) {
+			if (current instanceof Long) {
+				return (Long) current + delta.longValue();
+			}
+			return (Double) current + delta.doubleValue();
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package de.appsist.service.msd;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Registry of the machine schemas already sent to the MID.
+ * A schema is identified by the machine it belongs to and a fingerprint of its content. It has to be sent again only if
+ * the fingerprint changes or the registration is invalidated, e.g. because the MID has been restarted.
+ * A schema sent but not acknowledged yet is pending: It is not sent again with later updates of the machine, which instead wait
+ * for the acknowledgement.
+ */
+public class SchemaRegistry {
+	private final Map<String, Object> registeredSchemas; // Fingerprint of the last schema sent, by machine key.
+	private final Map<String, Object> pendingSchemas; // Fingerprint of the schema awaiting its acknowledgement, by machine key.
+	private long schemasSent = 0;
+	private long schemasAvoided = 0;
+
+	public SchemaRegistry() {
+		registeredSchemas = new HashMap<>();
+		pendingSchemas = new HashMap<>();
+	}
+
+	/**
+	 * Builds the key identifying a machine.
+	 * @param vendorId ID of the machine vendor.
+	 * @param machineId ID of the machine type.
+	 * @param serialNumber Serial number of the machine.
+	 * @return Machine key.
+	 */
+	public static String machineKey(String vendorId, String machineId, String serialNumber) {
+		return vendorId + "/" + machineId + "/" + serialNumber;
+	}
+
+	/**
+	 * Checks if the schema of a machine has to be sent.
+	 * @param machineKey Key of the machine as created with {@link #machineKey(String, String, String)}.
+	 * @param fingerprint Fingerprint of the schema. Fingerprints are compared using <code>equals</code>.
+	 * @return <code>true</code> if the schema is unknown to the MID and not pending, otherwise <code>false</code>.
+	 */
+	public boolean needsSchema(String machineKey, Object fingerprint) {
+		if (fingerprint.equals(registeredSchemas.get(machineKey)) || fingerprint.equals(pendingSchemas.get(machineKey))) {
+			schemasAvoided++;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Checks if the schema of a machine has been sent but not acknowledged yet.
+	 * @param machineKey Key of the machine.
+	 * @param fingerprint Fingerprint of the schema.
+	 * @return <code>true</code> if the schema is pending, otherwise <code>false</code>.
+	 */
+	public boolean isPending(String machineKey, Object fingerprint) {
+		return fingerprint.equals(pendingSchemas.get(machineKey));
+	}
+
+	/**
+	 * Marks the schema of a machine as pending when it is dispatched to the MID.
+	 * @param machineKey Key of the machine.
+	 * @param fingerprint Fingerprint of the schema dispatched.
+	 */
+	public void markPending(String machineKey, Object fingerprint) {
+		pendingSchemas.put(machineKey, fingerprint);
+	}
+
+	/**
+	 * Removes the pending mark of a schema whose message failed, so that it is sent again with the next update of the machine.
+	 * The mark is kept if another schema of the machine has been dispatched in the meantime.
+	 * @param machineKey Key of the machine.
+	 * @param fingerprint Fingerprint of the schema that failed.
+	 */
+	public void clearPending(String machineKey, Object fingerprint) {
+		if (fingerprint.equals(pendingSchemas.get(machineKey))) {
+			pendingSchemas.remove(machineKey);
+		}
+	}
+
+	/**
+	 * Marks the schema of a machine as sent, i.e. acknowledged by the MID.
+	 * @param machineKey Key of the machine.
+	 * @param fingerprint Fingerprint of the schema sent.
+	 */
+	public void markSent(String machineKey, Object fingerprint) {
+		clearPending(machineKey, fingerprint);
+		registeredSchemas.put(machineKey, fingerprint);
+		schemasSent++;
+	}
+
+	/**
+	 * Invalidates the registration of a single machine, e.g. if the MID reported the machine to be unknown.
+	 * @param machineKey Key of the machine.
+	 */
+	public void invalidate(String machineKey) {
+		registeredSchemas.remove(machineKey);
+	}
+
+	/**
+	 * Invalidates all registrations. All schemas will be sent again with the next data message of the related machine.
+	 */
+	public void invalidateAll() {
+		registeredSchemas.clear();
+	}
+
+	public long getSchemasSent() {
+		return schemasSent;
+	}
+
+	public long getSchemasAvoided() {
+		return schemasAvoided;
+	}
+
+	/**
+	 * Returns a JSON representation of the registry counters.
+	 * @return JSON object.
+	 */
+	public JsonObject asJson() {
+		JsonObject json = new JsonObject();
+		json.putNumber("registeredMachines", registeredSchemas.size());
+		json.putNumber("pendingSchemas", pendingSchemas.size());
+		json.putNumber("schemasSent", schemasSent);
+		json.putNumber("schemasAvoided", schemasAvoided);
+		return json;
+	}
+}
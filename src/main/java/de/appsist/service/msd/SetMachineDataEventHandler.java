@@ -1,10 +1,19 @@
 package de.appsist.service.msd;
 
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.vertx.java.core.AsyncResult;
 import org.vertx.java.core.Handler;
 import org.vertx.java.core.Vertx;
 import org.vertx.java.core.eventbus.Message;
-import org.vertx.java.core.http.HttpClient;
+import org.vertx.java.core.impl.DefaultFutureResult;
+import org.vertx.java.core.json.DecodeException;
+import org.vertx.java.core.json.JsonArray;
 import org.vertx.java.core.json.JsonObject;
 import org.vertx.java.core.logging.Logger;
 import org.vertx.java.core.logging.impl.LoggerFactory;
@@ -12,91 +21,602 @@ import org.vertx.java.core.logging.impl.LoggerFactory;
 import de.appsist.commons.event.SetMachineDataEvent;
 import de.appsist.commons.event.SetMachineDataEvent.Field;
 import de.appsist.commons.util.EventUtil;
-import de.appsist.service.middrv.entity.Machine;
-import de.appsist.service.middrv.entity.MachineData;
-import de.appsist.service.middrv.entity.MachineSchema;
-import de.appsist.service.middrv.entity.MachineValueSpecification;
 import de.appsist.service.middrv.entity.MachineValueType;
-import de.appsist.service.middrv.entity.Unit;
 import de.appsist.service.middrv.entity.VisualizationLevel;
 import de.appsist.service.middrv.entity.VisualizationType;
-import de.appsist.service.middrv.rest.ContentType;
-import de.appsist.service.middrv.rest.DataMessage;
-import de.appsist.service.middrv.rest.DataSchemaMismatchException;
-import de.appsist.service.middrv.rest.SchemaMessage;
-import de.appsist.service.middrv.rest.client.RestClient;
 
+/**
+ * Handler forwarding the machine data published with set machine data events to the MID.
+ * <p>
+ * The template of a machine is compiled from its first event and reused as long as the station and field list of its events do
+ * not change, so that the schema is only sent once and delta updates only send the values changed since the last event. Field
+ * values are parsed directly from the message body. Bodies not matching the expected layout are parsed as
+ * {@link SetMachineDataEvent} instead. Events of cached machines still allocate: the view on the fields of the message, the
+ * parsed and boxed values, and the copy of the update taken by the sender.
+ * <p>
+ * Publishers of many machines can send their data in one message to {@link #BULK_ADDRESS} or with one request to the HTTP API,
+ * see {@link #handleBulk(JsonArray, Handler)}.
+ * <p>
+ * In a cluster, the data of a machine is only forwarded by the node owning its machine key, so that the updates of a machine
+ * are always sent by the same node. Set machine data events are delivered to all nodes and ignored by all but the owner, the
+ * machines of bulk messages are forwarded to their owners. A starting node does not know the owners until it has joined the
+ * cluster, while the running nodes already leave the machines of the new node to it. Events received before joining are
+ * therefore kept, up to {@link #MAX_PENDING_EVENTS}, and handled once joined; events exceeding the limit are dropped and counted.
+ */
 public class SetMachineDataEventHandler implements Handler<Message<JsonObject>> {
 	private static final Logger logger = LoggerFactory.getLogger(SetMachineDataEventHandler.class);
-	
-	private final HttpClient midClient;
-	private final String midBasePath;
-	private RestClient client;
-	
+	public static final int MAX_PENDING_EVENTS = 10000;
+
+	private final MidSender sender;
+	private final Map<String, CachedMachine> machines; // Machine key -> template and update of the machine
+	private Vertx vertx;
+	private ClusterMembership cluster; // Null if not clustered
+	private final List<Message<JsonObject>> pendingEvents = new ArrayList<>(); // Events received before joining the cluster
+	private long droppedEvents = 0;
+
 	public static String ADDRESS = "appsist:event:" + SetMachineDataEvent.MODEL_ID;
-	
-	public SetMachineDataEventHandler(Vertx vertx, int port, boolean secure, String midBasePath) {
-		midClient = vertx.createHttpClient();
-		midClient.setHost("localhost");
-		midClient.setPort(port);
-		midClient.setSSL(secure);
-		this.midBasePath = midBasePath;
-	}
-	
+	public static String BULK_ADDRESS = ADDRESS + ":bulk";
+
+	public SetMachineDataEventHandler(MidSender sender) {
+		this.sender = sender;
+		this.machines = new HashMap<>();
+	}
+
 	public void initializeRESTConnection() {
-		client = new RestClient(midClient.getHost(), midClient.getPort(), this.midBasePath);
+		sender.connect();
+	}
+
+	/**
+	 * Only forwards the machines owned by this node of a cluster and accepts the bulk data of machines owned by this node from the
+	 * other nodes. Events received before the node joined are handled when it joins.
+	 * @param vertx Vert.x instance to communicate with the other nodes.
+	 * @param cluster Cluster membership.
+	 */
+	public void setCluster(Vertx vertx, final ClusterMembership cluster) {
+		this.vertx = vertx;
+		this.cluster = cluster;
+		cluster.addChangeHandler(new Handler<Void>() {
+			@Override
+			public void handle(Void event) {
+				if (cluster.hasJoined()) {
+					handlePendingEvents();
+				}
+			}
+		});
+		sender.getMetrics().registerGauge("pendingEvents", null, new SimulatorMetrics.Gauge() {
+			@Override
+			public double getValue() {
+				return pendingEvents.size();
+			}
+		});
+		sender.getMetrics().registerGauge("droppedEvents", null, new SimulatorMetrics.Gauge() {
+			@Override
+			public double getValue() {
+				return droppedEvents;
+			}
+		});
+		vertx.eventBus().registerHandler(getNodeBulkAddress(cluster.getNodeId()), new Handler<Message<JsonObject>>() {
+			@Override
+			public void handle(Message<JsonObject> message) {
+				JsonObject body = message.body();
+				sendBulk(body.getArray("machines", new JsonArray()), body.getArray("indices"), replyHandler(message));
+			}
+		});
+	}
+
+	private String getNodeBulkAddress(String node) {
+		return cluster.getNodeAddress(node) + ":bulk";
+	}
+
+	/**
+	 * Handles the events received before the node joined the cluster.
+	 */
+	private void handlePendingEvents() {
+		if (pendingEvents.isEmpty()) {
+			return;
+		}
+		List<Message<JsonObject>> events = new ArrayList<>(pendingEvents);
+		pendingEvents.clear();
+		logger.info("Joined the cluster, handling " + events.size() + " set machine data events received before.");
+		for (Message<JsonObject> event : events) {
+			handle(event);
+		}
 	}
-	
+
 	@Override
 	public void handle(Message<JsonObject> message) {
-		SetMachineDataEvent event = EventUtil.parseEvent(message.body().toMap(), SetMachineDataEvent.class);
-		logger.debug("Received Event: " + event);
-
-		Machine machine = new Machine(event.getVendorId(), event.getMachineId(), event.getSerialNumber());
-		
-		MachineSchema machineSchema = new MachineSchema(machine, event.getStationId(), event.getSiteId());
-		MachineData machineData = new MachineData(machine);
-		
-		for (Field f : event.getFields()) {
-			MachineValueType machineValueType = MachineValueType.byIdentifier(f.getMachineValueType());
-			
-			Unit unit = new Unit(f.getUnit());
-			VisualizationType visualizationType = VisualizationType.byName(f.getVisualizationType());
-			VisualizationLevel visualizationLevel = VisualizationLevel.byName(f.getVisualizationLevel());
-			machineSchema.addField(new MachineValueSpecification(f.getName(),  machineValueType, unit, visualizationType, visualizationLevel));
-			
-			switch(machineValueType) {
-			case BOOL:
-				boolean v1 = Boolean.getBoolean(f.getValue());
-				machineData.put(f.getName(), v1);
-				break;
-			case LONG:
-				long v2 = Long.parseLong(f.getValue());
-				machineData.put(f.getName(), v2);
-				break;
-			case DOUBLE:
-				double v3 = Double.parseDouble(f.getValue());
-				machineData.put(f.getName(), v3);
-				break;
-			case STRING:
-				machineData.put(f.getName(), f.getValue());
-				break;
-			}
-		}
-		
-		SchemaMessage schemaMessage = new SchemaMessage();
-		schemaMessage.addSchema(machineSchema);
-		
-		DataMessage dataMessage = new DataMessage();
- 		try {
- 			dataMessage.addMachineData(machineData, machineSchema);
- 		} catch (DataSchemaMismatchException e) {
- 			logger.error("ERROR: There was a mismatch between the schema and data of SetMachineDataEvent! NO DATA sent!");
- 		}
- 		// Send
- 		client.send(ContentType.JSON, schemaMessage);
- 		client.send(ContentType.JSON, dataMessage);
- 		// End
- 		logger.debug("SetMachineDataEvent has been forwarded to REST API.");
+		if (cluster != null && !cluster.hasJoined()) {
+			if (pendingEvents.size() < MAX_PENDING_EVENTS) {
+				pendingEvents.add(message);
+			} else if (droppedEvents++ % MAX_PENDING_EVENTS == 0) {
+				logger.warn("Dropped " + droppedEvents + " set machine data events received before joining the cluster.");
+			}
+			return;
+		}
+		JsonObject body = message.body();
+		JsonObject payload = body.getObject("payload");
+		if (payload == null) {
+			payload = body;
+		}
+		String vendorId = payload.getString("vendorId");
+		String machineId = payload.getString("machineId");
+		String serialNumber = payload.getString("serialNumber");
+		String stationId = payload.getString("stationId");
+		String siteId = payload.getString("siteId");
+		JsonArray fieldArray = payload.getArray("fields");
+		EventFields fields = fieldArray != null ? JsonEventFields.create(fieldArray) : null;
+		if (vendorId == null || machineId == null || serialNumber == null || stationId == null || siteId == null || fields == null) {
+			SetMachineDataEvent event = EventUtil.parseEvent(body.toMap(), SetMachineDataEvent.class);
+			vendorId = event.getVendorId();
+			machineId = event.getMachineId();
+			serialNumber = event.getSerialNumber();
+			stationId = event.getStationId();
+			siteId = event.getSiteId();
+			fields = new ParsedEventFields(event.getFields());
+		}
+		if (cluster != null && !cluster.isLocal(SchemaRegistry.machineKey(vendorId, machineId, serialNumber))) {
+			return;
+		}
+		logger.debug("Received SetMachineDataEvent for machine " + vendorId + "/" + machineId + "/" + serialNumber + ".");
+
+		MachineUpdate machineData;
+		try {
+			machineData = toUpdate(vendorId, machineId, serialNumber, stationId, siteId, fields);
+		} catch (IllegalArgumentException e) {
+			logger.error("ERROR: There was a mismatch between the schema and data of SetMachineDataEvent! NO DATA sent! " + e.getMessage());
+			return;
+		}
+
+		// Send, the schema is only sent if it is not registered yet. The sender copies the update, so it is reused for the next event.
+		sender.send(machineData, null);
+		// End
+		logger.debug("SetMachineDataEvent has been forwarded to REST API.");
+	}
+
+	/**
+	 * Forwards the data of multiple machines received on {@link #BULK_ADDRESS}. The body contains the array "machines", see
+	 * {@link #handleBulk(JsonArray, Handler)}. The message is replied to with the result once the MID acknowledged the updates.
+	 * @param message Message with the machine data.
+	 */
+	public void handleBulk(final Message<JsonObject> message) {
+		JsonArray machines = message.body().getArray("machines");
+		if (machines == null) {
+			message.reply(new JsonObject().putString("status", "error").putString("message", "Missing array of machines."));
+			return;
+		}
+		handleBulk(machines, replyHandler(message));
+	}
+
+	private static Handler<AsyncResult<JsonObject>> replyHandler(final Message<JsonObject> message) {
+		return new Handler<AsyncResult<JsonObject>>() {
+			@Override
+			public void handle(AsyncResult<JsonObject> result) {
+				if (result.succeeded()) {
+					message.reply(result.result().putString("status", "ok"));
+				} else {
+					message.reply(new JsonObject().putString("status", "error").putString("message", result.cause().getMessage()));
+				}
+			}
+		};
+	}
+
+	/**
+	 * Forwards the data of multiple machines. Each machine is given as object with the layout of the payload of a set machine data
+	 * event: "vendorId", "machineId", "serialNumber", "stationId", "siteId" and the array "fields". The updates of all valid machines
+	 * are sent as one batch, so that they are sent with a single data message unless they exceed the maximum batch size. If a
+	 * machine occurs more than once, its last values are sent.
+	 * @param machines Array of machine data objects.
+	 * @param resultHandler Handler called when the MID acknowledged the updates, with the number of machines accepted and rejected
+	 * and the errors of the rejected machines.
+	 */
+	public void handleBulk(JsonArray machines, final Handler<AsyncResult<JsonObject>> resultHandler) {
+		if (cluster == null) {
+			sendBulk(machines, null, resultHandler);
+			return;
+		}
+		// Machines without identity are rejected by this node.
+		Map<String, JsonArray> machinesByOwner = new HashMap<>();
+		Map<String, JsonArray> indicesByOwner = new HashMap<>();
+		for (int i = 0; i < machines.size(); i++) {
+			Object machine = machines.get(i);
+			String owner = cluster.getNodeId();
+			if (machine instanceof JsonObject) {
+				JsonObject payload = (JsonObject) machine;
+				String vendorId = payload.getString("vendorId"), machineId = payload.getString("machineId"), serialNumber = payload.getString("serialNumber");
+				if (vendorId != null && machineId != null && serialNumber != null) {
+					owner = cluster.getOwner(SchemaRegistry.machineKey(vendorId, machineId, serialNumber));
+					if (owner == null) {
+						resultHandler.handle(new DefaultFutureResult<JsonObject>(new IllegalStateException("Node has not joined the cluster yet.")));
+						return;
+					}
+				}
+			}
+			if (!machinesByOwner.containsKey(owner)) {
+				machinesByOwner.put(owner, new JsonArray());
+				indicesByOwner.put(owner, new JsonArray());
+			}
+			machinesByOwner.get(owner).add(machine);
+			indicesByOwner.get(owner).addNumber(i);
+		}
+		BulkResult result = new BulkResult(machinesByOwner.size(), resultHandler);
+		for (Map.Entry<String, JsonArray> entry : machinesByOwner.entrySet()) {
+			String owner = entry.getKey();
+			JsonArray indices = indicesByOwner.get(owner);
+			if (owner.equals(cluster.getNodeId())) {
+				sendBulk(entry.getValue(), indices, result);
+			} else {
+				forwardBulk(owner, new JsonObject().putArray("machines", entry.getValue()).putArray("indices", indices), result);
+			}
+		}
+	}
+
+	private void forwardBulk(final String owner, JsonObject request, final Handler<AsyncResult<JsonObject>> resultHandler) {
+		vertx.eventBus().sendWithTimeout(getNodeBulkAddress(owner), request, cluster.getForwardTimeout(), new Handler<AsyncResult<Message<JsonObject>>>() {
+			@Override
+			public void handle(AsyncResult<Message<JsonObject>> reply) {
+				if (reply.failed()) {
+					resultHandler.handle(new DefaultFutureResult<JsonObject>(new IllegalStateException("Node " + owner + " did not respond: " + reply.cause().getMessage())));
+				} else if (!"ok".equals(reply.result().body().getString("status"))) {
+					resultHandler.handle(new DefaultFutureResult<JsonObject>(new IllegalStateException(reply.result().body().getString("message"))));
+				} else {
+					resultHandler.handle(new DefaultFutureResult<JsonObject>(reply.result().body()));
+				}
+			}
+		});
+	}
+
+	/**
+	 * Sends the data of machines owned by this node as one batch.
+	 * @param machines Array of machine data objects.
+	 * @param indices Indices of the machines in the original request, used in the error messages, <code>null</code> if the array
+	 * is the original request.
+	 * @param resultHandler Handler called when the MID acknowledged the updates.
+	 */
+	private void sendBulk(JsonArray machines, JsonArray indices, final Handler<AsyncResult<JsonObject>> resultHandler) {
+		Map<String, MachineUpdate> updates = new LinkedHashMap<>();
+		JsonArray errors = new JsonArray();
+		for (int i = 0; i < machines.size(); i++) {
+			Object machine = machines.get(i);
+			try {
+				if (!(machine instanceof JsonObject)) {
+					throw new IllegalArgumentException("Machine data must be an object.");
+				}
+				JsonObject payload = (JsonObject) machine;
+				JsonArray fieldArray = payload.getArray("fields");
+				EventFields fields = fieldArray != null ? JsonEventFields.create(fieldArray) : null;
+				if (fields == null) {
+					throw new IllegalArgumentException("Missing fields or field without name or type.");
+				}
+				MachineUpdate update = toUpdate(payload.getString("vendorId"), payload.getString("machineId"), payload.getString("serialNumber"),
+						payload.getString("stationId"), payload.getString("siteId"), fields);
+				updates.put(update.getMachineKey(), update);
+			} catch (IllegalArgumentException e) {
+				errors.addString("Machine " + (indices != null ? indices.get(i) : i) + ": " + e.getMessage());
+			}
+		}
+		if (errors.size() > 0) {
+			logger.warn("Rejected " + errors.size() + " of " + machines.size() + " machines of bulk machine data: " + errors.get(0));
+		}
+		final JsonObject result = new JsonObject();
+		result.putNumber("accepted", machines.size() - errors.size());
+		result.putNumber("rejected", errors.size());
+		result.putArray("errors", errors);
+		if (updates.isEmpty()) {
+			resultHandler.handle(new DefaultFutureResult<JsonObject>(result));
+			return;
+		}
+		try {
+			sender.send(new ArrayList<>(updates.values()), new Handler<AsyncResult<Void>>() {
+				@Override
+				public void handle(AsyncResult<Void> sendResult) {
+					if (sendResult.succeeded()) {
+						resultHandler.handle(new DefaultFutureResult<JsonObject>(result));
+					} else {
+						resultHandler.handle(new DefaultFutureResult<JsonObject>(sendResult.cause()));
+					}
+				}
+			});
+		} catch (IllegalStateException e) {
+			resultHandler.handle(new DefaultFutureResult<JsonObject>(e));
+		}
+	}
+
+	/**
+	 * Result of a bulk request split among the nodes of a cluster, combining the results of all nodes.
+	 * The request fails if any node failed to send its machines.
+	 */
+	private static class BulkResult implements Handler<AsyncResult<JsonObject>> {
+		private final Handler<AsyncResult<JsonObject>> resultHandler;
+		private final JsonObject result;
+		private int pending;
+		private Throwable cause;
+
+		private BulkResult(int parts, Handler<AsyncResult<JsonObject>> resultHandler) {
+			this.pending = parts;
+			this.resultHandler = resultHandler;
+			this.result = new JsonObject().putNumber("accepted", 0).putNumber("rejected", 0).putArray("errors", new JsonArray());
+		}
+
+		@Override
+		public void handle(AsyncResult<JsonObject> part) {
+			if (part.failed()) {
+				cause = part.cause();
+			} else {
+				result.putNumber("accepted", result.getInteger("accepted") + part.result().getInteger("accepted", 0));
+				result.putNumber("rejected", result.getInteger("rejected") + part.result().getInteger("rejected", 0));
+				for (Object error : part.result().getArray("errors", new JsonArray())) {
+					result.getArray("errors").add(error);
+				}
+			}
+			if (--pending == 0) {
+				resultHandler.handle(cause != null ? new DefaultFutureResult<JsonObject>(cause) : new DefaultFutureResult<JsonObject>(result));
+			}
+		}
+	}
+
+	/**
+	 * Parses the body of a bulk request: Either an array of machine data objects or an object containing it as "machines".
+	 * @param body Body of the request.
+	 * @return Array of machine data objects, see {@link #handleBulk(JsonArray, Handler)}.
+	 * @throws DecodeException The body is not valid JSON or lacks the array of machines.
+	 */
+	public static JsonArray parseBulk(String body) throws DecodeException {
+		String json = body.trim();
+		if (json.startsWith("[")) {
+			return new JsonArray(json);
+		}
+		JsonArray machines = new JsonObject(json).getArray("machines");
+		if (machines == null) {
+			throw new DecodeException("Missing array of machines.");
+		}
+		return machines;
+	}
+
+	/**
+	 * Creates the update of a machine from the fields of an event. The template of the machine is compiled if it is not cached yet
+	 * or the station or fields changed.
+	 * @return Update of the machine, reused for all events of the machine.
+	 * @throws IllegalArgumentException The identity or station of the machine is missing, a field is invalid or a value does not
+	 * match its field. The update is not modified in this case.
+	 */
+	private MachineUpdate toUpdate(String vendorId, String machineId, String serialNumber, String stationId, String siteId, EventFields fields)
+			throws IllegalArgumentException {
+		if (vendorId == null || machineId == null || serialNumber == null) {
+			throw new IllegalArgumentException("Missing vendor ID, machine ID or serial number.");
+		}
+		String machineKey = SchemaRegistry.machineKey(vendorId, machineId, serialNumber);
+		CachedMachine machine = machines.get(machineKey);
+		if (machine == null || !machine.matches(stationId, siteId, fields)) {
+			machine = new CachedMachine(vendorId, machineId, serialNumber, stationId, siteId, fields);
+			machines.put(machineKey, machine);
+		}
+		// All values are parsed and checked against their field before any is set, so that an invalid event does not leave some of
+		// its values in the update.
+		for (int field = 0; field < fields.size(); field++) {
+			machine.values[field] = parseValue(machine.template, field, fields.getValue(field));
+		}
+		for (int field = 0; field < fields.size(); field++) {
+			machine.update.set(field, machine.values[field]);
+		}
+		return machine.update;
+	}
+
+	/**
+	 * Parses the value of a field. Values are usually transmitted as strings, but values of the field type are accepted as well.
+	 * @param template Template of the machine.
+	 * @param field Index of the field.
+	 * @param value Value of the event.
+	 * @return Boolean, Long, Double or String depending on the field type, accepted by {@link MachineUpdate#set(int, Object)}.
+	 * @throws IllegalArgumentException The value is missing or does not match the field type.
+	 */
+	private static Object parseValue(MachineTemplate template, int field, Object value) throws IllegalArgumentException {
+		if (value == null) {
+			throw new IllegalArgumentException("Missing value for field " + template.getFieldName(field));
+		}
+		if (!(value instanceof String)) {
+			return MachineTemplate.checkValue(template.getFieldName(field), template.getFieldType(field), value);
+		}
+		String string = (String) value;
+		switch (template.getFieldType(field)) {
+		case BOOL:
+			return Boolean.parseBoolean(string);
+		case LONG:
+			return Long.parseLong(string);
+		case DOUBLE:
+			return Double.parseDouble(string);
+		default:
+			return string;
+		}
+	}
+
+	/**
+	 * Fields of an event, either read from the message body or from the parsed event.
+	 */
+	private interface EventFields {
+		public int size();
+		public String getName(int field);
+		public String getType(int field);
+		public String getUnit(int field);
+		public String getVisualizationType(int field);
+		public String getVisualizationLevel(int field);
+		public Object getValue(int field);
+	}
+
+	/**
+	 * Fields read from the message body.
+	 */
+	private static class JsonEventFields implements EventFields {
+		private final JsonObject[] fields;
+
+		private JsonEventFields(JsonObject[] fields) {
+			this.fields = fields;
+		}
+
+		/**
+		 * Reads the fields of a message body.
+		 * @param fieldArray Array of field objects.
+		 * @return Fields or <code>null</code> if a field is not an object or lacks its name or type.
+		 */
+		private static JsonEventFields create(JsonArray fieldArray) {
+			JsonObject[] fields = new JsonObject[fieldArray.size()];
+			for (int i = 0; i < fields.length; i++) {
+				Object field = fieldArray.get(i);
+				if (!(field instanceof JsonObject)) {
+					return null;
+				}
+				fields[i] = (JsonObject) field;
+				if (fields[i].getString("name") == null || fields[i].getString("machineValueType") == null) {
+					return null;
+				}
+			}
+			return new JsonEventFields(fields);
+		}
+
+		@Override
+		public int size() {
+			return fields.length;
+		}
+
+		@Override
+		public String getName(int field) {
+			return fields[field].getString("name");
+		}
+
+		@Override
+		public String getType(int field) {
+			return fields[field].getString("machineValueType");
+		}
+
+		@Override
+		public String getUnit(int field) {
+			return fields[field].getString("unit");
+		}
+
+		@Override
+		public String getVisualizationType(int field) {
+			return fields[field].getString("visualizationType");
+		}
+
+		@Override
+		public String getVisualizationLevel(int field) {
+			return fields[field].getString("visualizationLevel");
+		}
+
+		@Override
+		public Object getValue(int field) {
+			return fields[field].getValue("value");
+		}
+	}
+
+	/**
+	 * Fields of an event parsed with {@link EventUtil}.
+	 */
+	private static class ParsedEventFields implements EventFields {
+		private final List<Field> fields;
+
+		private ParsedEventFields(List<Field> fields) {
+			this.fields = fields;
+		}
+
+		@Override
+		public int size() {
+			return fields.size();
+		}
+
+		@Override
+		public String getName(int field) {
+			return fields.get(field).getName();
+		}
+
+		@Override
+		public String getType(int field) {
+			return fields.get(field).getMachineValueType();
+		}
+
+		@Override
+		public String getUnit(int field) {
+			return fields.get(field).getUnit();
+		}
+
+		@Override
+		public String getVisualizationType(int field) {
+			return fields.get(field).getVisualizationType();
+		}
+
+		@Override
+		public String getVisualizationLevel(int field) {
+			return fields.get(field).getVisualizationLevel();
+		}
+
+		@Override
+		public Object getValue(int field) {
+			return fields.get(field).getValue();
+		}
+	}
+
+	/**
+	 * Template compiled from the events of a machine, with the field specifications it has been compiled from.
+	 */
+	private static class CachedMachine {
+		private final MachineTemplate template;
+		private final MachineUpdate update;
+		private final String stationId;
+		private final String siteId;
+		private final String[] fieldSpecifications; // Name, type, unit, visualization type and level of each field
+		private final Object[] values; // Values of the event being parsed
+
+		/**
+		 * Compiles the template of a machine.
+		 * @throws IllegalArgumentException A field has an invalid type or the template has no fields.
+		 */
+		private CachedMachine(String vendorId, String machineId, String serialNumber, String stationId, String siteId, EventFields fields)
+				throws IllegalArgumentException {
+			MachineTemplate.Builder templateBuilder = new MachineTemplate.Builder(vendorId, machineId)
+					.scenario("setMachineDataEvent")
+					.station(stationId, siteId);
+			fieldSpecifications = new String[fields.size() * 5];
+			for (int field = 0; field < fields.size(); field++) {
+				MachineValueType machineValueType = MachineValueType.byIdentifier(fields.getType(field));
+				if (machineValueType == null) {
+					throw new IllegalArgumentException("Invalid type for field " + fields.getName(field) + ": " + fields.getType(field));
+				}
+				VisualizationType visualizationType = VisualizationType.byName(fields.getVisualizationType(field));
+				VisualizationLevel visualizationLevel = VisualizationLevel.byName(fields.getVisualizationLevel(field));
+				templateBuilder.field(fields.getName(field), machineValueType, fields.getUnit(field), visualizationType, visualizationLevel);
+				fieldSpecifications[field * 5] = fields.getName(field);
+				fieldSpecifications[field * 5 + 1] = fields.getType(field);
+				fieldSpecifications[field * 5 + 2] = fields.getUnit(field);
+				fieldSpecifications[field * 5 + 3] = fields.getVisualizationType(field);
+				fieldSpecifications[field * 5 + 4] = fields.getVisualizationLevel(field);
+			}
+			this.template = templateBuilder.build();
+			this.update = new MachineUpdate(template, serialNumber);
+			this.stationId = stationId;
+			this.siteId = siteId;
+			this.values = new Object[fields.size()];
+		}
+
+		/**
+		 * Checks whether an event of the machine matches the template, i.e. has the same station and fields in the same order.
+		 */
+		private boolean matches(String stationId, String siteId, EventFields fields) {
+			if (!this.stationId.equals(stationId) || !this.siteId.equals(siteId) || fieldSpecifications.length != fields.size() * 5) {
+				return false;
+			}
+			for (int field = 0; field < fields.size(); field++) {
+				if (!equals(fieldSpecifications[field * 5], fields.getName(field))
+						|| !equals(fieldSpecifications[field * 5 + 1], fields.getType(field))
+						|| !equals(fieldSpecifications[field * 5 + 2], fields.getUnit(field))
+						|| !equals(fieldSpecifications[field * 5 + 3], fields.getVisualizationType(field))
+						|| !equals(fieldSpecifications[field * 5 + 4], fields.getVisualizationLevel(field))) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private static boolean equals(String a, String b) {
+			return a == null ? b == null : a.equals(b);
+		}
 	}
 }
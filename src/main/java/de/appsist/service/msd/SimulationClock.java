@@ -0,0 +1,274 @@
+package de.appsist.service.msd;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.core.logging.impl.LoggerFactory;
+
+/**
+ * Time and randomness of the simulations.
+ * <p>
+ * Random numbers are drawn from one generator per simulation, seeded from the configured seed and the name of the simulation. A run
+ * with the same seed, rates and actions therefore generates the same values, independent of how the simulations interleave. If no
+ * seed is configured, one is chosen at startup and logged, so any run can be repeated. The messages sent to the MID are only the same
+ * if their grouping and content do not depend on the timing of the MID, see {@link #isReproducible(MidSender)}.
+ * <p>
+ * In real time mode, load generators are paced by the wall clock. In virtual mode, the clock only advances with the ticks of the
+ * running load generators: Ticks are executed in the order of their simulated time, as fast as the MID acknowledges the data, without
+ * waiting for timers. At most the configured number of MID requests is in flight and no ticks are executed while the outbound queue
+ * blocks producers, so a slow MID slows down the simulated time instead of filling the memory. Unlike in real time mode, ticks held
+ * back by the queue are never skipped.
+ * <p>
+ * The configuration is read from the "simulation" object of the service configuration:
+ * <pre>
+ * "simulation" : {
+ *   "seed" : 42,
+ *   "clock" : "virtual",
+ *   "startTime" : 1432201800000,
+ *   "maxInFlight" : 8
+ * }
+ * </pre>
+ * All methods have to be called from the event loop of the verticle.
+ */
+public class SimulationClock {
+	private static final Logger logger = LoggerFactory.getLogger(SimulationClock.class);
+	private static final int MAX_TICKS_PER_TURN = 1000; // Ticks executed before other events of the event loop are handled
+	private static final long BACKPRESSURE_DELAY = 1L; // Milliseconds to wait for acknowledgements of the MID
+
+	private final Vertx vertx;
+	private final MidTransport transport;
+	private final long seed;
+	private final boolean virtual;
+	private final long startTime;
+	private final int maxInFlight;
+	private final List<LoadGenerator> generators; // Running generators in virtual mode, in the order they have been started
+	private OutboundQueue queue;
+	private final Handler<Void> turnHandler;
+	private final Handler<Long> backpressureHandler;
+	private long virtualNanos = 0; // Simulated time since the start time
+	private boolean scheduled = false;
+	private int holds = 0; // Ticks completing asynchronously, holding back further ticks in virtual mode
+	private long throttledTurns = 0;
+
+	/**
+	 * Creates a clock.
+	 * @param vertx Vert.x instance to schedule virtual ticks with.
+	 * @param config Configuration of the simulation, may be <code>null</code> for a real time clock with random seed.
+	 * @param transport Transport whose requests in flight limit the pace in virtual mode.
+	 * @throws IllegalArgumentException The configuration is invalid.
+	 */
+	public SimulationClock(Vertx vertx, JsonObject config, MidTransport transport) throws IllegalArgumentException {
+		if (config == null) {
+			config = new JsonObject();
+		}
+		this.vertx = vertx;
+		this.transport = transport;
+		Number configuredSeed = config.getNumber("seed");
+		this.seed = configuredSeed != null ? configuredSeed.longValue() : System.nanoTime();
+		String clock = config.getString("clock", "real");
+		if (!"real".equals(clock) && !"virtual".equals(clock)) {
+			throw new IllegalArgumentException("Clock must be real or virtual: " + clock);
+		}
+		this.virtual = "virtual".equals(clock);
+		this.startTime = config.getLong("startTime", System.currentTimeMillis());
+		this.maxInFlight = config.getInteger("maxInFlight", 8);
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException("Maximum number of requests in flight must be positive.");
+		}
+		this.generators = new ArrayList<>();
+		this.turnHandler = new Handler<Void>() {
+			@Override
+			public void handle(Void event) {
+				scheduled = false;
+				runTurn();
+			}
+		};
+		this.backpressureHandler = new Handler<Long>() {
+			@Override
+			public void handle(Long timerId) {
+				scheduled = false;
+				runTurn();
+			}
+		};
+		logger.info("Simulation uses " + clock + " clock with seed " + seed + ".");
+	}
+
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	/**
+	 * Sets the queue whose backpressure holds back the ticks in virtual mode.
+	 * @param queue Outbound queue to the MID, <code>null</code> to only limit the requests in flight.
+	 */
+	public void setOutboundQueue(OutboundQueue queue) {
+		this.queue = queue;
+	}
+
+	/**
+	 * Returns whether the messages sent to the MID are reproducible with this clock and sender: The clock has to be virtual with
+	 * one request in flight, and the sender must neither batch updates nor reduce them to changed values, as the grouping of updates
+	 * into messages and the values omitted depend on the timing and the responses of the MID. Queued updates must not be coalesced
+	 * or dropped for the same reason. Otherwise, only the generated values are reproducible.
+	 * @param sender Sender of the simulations.
+	 * @return <code>true</code> if a run with the same seed, rates and actions sends the same messages, provided that the MID
+	 * accepts all of them.
+	 */
+	public boolean isReproducible(MidSender sender) {
+		return virtual && maxInFlight == 1 && sender.getBatcher() == null && sender.getDeltaTracker() == null
+				&& (sender.getQueue() == null || sender.getQueue().getPolicy() == OutboundQueue.OverflowPolicy.BLOCK);
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * Returns the current time of the simulation.
+	 * @return Wall clock time in real time mode, start time plus the simulated time in virtual mode, in milliseconds.
+	 */
+	public long currentTimeMillis() {
+		return virtual ? startTime + virtualNanos / 1000000L : System.currentTimeMillis();
+	}
+
+	/**
+	 * Creates the random number generator of a simulation. Generators created for the same name produce the same sequence.
+	 * @param name Name of the simulation, e.g. of the scenario.
+	 * @return Random number generator, not thread-safe.
+	 */
+	public Random createRandom(String name) {
+		return new SimulationRandom(seed ^ (name.hashCode() * 0x9E3779B97F4A7C15L));
+	}
+
+	/**
+	 * Returns the simulated time in virtual mode.
+	 * @return Nanoseconds since the start time.
+	 */
+	long getVirtualNanos() {
+		return virtualNanos;
+	}
+
+	/**
+	 * Adds a generator to the ticks executed in virtual mode.
+	 * @param generator Generator to add.
+	 */
+	void add(LoadGenerator generator) {
+		if (!generators.contains(generator)) {
+			generators.add(generator);
+		}
+		schedule();
+	}
+
+	/**
+	 * Removes a generator from the ticks executed in virtual mode.
+	 * @param generator Generator to remove.
+	 */
+	void remove(LoadGenerator generator) {
+		generators.remove(generator);
+	}
+
+	/**
+	 * Holds back further ticks in virtual mode until {@link #release()} is called, e.g. while a tick completes asynchronously, so
+	 * that the next tick starts from its results.
+	 */
+	void hold() {
+		holds++;
+	}
+
+	/**
+	 * Releases a hold of {@link #hold()} and continues the ticks in virtual mode once all holds are released.
+	 */
+	void release() {
+		if (--holds == 0 && !generators.isEmpty()) {
+			schedule();
+		}
+	}
+
+	private void schedule() {
+		if (!scheduled) {
+			scheduled = true;
+			vertx.runOnContext(turnHandler);
+		}
+	}
+
+	/**
+	 * Executes the next ticks of the running generators in the order of their simulated time.
+	 */
+	private void runTurn() {
+		for (int i = 0; i < MAX_TICKS_PER_TURN; i++) {
+			if (generators.isEmpty() || holds > 0) {
+				// Scheduled again once the last hold is released.
+				return;
+			}
+			if (transport.getInFlight() >= maxInFlight || queue != null && queue.isBlocking()) {
+				throttledTurns++;
+				scheduled = true;
+				vertx.setTimer(BACKPRESSURE_DELAY, backpressureHandler);
+				return;
+			}
+			LoadGenerator next = null;
+			for (LoadGenerator generator : generators) {
+				if (next == null || generator.getNextTickNanos() < next.getNextTickNanos()) {
+					next = generator;
+				}
+			}
+			virtualNanos = Math.max(virtualNanos, next.getNextTickNanos());
+			next.tick();
+		}
+		schedule();
+	}
+
+	/**
+	 * Returns a JSON representation of the clock.
+	 * @return JSON object.
+	 */
+	public JsonObject asJson() {
+		JsonObject json = new JsonObject();
+		json.putString("clock", virtual ? "virtual" : "real");
+		json.putNumber("seed", seed);
+		json.putNumber("time", currentTimeMillis());
+		if (virtual) {
+			json.putNumber("simulatedSeconds", virtualNanos / 1e9d);
+			json.putNumber("throttledTurns", throttledTurns);
+		}
+		return json;
+	}
+
+	/**
+	 * Random number generator with a plain 64 bit state (SplitMix64). Unlike {@link Random}, it does not synchronize on each number.
+	 */
+	private static class SimulationRandom extends Random {
+		private static final long serialVersionUID = 1L;
+
+		private long state;
+
+		private SimulationRandom(long seed) {
+			super(seed);
+			this.state = seed;
+		}
+
+		@Override
+		public synchronized void setSeed(long seed) {
+			state = seed;
+			super.setSeed(seed);
+		}
+
+		@Override
+		protected int next(int bits) {
+			return (int) (nextLong() >>> (64 - bits));
+		}
+
+		@Override
+		public long nextLong() {
+			long z = (state += 0x9E3779B97F4A7C15L);
+			z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+			z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+			return z ^ (z >>> 31);
+		}
+	}
+}
@@ -0,0 +1,246 @@
+package de.appsist.service.msd;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Metrics of the simulator: Counters of updates sent, failed, retried and dropped per scenario and per machine, round-trip latencies of
+ * the requests to the MID and gauges such as the current simulation rates. All methods have to be called from the event loop of
+ * the verticle.
+ */
+public class SimulatorMetrics {
+	/**
+	 * Value sampled when the metrics are reported.
+	 */
+	public interface Gauge {
+		public double getValue();
+	}
+
+	private final Map<String, Counters> scenarioCounters;
+	private final Map<String, Counters> machineCounters;
+	private final LatencyHistogram schemaRoundTrip;
+	private final LatencyHistogram dataRoundTrip;
+	private final Map<String, Map<String, Gauge>> gauges; // Gauge name -> scenario (or null) -> gauge
+
+	public SimulatorMetrics() {
+		scenarioCounters = new LinkedHashMap<>();
+		machineCounters = new HashMap<>();
+		schemaRoundTrip = new LatencyHistogram();
+		dataRoundTrip = new LatencyHistogram();
+		gauges = new LinkedHashMap<>();
+	}
+
+	/**
+	 * Counts an update acknowledged by the MID.
+	 * @param update Update sent.
+	 */
+	public void updateSent(MachineUpdate update) {
+		getScenarioCounters(update).sent++;
+		getMachineCounters(update).sent++;
+	}
+
+	/**
+	 * Counts an update which could not be sent.
+	 * @param update Update failed.
+	 */
+	public void updateFailed(MachineUpdate update) {
+		getScenarioCounters(update).failed++;
+		getMachineCounters(update).failed++;
+	}
+
+	/**
+	 * Counts an update sent again after a failure.
+	 * @param update Update retried.
+	 */
+	public void updateRetried(MachineUpdate update) {
+		getScenarioCounters(update).retried++;
+		getMachineCounters(update).retried++;
+	}
+
+	/**
+	 * Counts an update dropped or rejected by the outbound queue.
+	 * @param update Update dropped.
+	 */
+	public void updateDropped(MachineUpdate update) {
+		getScenarioCounters(update).dropped++;
+		getMachineCounters(update).dropped++;
+	}
+
+	private Counters getScenarioCounters(MachineUpdate update) {
+		String scenario = update.getTemplate().getScenario();
+		Counters counters = scenarioCounters.get(scenario);
+		if (counters == null) {
+			counters = new Counters();
+			scenarioCounters.put(scenario, counters);
+		}
+		return counters;
+	}
+
+	private Counters getMachineCounters(MachineUpdate update) {
+		Counters counters = machineCounters.get(update.getMachineKey());
+		if (counters == null) {
+			counters = new Counters();
+			machineCounters.put(update.getMachineKey(), counters);
+		}
+		return counters;
+	}
+
+	/**
+	 * Records the round-trip time of a schema message.
+	 * @param micros Time from sending the request to receiving the response in microseconds.
+	 */
+	public void recordSchemaRoundTrip(long micros) {
+		schemaRoundTrip.record(micros);
+	}
+
+	/**
+	 * Records the round-trip time of a data message.
+	 * @param micros Time from sending the request to receiving the response in microseconds.
+	 */
+	public void recordDataRoundTrip(long micros) {
+		dataRoundTrip.record(micros);
+	}
+
+	/**
+	 * Registers a gauge. A gauge registered with the same name and scenario before is replaced.
+	 * @param name Name of the gauge, e.g. "simulationRate".
+	 * @param scenario Scenario the gauge belongs to, <code>null</code> for global gauges.
+	 * @param gauge Gauge to register.
+	 */
+	public void registerGauge(String name, String scenario, Gauge gauge) {
+		Map<String, Gauge> gaugesByScenario = gauges.get(name);
+		if (gaugesByScenario == null) {
+			gaugesByScenario = new LinkedHashMap<>();
+			gauges.put(name, gaugesByScenario);
+		}
+		gaugesByScenario.put(scenario, gauge);
+	}
+
+	/**
+	 * Returns a JSON representation of the metrics.
+	 * @param includeMachines Whether to include the counters of each machine.
+	 * @return JSON object.
+	 */
+	public JsonObject asJson(boolean includeMachines) {
+		JsonObject json = new JsonObject();
+		JsonObject scenarios = new JsonObject();
+		for (Entry<String, Counters> entry : scenarioCounters.entrySet()) {
+			scenarios.putObject(entry.getKey(), entry.getValue().asJson());
+		}
+		json.putObject("scenarios", scenarios);
+		if (includeMachines) {
+			JsonObject machines = new JsonObject();
+			for (Entry<String, Counters> entry : machineCounters.entrySet()) {
+				machines.putObject(entry.getKey(), entry.getValue().asJson());
+			}
+			json.putObject("machines", machines);
+		}
+		json.putObject("roundTrip", new JsonObject()
+				.putObject("schema", schemaRoundTrip.asJson())
+				.putObject("data", dataRoundTrip.asJson()));
+		JsonObject gaugeJson = new JsonObject();
+		for (Entry<String, Map<String, Gauge>> entry : gauges.entrySet()) {
+			Gauge globalGauge = entry.getValue().get(null);
+			if (globalGauge != null) {
+				gaugeJson.putNumber(entry.getKey(), globalGauge.getValue());
+				continue;
+			}
+			JsonObject values = new JsonObject();
+			for (Entry<String, Gauge> scenarioEntry : entry.getValue().entrySet()) {
+				values.putNumber(scenarioEntry.getKey(), scenarioEntry.getValue().getValue());
+			}
+			gaugeJson.putObject(entry.getKey(), values);
+		}
+		json.putObject("gauges", gaugeJson);
+		return json;
+	}
+
+	/**
+	 * Returns the metrics in the text format of Prometheus.
+	 * @param includeMachines Whether to include the counters of each machine.
+	 * @return Metrics in text exposition format, version 0.0.4.
+	 */
+	public String asPrometheusText(boolean includeMachines) {
+		StringBuilder builder = new StringBuilder();
+		appendCounters(builder, "msd_updates_sent_total", "Updates acknowledged by the MID.", "scenario", scenarioCounters, 0);
+		appendCounters(builder, "msd_updates_failed_total", "Updates which could not be sent.", "scenario", scenarioCounters, 1);
+		appendCounters(builder, "msd_updates_retried_total", "Updates sent again after a failure.", "scenario", scenarioCounters, 2);
+		appendCounters(builder, "msd_updates_dropped_total", "Updates dropped or rejected by the full outbound queue.", "scenario", scenarioCounters, 3);
+		if (includeMachines) {
+			appendCounters(builder, "msd_machine_updates_sent_total", "Updates acknowledged by the MID.", "machine", machineCounters, 0);
+			appendCounters(builder, "msd_machine_updates_failed_total", "Updates which could not be sent.", "machine", machineCounters, 1);
+			appendCounters(builder, "msd_machine_updates_retried_total", "Updates sent again after a failure.", "machine", machineCounters, 2);
+			appendCounters(builder, "msd_machine_updates_dropped_total", "Updates dropped or rejected by the full outbound queue.", "machine", machineCounters, 3);
+		}
+		builder.append("# HELP msd_mid_round_trip_seconds Time from sending a request to the MID to receiving the response.\n");
+		builder.append("# TYPE msd_mid_round_trip_seconds summary\n");
+		appendSummary(builder, "msd_mid_round_trip_seconds", "schema", schemaRoundTrip);
+		appendSummary(builder, "msd_mid_round_trip_seconds", "data", dataRoundTrip);
+		for (Entry<String, Map<String, Gauge>> entry : gauges.entrySet()) {
+			String name = "msd_" + toSnakeCase(entry.getKey());
+			builder.append("# TYPE ").append(name).append(" gauge\n");
+			for (Entry<String, Gauge> scenarioEntry : entry.getValue().entrySet()) {
+				builder.append(name);
+				if (scenarioEntry.getKey() != null) {
+					builder.append("{scenario=\"").append(escapeLabelValue(scenarioEntry.getKey())).append("\"}");
+				}
+				builder.append(' ').append(scenarioEntry.getValue().getValue()).append('\n');
+			}
+		}
+		return builder.toString();
+	}
+
+	private static void appendCounters(StringBuilder builder, String name, String help, String label, Map<String, Counters> counters, int counter) {
+		builder.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		builder.append("# TYPE ").append(name).append(" counter\n");
+		for (Entry<String, Counters> entry : counters.entrySet()) {
+			builder.append(name).append('{').append(label).append("=\"").append(escapeLabelValue(entry.getKey())).append("\"} ");
+			builder.append(entry.getValue().get(counter)).append('\n');
+		}
+	}
+
+	private static void appendSummary(StringBuilder builder, String name, String message, LatencyHistogram histogram) {
+		for (double quantile : new double[] { 0.5d, 0.9d, 0.99d, 0.999d }) {
+			builder.append(name).append("{message=\"").append(message).append("\",quantile=\"").append(quantile).append("\"} ");
+			builder.append(histogram.getValueAtPercentile(quantile * 100d) / 1e6d).append('\n');
+		}
+		builder.append(name).append("_sum{message=\"").append(message).append("\"} ").append(histogram.getSum() / 1e6d).append('\n');
+		builder.append(name).append("_count{message=\"").append(message).append("\"} ").append(histogram.getCount()).append('\n');
+	}
+
+	private static String toSnakeCase(String name) {
+		return name.replaceAll("([a-z0-9])([A-Z])", "$1_$2").toLowerCase();
+	}
+
+	private static String escapeLabelValue(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	private static class Counters {
+		private long sent = 0;
+		private long failed = 0;
+		private long retried = 0;
+		private long dropped = 0;
+
+		private long get(int counter) {
+			switch (counter) {
+			case 0:
+				return sent;
+			case 1:
+				return failed;
+			case 2:
+				return retried;
+			default:
+				return dropped;
+			}
+		}
+
+		private JsonObject asJson() {
+			return new JsonObject().putNumber("sent", sent).putNumber("failed", failed).putNumber("retried", retried).putNumber("dropped", dropped);
+		}
+	}
+}
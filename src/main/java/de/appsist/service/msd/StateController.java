@@ -1,123 +1,610 @@
 package de.appsist.service.msd;
 
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Random;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
 import org.vertx.java.core.Vertx;
-import org.vertx.java.core.http.HttpClient;
+import org.vertx.java.core.eventbus.Message;
 import org.vertx.java.core.http.HttpServerResponse;
+import org.vertx.java.core.impl.DefaultFutureResult;
+import org.vertx.java.core.json.JsonArray;
 import org.vertx.java.core.json.JsonObject;
 import org.vertx.java.core.logging.Logger;
 import org.vertx.java.core.logging.impl.LoggerFactory;
 
 import de.appsist.commons.event.SetMachineDataEvent;
 import de.appsist.commons.event.SetMachineDataEvent.Field;
-import de.appsist.service.middrv.entity.Machine;
-import de.appsist.service.middrv.entity.MachineData;
-import de.appsist.service.middrv.entity.MachineSchema;
-import de.appsist.service.middrv.entity.MachineValueSpecification;
-import de.appsist.service.middrv.entity.MachineValueType;
-import de.appsist.service.middrv.entity.Unit;
-import de.appsist.service.middrv.entity.VisualizationLevel;
-import de.appsist.service.middrv.entity.VisualizationType;
-import de.appsist.service.middrv.rest.ContentType;
-import de.appsist.service.middrv.rest.DataMessage;
-import de.appsist.service.middrv.rest.DataSchemaMismatchException;
-import de.appsist.service.middrv.rest.SchemaMessage;
-import de.appsist.service.middrv.rest.client.RestClient;
 
 /**
  * Controller for machine states.
+ * <p>
+ * The scenarios are only read and modified on the event loop of the verticle, by its event bus handlers, HTTP requests and
+ * timers, so their values need no locking. Updates leaving the event loop, e.g. to the persistence or the REST client thread,
+ * are copies of the values at the time they were sent.
  * @author nico.herbig@dfki.de
  */
 public class StateController {
 	private static final Logger logger = LoggerFactory.getLogger(StateController.class);
 	private Vertx vertx;
 	
-	private final HttpClient midClient;
-	private final String midBasePath;
 	private final JsonObject config;
 	private boolean autoSend=true;
 	
-	private Random rand;
+	private final SchemaRegistry schemaRegistry;
+	private final MidSender sender;
 	
-	private RestClient client;
+	// Load generators for flooding tests, by scenario
+	private static final String FCEBIT_RANDOM_SIMULATION = "festoCebitRandom";
+	private static final String FLEET_SIMULATION = "fleet";
+	private final Map<String, LoadGenerator> simulations = new HashMap<>();
+	
+	// Seeds and clock of the simulations, real or virtual time
+	private final SimulationClock clock;
+	
+	// Fleet of virtual machines, only available if configured
+	private FleetSimulation fleet;
 
-	// Festo Pilot Scenario
-	private Machine fpilotMachine;
-	private MachineSchema fpilotMachineSchema;
-	private SchemaMessage fpilotSchemaMessage;
-	//private String fpilotLoctiteFieldName = "Loctite";
-	//private double fpilotLoctite = 1.0;
-	private String fpilotFatFieldName = "Fett";
-	private double fpilotFat = 1.0;
-	private String fpilotDNCFieldName = "DNC";
-	private String fpilotDNC = "ST20";
-	private String fpilotAutomationModeFieldName = "Automatikmodus aktiv";
-	private boolean fpilotAutomationModeActive = true;
-	private String fpilotMachineLockedFiledName = "Verriegelung aktiv";
-	private boolean fpilotMachineLocked = true;
-	private String fpilotDoor1ClosedFieldName = "Tuer 1 geschlossen";
-	private boolean fpilotDoor1Closed = true;
-	private String fpilotDoor2ClosedFieldName = "Tuer 2 geschlossen";
-	private boolean fpilotDoor2Closed = true;
-	private String fpilotDoor3ClosedFieldName = "Tuer 3 geschlossen";
-	private boolean fpilotDoor3Closed = true;
-	private String fpilotDoor4ClosedFieldName = "Tuer 4 geschlossen";
-	private boolean fpilotDoor4Closed = true;
-	private String fpilotLoctiteFullFieldName = "Fuellstand Loctite im Sollbereich";
-	private boolean fpilotLoctiteFull = true;
-	
-	// Festo Cebit scenario
-	private Machine fcebitMachine;
-	private MachineSchema fcebitMachineSchema;
-	private SchemaMessage fcebitSchemaMessage;
-	private String fcebitStateOkFieldName = "state_ok";
-	private boolean fcebitStateOk = true;
-	private String fcebitQ1FieldName = "q1";
-	private boolean fcebitQ1 = false;
-	private String fcebitQ2FieldName = "q2";
-	private boolean fcebitQ2 = false;
-	private String fcebitLostPartFieldName = "Teil verloren";
-	private boolean fcebitLostPart = false;
-	private String fcebitDoorOpenFieldName = "Tuer offen";
-	private String fcebitCapStorageEmptyFieldName = "Deckelmagazin leer";
-	private String fcebitSpringStorageEmptyFieldName = "Federmagazin leer";
-	
-	// MBB scenario
-	private Machine mbbMachine;
-	private MachineSchema mbbMachineSchema;
-	private SchemaMessage mbbSchemaMessage;
-	private String mbbLostPartFieldName = "Bauteil fehlt";
-	private boolean mbbLostPart = false;
-	private String mbbPartCounterFieldName = "Teilezaehler";
-	private Long mbbPartCounter = 2L;
-	private String mbbManualModeFieldName = "Handbetrieb";
-	private boolean mbbManualMode = false;
-	private String mbbTagAvailableFieldName = "Tag verfuegbar";
-	private boolean mbbTagAvailable = false;
-	private String mbbPartAvailableFieldName = "Bauteil verfuegbar";
-	private String mbbDoorOpenFieldName = "Tuer offen";
-	private boolean mbbDoorOpen = false;
-	
-	public StateController(Vertx vertx, int port, boolean secure, String midBasePath, JsonObject config) {
+	// Replay of a recorded trace, only available once started
+	private TraceReplay replay;
+
+	// Scenarios and the table of all actions available with /performAction
+	private static final String DEFAULT_SCENARIOS = "scenarios.json";
+	private final Map<String, Scenario> scenarios = new LinkedHashMap<>();
+	private final Map<String, Scenario.Action> scenarioActions = new HashMap<>();
+	private final Map<String, Scenario.Action> simulationActions = new HashMap<>();
+	private final Map<String, ActionHandler> actionTable = new HashMap<>();
+	
+	// Persisted state of the scenarios, only available if configured
+	private StatePersistence persistence;
+	
+	// Membership in a cluster of MSD instances sharing the scenarios and the fleet, only available if configured
+	private ClusterMembership cluster;
+	private final Set<String> ownedScenarios = new HashSet<>();
+	private final Map<String, PendingHandover> pendingHandovers = new HashMap<>(); // Scenarios owned, but not handed over yet
+	private final Set<String> handedOver = new HashSet<>(); // Scenarios handed over before this node owned them
+	private int fleetPartitions;
+	
+	/**
+	 * Handler for an action requested with /performAction.
+	 */
+	private interface ActionHandler {
+		public void perform(JsonObject action, HttpServerResponse response);
+	}
+	
+	/**
+	 * Scenario gained in a rebalance whose handover from the previous owner is awaited. Its data is not sent until the handover
+	 * arrived or timed out, actions requested meanwhile are performed afterwards.
+	 */
+	private static class PendingHandover {
+		private final long timerId;
+		private final List<Scenario.Action> actions = new ArrayList<>();
+		private final List<Handler<AsyncResult<Void>>> doneHandlers = new ArrayList<>();
+		
+		private PendingHandover(long timerId) {
+			this.timerId = timerId;
+		}
+	}
+	
+	public StateController(Vertx vertx, JsonObject config, MidSender sender) {
 		this.vertx = vertx;
-		midClient = vertx.createHttpClient();
-		midClient.setHost("localhost");
-		midClient.setPort(port);
-		midClient.setSSL(secure);
-		this.midBasePath = midBasePath;
 		this.config = config;
+		this.sender = sender;
+		this.schemaRegistry = sender.getSchemaRegistry();
+		this.clock = createClock(config.getObject("simulation"));
+		sender.setClock(clock);
 		
-		this.rand = new Random();
+		registerControlActions();
+		JsonArray scenarioLocations = config.getArray("scenarios", new JsonArray().addString(DEFAULT_SCENARIOS));
+		for (int i = 0; i < scenarioLocations.size(); i++) {
+			String location = scenarioLocations.get(i);
+			try {
+				for (Scenario scenario : Scenario.load(location)) {
+					addScenario(scenario);
+				}
+			} catch (IOException | IllegalArgumentException e) {
+				logger.error("Failed to load scenarios from " + location + ": " + e.getMessage());
+			}
+		}
+		logger.info("Loaded " + scenarios.size() + " scenarios with " + scenarioActions.size() + " actions.");
+		
+		JsonObject persistenceConfig = config.getObject("persistence");
+		if (persistenceConfig != null) {
+			try {
+				persistence = new StatePersistence(vertx, persistenceConfig, Collections.unmodifiableMap(scenarios));
+			} catch (IOException | IllegalArgumentException e) {
+				logger.error("Failed to restore persisted state, state is not persisted: " + e.getMessage());
+			}
+		}
+		
+		JsonObject clusterConfig = config.getObject("cluster");
+		if (clusterConfig != null) {
+			joinCluster(clusterConfig);
+		}
+	}
+	
+	/**
+	 * Joins the cluster of MSD instances. Each scenario is owned by one node, the fleet is split into partitions of contiguous
+	 * machines owned by the nodes. Actions of scenarios owned by another node are forwarded to it.
+	 * @param clusterConfig Cluster configuration.
+	 */
+	private void joinCluster(JsonObject clusterConfig) {
+		fleetPartitions = clusterConfig.getInteger("partitions", 128);
+		if (fleetPartitions < 1) {
+			logger.error("Invalid cluster configuration, not clustered: Number of partitions must be positive.");
+			return;
+		}
+		try {
+			cluster = new ClusterMembership(vertx, clusterConfig);
+		} catch (IllegalArgumentException e) {
+			logger.error("Invalid cluster configuration, not clustered: " + e.getMessage());
+			return;
+		}
+		Handler<Message<JsonObject>> requestHandler = new Handler<Message<JsonObject>>() {
+			@Override
+			public void handle(Message<JsonObject> message) {
+				handleClusterRequest(message);
+			}
+		};
+		vertx.eventBus().registerHandler(cluster.getNodeAddress(cluster.getNodeId()), requestHandler);
+		vertx.eventBus().registerHandler(cluster.getBroadcastAddress(), requestHandler);
+		cluster.addChangeHandler(new Handler<Void>() {
+			@Override
+			public void handle(Void event) {
+				rebalance();
+			}
+		});
+	}
+	
+	/**
+	 * Returns the membership in the cluster of MSD instances.
+	 * @return Cluster membership or <code>null</code> if not clustered.
+	 */
+	public ClusterMembership getCluster() {
+		return cluster;
+	}
+	
+	/**
+	 * Checks if the data of a scenario is sent by this node.
+	 * @param scenario Scenario to check.
+	 * @return <code>true</code> if not clustered or if this node owns the scenario.
+	 */
+	private boolean isOwned(Scenario scenario) {
+		return cluster == null || ownedScenarios.contains(scenario.getName());
+	}
+	
+	/**
+	 * Checks if simulated changes of a scenario are sent by this node, i.e. it owns the scenario and its handover is not pending.
+	 * @param scenario Scenario to check.
+	 * @return <code>true</code> if not clustered or if this node sends the data of the scenario.
+	 */
+	private boolean isSending(Scenario scenario) {
+		return isOwned(scenario) && !pendingHandovers.containsKey(scenario.getName());
+	}
+	
+	/**
+	 * Updates the scenarios and fleet machines owned by this node after the cluster changed. Scenarios lost are handed over to
+	 * their new owner with their values and running simulations. Scenarios gained from a node still running are sent once its
+	 * handover arrived, other scenarios gained are sent immediately.
+	 */
+	private void rebalance() {
+		for (Scenario scenario : scenarios.values()) {
+			if (cluster.isLocal(scenario.getName())) {
+				if (ownedScenarios.add(scenario.getName())) {
+					if (handedOver.remove(scenario.getName()) || cluster.getPreviousOwner(scenario.getName()) == null) {
+						if (sender.isConnected()) {
+							sendScenarioData(scenario, null);
+						}
+					} else {
+						awaitHandover(scenario);
+					}
+				}
+			} else {
+				handedOver.remove(scenario.getName());
+				if (ownedScenarios.remove(scenario.getName())) {
+					cancelHandover(scenario);
+					handOver(scenario);
+				}
+			}
+		}
+		if (fleet != null) {
+			fleet.setOwnedMachines(getOwnedFleetMachines());
+		}
+		logger.info("Cluster changed, owning " + ownedScenarios.size() + " of " + scenarios.size() + " scenarios.");
+	}
+	
+	private void handOver(Scenario scenario) {
+		JsonObject rates = new JsonObject();
+		List<String> names = new ArrayList<>(scenario.getSimulations().keySet());
+		if (scenario.hasBehaviour()) {
+			names.add(scenario.getName());
+		}
+		for (String name : names) {
+			LoadGenerator generator = simulations.get(name);
+			if (generator != null && generator.isRunning()) {
+				rates.putNumber(name, generator.getTargetRate());
+				generator.stop();
+			}
+		}
+		String owner = cluster.getOwner(scenario.getName());
+		if (owner == null) {
+			return; // Last node left
+		}
+		vertx.eventBus().send(cluster.getNodeAddress(owner), new JsonObject()
+				.putString("type", "handover")
+				.putString("scenario", scenario.getName())
+				.putObject("values", scenario.getValues())
+				.putObject("simulations", rates));
+		logger.info("Handed scenario " + scenario.getName() + " over to node " + owner + ".");
+	}
+	
+	/**
+	 * Waits for the handover of a scenario gained, so that its data is first sent with the values of the previous owner. If the
+	 * previous owner failed, the local values are sent after the forward timeout.
+	 */
+	private void awaitHandover(final Scenario scenario) {
+		long timerId = vertx.setTimer(cluster.getForwardTimeout(), new Handler<Long>() {
+			@Override
+			public void handle(Long timerId) {
+				logger.warn("No handover of scenario " + scenario.getName() + " received, sending its local values.");
+				completeHandover(scenario);
+			}
+		});
+		pendingHandovers.put(scenario.getName(), new PendingHandover(timerId));
+	}
+	
+	/**
+	 * Ends waiting for the handover of a scenario: The actions requested meanwhile are performed and the data is sent.
+	 */
+	private void completeHandover(Scenario scenario) {
+		PendingHandover pending = pendingHandovers.remove(scenario.getName());
+		vertx.cancelTimer(pending.timerId);
+		for (Scenario.Action action : pending.actions) {
+			action.perform();
+			if (action.getLogMessage() != null) {
+				logger.info(action.getLogMessage());
+			}
+		}
+		if (!pending.actions.isEmpty() || sender.isConnected()) {
+			final List<Handler<AsyncResult<Void>>> doneHandlers = pending.doneHandlers;
+			sendScenarioData(scenario, new Handler<AsyncResult<Void>>() {
+				@Override
+				public void handle(AsyncResult<Void> result) {
+					for (Handler<AsyncResult<Void>> doneHandler : doneHandlers) {
+						doneHandler.handle(result);
+					}
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Stops waiting for the handover of a scenario lost again. Actions requested meanwhile fail, as the scenario is handed over
+	 * to the next owner.
+	 */
+	private void cancelHandover(Scenario scenario) {
+		PendingHandover pending = pendingHandovers.remove(scenario.getName());
+		if (pending == null) {
+			return;
+		}
+		vertx.cancelTimer(pending.timerId);
+		for (Handler<AsyncResult<Void>> doneHandler : pending.doneHandlers) {
+			doneHandler.handle(new DefaultFutureResult<Void>(new IllegalStateException("Scenario " + scenario.getName() + " moved to another node.")));
+		}
+	}
+	
+	private void takeOver(JsonObject handover) {
+		Scenario scenario = scenarios.get(handover.getString("scenario"));
+		if (scenario == null) {
+			logger.warn("Ignoring handover of unknown scenario: " + handover.getString("scenario"));
+			return;
+		}
+		scenario.setValues(handover.getObject("values", new JsonObject()));
+		if (pendingHandovers.containsKey(scenario.getName())) {
+			completeHandover(scenario);
+		} else if (!isOwned(scenario)) {
+			// The previous owner noticed the change before this node did.
+			handedOver.add(scenario.getName());
+		} else if (sender.isConnected()) {
+			sendScenarioData(scenario, null);
+		}
+		JsonObject rates = handover.getObject("simulations", new JsonObject());
+		for (String name : rates.getFieldNames()) {
+			try {
+				startLocalSimulation(name, rates.getNumber(name).doubleValue());
+			} catch (IllegalArgumentException e) {
+				logger.warn("Failed to resume simulation " + name + " handed over: " + e.getMessage());
+			}
+		}
+		logger.info("Took over scenario " + scenario.getName() + ".");
+	}
+	
+	/**
+	 * Returns the machines of the fleet owned by this node.
+	 * @return Machines of the partitions owned.
+	 */
+	private BitSet getOwnedFleetMachines() {
+		int size = fleet.getSize();
+		BitSet owned = new BitSet(size);
+		for (int partition = 0; partition < fleetPartitions; partition++) {
+			if (cluster.isLocal(FLEET_SIMULATION + "#" + partition)) {
+				owned.set((int) ((long) size * partition / fleetPartitions), (int) ((long) size * (partition + 1) / fleetPartitions));
+			}
+		}
+		return owned;
+	}
+	
+	/**
+	 * Handles a request of another node: an action or simulation forwarded to the owner of its scenario, the start or stop of
+	 * the fleet simulation on all nodes or the handover of a scenario. Forwarded requests are performed locally in any case.
+	 * @param message Request, answered with the status if a reply is expected.
+	 */
+	private void handleClusterRequest(final Message<JsonObject> message) {
+		JsonObject request = message.body();
+		try {
+			switch (request.getString("type", "")) {
+			case "action":
+				Scenario.Action action = scenarioActions.get(request.getString("action"));
+				if (action == null) {
+					throw new IllegalArgumentException("Invalid method: " + request.getString("action"));
+				}
+				performLocalScenarioAction(action, new Handler<AsyncResult<Void>>() {
+					@Override
+					public void handle(AsyncResult<Void> result) {
+						replyToNode(message, result.failed() ? result.cause().getMessage() : null);
+					}
+				});
+				return;
+			case "startSimulation":
+				startLocalSimulation(request.getString("scenario"), parseSimulationRate(request));
+				break;
+			case "stopSimulation":
+				stopLocalSimulation(request.getString("scenario"));
+				break;
+			case "handover":
+				takeOver(request);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown cluster request: " + request.getString("type"));
+			}
+			replyToNode(message, null);
+		} catch (IllegalArgumentException e) {
+			logger.warn("Failed to perform request of cluster node: " + e.getMessage());
+			replyToNode(message, e.getMessage());
+		}
+	}
+	
+	private static void replyToNode(Message<JsonObject> message, String error) {
+		if (message.replyAddress() != null) {
+			message.reply(error == null ? new JsonObject().putString("status", "ok")
+					: new JsonObject().putString("status", "error").putString("message", error));
+		}
+	}
+	
+	/**
+	 * Forwards a request to the node owning a scenario.
+	 * @param scenario Name of the scenario.
+	 * @param request Request to forward.
+	 * @param doneHandler Handler called with the result of the request.
+	 */
+	private void forwardToOwner(String scenario, JsonObject request, final Handler<AsyncResult<Void>> doneHandler) {
+		final String owner = cluster.getOwner(scenario);
+		if (owner == null || owner.equals(cluster.getNodeId())) {
+			doneHandler.handle(new DefaultFutureResult<Void>(new IllegalStateException("Node has not joined the cluster yet.")));
+			return;
+		}
+		vertx.eventBus().sendWithTimeout(cluster.getNodeAddress(owner), request, cluster.getForwardTimeout(), new Handler<AsyncResult<Message<JsonObject>>>() {
+			@Override
+			public void handle(AsyncResult<Message<JsonObject>> reply) {
+				if (reply.failed()) {
+					doneHandler.handle(new DefaultFutureResult<Void>(new IllegalStateException("Node " + owner + " did not respond: " + reply.cause().getMessage())));
+				} else if (!"ok".equals(reply.result().body().getString("status"))) {
+					doneHandler.handle(new DefaultFutureResult<Void>(new IllegalStateException(reply.result().body().getString("message"))));
+				} else {
+					doneHandler.handle(new DefaultFutureResult<Void>((Void) null));
+				}
+			}
+		});
+	}
+	
+	private SimulationClock createClock(JsonObject simulationConfig) {
+		SimulationClock clock;
+		try {
+			clock = new SimulationClock(vertx, simulationConfig, sender.getTransport());
+		} catch (IllegalArgumentException e) {
+			logger.error("Invalid simulation configuration, using real time: " + e.getMessage());
+			clock = new SimulationClock(vertx, null, sender.getTransport());
+		}
+		clock.setOutboundQueue(sender.getQueue());
+		if (clock.isVirtual() && !clock.isReproducible(sender)) {
+			logger.info("Virtual time with batching, delta updates, a non-blocking queue or more than one request in flight: "
+					+ "The values are reproducible, but the messages sent to the MID depend on its timing.");
+		}
+		return clock;
+	}
+	
+	/**
+	 * Adds a scenario and its actions to the action table. Scenarios with names, actions or simulations already in use are rejected.
+	 * A scenario with behaviour models is simulated under its own name.
+	 * @param scenario Scenario to add.
+	 */
+	private void addScenario(final Scenario scenario) {
+		if (scenarios.containsKey(scenario.getName())) {
+			logger.error("Ignoring duplicate scenario: " + scenario.getName());
+			return;
+		}
+		if (scenario.hasBehaviour() && (isSimulation(scenario.getName()) || scenario.getSimulations().containsKey(scenario.getName()))) {
+			logger.error("Ignoring scenario " + scenario.getName() + ", simulation already defined: " + scenario.getName());
+			return;
+		}
+		for (String name : scenario.getActions().keySet()) {
+			if (actionTable.containsKey(name)) {
+				logger.error("Ignoring scenario " + scenario.getName() + ", action already defined: " + name);
+				return;
+			}
+		}
+		for (String name : scenario.getSimulations().keySet()) {
+			if (isSimulation(name)) {
+				logger.error("Ignoring scenario " + scenario.getName() + ", simulation already defined: " + name);
+				return;
+			}
+		}
+		scenario.setRandom(clock.createRandom(scenario.getName()));
+		scenarios.put(scenario.getName(), scenario);
+		simulationActions.putAll(scenario.getSimulations());
+		for (final Scenario.Action action : scenario.getActions().values()) {
+			scenarioActions.put(action.getName(), action);
+			actionTable.put(action.getName(), new ActionHandler() {
+				@Override
+				public void perform(JsonObject request, HttpServerResponse response) {
+					performScenarioAction(action, respondWhenSent(response));
+				}
+			});
+		}
+	}
+	
+	private boolean isSimulation(String name) {
+		Scenario scenario = scenarios.get(name);
+		return FLEET_SIMULATION.equals(name) || simulationActions.containsKey(name) || (scenario != null && scenario.hasBehaviour());
+	}
+	
+	/**
+	 * Registers the actions controlling simulations and the sender.
+	 */
+	private void registerControlActions() {
+		actionTable.put("start10HzSimulation", startSimulationAction(FCEBIT_RANDOM_SIMULATION, 10));
+		actionTable.put("stop10HzSimulation", stopSimulationAction(FCEBIT_RANDOM_SIMULATION));
+		actionTable.put("start100HzSimulation", startSimulationAction(FCEBIT_RANDOM_SIMULATION, 100));
+		actionTable.put("stop100HzSimulation", stopSimulationAction(FCEBIT_RANDOM_SIMULATION));
+		actionTable.put("startSimulation", new ActionHandler() {
+			@Override
+			public void perform(JsonObject action, HttpServerResponse response) {
+				double rate;
+				try {
+					rate = parseSimulationRate(action);
+				} catch (IllegalArgumentException e) {
+					response.setStatusCode(400);
+					response.end(e.getMessage());
+					return;
+				}
+				startSimulation(response, action.getString("scenario", FCEBIT_RANDOM_SIMULATION), rate);
+			}
+		});
+		actionTable.put("stopSimulation", new ActionHandler() {
+			@Override
+			public void perform(JsonObject action, HttpServerResponse response) {
+				stopSimulation(response, action.getString("scenario", FCEBIT_RANDOM_SIMULATION));
+			}
+		});
+		actionTable.put("simulationStatus", new ActionHandler() {
+			@Override
+			public void perform(JsonObject action, HttpServerResponse response) {
+				sendSimulationStatus(response);
+			}
+		});
+		actionTable.put("startReplay", new ActionHandler() {
+			@Override
+			public void perform(JsonObject action, HttpServerResponse response) {
+				startReplay(action, response);
+			}
+		});
+		actionTable.put("pauseReplay", new ActionHandler() {
+			@Override
+			public void perform(JsonObject action, HttpServerResponse response) {
+				if (checkReplay(response)) {
+					replay.pause();
+					response.end();
+				}
+			}
+		});
+		actionTable.put("resumeReplay", new ActionHandler() {
+			@Override
+			public void perform(JsonObject action, HttpServerResponse response) {
+				if (checkReplay(response)) {
+					if (action.getValue("speed") != null) {
+						try {
+							replay.setSpeed(parseReplaySpeed(action));
+						} catch (IllegalArgumentException e) {
+							response.setStatusCode(400);
+							response.end(e.getMessage());
+							return;
+						}
+					}
+					replay.resume();
+					response.end();
+				}
+			}
+		});
+		actionTable.put("seekReplay", new ActionHandler() {
+			@Override
+			public void perform(JsonObject action, HttpServerResponse response) {
+				if (checkReplay(response)) {
+					replay.seek(action.getLong("time", 0L));
+					response.end();
+				}
+			}
+		});
+		actionTable.put("stopReplay", new ActionHandler() {
+			@Override
+			public void perform(JsonObject action, HttpServerResponse response) {
+				if (replay != null) {
+					replay.stop();
+				}
+				response.end();
+			}
+		});
+		actionTable.put("resendSchemas", new ActionHandler() {
+			@Override
+			public void perform(JsonObject action, HttpServerResponse response) {
+				schemaRegistry.invalidateAll();
+				response.end();
+			}
+		});
+	}
+	
+	private ActionHandler startSimulationAction(final String scenario, final double rate) {
+		return new ActionHandler() {
+			@Override
+			public void perform(JsonObject action, HttpServerResponse response) {
+				startSimulation(response, scenario, rate);
+			}
+		};
+	}
+	
+	private ActionHandler stopSimulationAction(final String scenario) {
+		return new ActionHandler() {
+			@Override
+			public void perform(JsonObject action, HttpServerResponse response) {
+				stopSimulation(response, scenario);
+			}
+		};
 	}
 	
 	public void initializeRESTConnection() {
-		// RestClient
-		client = new RestClient(midClient.getHost(), midClient.getPort(), this.midBasePath);
+		sender.connect();
+		
+		JsonObject fleetConfig = config.getObject("fleet");
+		if (fleetConfig != null && fleet == null) {
+			try {
+				fleet = new FleetSimulation(vertx, fleetConfig, sender, clock);
+				if (cluster != null) {
+					fleet.setOwnedMachines(getOwnedFleetMachines());
+				}
+			} catch (IllegalArgumentException e) {
+				logger.error("Invalid fleet configuration: " + e.getMessage());
+			}
+		}
 		
 		autoSend=config.getBoolean("autosend",true);
 
@@ -125,156 +612,73 @@ public class StateController {
 		
 		if (!autoSend) return;
 		
-		// Festo Pilot Scenario
-		fpilotMachine = new Machine("Festo", "Station20", "1111111", "http://www.appsist.de/ontology/festo/DNC_DNCB_DSBC");
-
-		fpilotMachineSchema = new MachineSchema(fpilotMachine, "Station20", "DNC_DNCB_DSBC_Automation", "http://www.appsist.de/ontology/festo/S20");
-		// Dummy values
-		fpilotMachineSchema.addField(new MachineValueSpecification(fpilotFatFieldName, MachineValueType.DOUBLE, Unit.NONE, VisualizationType.PRECENT_BAR, VisualizationLevel.OVERVIEW));
-		// Real values
-		fpilotMachineSchema.addField(new MachineValueSpecification(fpilotDNCFieldName, MachineValueType.STRING, Unit.NONE, VisualizationType.TEXT_FIELD, VisualizationLevel.OVERVIEW));
-		fpilotMachineSchema.addField(new MachineValueSpecification(fpilotAutomationModeFieldName, MachineValueType.BOOL, Unit.NONE, VisualizationType.ON_OFF_LIGHT, VisualizationLevel.OVERVIEW));
-		fpilotMachineSchema.addField(new MachineValueSpecification(fpilotMachineLockedFiledName, MachineValueType.BOOL, Unit.NONE, VisualizationType.ON_OFF_LIGHT, VisualizationLevel.OVERVIEW));
-		fpilotMachineSchema.addField(new MachineValueSpecification(fpilotDoor1ClosedFieldName, MachineValueType.BOOL, Unit.NONE, VisualizationType.ON_OFF_LIGHT, VisualizationLevel.OVERVIEW));
-		fpilotMachineSchema.addField(new MachineValueSpecification(fpilotDoor2ClosedFieldName, MachineValueType.BOOL, Unit.NONE, VisualizationType.ON_OFF_LIGHT, VisualizationLevel.OVERVIEW));
-		fpilotMachineSchema.addField(new MachineValueSpecification(fpilotDoor3ClosedFieldName, MachineValueType.BOOL, Unit.NONE, VisualizationType.ON_OFF_LIGHT, VisualizationLevel.OVERVIEW));
-		fpilotMachineSchema.addField(new MachineValueSpecification(fpilotDoor4ClosedFieldName, MachineValueType.BOOL, Unit.NONE, VisualizationType.ON_OFF_LIGHT, VisualizationLevel.OVERVIEW));
-		fpilotMachineSchema.addField(new MachineValueSpecification(fpilotLoctiteFullFieldName, MachineValueType.BOOL, Unit.NONE, VisualizationType.ON_OFF_LIGHT, VisualizationLevel.OVERVIEW));
-
-		
-		fpilotSchemaMessage = new SchemaMessage();
-		fpilotSchemaMessage.addSchema(fpilotMachineSchema);
-		
-		sendFestoPilotData();
-		
-		
-		// Festo Cebit Scenario
-        fcebitMachine = new Machine("Anlage1", "Maschine20", "RV-2FB Robot Arm Controller", "http://www.appsist.de/ontology/demonstrator/Demonstrator");
-        
-        fcebitMachineSchema = new MachineSchema(fcebitMachine, "Anlage1", "Anlage1", "http://www.appsist.de/ontology/demonstrator/StationMontage");
-        fcebitMachineSchema.addField(new MachineValueSpecification(fcebitStateOkFieldName, MachineValueType.BOOL, Unit.NONE, VisualizationType.ON_OFF_LIGHT, VisualizationLevel.NEVER));
-        fcebitMachineSchema.addField(new MachineValueSpecification(fcebitQ1FieldName, MachineValueType.BOOL, Unit.NONE, VisualizationType.ON_OFF_LIGHT, VisualizationLevel.NEVER));
-        fcebitMachineSchema.addField(new MachineValueSpecification(fcebitQ2FieldName, MachineValueType.BOOL, Unit.NONE, VisualizationType.ON_OFF_LIGHT, VisualizationLevel.NEVER));
-        fcebitMachineSchema.addField(new MachineValueSpecification(fcebitLostPartFieldName, MachineValueType.BOOL, Unit.NONE, VisualizationType.ON_OFF_LIGHT, VisualizationLevel.OVERVIEW));
-        fcebitMachineSchema.addField(new MachineValueSpecification(fcebitDoorOpenFieldName, MachineValueType.BOOL, Unit.NONE, VisualizationType.ON_OFF_LIGHT, VisualizationLevel.OVERVIEW));
-        fcebitMachineSchema.addField(new MachineValueSpecification(fcebitCapStorageEmptyFieldName, MachineValueType.BOOL, Unit.NONE, VisualizationType.ON_OFF_LIGHT, VisualizationLevel.OVERVIEW));
-        fcebitMachineSchema.addField(new MachineValueSpecification(fcebitSpringStorageEmptyFieldName, MachineValueType.BOOL, Unit.NONE, VisualizationType.ON_OFF_LIGHT, VisualizationLevel.OVERVIEW));
-        
-        fcebitSchemaMessage = new SchemaMessage();
-        fcebitSchemaMessage.addSchema(fcebitMachineSchema);
-        
-        
-        
-        
-        sendFestoCebitData();
-        
-        // MBB Scenario
-        mbbMachine = new Machine("MBB", "MVM700", "MVM700T-009");
-        
-        mbbMachineSchema = new MachineSchema(mbbMachine, "1", "TAL01");
-        mbbMachineSchema.addField(new MachineValueSpecification(mbbLostPartFieldName, MachineValueType.BOOL, Unit.NONE, VisualizationType.ON_OFF_LIGHT, VisualizationLevel.OVERVIEW));
-        mbbMachineSchema.addField(new MachineValueSpecification(mbbPartCounterFieldName, MachineValueType.LONG, Unit.NONE, VisualizationType.TEXT_FIELD, VisualizationLevel.OVERVIEW));
-        mbbMachineSchema.addField(new MachineValueSpecification(mbbManualModeFieldName, MachineValueType.BOOL, Unit.NONE, VisualizationType.ON_OFF_LIGHT, VisualizationLevel.OVERVIEW));
-        mbbMachineSchema.addField(new MachineValueSpecification(mbbTagAvailableFieldName, MachineValueType.BOOL, Unit.NONE, VisualizationType.ON_OFF_LIGHT, VisualizationLevel.OVERVIEW));
-        mbbMachineSchema.addField(new MachineValueSpecification(mbbPartAvailableFieldName, MachineValueType.BOOL, Unit.NONE, VisualizationType.ON_OFF_LIGHT, VisualizationLevel.OVERVIEW));
-        mbbMachineSchema.addField(new MachineValueSpecification(mbbDoorOpenFieldName, MachineValueType.BOOL, Unit.NONE, VisualizationType.ON_OFF_LIGHT, VisualizationLevel.OVERVIEW));
-               
-        mbbSchemaMessage = new SchemaMessage();
-        mbbSchemaMessage.addSchema(mbbMachineSchema);
-        
-        sendMBBData();
+		for (Scenario scenario : scenarios.values()) {
+			if (isSending(scenario)) {
+				sendScenarioData(scenario, null);
+			}
+		}
 	}
 	
 	public void performAction(JsonObject action, HttpServerResponse response) {
 		String method = action.getString("method");
 		response.headers().add("Content-Type", "text/plain");
-		switch (method) {
-		case "emptyLoctite":
-			festoPilotSetLoctite(response, false);
-			break;
-		case "fillLoctite":
-			festoPilotSetLoctite(response, true);
-			break;
-		case "emptyFat":
-			festoPilotSetFat(response, false);
-			break;
-		case "fillFat":
-			festoPilotSetFat(response, true);
-			break;
-		case "fpilotDoorOpenToTrue":
-			festoPilotSetDoorOpen(response, true);
-			break;
-		case "fpilotDoorOpenToFalse":
-			festoPilotSetDoorOpen(response, false);
-			break;
-		case "fpilotLockedToFalse":
-			festoPilotSetLocked(response, false);
-			break;
-		case "fpilotLockedToTrue":
-			festoPilotSetLocked(response, true);
-			break;
-		case "fpilotAutomaticModeToFalse":
-			festoPilotSetAutomaticMode(response, false);
-			break;
-		case "fpilotAutomaticModeToTrue":
-			festoPilotSetAutomaticMode(response, true);
-			break;
-		case "festoStateOkToTrue":
-			setFestoCebitStateOk(response, true);
-			break;
-		case "festoStateOkToFalse":
-			setFestoCebitStateOk(response, false);
-			break;
-		case "festoQ1ToTrue":
-			setFestoCebitQ1(response, true);
-			break;
-		case "festoQ1ToFalse":
-			setFestoCebitQ1(response, false);
-			break;
-		case "festoQ2ToTrue":
-			setFestoCebitQ2(response, true);
-			break;
-		case "festoQ2ToFalse":
-			setFestoCebitQ2(response, false);
-			break;
-		case "festoLostPartToTrue":
-			setFestoLostPart(response, true);
-			break;
-		case "festoLostPartToFalse":
-			setFestoLostPart(response, false);
-			break;
-		case "start10HzSimulation":
-			start10HzSimulation(response);
-			break;
-		case "stop10HzSimulation":
-			stop10HzSimulation(response);
-			break;
-		case "start100HzSimulation":
-			start100HzSimulation(response);
-			break;
-		case "stop100HzSimulation":
-			stop100HzSimulation(response);
-			break;
-		case "mbbLostPartToTrue":
-			setMBBLostPart(response, true);
-			break;
-		case "mbbLostPartToFalse":
-			setMBBLostPart(response, false);
-			break;
-		case "mbbDoorOpenToTrue":
-			setMBBDoorOpen(response, true);
-			break;
-		case "mbbDoorOpenToFalse":
-			setMBBDoorOpen(response, false);
-			break;
-		case "mbbManualModeToTrue":
-			setMBBManualMode(response, true);
-			break;
-		case "mbbManualModeToFalse":
-			setMBBManualMode(response, false);
-			break;
-		default:
+		ActionHandler handler = method != null ? actionTable.get(method) : null;
+		if (handler == null) {
 			logger.warn("Invalid method: " + method);
+			response.setStatusCode(400);
+			response.end("Invalid method: " + method);
+			return;
+		}
+		handler.perform(action, response);
+	}
+	
+	/**
+	 * Performs an action of a scenario and sends the resulting machine data.
+	 * In a cluster, the action is only performed by the node owning the scenario, as events are delivered to all nodes.
+	 * @param name Name of the action.
+	 * @param doneHandler Handler called when the MID acknowledged the update, may be <code>null</code>.
+	 * @return <code>false</code> if no scenario defines the action.
+	 */
+	public boolean performScenarioAction(String name, Handler<AsyncResult<Void>> doneHandler) {
+		Scenario.Action action = scenarioActions.get(name);
+		if (action == null) {
+			return false;
+		}
+		if (isOwned(action.getScenario())) {
+			performLocalScenarioAction(action, doneHandler);
+		}
+		return true;
+	}
+	
+	private void performScenarioAction(Scenario.Action action, Handler<AsyncResult<Void>> doneHandler) {
+		if (!isOwned(action.getScenario())) {
+			forwardToOwner(action.getScenario().getName(), new JsonObject().putString("type", "action").putString("action", action.getName()), doneHandler);
+			return;
+		}
+		performLocalScenarioAction(action, doneHandler);
+	}
+	
+	private void performLocalScenarioAction(Scenario.Action action, Handler<AsyncResult<Void>> doneHandler) {
+		PendingHandover pending = pendingHandovers.get(action.getScenario().getName());
+		if (pending != null) {
+			// Performed on the values handed over
+			pending.actions.add(action);
+			if (doneHandler != null) {
+				pending.doneHandlers.add(doneHandler);
+			}
+			return;
+		}
+		action.perform();
+		if (action.getLogMessage() != null) {
+			logger.info(action.getLogMessage());
+		}
+		sendScenarioData(action.getScenario(), doneHandler);
+	}
+	
+	private void sendScenarioData(Scenario scenario, Handler<AsyncResult<Void>> doneHandler) {
+		sender.send(scenario.createUpdate(), doneHandler);
+		if (logger.isDebugEnabled()) {
+			logger.debug("Data of scenario " + scenario.getName() + " has been updated.");
 		}
 	}
 	
@@ -291,228 +695,357 @@ public class StateController {
 		}
 	}
 	
-	// Festo Cebit Scenario
-	private void sendFestoCebitData() {
-		if (fcebitMachine == null) {
-			throw new IllegalStateException("RESTConnection was not initialized");
-		}
-		MachineData fmachineData=new MachineData(fcebitMachine);
-		fmachineData.put(fcebitStateOkFieldName, fcebitStateOk);
-		fmachineData.put(fcebitQ1FieldName, fcebitQ1);
-		fmachineData.put(fcebitQ2FieldName, fcebitQ2);
-		fmachineData.put(fcebitLostPartFieldName, fcebitLostPart);
-		fmachineData.put(fcebitDoorOpenFieldName, !fcebitStateOk);
-		fmachineData.put(fcebitSpringStorageEmptyFieldName, fcebitQ1);
-		fmachineData.put(fcebitCapStorageEmptyFieldName, fcebitQ2);
-	 	 
-
-        // Data Message
- 		DataMessage fdataMessage = new DataMessage();
- 		try {
- 			fdataMessage.addMachineData(fmachineData, fcebitMachineSchema);
- 		} catch (DataSchemaMismatchException e) {
- 			logger.error("ERROR: There was a mismatch between the Festo Cebit schema and data! NO DATA sent!");
- 		}
- 		// Send
- 		client.send(ContentType.JSON, fcebitSchemaMessage);
- 		client.send(ContentType.JSON, fdataMessage);
- 		// End
- 		logger.info("Festo Cebit data has been updated.");
-	}
-	
-	private void setFestoCebitStateOk(final HttpServerResponse response, boolean state) {
-		logger.info("Setting stateOk to " + state + " for Festo Cebit Scenario.");
-		fcebitStateOk = state;
-		sendFestoCebitData();
-		response.end();
+	/**
+	 * Creates a handler ending the HTTP response as soon as the MID acknowledged the update.
+	 * @param response Response to end.
+	 * @return Completion handler for the sender.
+	 */
+	private static Handler<AsyncResult<Void>> respondWhenSent(final HttpServerResponse response) {
+		return new Handler<AsyncResult<Void>>() {
+			@Override
+			public void handle(AsyncResult<Void> result) {
+				if (result.succeeded()) {
+					response.end();
+				} else {
+					response.setStatusCode(502);
+					response.end("Failed to send update to MID: " + result.cause().getMessage());
+				}
+			}
+		};
 	}
 	
-	private void setFestoCebitQ1(final HttpServerResponse response, boolean state) {
-		logger.info("Setting q1 to " + state + " for Festo Cebit Scenario.");
-		fcebitQ1 = state;
-		sendFestoCebitData();
+	private void startSimulation(final HttpServerResponse response, String scenario, double rate) {
+		JsonObject request = new JsonObject().putString("type", "startSimulation").putString("scenario", scenario).putNumber("rate", rate);
+		if (routeSimulationRequest(request, response)) {
+			return;
+		}
+		try {
+			startLocalSimulation(scenario, rate);
+		} catch (IllegalArgumentException e) {
+			response.setStatusCode(400);
+			response.end(e.getMessage());
+			return;
+		}
 		response.end();
 	}
 	
-	private void setFestoCebitQ2(final HttpServerResponse response, boolean state) {
-		logger.info("Setting q2 to " + state + " for Festo Cebit Scenario.");
-		fcebitQ2 = state;
-		sendFestoCebitData();
-		response.end();
+	/**
+	 * Starts a simulation on this node or sets its rate if already started.
+	 * @param scenario Name of the simulation.
+	 * @param rate Target rate in Hz.
+	 * @throws IllegalArgumentException The simulation is unknown or the rate is invalid.
+	 */
+	private void startLocalSimulation(String scenario, double rate) throws IllegalArgumentException {
+		LoadGenerator generator = simulations.get(scenario);
+		if (generator == null) {
+			Handler<Void> tickHandler = createSimulationTickHandler(scenario);
+			if (tickHandler == null) {
+				throw new IllegalArgumentException("Unknown simulation scenario: " + scenario);
+			}
+			generator = new LoadGenerator(vertx, scenario, rate, tickHandler, clock);
+			generator.setOutboundQueue(sender.getQueue());
+			simulations.put(scenario, generator);
+			registerSimulationRateGauge(generator, scenario);
+		} else {
+			generator.setTargetRate(rate);
+		}
+		if (!generator.isRunning()) {
+			generator.start();
+		}
 	}
 	
-	private void setFestoLostPart(final HttpServerResponse response, boolean state) {
-		logger.info("Setting lost part to " + state + " for Festo Cebit Scenario.");
-		fcebitLostPart = state;
-		sendFestoCebitData();
-		response.end();
+	/**
+	 * Routes the start or stop of a simulation in a cluster: The fleet simulation is started and stopped on all nodes, the
+	 * simulation of a scenario owned by another node is forwarded to it.
+	 * @param request Request to route.
+	 * @param response Response to end when the request has been routed or performed.
+	 * @return <code>true</code> if the request has been routed, <code>false</code> if it has to be performed by this node.
+	 */
+	private boolean routeSimulationRequest(JsonObject request, final HttpServerResponse response) {
+		if (cluster == null) {
+			return false;
+		}
+		String simulation = request.getString("scenario");
+		if (FLEET_SIMULATION.equals(simulation)) {
+			if (fleet == null) {
+				return false;
+			}
+			vertx.eventBus().publish(cluster.getBroadcastAddress(), request);
+			response.end();
+			return true;
+		}
+		Scenario scenario = scenarios.get(simulation);
+		if (scenario == null || !scenario.hasBehaviour()) {
+			Scenario.Action action = simulationActions.get(simulation);
+			scenario = action != null ? action.getScenario() : null;
+		}
+		if (scenario == null || isOwned(scenario)) {
+			return false;
+		}
+		forwardToOwner(scenario.getName(), request, new Handler<AsyncResult<Void>>() {
+			@Override
+			public void handle(AsyncResult<Void> result) {
+				if (result.failed()) {
+					response.setStatusCode(400);
+					response.end(result.cause().getMessage());
+				} else {
+					response.end();
+				}
+			}
+		});
+		return true;
 	}
 	
-	private void sendFestoCebitRandomData() {
-		fcebitQ1 = rand.nextBoolean();
-		fcebitQ2 = rand.nextBoolean();
-		fcebitLostPart = rand.nextBoolean();
-		fcebitStateOk = rand.nextBoolean();
-		sendFestoCebitData();
+	private void registerSimulationRateGauge(final LoadGenerator generator, String scenario) {
+		sender.getMetrics().registerGauge("simulationRate", scenario, new SimulatorMetrics.Gauge() {
+			@Override
+			public double getValue() {
+				return generator.isRunning() ? generator.getAchievedRate() : 0d;
+			}
+		});
 	}
 	
-	private AtomicBoolean simulation10HzIsRunning = new AtomicBoolean(false);
-	private AtomicBoolean simulation100HzIsRunning = new AtomicBoolean(false);
-	
-	private void start10HzSimulation(final HttpServerResponse response) {
-		logger.info("10 Hz data sending started");
-		simulation10HzIsRunning.set(true);
-		
-		new Thread() {
-			public void run() {
-				while (simulation10HzIsRunning.get()) {
-					try {
-						Thread.currentThread().sleep(100);
-					} catch (InterruptedException e) {
-						e.printStackTrace();
-					}
-					sendFestoCebitRandomData();
-				}
-			}
-		}.start();
-		
+	private void stopSimulation(final HttpServerResponse response, String scenario) {
+		if (routeSimulationRequest(new JsonObject().putString("type", "stopSimulation").putString("scenario", scenario), response)) {
+			return;
+		}
+		stopLocalSimulation(scenario);
 		response.end();
 	}
 	
-	private void stop10HzSimulation(final HttpServerResponse response) {
-		logger.info("10 Hz data sending stopped");
-		simulation10HzIsRunning.set(false);
-		response.end();
+	private void stopLocalSimulation(String scenario) {
+		LoadGenerator generator = simulations.get(scenario);
+		if (generator != null) {
+			generator.stop();
+		}
 	}
 	
-	private void start100HzSimulation(final HttpServerResponse response) {
-		logger.info("100 Hz data sending started");
-		simulation100HzIsRunning.set(true);
-		
-		new Thread() {
-			public void run() {
-				while (simulation100HzIsRunning.get()) {
-					try {
-						Thread.currentThread().sleep(10);
-					} catch (InterruptedException e) {
-						e.printStackTrace();
+	private void sendSimulationStatus(final HttpServerResponse response) {
+		JsonArray status = new JsonArray();
+		for (LoadGenerator generator : simulations.values()) {
+			status.addObject(generator.asJson());
+		}
+		JsonObject body = new JsonObject().putArray("simulations", status);
+		body.putObject("clock", clock.asJson());
+		JsonArray scenarioStatus = new JsonArray();
+		for (Scenario scenario : scenarios.values()) {
+			scenarioStatus.addObject(scenario.asJson());
+		}
+		body.putArray("scenarios", scenarioStatus);
+		if (replay != null) {
+			body.putObject("replay", replay.asJson());
+		}
+		body.putObject("schemaRegistry", schemaRegistry.asJson());
+		if (sender.getBatcher() != null) {
+			body.putObject("batching", sender.getBatcher().asJson());
+		}
+		if (sender.getQueue() != null) {
+			body.putObject("queue", sender.getQueue().asJson());
+		}
+		if (sender.getRetryingTransport() != null) {
+			body.putObject("retries", sender.getRetryingTransport().asJson());
+		}
+		if (sender.getDeltaTracker() != null) {
+			body.putObject("deltaUpdates", sender.getDeltaTracker().asJson());
+		}
+		if (sender.getLiveView() != null) {
+			body.putObject("liveView", sender.getLiveView().asJson());
+		}
+		if (fleet != null) {
+			body.putObject("fleet", fleet.asJson());
+		}
+		if (persistence != null) {
+			body.putObject("persistence", persistence.asJson());
+		}
+		if (cluster != null) {
+			body.putObject("cluster", cluster.asJson().putArray("scenarios", new JsonArray(new ArrayList<Object>(ownedScenarios))));
+		}
+		response.headers().set("Content-Type", "application/json");
+		response.end(body.encode());
+	}
+	
+	/**
+	 * Starts the replay of a trace, replacing the current replay.
+	 * @param action Action with the path of the trace (<code>file</code>), the scenario of records without scenario
+	 * (<code>scenario</code>), the speed (<code>speed</code>, a factor or <code>max</code>), whether to loop (<code>loop</code>)
+	 * and the maximum number of updates awaiting acknowledgement (<code>maxPending</code>).
+	 * @param response Response to end when the replay has been started.
+	 */
+	private void startReplay(JsonObject action, final HttpServerResponse response) {
+		final String file = action.getString("file");
+		String scenarioName = action.getString("scenario");
+		Scenario defaultScenario = scenarioName != null ? scenarios.get(scenarioName) : null;
+		if (file == null || (scenarioName != null && defaultScenario == null)) {
+			response.setStatusCode(400);
+			response.end(file == null ? "Missing trace file." : "Unknown scenario: " + scenarioName);
+			return;
+		}
+		if (!sender.isConnected()) {
+			response.setStatusCode(400);
+			response.end("RESTConnection was not initialized");
+			return;
+		}
+		if (replay != null) {
+			replay.stop();
+			replay = null;
+		}
+		try {
+			TraceReplay.open(vertx, sender, Paths.get(file), Collections.unmodifiableMap(scenarios), defaultScenario, parseReplaySpeed(action),
+					action.getInteger("maxPending", 1000), action.getBoolean("loop", false), new Handler<AsyncResult<TraceReplay>>() {
+				@Override
+				public void handle(AsyncResult<TraceReplay> result) {
+					if (result.failed()) {
+						response.setStatusCode(400);
+						response.end("Failed to start replay: " + result.cause().getMessage());
+						return;
+					}
+					// Another replay may have been started while the trace was opened.
+					if (replay != null) {
+						replay.stop();
 					}
-					sendFestoCebitRandomData();
+					replay = result.result();
+					logger.info("Starting replay of " + file + ".");
+					replay.resume();
+					response.end();
 				}
-			}
-		}.start();
-		
-		response.end();
+			});
+		} catch (IllegalArgumentException e) {
+			response.setStatusCode(400);
+			response.end("Failed to start replay: " + e.getMessage());
+		}
 	}
 	
-	private void stop100HzSimulation(final HttpServerResponse response) {
-		logger.info("100 Hz data sending stopped");
-		simulation100HzIsRunning.set(false);
-		response.end();
+	private static double parseReplaySpeed(JsonObject action) throws IllegalArgumentException {
+		Object speed = action.getValue("speed");
+		if (speed == null) {
+			return 1d;
+		} else if ("max".equals(speed)) {
+			return 0d;
+		} else if (speed instanceof Number) {
+			return ((Number) speed).doubleValue();
+		}
+		throw new IllegalArgumentException("Invalid replay speed: " + speed);
 	}
 	
-	// End Festo Cebit Scenario
+	/**
+	 * Reads the rate of a simulation request, given as number or as string by the control page.
+	 * @param action Action or cluster request.
+	 * @return Rate in Hz, 10 Hz if not given.
+	 * @throws IllegalArgumentException The rate is not a number.
+	 */
+	private static double parseSimulationRate(JsonObject action) throws IllegalArgumentException {
+		Object rate = action.getValue("rate");
+		if (rate == null) {
+			return 10d;
+		} else if (rate instanceof Number) {
+			return ((Number) rate).doubleValue();
+		} else if (rate instanceof String) {
+			try {
+				return Double.parseDouble(((String) rate).trim());
+			} catch (NumberFormatException e) {
+				// Reported below
+			}
+		}
+		throw new IllegalArgumentException("Invalid simulation rate: " + rate);
+	}
 	
-	// Festo Pilot Scenario
-	private void sendFestoPilotData() {
-		if (fpilotMachine == null) {
-			throw new IllegalStateException("RESTConnection was not initialized");
-		}
-		// Machine Data
-		MachineData machineData = new MachineData(fpilotMachine);
-		// Dummy values
-		machineData.put(fpilotFatFieldName, fpilotFat);
-		// Real values
-		machineData.put(fpilotDNCFieldName, fpilotDNC);
-		machineData.put(fpilotAutomationModeFieldName, fpilotAutomationModeActive);
-		machineData.put(fpilotMachineLockedFiledName, fpilotMachineLocked);
-		machineData.put(fpilotDoor1ClosedFieldName, fpilotDoor1Closed);
-		machineData.put(fpilotDoor2ClosedFieldName, fpilotDoor2Closed);
-		machineData.put(fpilotDoor3ClosedFieldName, fpilotDoor3Closed);
-		machineData.put(fpilotDoor4ClosedFieldName, fpilotDoor4Closed);
-		machineData.put(fpilotLoctiteFullFieldName, fpilotLoctiteFull);
-		// Data Message
-		DataMessage dataMessage = new DataMessage();
-		try {
-			dataMessage.addMachineData(machineData, fpilotMachineSchema);
-		} catch (DataSchemaMismatchException e) {
-			e.printStackTrace();
-			logger.error("There was a mismatch between the Festo Pilot schema and data");
+	private boolean checkReplay(HttpServerResponse response) {
+		if (replay == null || replay.getState() == TraceReplay.State.STOPPED) {
+			response.setStatusCode(400);
+			response.end("No replay has been started.");
+			return false;
 		}
-		// Send
-		client.send(ContentType.JSON, fpilotSchemaMessage);
-		client.send(ContentType.JSON, dataMessage);
-		// End
-		logger.info("Festo Pilot data has been updated.");
+		return true;
 	}
 	
-	private void festoPilotSetLoctite(final HttpServerResponse response, boolean fill) {
-		festoPilotSetLoctite(fill);
-		response.end();
+	/**
+	 * Creates the handler generating a single update for the given simulation scenario.
+	 * @param scenario Scenario to create handler for.
+	 * @return Tick handler or <code>null</code> if the scenario is unknown.
+	 */
+	private Handler<Void> createSimulationTickHandler(final String scenario) {
+		if (FLEET_SIMULATION.equals(scenario)) {
+			if (fleet == null) {
+				return null;
+			}
+			return new Handler<Void>() {
+				@Override
+				public void handle(Void event) {
+					fleet.tick(getTickSeconds(scenario));
+				}
+			};
+		}
+		final Scenario behaviourScenario = scenarios.get(scenario);
+		if (behaviourScenario != null && behaviourScenario.hasBehaviour()) {
+			return new Handler<Void>() {
+				@Override
+				public void handle(Void event) {
+					// Scenarios owned by other nodes or awaiting their handover are advanced, but not sent.
+					if (behaviourScenario.advance(getTickSeconds(scenario)) && isSending(behaviourScenario)) {
+						sender.send(behaviourScenario.createUpdate(), null);
+					}
+				}
+			};
+		}
+		final Scenario.Action action = simulationActions.get(scenario);
+		if (action == null) {
+			return null;
+		}
+		return new Handler<Void>() {
+			@Override
+			public void handle(Void event) {
+				action.perform();
+				if (isSending(action.getScenario())) {
+					sender.send(action.getScenario().createUpdate(), null);
+				}
+			}
+		};
 	}
 	
-	public void festoPilotSetLoctite(boolean fill) {
-		fpilotLoctiteFull = fill;
-		/*if (!fill) {
-			// Generate random almost empty value
-			double randomValue = 0.09 * rand.nextDouble();
-			fpilotLoctite = randomValue;
-		} else {
-			fpilotLoctite = 1.0;
-		}*/
-		// Send
-		sendFestoPilotData();
-		// End
-		if (!fill)
-			logger.info("Loctite has been emptied.");
-		else
-			logger.info("Loctite has been filled.");
-	}
-	
-	private void festoPilotSetFat(final HttpServerResponse response, boolean fill) {
-		festoPilotSetFat(fill);
-		response.end();
+	/**
+	 * Returns the simulated time of one tick of a simulation. Behaviour models advance by the nominal tick interval, so their rates
+	 * refer to simulated time independent of the tick rate and the load of the event loop.
+	 * @param simulation Name of the simulation.
+	 * @return Seconds per tick.
+	 */
+	private double getTickSeconds(String simulation) {
+		return 1d / simulations.get(simulation).getTargetRate();
 	}
 	
-	public void festoPilotSetFat(boolean fill) {
-		if (!fill) {
-			// Generate random almost empty value
-			double randomValue = 0.09 * rand.nextDouble();
-			fpilotFat = randomValue;
-		} else {
-			fpilotFat = 1.0;
-		}
-		// Send
-		sendFestoPilotData();
-		// End
-		if (!fill)
-			logger.info("Fat has been emptied.");
-		else 
-			logger.info("Fat has been filled.");
-	}
-	
-	private void festoPilotSetDoorOpen(final HttpServerResponse response, boolean state) {
-		logger.info("Setting open door to " + state + " for festo pilot scenario.");
-		fpilotDoor3Closed = state;
-		fpilotDoor4Closed = state;
-		sendFestoPilotData();
-		response.end();
+	/**
+	 * Stops all running simulations and the replay, and releases the threads of the fleet. Called when the service is stopped.
+	 */
+	public void stopSimulations() {
+		for (LoadGenerator generator : simulations.values()) {
+			generator.stop();
+		}
+		if (replay != null) {
+			replay.stop();
+		}
+		if (fleet != null) {
+			fleet.close();
+		}
 	}
 	
-	private void festoPilotSetLocked(final HttpServerResponse response, boolean state) {
-		logger.info("Setting locked to " + state + " for festo pilot scenario");
-		fpilotMachineLocked = state;
-		sendFestoPilotData();
-		response.end();
+	/**
+	 * Leaves the cluster, if clustered, handing the scenarios and running simulations of this node over to the remaining nodes.
+	 */
+	public void leaveCluster() {
+		if (cluster != null) {
+			cluster.leave();
+		}
 	}
 	
-	private void festoPilotSetAutomaticMode(final HttpServerResponse response, boolean state) {
-		logger.info("Setting automatc mode to " + state + " for festo pilot scenario.");
-		fpilotAutomationModeActive = state;
-		sendFestoPilotData();
-		response.end();
+	/**
+	 * Writes the pending changes of the scenario states, if persisted.
+	 */
+	public void closePersistence() {
+		if (persistence != null) {
+			persistence.close();
+		}
 	}
 	
+	// Festo Pilot Scenario
 	public void festoPilotReportWeldSeamError(final HttpServerResponse response, String inputFieldValue) {
 		logger.debug("Creating appsist SetMachineDataEvent to report weld seam error: " + inputFieldValue);
 		List<Field> fields = new ArrayList<SetMachineDataEvent.Field>();
@@ -544,54 +1077,4 @@ public class StateController {
 		logger.debug("Published SetMachineDataEvent");
 	}
 	// End Festo Pilot Scenario
-
-	
-	// MBB Scenario
-	private void sendMBBData() {
-		if (mbbMachine == null) {
-			throw new IllegalStateException("RESTConnection was not initialized");
-		}
-		// Machine Data
-		MachineData machineData = new MachineData(mbbMachine);
-		machineData.put(mbbLostPartFieldName, mbbLostPart);
-		machineData.put(mbbPartCounterFieldName, mbbPartCounter);
-		machineData.put(mbbManualModeFieldName, mbbManualMode);
-		machineData.put(mbbTagAvailableFieldName, mbbTagAvailable);
-		machineData.put(mbbPartAvailableFieldName, !mbbLostPart);
-		machineData.put(mbbDoorOpenFieldName, mbbDoorOpen);
-		// Data Message
-		DataMessage dataMessage = new DataMessage();
-		try {
-			dataMessage.addMachineData(machineData, mbbMachineSchema);
-		} catch (DataSchemaMismatchException e) {
-			logger.error("There was a mismatch between the MBB schema and data");
-		}
-		// Send
-		client.send(ContentType.JSON, mbbSchemaMessage);
-		client.send(ContentType.JSON, dataMessage);
-		// End
-		logger.info("MBB data has been updated.");
-	}
-	
-	private void setMBBLostPart(final HttpServerResponse response, boolean state) {
-		logger.info("Setting lost part to " + state + " for MBB Scenario.");
-		mbbLostPart = state;
-		sendMBBData();
-		response.end();
-	}
-	
-	private void setMBBDoorOpen(final HttpServerResponse response, boolean state) {
-		logger.info("Setting lost part to " + state + " for MBB Scenario.");
-		mbbDoorOpen = state;
-		sendMBBData();
-		response.end();
-	}
-	
-	private void setMBBManualMode(final HttpServerResponse response, boolean state) {
-		logger.info("Setting lost part to " + state + " for MBB Scenario.");
-		mbbManualMode = state;
-		sendMBBData();
-		response.end();
-	}
-	// End MBB Scenario
 }
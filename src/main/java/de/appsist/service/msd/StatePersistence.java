@@ -0,0 +1,461 @@
+package de.appsist.service.msd;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.json.DecodeException;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.core.logging.impl.LoggerFactory;
+
+/**
+ * Persistence of the scenario states, so that a restarted or redeployed service continues with the values it stopped with.
+ * <p>
+ * The state is stored in a directory as a snapshot of all scenarios (<code>snapshot.json</code>) and a write-ahead log of the
+ * changes since (<code>state.log</code>), one JSON record per line with a sequence number, the scenario and its changed values.
+ * Changes are not recorded when they are made: In each flush interval, the values of all scenarios are compared with the
+ * values persisted last and the changes are appended to the log in one write. The file operations are performed on a single
+ * background thread in the order they were requested, so neither the simulations nor the sender wait for the disk. When the log
+ * exceeds its maximum number of records or in the snapshot interval, it is compacted into a new snapshot, replaced atomically.
+ * <p>
+ * On startup, the snapshot and the records of the log not yet contained in it are applied to the scenarios. A record torn by a
+ * crash ends the log. A crash loses at most the changes of the last flush interval; on stop, all changes are written as a
+ * final snapshot before the service is stopped. As the values are sent before they are persisted, the MID may have received a
+ * counter value larger than the restored one after a crash. To not report a decreasing counter, the largest increase of each
+ * counter within one flush interval is persisted as its margin, and counters are increased by twice their margin unless the
+ * state has been restored from a final snapshot. The restored state is written as new snapshot before the service continues,
+ * so a second crash continues from the increased counters. Only the scenarios are persisted, the fleet simulation starts with the
+ * initial values of its template.
+ * All methods but {@link #close()} have to be called from the event loop of the verticle.
+ */
+public class StatePersistence {
+	private static final Logger logger = LoggerFactory.getLogger(StatePersistence.class);
+	private static final String SNAPSHOT_FILE = "snapshot.json";
+	private static final String LOG_FILE = "state.log";
+
+	private final Map<String, Scenario> scenarios;
+	private final Path directory;
+	private final int maxLogRecords;
+	private final boolean sync;
+	private final Map<String, Object[]> persisted; // Scenario -> values persisted last, null for derived fields
+	private final Map<String, double[]> margins; // Scenario -> largest increase of each counter within one flush interval
+	private final ExecutorService writer;
+	private final AtomicLong errors = new AtomicLong();
+	private FileChannel log; // Only accessed by the writer
+	private long sequence = 0; // Sequence number of the last record
+	private long logRecords = 0; // Records appended since the last snapshot
+	private long snapshots = 0;
+	private int restoredScenarios = 0;
+	private int increasedCounters = 0;
+	private long restoreTime = 0;
+	private boolean closed = false;
+
+	/**
+	 * Restores the persisted state of the scenarios and starts to persist their changes.
+	 * @param vertx Vert.x instance to set the timers with.
+	 * @param config Persistence configuration.
+	 * @param scenarios Scenarios to persist, by name.
+	 * @throws IllegalArgumentException The configuration is invalid.
+	 * @throws IOException The directory cannot be created or the persisted state cannot be read or written.
+	 */
+	public StatePersistence(Vertx vertx, JsonObject config, Map<String, Scenario> scenarios) throws IllegalArgumentException, IOException {
+		String directory = config.getString("directory");
+		long flushInterval = config.getLong("flushInterval", 100L);
+		long snapshotInterval = config.getLong("snapshotInterval", 60000L);
+		maxLogRecords = config.getInteger("maxLogRecords", 10000);
+		if (directory == null || flushInterval < 1 || snapshotInterval < 1 || maxLogRecords < 1) {
+			throw new IllegalArgumentException("Persistence requires a directory, intervals and the maximum number of log records must be positive.");
+		}
+		this.directory = Paths.get(directory);
+		this.sync = config.getBoolean("sync", true);
+		this.scenarios = scenarios;
+		this.persisted = new HashMap<>();
+		this.margins = new HashMap<>();
+		Files.createDirectories(this.directory);
+		long startTime = System.nanoTime();
+		restore();
+		// Starts with a compacted state, which also drops a torn record at the end of the log. It is written before any value is
+		// sent, so the increased counters are persisted.
+		try {
+			replaceSnapshot(encodeSnapshot(false));
+		} catch (IOException e) {
+			closeLog();
+			throw e;
+		}
+		snapshots++;
+		restoreTime = (System.nanoTime() - startTime) / 1000L;
+		logger.info("Restored state of " + restoredScenarios + " scenarios from " + this.directory + " in " + restoreTime + " us, "
+				+ increasedCounters + " counters increased by their margin.");
+
+		writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "msd-persistence");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		vertx.setPeriodic(flushInterval, new Handler<Long>() {
+			@Override
+			public void handle(Long timerId) {
+				flush();
+			}
+		});
+		vertx.setPeriodic(snapshotInterval, new Handler<Long>() {
+			@Override
+			public void handle(Long timerId) {
+				if (logRecords > 0 && !closed) {
+					writeSnapshot(false);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Applies the snapshot and the log to the scenarios, increasing the counters by their margin, and initializes the persisted
+	 * values.
+	 * @throws IOException Failed to read the files.
+	 */
+	private void restore() throws IOException {
+		Map<String, JsonObject> values = new HashMap<>(); // Scenario -> restored values by field name
+		Map<String, JsonObject> restoredMargins = new HashMap<>(); // Scenario -> margins by field name
+		long snapshotSequence = 0;
+		boolean stopped = false; // Whether the state has been written completely on stop
+		Path snapshotFile = directory.resolve(SNAPSHOT_FILE);
+		if (Files.exists(snapshotFile)) {
+			try {
+				JsonObject snapshot = new JsonObject(new String(Files.readAllBytes(snapshotFile), StandardCharsets.UTF_8));
+				snapshotSequence = snapshot.getLong("sequence", 0L);
+				stopped = snapshot.getBoolean("stopped", false);
+				JsonObject scenarioValues = snapshot.getObject("scenarios", new JsonObject());
+				for (String name : scenarioValues.getFieldNames()) {
+					values.put(name, scenarioValues.getObject(name));
+				}
+				JsonObject scenarioMargins = snapshot.getObject("margins", new JsonObject());
+				for (String name : scenarioMargins.getFieldNames()) {
+					restoredMargins.put(name, scenarioMargins.getObject(name));
+				}
+			} catch (DecodeException | ClassCastException e) {
+				throw new IOException("Invalid snapshot " + snapshotFile + ": " + e.getMessage());
+			}
+		}
+		sequence = snapshotSequence;
+		Path logFile = directory.resolve(LOG_FILE);
+		if (Files.exists(logFile)) {
+			List<String> lines = Files.readAllLines(logFile, StandardCharsets.UTF_8);
+			for (int i = 0; i < lines.size(); i++) {
+				JsonObject record;
+				try {
+					record = new JsonObject(lines.get(i));
+				} catch (DecodeException e) {
+					logger.warn("Ignoring " + (lines.size() - i) + " torn or invalid records at the end of " + logFile + ".");
+					break;
+				}
+				long recordSequence = record.getLong("sequence", 0L);
+				JsonObject changes = record.getObject("values");
+				String name = record.getString("scenario");
+				if (recordSequence <= snapshotSequence || name == null || changes == null) {
+					continue; // Already contained in the snapshot
+				}
+				JsonObject scenarioValues = values.get(name);
+				if (scenarioValues == null) {
+					values.put(name, changes);
+				} else {
+					scenarioValues.mergeIn(changes);
+				}
+				JsonObject changedMargins = record.getObject("margins");
+				if (changedMargins != null) {
+					JsonObject scenarioMargins = restoredMargins.get(name);
+					if (scenarioMargins == null) {
+						restoredMargins.put(name, changedMargins);
+					} else {
+						scenarioMargins.mergeIn(changedMargins);
+					}
+				}
+				sequence = Math.max(sequence, recordSequence);
+				stopped = false;
+			}
+		}
+		for (Scenario scenario : scenarios.values()) {
+			JsonObject scenarioValues = values.get(scenario.getName());
+			double[] scenarioMargins = readMargins(scenario, restoredMargins.get(scenario.getName()));
+			margins.put(scenario.getName(), scenarioMargins);
+			if (scenarioValues != null) {
+				if (!stopped) {
+					increaseCounters(scenario, scenarioValues, scenarioMargins);
+				}
+				for (String fieldName : scenario.setValues(scenarioValues)) {
+					logger.warn("Ignoring persisted value of field " + fieldName + " of scenario " + scenario.getName() + ": " + scenarioValues.getValue(fieldName));
+				}
+				restoredScenarios++;
+			}
+			persisted.put(scenario.getName(), readValues(scenario));
+		}
+	}
+
+	private static double[] readMargins(Scenario scenario, JsonObject json) {
+		double[] scenarioMargins = new double[scenario.getTemplate().getFieldCount()];
+		if (json != null) {
+			for (String fieldName : json.getFieldNames()) {
+				int field = scenario.getTemplate().getFieldIndex(fieldName);
+				Object margin = json.getValue(fieldName);
+				if (field >= 0 && scenario.isCounter(field) && margin instanceof Number) {
+					scenarioMargins[field] = Math.max(0d, ((Number) margin).doubleValue());
+				}
+			}
+		}
+		return scenarioMargins;
+	}
+
+	/**
+	 * Increases the restored values of the counters by twice their margin, as the MID may have received values up to one flush
+	 * interval ahead of the persisted ones, and the interval may have been stretched by a busy event loop.
+	 */
+	private void increaseCounters(Scenario scenario, JsonObject scenarioValues, double[] scenarioMargins) {
+		for (int field = 0; field < scenarioMargins.length; field++) {
+			String fieldName = scenario.getTemplate().getFieldName(field);
+			Object value = scenarioValues.getValue(fieldName);
+			if (scenarioMargins[field] <= 0 || !(value instanceof Number)) {
+				continue;
+			}
+			if (value instanceof Double || value instanceof Float) {
+				scenarioValues.putNumber(fieldName, ((Number) value).doubleValue() + 2 * scenarioMargins[field]);
+			} else {
+				scenarioValues.putNumber(fieldName, ((Number) value).longValue() + (long) Math.ceil(2 * scenarioMargins[field]));
+			}
+			increasedCounters++;
+		}
+	}
+
+	private static Object[] readValues(Scenario scenario) {
+		Object[] values = new Object[scenario.getTemplate().getFieldCount()];
+		for (int field = 0; field < values.length; field++) {
+			if (!scenario.isDerived(field)) {
+				values[field] = scenario.getValue(field);
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Appends the changes of all scenarios since the last flush to the log.
+	 */
+	private void flush() {
+		if (closed) {
+			return;
+		}
+		StringBuilder records = null;
+		for (Scenario scenario : scenarios.values()) {
+			Object[] values = persisted.get(scenario.getName());
+			double[] scenarioMargins = margins.get(scenario.getName());
+			JsonObject changes = null;
+			JsonObject changedMargins = null;
+			for (int field = 0; field < values.length; field++) {
+				if (values[field] == null) {
+					continue;
+				}
+				Object value = scenario.getValue(field);
+				if (!value.equals(values[field])) {
+					String fieldName = scenario.getTemplate().getFieldName(field);
+					if (scenario.isCounter(field)) {
+						double increase = ((Number) value).doubleValue() - ((Number) values[field]).doubleValue();
+						if (increase > scenarioMargins[field]) {
+							scenarioMargins[field] = increase;
+							if (changedMargins == null) {
+								changedMargins = new JsonObject();
+							}
+							changedMargins.putNumber(fieldName, increase);
+						}
+					}
+					values[field] = value;
+					if (changes == null) {
+						changes = new JsonObject();
+					}
+					changes.putValue(fieldName, value);
+				}
+			}
+			if (changes != null) {
+				if (records == null) {
+					records = new StringBuilder();
+				}
+				JsonObject record = new JsonObject().putNumber("sequence", ++sequence).putString("scenario", scenario.getName()).putObject("values", changes);
+				if (changedMargins != null) {
+					record.putObject("margins", changedMargins);
+				}
+				records.append(record.encode()).append('\n');
+				logRecords++;
+			}
+		}
+		if (records != null) {
+			final ByteBuffer bytes = ByteBuffer.wrap(records.toString().getBytes(StandardCharsets.UTF_8));
+			writer.execute(new Runnable() {
+				@Override
+				public void run() {
+					appendToLog(bytes);
+				}
+			});
+			if (logRecords >= maxLogRecords) {
+				writeSnapshot(false);
+			}
+		}
+	}
+
+	/**
+	 * Writes a snapshot of the persisted values and truncates the log.
+	 * The snapshot is encoded on the event loop, as the persisted values are modified by the next flush.
+	 * @param stopped Whether this is the final snapshot written on stop, i.e. it contains all values sent.
+	 */
+	private void writeSnapshot(boolean stopped) {
+		final byte[] snapshot = encodeSnapshot(stopped);
+		logRecords = 0;
+		snapshots++;
+		writer.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					replaceSnapshot(snapshot);
+				} catch (IOException e) {
+					errors.incrementAndGet();
+					logger.error("Failed to write state snapshot: " + e.getMessage());
+				}
+			}
+		});
+	}
+
+	private byte[] encodeSnapshot(boolean stopped) {
+		JsonObject scenarioValues = new JsonObject();
+		JsonObject scenarioMargins = new JsonObject();
+		for (Scenario scenario : scenarios.values()) {
+			Object[] values = persisted.get(scenario.getName());
+			double[] fieldMargins = margins.get(scenario.getName());
+			JsonObject valuesJson = new JsonObject();
+			JsonObject marginsJson = new JsonObject();
+			for (int field = 0; field < values.length; field++) {
+				if (values[field] != null) {
+					valuesJson.putValue(scenario.getTemplate().getFieldName(field), values[field]);
+				}
+				if (fieldMargins[field] > 0) {
+					marginsJson.putNumber(scenario.getTemplate().getFieldName(field), fieldMargins[field]);
+				}
+			}
+			scenarioValues.putObject(scenario.getName(), valuesJson);
+			if (marginsJson.size() > 0) {
+				scenarioMargins.putObject(scenario.getName(), marginsJson);
+			}
+		}
+		return new JsonObject().putNumber("sequence", sequence).putBoolean("stopped", stopped).putObject("scenarios", scenarioValues)
+				.putObject("margins", scenarioMargins).encode().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private void appendToLog(ByteBuffer bytes) {
+		try {
+			if (log == null) {
+				log = FileChannel.open(directory.resolve(LOG_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			}
+			while (bytes.hasRemaining()) {
+				log.write(bytes);
+			}
+			if (sync) {
+				log.force(false);
+			}
+		} catch (IOException e) {
+			errors.incrementAndGet();
+			logger.error("Failed to append to state log: " + e.getMessage());
+			closeLog();
+		}
+	}
+
+	/**
+	 * Replaces the snapshot and truncates the log. If the service crashes before the log is truncated, the records contained in
+	 * the new snapshot are skipped on restore by their sequence number.
+	 */
+	private void replaceSnapshot(byte[] snapshot) throws IOException {
+		Path temporaryFile = directory.resolve(SNAPSHOT_FILE + ".tmp");
+		try (FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer bytes = ByteBuffer.wrap(snapshot);
+			while (bytes.hasRemaining()) {
+				channel.write(bytes);
+			}
+			if (sync) {
+				channel.force(true);
+			}
+		}
+		Files.move(temporaryFile, directory.resolve(SNAPSHOT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		closeLog();
+		log = FileChannel.open(directory.resolve(LOG_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		log.truncate(0);
+	}
+
+	private void closeLog() {
+		if (log != null) {
+			try {
+				log.close();
+			} catch (IOException e) {
+				// Reopened with the next record
+			}
+			log = null;
+		}
+	}
+
+	/**
+	 * Writes the final snapshot and stops the background thread, waiting for the writes to complete. The simulations must have
+	 * been stopped before, so that no value is sent after it has been written.
+	 */
+	public void close() {
+		if (closed) {
+			return;
+		}
+		flush();
+		writeSnapshot(true);
+		closed = true;
+		writer.execute(new Runnable() {
+			@Override
+			public void run() {
+				closeLog();
+			}
+		});
+		writer.shutdown();
+		try {
+			if (!writer.awaitTermination(5, TimeUnit.SECONDS)) {
+				logger.warn("Timed out waiting for the state to be written.");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Returns a JSON representation of the persistence statistics.
+	 * @return JSON object.
+	 */
+	public JsonObject asJson() {
+		JsonObject json = new JsonObject();
+		json.putString("directory", directory.toString());
+		json.putNumber("sequence", sequence);
+		json.putNumber("logRecords", logRecords);
+		json.putNumber("snapshots", snapshots);
+		json.putNumber("restoredScenarios", restoredScenarios);
+		json.putNumber("increasedCounters", increasedCounters);
+		json.putNumber("restoreTime", restoreTime);
+		json.putNumber("errors", errors.get());
+		return json;
+	}
+}
@@ -0,0 +1,402 @@
+package de.appsist.service.msd;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.vertx.java.core.json.DecodeException;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Streaming reader for recorded machine data. Traces are read line by line through a buffer of fixed size, so that files of any
+ * size are read with constant memory. The format is chosen by the file extension:
+ * <ul>
+ * <li>JSON Lines (default): One object per line with <code>time</code> in milliseconds, the field values in <code>values</code>
+ * and optionally <code>serialNumber</code> and <code>scenario</code>.</li>
+ * <li>CSV (<code>.csv</code>): A header line naming the columns <code>time</code>, optionally <code>serialNumber</code> and
+ * <code>scenario</code>, and the fields. Empty cells are not sent.</li>
+ * </ul>
+ * Files ending with <code>.gz</code> are decompressed while reading. Records of uncompressed files can be read from any position.
+ * Each record is sent as update of the machine of its scenario, the default scenario if the record does not name one.
+ * Reading blocks, so a reader must not be used on the event loop. It is not thread-safe, the {@link TraceReplay} uses it from its
+ * reader thread only.
+ */
+public class TraceReader implements Closeable {
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_LINE_LENGTH = 1024 * 1024;
+	private static final String TIME_COLUMN = "time";
+	private static final String SERIAL_NUMBER_COLUMN = "serialNumber";
+	private static final String SCENARIO_COLUMN = "scenario";
+
+	private final Path path;
+	private final boolean compressed;
+	private final boolean csv;
+	private final Map<String, Scenario> scenarios;
+	private final Scenario defaultScenario;
+	private final ByteBuffer buffer;
+	private FileChannel fileChannel;
+	private ReadableByteChannel channel;
+	private byte[] line;
+	private long position; // Offset of the next line in the uncompressed trace
+
+	// CSV header
+	private String[] columns;
+	private int timeColumn = -1;
+	private int serialNumberColumn = -1;
+	private int scenarioColumn = -1;
+	private long dataPosition = 0; // Offset of the first record
+	private final Map<MachineTemplate, int[]> columnFields; // Field index of each column by template
+
+	/**
+	 * Opens a trace.
+	 * @param path Path of the trace file.
+	 * @param scenarios Scenarios by name, providing the machine templates.
+	 * @param defaultScenario Scenario of records without scenario, may be <code>null</code>.
+	 * @throws IOException The file could not be opened or the CSV header could not be read.
+	 */
+	public TraceReader(Path path, Map<String, Scenario> scenarios, Scenario defaultScenario) throws IOException {
+		this.path = path;
+		String fileName = path.getFileName().toString();
+		this.compressed = fileName.endsWith(".gz");
+		this.csv = fileName.endsWith(".csv") || fileName.endsWith(".csv.gz");
+		this.scenarios = scenarios;
+		this.defaultScenario = defaultScenario;
+		this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		this.line = new byte[256];
+		this.columnFields = new HashMap<>();
+		open();
+		if (csv) {
+			readHeader();
+		}
+	}
+
+	private void open() throws IOException {
+		fileChannel = FileChannel.open(path, StandardOpenOption.READ);
+		if (compressed) {
+			channel = Channels.newChannel(new GZIPInputStream(Channels.newInputStream(fileChannel), BUFFER_SIZE));
+		} else {
+			channel = fileChannel;
+		}
+		buffer.clear().flip();
+		position = 0;
+	}
+
+	private void readHeader() throws IOException {
+		String header = readLine();
+		if (header == null) {
+			throw new IOException("Missing header in " + path + ".");
+		}
+		columns = parseCsvLine(header);
+		for (int i = 0; i < columns.length; i++) {
+			switch (columns[i]) {
+			case TIME_COLUMN:
+				timeColumn = i;
+				break;
+			case SERIAL_NUMBER_COLUMN:
+				serialNumberColumn = i;
+				break;
+			case SCENARIO_COLUMN:
+				scenarioColumn = i;
+				break;
+			default:
+			}
+		}
+		if (timeColumn < 0) {
+			throw new IOException("Missing column " + TIME_COLUMN + " in " + path + ".");
+		}
+		dataPosition = position;
+	}
+
+	/**
+	 * Returns whether records can be read from any position, see {@link #seek(long)}.
+	 * @return <code>true</code> for uncompressed traces.
+	 */
+	public boolean isSeekable() {
+		return !compressed;
+	}
+
+	/**
+	 * Returns the position of the next record.
+	 * @return Offset in bytes in the uncompressed trace.
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	/**
+	 * Continues reading at the given position.
+	 * @param position Position as returned by {@link #getPosition()}.
+	 * @throws IOException The position could not be set.
+	 * @throws IllegalStateException The trace is compressed.
+	 */
+	public void seek(long position) throws IOException, IllegalStateException {
+		if (compressed) {
+			throw new IllegalStateException("Cannot seek in compressed trace " + path + ".");
+		}
+		fileChannel.position(Math.max(position, dataPosition));
+		buffer.clear().flip();
+		this.position = fileChannel.position();
+	}
+
+	/**
+	 * Continues reading at the first record.
+	 * @throws IOException The trace could not be reopened.
+	 */
+	public void rewind() throws IOException {
+		if (compressed) {
+			close();
+			open();
+			if (csv) {
+				readHeader();
+			}
+		} else {
+			seek(dataPosition);
+		}
+	}
+
+	/**
+	 * Reads the next record.
+	 * @return Record or <code>null</code> if the end of the trace has been reached.
+	 * @throws IOException The trace could not be read.
+	 * @throws IllegalArgumentException The record is invalid. The next call continues with the following record.
+	 */
+	public Record next() throws IOException, IllegalArgumentException {
+		String text;
+		do {
+			text = readLine();
+			if (text == null) {
+				return null;
+			}
+		} while (text.trim().isEmpty());
+		long recordPosition = position;
+		try {
+			return csv ? parseCsvRecord(text) : parseJsonRecord(text);
+		} catch (IllegalArgumentException | DecodeException | ClassCastException e) {
+			throw new IllegalArgumentException("Invalid record before offset " + recordPosition + " of " + path + ": " + e.getMessage());
+		}
+	}
+
+	private String readLine() throws IOException {
+		int length = 0;
+		while (true) {
+			if (!buffer.hasRemaining()) {
+				buffer.clear();
+				int read = channel.read(buffer);
+				buffer.flip();
+				if (read < 0) {
+					if (length == 0) {
+						return null;
+					}
+					break;
+				}
+				continue;
+			}
+			byte[] bytes = buffer.array();
+			int start = buffer.position();
+			int end = start;
+			while (end < buffer.limit() && bytes[end] != '\n') {
+				end++;
+			}
+			int chunkLength = end - start;
+			if (length + chunkLength > line.length) {
+				if (length + chunkLength > MAX_LINE_LENGTH) {
+					throw new IOException("Line at offset " + position + " of " + path + " exceeds " + MAX_LINE_LENGTH + " bytes.");
+				}
+				line = Arrays.copyOf(line, Math.max(line.length * 2, length + chunkLength));
+			}
+			System.arraycopy(bytes, start, line, length, chunkLength);
+			length += chunkLength;
+			if (end < buffer.limit()) {
+				// Line feed found
+				buffer.position(end + 1);
+				position += chunkLength + 1;
+				break;
+			}
+			buffer.position(end);
+			position += chunkLength;
+		}
+		if (length > 0 && line[length - 1] == '\r') {
+			length--;
+		}
+		return new String(line, 0, length, StandardCharsets.UTF_8);
+	}
+
+	private Record parseJsonRecord(String text) throws IllegalArgumentException {
+		JsonObject json = new JsonObject(text);
+		Number time = json.getNumber(TIME_COLUMN);
+		if (time == null) {
+			throw new IllegalArgumentException("Missing " + TIME_COLUMN + ".");
+		}
+		Scenario scenario = getScenario(json.getString(SCENARIO_COLUMN));
+		String serialNumber = json.getString(SERIAL_NUMBER_COLUMN, scenario.getSerialNumber());
+		MachineUpdate update = new MachineUpdate(scenario.getTemplate(), serialNumber);
+		JsonObject values = json.getObject("values");
+		if (values != null) {
+			for (String fieldName : values.getFieldNames()) {
+				update.put(fieldName, values.getValue(fieldName));
+			}
+		}
+		return new Record(time.longValue(), scenario, update);
+	}
+
+	private Record parseCsvRecord(String text) throws IllegalArgumentException {
+		String[] cells = parseCsvLine(text);
+		if (cells.length != columns.length) {
+			throw new IllegalArgumentException("Expected " + columns.length + " cells, found " + cells.length + ".");
+		}
+		Scenario scenario = getScenario(scenarioColumn >= 0 ? cells[scenarioColumn] : null);
+		MachineTemplate template = scenario.getTemplate();
+		String serialNumber = serialNumberColumn >= 0 && !cells[serialNumberColumn].isEmpty() ? cells[serialNumberColumn] : scenario.getSerialNumber();
+		MachineUpdate update = new MachineUpdate(template, serialNumber);
+		int[] fields = getColumnFields(template);
+		for (int i = 0; i < cells.length; i++) {
+			if (fields[i] >= 0 && !cells[i].isEmpty()) {
+				update.set(fields[i], parseCsvValue(template, fields[i], cells[i]));
+			}
+		}
+		return new Record(Long.parseLong(cells[timeColumn].trim()), scenario, update);
+	}
+
+	private Scenario getScenario(String name) throws IllegalArgumentException {
+		if (name == null || name.isEmpty()) {
+			if (defaultScenario == null) {
+				throw new IllegalArgumentException("Missing scenario.");
+			}
+			return defaultScenario;
+		}
+		Scenario scenario = scenarios.get(name);
+		if (scenario == null) {
+			throw new IllegalArgumentException("Unknown scenario: " + name);
+		}
+		return scenario;
+	}
+
+	private int[] getColumnFields(MachineTemplate template) throws IllegalArgumentException {
+		int[] fields = columnFields.get(template);
+		if (fields == null) {
+			fields = new int[columns.length];
+			for (int i = 0; i < columns.length; i++) {
+				if (i == timeColumn || i == serialNumberColumn || i == scenarioColumn) {
+					fields[i] = -1;
+				} else {
+					fields[i] = template.getFieldIndex(columns[i]);
+					if (fields[i] < 0) {
+						throw new IllegalArgumentException("Unknown field for scenario " + template.getScenario() + ": " + columns[i]);
+					}
+				}
+			}
+			columnFields.put(template, fields);
+		}
+		return fields;
+	}
+
+	private static Object parseCsvValue(MachineTemplate template, int field, String cell) throws IllegalArgumentException {
+		switch (template.getFieldType(field)) {
+		case BOOL:
+			String value = cell.trim();
+			if ("true".equalsIgnoreCase(value) || "1".equals(value)) {
+				return Boolean.TRUE;
+			} else if ("false".equalsIgnoreCase(value) || "0".equals(value)) {
+				return Boolean.FALSE;
+			}
+			throw new IllegalArgumentException("Invalid value for field " + template.getFieldName(field) + ": " + cell);
+		case LONG:
+			return Long.parseLong(cell.trim());
+		case DOUBLE:
+			return Double.parseDouble(cell.trim());
+		default:
+			return cell;
+		}
+	}
+
+	/**
+	 * Splits a CSV line into its cells. Cells may be quoted with double quotes, a double quote within a quoted cell is escaped
+	 * by another double quote.
+	 */
+	private static String[] parseCsvLine(String text) {
+		List<String> cells = new ArrayList<>();
+		StringBuilder cell = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (quoted) {
+				if (c == '"') {
+					if (i + 1 < text.length() && text.charAt(i + 1) == '"') {
+						cell.append('"');
+						i++;
+					} else {
+						quoted = false;
+					}
+				} else {
+					cell.append(c);
+				}
+			} else if (c == '"') {
+				quoted = true;
+			} else if (c == ',') {
+				cells.add(cell.toString());
+				cell.setLength(0);
+			} else {
+				cell.append(c);
+			}
+		}
+		cells.add(cell.toString());
+		return cells.toArray(new String[cells.size()]);
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+		fileChannel.close();
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	/**
+	 * Record of a trace: The values of a machine at a point in time.
+	 */
+	public static class Record {
+		private final long time;
+		private final Scenario scenario;
+		private final MachineUpdate update;
+
+		private Record(long time, Scenario scenario, MachineUpdate update) {
+			this.time = time;
+			this.scenario = scenario;
+			this.update = update;
+		}
+
+		/**
+		 * Returns the time of the record.
+		 * @return Time in milliseconds as recorded.
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * Returns the scenario providing the template of the record.
+		 * @return Scenario named by the record or default scenario.
+		 */
+		public Scenario getScenario() {
+			return scenario;
+		}
+
+		public MachineUpdate getUpdate() {
+			return update;
+		}
+	}
+}
@@ -0,0 +1,579 @@
+package de.appsist.service.msd;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Context;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.impl.DefaultFutureResult;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.core.logging.impl.LoggerFactory;
+
+/**
+ * Replay of a recorded trace through the sender. Records are sent at the pace of their timestamps multiplied by the speed, or as
+ * fast as the MID acknowledges them. At most a configured number of updates awaits acknowledgement, so a slow MID delays the
+ * replay instead of filling the memory. The replay can be paused, resumed and moved to any time of the trace.
+ * <p>
+ * The trace is read and decompressed by a reader thread of the replay, which hands the records to the event loop in batches and
+ * reads ahead while they are sent. Records of the machine of a scenario are applied to the scenario when they are sent, so that
+ * actions and simulations continue from the replayed values.
+ * All methods have to be called from the event loop of the verticle.
+ */
+public class TraceReplay {
+	private static final Logger logger = LoggerFactory.getLogger(TraceReplay.class);
+
+	private static final int MAX_RECORDS_PER_TURN = 10000; // Records processed before other events of the event loop are handled
+	private static final int READ_BATCH_SIZE = 1000; // Records read by the reader thread at once, the next batch is read ahead
+	private static final long INDEX_INTERVAL = 16L * 1024L * 1024L; // Bytes of the trace between entries of the seek index
+	private static final long CURRENT_POSITION = Long.MIN_VALUE; // Continue reading without repositioning the reader
+
+	/**
+	 * State of a replay.
+	 */
+	public enum State {
+		RUNNING, PAUSED, FINISHED, STOPPED;
+	}
+
+	private final Vertx vertx;
+	private final Context context;
+	private final MidSender sender;
+	private final TraceReader reader; // Only read by the reader thread
+	private final ExecutorService readerThread;
+	private final int maxPending;
+	private final boolean loop;
+	private final long firstTime;
+	private final TreeMap<Long, Long> seekIndex; // Time of a record -> position of the record, only used by the reader thread
+	private final ArrayDeque<TraceReader.Record> records; // Records read ahead
+	private final Handler<AsyncResult<Void>> sendHandler;
+	private final Handler<Long> timerHandler;
+	private final Handler<Void> continueHandler;
+	private double speed;
+	private State state;
+	private TraceReader.Record next;
+	private long traceTime; // Time of the last record sent
+	private long anchorWallTime; // Wall clock time at which the record with the anchor trace time is due
+	private long anchorTraceTime;
+	private long seekTarget = -1;
+	private Map<String, TraceReader.Record> skippedRecords; // Latest values of the skipped records by machine
+	private int readGeneration = 0; // Incremented when the reader is repositioned, batches of earlier generations are discarded
+	private boolean reading = false;
+	private boolean endOfTrace = false; // All records up to the end of the trace have been read
+	private boolean scheduled = false;
+	private long timerId = -1;
+	private boolean waitingForAcknowledgement = false;
+	private boolean waitingForRecords = false;
+	private int pending = 0;
+	private long recordsSent = 0;
+	private long recordsFailed = 0;
+	private long recordsSkipped = 0;
+	private long invalidRecords = 0;
+	private int seekIndexEntries = 0;
+
+	/**
+	 * Opens a trace and creates a paused replay of it. The trace is opened and its first record is read on the reader thread of the
+	 * replay.
+	 * @param vertx Vert.x instance to schedule the records with.
+	 * @param sender Sender for the records.
+	 * @param path Path of the trace file.
+	 * @param scenarios Scenarios by name, providing the machine templates.
+	 * @param defaultScenario Scenario of records without scenario, may be <code>null</code>.
+	 * @param speed Factor the pace of the trace is multiplied with, 0 to send the records as fast as possible.
+	 * @param maxPending Maximum number of updates awaiting acknowledgement by the MID.
+	 * @param loop Whether to start again at the beginning when the end of the trace has been reached.
+	 * @param openHandler Handler for the replay, called on the event loop. Fails if the trace could not be read or does not
+	 * contain any record.
+	 * @throws IllegalArgumentException The speed is negative or the maximum number of pending updates is not positive.
+	 */
+	public static void open(final Vertx vertx, final MidSender sender, final Path path, final Map<String, Scenario> scenarios, final Scenario defaultScenario,
+			final double speed, final int maxPending, final boolean loop, final Handler<AsyncResult<TraceReplay>> openHandler) throws IllegalArgumentException {
+		if (speed < 0 || maxPending < 1) {
+			throw new IllegalArgumentException("Replay speed must not be negative and the maximum number of pending updates must be positive.");
+		}
+		final Context context = vertx.currentContext();
+		final ExecutorService readerThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "msd-trace-reader");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		readerThread.execute(new Runnable() {
+			@Override
+			public void run() {
+				TraceReader reader = null;
+				Batch batch = null;
+				Throwable failure = null;
+				try {
+					reader = new TraceReader(path, scenarios, defaultScenario);
+					batch = read(reader, new TreeMap<Long, Long>(), CURRENT_POSITION, 0);
+					if (batch.failure != null) {
+						throw batch.failure;
+					} else if (batch.records.isEmpty()) {
+						throw new IllegalArgumentException("Trace " + path + " does not contain any valid record.");
+					}
+				} catch (IOException | IllegalArgumentException e) {
+					failure = e;
+					if (reader != null) {
+						try {
+							reader.close();
+						} catch (IOException closeException) {
+							// Already failed
+						}
+					}
+					readerThread.shutdown();
+				}
+				final TraceReader openedReader = reader;
+				final Batch firstBatch = batch;
+				final Throwable openFailure = failure;
+				context.runOnContext(new Handler<Void>() {
+					@Override
+					public void handle(Void event) {
+						if (openFailure != null) {
+							openHandler.handle(new DefaultFutureResult<TraceReplay>(openFailure));
+							return;
+						}
+						TraceReplay replay = new TraceReplay(vertx, context, sender, openedReader, readerThread, speed, maxPending, loop, firstBatch);
+						openHandler.handle(new DefaultFutureResult<TraceReplay>(replay));
+					}
+				});
+			}
+		});
+	}
+
+	private TraceReplay(Vertx vertx, Context context, MidSender sender, TraceReader reader, ExecutorService readerThread, double speed, int maxPending,
+			boolean loop, Batch firstBatch) {
+		this.vertx = vertx;
+		this.context = context;
+		this.sender = sender;
+		this.reader = reader;
+		this.readerThread = readerThread;
+		this.speed = speed;
+		this.maxPending = maxPending;
+		this.loop = loop;
+		this.seekIndex = firstBatch.seekIndex;
+		this.records = new ArrayDeque<>();
+		this.state = State.PAUSED;
+		this.sendHandler = new Handler<AsyncResult<Void>>() {
+			@Override
+			public void handle(AsyncResult<Void> result) {
+				pending--;
+				if (result.failed()) {
+					recordsFailed++;
+				}
+				if (waitingForAcknowledgement) {
+					waitingForAcknowledgement = false;
+					process();
+				}
+			}
+		};
+		this.timerHandler = new Handler<Long>() {
+			@Override
+			public void handle(Long event) {
+				timerId = -1;
+				scheduled = false;
+				process();
+			}
+		};
+		this.continueHandler = new Handler<Void>() {
+			@Override
+			public void handle(Void event) {
+				scheduled = false;
+				process();
+			}
+		};
+		firstTime = firstBatch.records.get(0).getTime();
+		traceTime = firstTime;
+		addBatch(firstBatch);
+	}
+
+	/**
+	 * Starts or resumes the replay at the current position.
+	 */
+	public void resume() {
+		if (state != State.PAUSED) {
+			return;
+		}
+		state = State.RUNNING;
+		anchor(getCurrentTime());
+		if (!scheduled && !waitingForAcknowledgement && !waitingForRecords) {
+			process();
+		}
+	}
+
+	/**
+	 * Pauses the replay. Updates already sent are not affected.
+	 */
+	public void pause() {
+		if (state != State.RUNNING) {
+			return;
+		}
+		state = State.PAUSED;
+		cancelTimer();
+	}
+
+	/**
+	 * Stops the replay. The trace is closed and the reader thread is terminated.
+	 */
+	public void stop() {
+		if (state == State.STOPPED) {
+			return;
+		}
+		cancelTimer();
+		seekTarget = -1;
+		skippedRecords = null;
+		records.clear();
+		readGeneration++;
+		state = State.STOPPED;
+		readerThread.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					logger.warn("Failed to close trace " + reader.getPath() + ": " + e.getMessage());
+				}
+			}
+		});
+		readerThread.shutdown();
+	}
+
+	/**
+	 * Moves the replay to the given time of the trace. Records before that time are skipped, the latest values of the skipped
+	 * records of each machine are sent when the target has been reached. Skipping continues in the background, interleaved with
+	 * other events of the event loop. If the trace cannot be repositioned, the replay finishes.
+	 * @param offset Time relative to the first record of the trace in milliseconds.
+	 * @throws IllegalStateException The replay has been stopped.
+	 */
+	public void seek(long offset) throws IllegalStateException {
+		if (state == State.STOPPED) {
+			throw new IllegalStateException("Replay has been stopped.");
+		}
+		long target = firstTime + Math.max(0, offset);
+		if (target < getCurrentTime() || state == State.FINISHED) {
+			// The reader continues at the nearest indexed position before the target or at the beginning.
+			next = null;
+			records.clear();
+			endOfTrace = false;
+			readGeneration++;
+			reading = false;
+			requestRecords(target);
+		}
+		if (state == State.FINISHED) {
+			state = State.PAUSED;
+		}
+		seekTarget = target;
+		if (skippedRecords == null) {
+			skippedRecords = new LinkedHashMap<>();
+		}
+		cancelTimer();
+		if (!waitingForAcknowledgement) {
+			schedule();
+		}
+	}
+
+	/**
+	 * Sets the factor the pace of the trace is multiplied with.
+	 * @param speed Speed, 0 to send the records as fast as possible.
+	 * @throws IllegalArgumentException The speed is negative.
+	 */
+	public void setSpeed(double speed) throws IllegalArgumentException {
+		if (speed < 0) {
+			throw new IllegalArgumentException("Replay speed must not be negative.");
+		}
+		this.speed = speed;
+		anchor(getCurrentTime());
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * Returns the time of the next record if it has been read, else the time of the last record sent.
+	 */
+	private long getCurrentTime() {
+		if (next != null) {
+			return next.getTime();
+		}
+		return records.isEmpty() ? traceTime : records.peek().getTime();
+	}
+
+	private void anchor(long time) {
+		anchorTraceTime = time;
+		anchorWallTime = System.currentTimeMillis();
+	}
+
+	private void schedule() {
+		if (!scheduled) {
+			scheduled = true;
+			vertx.runOnContext(continueHandler);
+		}
+	}
+
+	private void cancelTimer() {
+		if (timerId >= 0) {
+			vertx.cancelTimer(timerId);
+			timerId = -1;
+			scheduled = false;
+		}
+	}
+
+	/**
+	 * Sends all records due, then schedules the next call.
+	 */
+	private void process() {
+		if (state != State.RUNNING && seekTarget < 0 || state == State.STOPPED) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < MAX_RECORDS_PER_TURN; i++) {
+			if (pending >= maxPending) {
+				waitingForAcknowledgement = true;
+				return;
+			}
+			if (next == null) {
+				next = records.poll();
+				if (records.size() < READ_BATCH_SIZE && !endOfTrace) {
+					requestRecords(CURRENT_POSITION);
+				}
+				if (next == null) {
+					if (!endOfTrace) {
+						// Continued when the reader thread has read the next batch.
+						waitingForRecords = true;
+						return;
+					}
+					if (!loop || seekTarget >= 0) {
+						finish();
+						return;
+					}
+					// Continues at the beginning of the trace.
+					anchor(firstTime);
+					endOfTrace = false;
+					readGeneration++;
+					reading = false;
+					requestRecords(firstTime);
+					waitingForRecords = true;
+					return;
+				}
+			}
+			if (seekTarget >= 0) {
+				if (next.getTime() < seekTarget) {
+					skip(next);
+					next = null;
+					continue;
+				}
+				completeSeek();
+				if (state != State.RUNNING) {
+					return;
+				}
+				now = System.currentTimeMillis();
+			}
+			if (speed > 0) {
+				long due = anchorWallTime + (long) ((next.getTime() - anchorTraceTime) / speed);
+				if (due > now) {
+					scheduled = true;
+					timerId = vertx.setTimer(due - now, timerHandler);
+					return;
+				}
+			}
+			send(next);
+			traceTime = next.getTime();
+			next = null;
+		}
+		schedule();
+	}
+
+	/**
+	 * Requests the next batch of records from the reader thread, unless a batch is being read.
+	 * @param seekTime Time to reposition the reader to before reading, {@link #CURRENT_POSITION} to continue at the current position.
+	 */
+	private void requestRecords(final long seekTime) {
+		if (reading) {
+			return;
+		}
+		reading = true;
+		final int generation = readGeneration;
+		try {
+			readerThread.execute(new Runnable() {
+				@Override
+				public void run() {
+					final Batch batch = read(reader, seekIndex, seekTime, generation);
+					context.runOnContext(new Handler<Void>() {
+						@Override
+						public void handle(Void event) {
+							if (batch.generation != readGeneration || state == State.STOPPED) {
+								return;
+							}
+							reading = false;
+							addBatch(batch);
+							if (waitingForRecords) {
+								waitingForRecords = false;
+								process();
+							}
+						}
+					});
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// The replay has been stopped.
+			reading = false;
+		}
+	}
+
+	private void addBatch(Batch batch) {
+		records.addAll(batch.records);
+		invalidRecords += batch.invalidRecords;
+		seekIndexEntries = batch.seekIndexEntries;
+		if (batch.failure != null) {
+			logger.error("Failed to read trace " + reader.getPath() + ": " + batch.failure.getMessage());
+		}
+		endOfTrace = batch.endOfTrace;
+	}
+
+	/**
+	 * Reads a batch of valid records, called by the reader thread.
+	 * @param reader Reader of the trace.
+	 * @param seekIndex Index of the positions of the trace, extended while reading.
+	 * @param seekTime Time to reposition the reader to before reading, {@link #CURRENT_POSITION} to continue at the current position.
+	 * @param generation Generation of the request.
+	 * @return Batch of records. If the trace could not be read, the batch ends the trace.
+	 */
+	private static Batch read(TraceReader reader, TreeMap<Long, Long> seekIndex, long seekTime, int generation) {
+		Batch batch = new Batch(generation, seekIndex);
+		try {
+			if (seekTime != CURRENT_POSITION) {
+				Entry<Long, Long> indexEntry = reader.isSeekable() ? seekIndex.floorEntry(seekTime) : null;
+				if (indexEntry != null) {
+					reader.seek(indexEntry.getValue());
+				} else {
+					reader.rewind();
+				}
+			}
+			long lastIndexedPosition = seekIndex.isEmpty() ? -INDEX_INTERVAL : seekIndex.lastEntry().getValue();
+			while (batch.records.size() < READ_BATCH_SIZE) {
+				long position = reader.getPosition();
+				TraceReader.Record record;
+				try {
+					record = reader.next();
+				} catch (IllegalArgumentException e) {
+					batch.invalidRecords++;
+					logger.debug(e.getMessage());
+					continue;
+				}
+				if (record == null) {
+					batch.endOfTrace = true;
+					break;
+				}
+				if (reader.isSeekable() && position >= lastIndexedPosition + INDEX_INTERVAL) {
+					seekIndex.put(record.getTime(), position);
+					lastIndexedPosition = position;
+				}
+				batch.records.add(record);
+			}
+		} catch (IOException e) {
+			batch.failure = e;
+			batch.endOfTrace = true;
+		}
+		batch.seekIndexEntries = seekIndex.size();
+		return batch;
+	}
+
+	private void skip(TraceReader.Record record) {
+		MachineUpdate update = record.getUpdate();
+		TraceReader.Record skippedRecord = skippedRecords.get(update.getMachineKey());
+		if (skippedRecord == null || skippedRecord.getUpdate().getTemplate() != update.getTemplate()) {
+			skippedRecords.put(update.getMachineKey(), record);
+		} else {
+			skippedRecord.getUpdate().merge(update);
+		}
+		recordsSkipped++;
+		traceTime = record.getTime();
+	}
+
+	private void completeSeek() {
+		for (TraceReader.Record record : skippedRecords.values()) {
+			send(record);
+		}
+		skippedRecords.clear();
+		traceTime = seekTarget;
+		seekTarget = -1;
+		anchor(getCurrentTime());
+	}
+
+	private void send(TraceReader.Record record) {
+		MachineUpdate update = record.getUpdate();
+		Scenario scenario = record.getScenario();
+		if (update.getSerialNumber().equals(scenario.getSerialNumber())) {
+			scenario.apply(update);
+		}
+		pending++;
+		recordsSent++;
+		sender.send(update, sendHandler);
+	}
+
+	private void finish() {
+		if (seekTarget >= 0) {
+			completeSeek();
+		}
+		logger.info("Replay of " + reader.getPath() + " finished after " + recordsSent + " records.");
+		state = State.FINISHED;
+	}
+
+	/**
+	 * Returns a JSON representation of the replay status.
+	 * @return JSON object.
+	 */
+	public JsonObject asJson() {
+		JsonObject json = new JsonObject();
+		json.putString("file", reader.getPath().toString());
+		json.putString("state", state.name().toLowerCase());
+		json.putNumber("speed", speed);
+		json.putBoolean("loop", loop);
+		json.putNumber("time", traceTime - firstTime);
+		if (state == State.RUNNING && speed > 0 && next != null) {
+			long due = anchorWallTime + (long) ((next.getTime() - anchorTraceTime) / speed);
+			json.putNumber("lag", Math.max(0, System.currentTimeMillis() - due));
+		}
+		json.putNumber("recordsSent", recordsSent);
+		json.putNumber("recordsFailed", recordsFailed);
+		json.putNumber("recordsSkipped", recordsSkipped);
+		json.putNumber("invalidRecords", invalidRecords);
+		json.putNumber("pending", pending);
+		json.putNumber("recordsReadAhead", records.size());
+		json.putNumber("seekIndexEntries", seekIndexEntries);
+		return json;
+	}
+
+	/**
+	 * Records read by the reader thread at once.
+	 */
+	private static class Batch {
+		private final int generation;
+		private final TreeMap<Long, Long> seekIndex;
+		private final List<TraceReader.Record> records = new ArrayList<>();
+		private int invalidRecords = 0;
+		private int seekIndexEntries = 0;
+		private boolean endOfTrace = false;
+		private IOException failure;
+
+		private Batch(int generation, TreeMap<Long, Long> seekIndex) {
+			this.generation = generation;
+			this.seekIndex = seekIndex;
+		}
+	}
+}
@@ -0,0 +1,165 @@
+package de.appsist.service.msd;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.impl.DefaultFutureResult;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Collects machine updates for a short window and flushes them as one multi-machine data message.
+ * Within a window, only the latest value of each field of a machine is kept. A batch is flushed when the window has passed or
+ * the batch contains the maximum number of machines. All methods have to be called from the event loop of the verticle.
+ */
+public class UpdateBatcher {
+	/**
+	 * Receiver of flushed batches.
+	 */
+	public interface FlushHandler {
+		/**
+		 * Sends a batch.
+		 * @param updates Updates of the batch, one per machine.
+		 * @param doneHandler Handler to call when the batch has been sent.
+		 */
+		public void flush(List<MachineUpdate> updates, Handler<AsyncResult<Void>> doneHandler);
+	}
+
+	private final Vertx vertx;
+	private final long window;
+	private final int maxBatchSize;
+	private final FlushHandler flushHandler;
+	private final Map<String, MachineUpdate> pendingUpdates;
+	private List<Handler<AsyncResult<Void>>> pendingHandlers;
+	private long timerId = -1;
+	private long updatesSubmitted = 0;
+	private long updatesCoalesced = 0;
+	private long batchesFlushed = 0;
+
+	/**
+	 * Creates a batcher.
+	 * @param vertx Vert.x instance to set the window timer with.
+	 * @param window Coalescing window in milliseconds, starting with the first update of a batch.
+	 * @param maxBatchSize Maximum number of machines in a batch.
+	 * @param flushHandler Handler to send batches with.
+	 * @throws IllegalArgumentException The window or batch size is not positive.
+	 */
+	public UpdateBatcher(Vertx vertx, long window, int maxBatchSize, FlushHandler flushHandler) throws IllegalArgumentException {
+		if (window < 1 || maxBatchSize < 1) {
+			throw new IllegalArgumentException("Batch window and size must be positive.");
+		}
+		this.vertx = vertx;
+		this.window = window;
+		this.maxBatchSize = maxBatchSize;
+		this.flushHandler = flushHandler;
+		this.pendingUpdates = new LinkedHashMap<>();
+		this.pendingHandlers = new ArrayList<>();
+	}
+
+	/**
+	 * Adds an update to the current batch. If the batch already contains an update of the machine, the updates are merged.
+	 * @param update Update to add.
+	 * @param doneHandler Handler called when the batch containing the update has been sent, may be <code>null</code>.
+	 */
+	public void add(MachineUpdate update, Handler<AsyncResult<Void>> doneHandler) {
+		updatesSubmitted++;
+		MachineUpdate pendingUpdate = pendingUpdates.get(update.getMachineKey());
+		if (pendingUpdate != null && pendingUpdate.getTemplate() != update.getTemplate()) {
+			// The schema of the machine changed, the old values must not be sent with the new schema.
+			flush();
+			pendingUpdate = null;
+		}
+		if (pendingUpdate == null) {
+			pendingUpdates.put(update.getMachineKey(), update.copy());
+		} else {
+			pendingUpdate.merge(update);
+			updatesCoalesced++;
+		}
+		if (doneHandler != null) {
+			pendingHandlers.add(doneHandler);
+		}
+		if (pendingUpdates.size() >= maxBatchSize) {
+			flush();
+		} else if (timerId < 0) {
+			timerId = vertx.setTimer(window, new Handler<Long>() {
+				@Override
+				public void handle(Long event) {
+					timerId = -1;
+					flush();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Sends the current batch immediately.
+	 */
+	public void flush() {
+		flush(null);
+	}
+
+	/**
+	 * Sends the current batch immediately.
+	 * @param doneHandler Handler called when the batch has been sent, immediately if the batch is empty. May be <code>null</code>.
+	 */
+	public void flush(Handler<AsyncResult<Void>> doneHandler) {
+		if (doneHandler != null) {
+			if (pendingUpdates.isEmpty()) {
+				doneHandler.handle(new DefaultFutureResult<Void>((Void) null));
+			} else {
+				pendingHandlers.add(doneHandler);
+			}
+		}
+		if (timerId >= 0) {
+			vertx.cancelTimer(timerId);
+			timerId = -1;
+		}
+		if (pendingUpdates.isEmpty()) {
+			return;
+		}
+		List<MachineUpdate> updates = new ArrayList<>(pendingUpdates.values());
+		pendingUpdates.clear();
+		batchesFlushed++;
+		if (pendingHandlers.isEmpty()) {
+			flushHandler.flush(updates, null);
+			return;
+		}
+		final List<Handler<AsyncResult<Void>>> handlers = pendingHandlers;
+		pendingHandlers = new ArrayList<>();
+		flushHandler.flush(updates, new Handler<AsyncResult<Void>>() {
+			@Override
+			public void handle(AsyncResult<Void> result) {
+				for (Handler<AsyncResult<Void>> handler : handlers) {
+					handler.handle(result);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Returns the number of machines in the current batch.
+	 * @return Number of pending updates.
+	 */
+	public int getPending() {
+		return pendingUpdates.size();
+	}
+
+	/**
+	 * Returns a JSON representation of the batching statistics.
+	 * @return JSON object.
+	 */
+	public JsonObject asJson() {
+		JsonObject json = new JsonObject();
+		json.putNumber("window", window);
+		json.putNumber("maxBatchSize", maxBatchSize);
+		json.putNumber("updatesSubmitted", updatesSubmitted);
+		json.putNumber("updatesCoalesced", updatesCoalesced);
+		json.putNumber("batchesFlushed", batchesFlushed);
+		json.putNumber("pending", pendingUpdates.size());
+		return json;
+	}
+}
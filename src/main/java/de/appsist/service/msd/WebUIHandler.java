@@ -84,6 +84,8 @@ public class WebUIHandler {
 		data.putString("hzoff10", bundle.getString("mid.ui.hzoff10", "10 Hz aus"));
 		data.putString("hzon100", bundle.getString("mid.ui.hzon100", "100 Hz an"));
 		data.putString("hzoff100", bundle.getString("mid.ui.hzoff100", "100 Hz aus"));
+		data.putString("startsimulation", bundle.getString("msd.ui.startsimulation", "Simulation starten (Hz)"));
+		data.putString("stopsimulation", bundle.getString("msd.ui.stopsimulation", "Simulation stoppen"));
 		data.putString("mbbscenario", bundle.getString("msd.ui.mbbscenario", "MBB Szenario"));
 		data.putString("lostpart", bundle.getString("mid.ui.lostpart", "Teil verloren"));
 		data.putString("nopartlost", bundle.getString("mid.ui.nopartlost", "Kein Teil verloren"));
@@ -91,6 +93,9 @@ public class WebUIHandler {
 		data.putString("nomanualmode", bundle.getString("msd.ui.nomanualmode", "Automatikbetrieb"));
 		data.putString("lock", bundle.getString("msd.ui.lock", "Verriegelung aktivieren"));
 		data.putString("unlock", bundle.getString("msd.ui.unlock", "Verriegelung deaktivieren"));
+		data.putString("liveview", bundle.getString("msd.ui.liveview", "Live-Zustand"));
+		data.putString("liveviewconnected", bundle.getString("msd.ui.liveviewconnected", "Verbunden"));
+		data.putString("liveviewdisconnected", bundle.getString("msd.ui.liveviewdisconnected", "Nicht verbunden"));
 
 		if (successId != null) {
 			data.putString("successId", successId);
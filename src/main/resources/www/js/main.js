@@ -1,7 +1,72 @@
 var MSD = (function($) {
 	
-	var init = function() {
-		
+	var labels = {};
+	var machines = {}; // Machine key -> row of the machine table
+	var lastMetrics = null;
+	var lastMetricsTime = 0;
+	
+	var init = function(liveLabels) {
+		labels = liveLabels || {};
+		$(function() {
+			connectLiveView();
+		});
+	};
+	
+	var connectLiveView = function() {
+		if (!window.EventSource) {
+			return;
+		}
+		var source = new EventSource('./live');
+		source.onopen = function() {
+			$('#liveStatus').text(labels.connected);
+		};
+		source.onerror = function() {
+			// The browser reconnects automatically and receives the full state again.
+			$('#liveStatus').text(labels.disconnected);
+		};
+		source.addEventListener('state', function(event) {
+			updateMachines(JSON.parse(event.data));
+		});
+		source.addEventListener('metrics', function(event) {
+			updateMetrics(JSON.parse(event.data));
+		});
+	};
+	
+	var updateMachines = function(state) {
+		if (state.full) {
+			machines = {};
+			$('#liveMachines').empty();
+		}
+		$.each(state.machines, function(key, machine) {
+			var row = machines[key];
+			if (!row) {
+				row = { values : {}, cell : $('<td>') };
+				machines[key] = row;
+				$('<tr>').append($('<td>').text(key), $('<td>').text(machine.scenario), row.cell).appendTo('#liveMachines');
+			}
+			$.extend(row.values, machine.values);
+			row.cell.text($.map(row.values, function(value, field) {
+				return field + ': ' + value;
+			}).join(', '));
+		});
+	};
+	
+	var updateMetrics = function(metrics) {
+		var now = Date.now();
+		var table = $('#liveMetrics').empty();
+		$.each(metrics.scenarios, function(scenario, counters) {
+			var rate = '';
+			if (lastMetrics && lastMetrics.scenarios[scenario]) {
+				rate = ((counters.sent - lastMetrics.scenarios[scenario].sent) * 1000 / (now - lastMetricsTime)).toFixed(1) + ' /s';
+			}
+			$('<tr>').append($('<td>').text(scenario), $('<td>').text(rate),
+				$('<td>').text(counters.sent + ' / ' + counters.failed + ' / ' + counters.dropped)).appendTo(table);
+		});
+		var gauges = metrics.gauges;
+		$('<tr>').append($('<td>').text('MID'), $('<td>').text(gauges.midInFlight),
+			$('<td>').text('queue ' + (gauges.queueDepth || 0) + (gauges.circuitOpen ? ', circuit open' : ''))).appendTo(table);
+		lastMetrics = metrics;
+		lastMetricsTime = now;
 	};
 	
 	var performAction = function(method) {
@@ -21,9 +86,30 @@ var MSD = (function($) {
 		}, 'json');
 	};
 	
+	var startSimulation = function(scenario, rate) {
+		var body = {};
+		body.method = 'startSimulation';
+		body.scenario = scenario;
+		body.rate = parseFloat(rate);
+		$.post('./performAction', JSON.stringify(body), function() {
+			console.log('Requested simulation start: ' + scenario + ' with ' + rate + ' Hz');
+		}, 'json');
+	};
+	
+	var stopSimulation = function(scenario) {
+		var body = {};
+		body.method = 'stopSimulation';
+		body.scenario = scenario;
+		$.post('./performAction', JSON.stringify(body), function() {
+			console.log('Requested simulation stop: ' + scenario);
+		}, 'json');
+	};
+	
 	return {
 		init : init,
 		performAction : performAction,
-		performActionWithParam: performActionWithParam
+		performActionWithParam: performActionWithParam,
+		startSimulation : startSimulation,
+		stopSimulation : stopSimulation
 	} 
 })($);
\ No newline at end of file
@@ -0,0 +1,102 @@
+package de.appsist.service.msd.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import de.appsist.service.middrv.entity.MachineValueType;
+import de.appsist.service.middrv.entity.VisualizationLevel;
+import de.appsist.service.middrv.entity.VisualizationType;
+import de.appsist.service.msd.DeltaTracker;
+import de.appsist.service.msd.MachineTemplate;
+import de.appsist.service.msd.MachineUpdate;
+
+/**
+ * Tests the reduction of updates to changed values, in particular with updates in flight and failed updates.
+ */
+public class DeltaTrackerTest {
+	private MachineTemplate template;
+	private DeltaTracker tracker;
+
+	@Before
+	public void setUp() {
+		template = new MachineTemplate.Builder("Festo", "Pilotanlage").station("Station", "Site")
+				.field("Tuer offen", MachineValueType.BOOL, "", VisualizationType.ON_OFF_LIGHT, VisualizationLevel.OVERVIEW)
+				.field("Teilezaehler", MachineValueType.LONG, "", VisualizationType.TEXT_FIELD, VisualizationLevel.OVERVIEW)
+				.build();
+		tracker = new DeltaTracker(0);
+	}
+
+	private MachineUpdate update(boolean doorOpen, long parts) {
+		return new MachineUpdate(template, "SN-1").set(0, doorOpen).set(1, parts);
+	}
+
+	@Test
+	public void firstUpdateIsKeyframe() {
+		MachineUpdate update = update(false, 1);
+		assertTrue(tracker.prepare(update, false, 0));
+		assertEquals(2, update.size());
+	}
+
+	@Test
+	public void unchangedValuesAreSuppressed() {
+		tracker.prepare(update(false, 1), false, 0);
+		MachineUpdate update = update(false, 2);
+		assertTrue(tracker.prepare(update, false, 1));
+		assertNull(update.get(0));
+		assertEquals(2L, update.get(1));
+		assertFalse(tracker.prepare(update(false, 2), false, 2));
+	}
+
+	@Test
+	public void valueChangingBackWhileInFlightIsSent() {
+		// A is sent and acknowledged, B is in flight, then the value changes back to A.
+		tracker.prepare(update(false, 1), false, 0);
+		tracker.prepare(update(true, 1), false, 1);
+		MachineUpdate update = update(false, 1);
+		assertTrue(tracker.prepare(update, false, 2));
+		assertEquals(false, update.get(0));
+		assertNull(update.get(1));
+	}
+
+	@Test
+	public void failedUpdateForcesKeyframe() {
+		tracker.prepare(update(false, 1), false, 0);
+		MachineUpdate failed = update(true, 2);
+		tracker.prepare(failed, false, 1);
+		tracker.failed(failed);
+		MachineUpdate update = new MachineUpdate(template, "SN-1").set(1, 3L);
+		assertTrue(tracker.prepare(update, false, 2));
+		assertEquals(true, update.get(0));
+		assertEquals(3L, update.get(1));
+		// The keyframe has been sent, further updates are deltas again.
+		MachineUpdate next = update(true, 4);
+		assertTrue(tracker.prepare(next, false, 3));
+		assertNull(next.get(0));
+	}
+
+	@Test
+	public void keyframeIntervalSendsAllValues() {
+		tracker = new DeltaTracker(1000);
+		tracker.prepare(update(false, 1), false, 0);
+		MachineUpdate delta = update(false, 2);
+		tracker.prepare(delta, false, 999);
+		assertEquals(1, delta.size());
+		MachineUpdate keyframe = update(false, 2);
+		assertTrue(tracker.prepare(keyframe, false, 1000));
+		assertEquals(2, keyframe.size());
+	}
+
+	@Test
+	public void invalidatedMachineIsSentAsKeyframe() {
+		tracker.prepare(update(false, 1), false, 0);
+		tracker.invalidate(new MachineUpdate(template, "SN-1").getMachineKey());
+		MachineUpdate update = update(false, 1);
+		assertTrue(tracker.prepare(update, false, 1));
+		assertEquals(2, update.size());
+	}
+}
@@ -0,0 +1,52 @@
+package de.appsist.service.msd.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.vertx.java.core.json.JsonObject;
+
+import de.appsist.service.middrv.entity.VisualizationLevel;
+import de.appsist.service.msd.MachineTemplate;
+
+/**
+ * Tests parsing machine templates, in particular that invalid fields are rejected with the name of the field.
+ */
+public class MachineTemplateTest {
+	private static final String TEMPLATE = "{\"vendorId\": \"V\", \"machineId\": \"M\", \"stationId\": \"S\", \"siteId\": \"Site\", \"fields\": [%s]}";
+
+	private static MachineTemplate parse(String fields) {
+		return MachineTemplate.fromJson(new JsonObject(String.format(TEMPLATE, fields)));
+	}
+
+	private static void assertInvalid(String fields, String message) {
+		try {
+			parse(fields);
+			fail("Invalid template accepted: " + fields);
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains(message));
+		}
+	}
+
+	@Test
+	public void fieldsAreParsed() {
+		MachineTemplate template = parse("{\"name\": \"Teilezaehler\", \"type\": \"long\", \"initial\": 5},"
+				+ " {\"name\": \"Fett\", \"type\": \"double\", \"initial\": 1, \"visualizationLevel\": \"never\"},"
+				+ " {\"name\": \"Tuer offen\", \"type\": \"bool\", \"initial\": null}");
+		assertEquals(5L, template.getInitialValue(0));
+		assertEquals(1d, template.getInitialValue(1));
+		assertEquals(VisualizationLevel.NEVER, template.getVisualizationLevel(1));
+		assertEquals(false, template.getInitialValue(2));
+	}
+
+	@Test
+	public void invalidFieldsAreRejected() {
+		assertInvalid("\"Teilezaehler\"", "Teilezaehler");
+		assertInvalid("{\"name\": 1, \"type\": \"long\"}", "name");
+		assertInvalid("{\"name\": \"Teilezaehler\", \"type\": \"long\", \"initial\": \"5\"}", "Teilezaehler");
+		assertInvalid("{\"name\": \"Tuer offen\", \"type\": \"bool\", \"initial\": 1}", "Tuer offen");
+		assertInvalid("{\"name\": \"Fett\", \"type\": \"double\", \"unit\": 1}", "Fett");
+		assertInvalid("{\"name\": \"Fett\", \"type\": \"double\", \"visualizationLevel\": \"always\"}", "Fett");
+	}
+}
@@ -0,0 +1,155 @@
+package de.appsist.service.msd.unit;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.vertx.java.core.Context;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.datagram.DatagramSocket;
+import org.vertx.java.core.datagram.InternetProtocolFamily;
+import org.vertx.java.core.dns.DnsClient;
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.file.FileSystem;
+import org.vertx.java.core.http.HttpClient;
+import org.vertx.java.core.http.HttpServer;
+import org.vertx.java.core.net.NetClient;
+import org.vertx.java.core.net.NetServer;
+import org.vertx.java.core.shareddata.SharedData;
+import org.vertx.java.core.sockjs.SockJSServer;
+
+/**
+ * Vert.x stand-in whose timers are only fired by the test. Other facilities are not available.
+ */
+class ManualTimers implements Vertx {
+	final Map<Long, Handler<Long>> timers = new TreeMap<>();
+	private final Map<Long, Handler<Long>> periodicTimers = new TreeMap<>();
+	private final Map<Long, Long> periods = new TreeMap<>();
+	private long nextTimerId = 1;
+
+	/**
+	 * Fires all timers set so far, in the order they have been set.
+	 * @return Number of timers fired.
+	 */
+	int fireAll() {
+		Map<Long, Handler<Long>> due = new TreeMap<>(timers);
+		timers.clear();
+		for (Map.Entry<Long, Handler<Long>> timer : due.entrySet()) {
+			timer.getValue().handle(timer.getKey());
+		}
+		return due.size();
+	}
+
+	@Override
+	public long setTimer(long delay, Handler<Long> handler) {
+		long timerId = nextTimerId++;
+		timers.put(timerId, handler);
+		return timerId;
+	}
+
+	/**
+	 * Fires the periodic timers set with the given period once, in the order they have been set.
+	 * @param period Period of the timers to fire.
+	 * @return Number of timers fired.
+	 */
+	int firePeriodic(long period) {
+		int fired = 0;
+		for (Map.Entry<Long, Handler<Long>> timer : new TreeMap<>(periodicTimers).entrySet()) {
+			if (Long.valueOf(period).equals(periods.get(timer.getKey()))) {
+				timer.getValue().handle(timer.getKey());
+				fired++;
+			}
+		}
+		return fired;
+	}
+
+	@Override
+	public boolean cancelTimer(long timerId) {
+		periods.remove(timerId);
+		return timers.remove(timerId) != null || periodicTimers.remove(timerId) != null;
+	}
+
+	@Override
+	public long setPeriodic(long delay, Handler<Long> handler) {
+		long timerId = nextTimerId++;
+		periodicTimers.put(timerId, handler);
+		periods.put(timerId, delay);
+		return timerId;
+	}
+
+	@Override
+	public NetServer createNetServer() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public NetClient createNetClient() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public HttpServer createHttpServer() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public HttpClient createHttpClient() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public DatagramSocket createDatagramSocket(InternetProtocolFamily family) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public SockJSServer createSockJSServer(HttpServer httpServer) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public FileSystem fileSystem() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public EventBus eventBus() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public DnsClient createDnsClient(InetSocketAddress... dnsServers) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public SharedData sharedData() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public Context currentContext() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void runOnContext(Handler<Void> action) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean isEventLoop() {
+		return true;
+	}
+
+	@Override
+	public boolean isWorker() {
+		return false;
+	}
+
+	@Override
+	public void stop() {
+		// Nothing to release.
+	}
+}
@@ -0,0 +1,90 @@
+package de.appsist.service.msd.unit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.json.impl.Json;
+
+import de.appsist.service.middrv.entity.MachineValueType;
+import de.appsist.service.middrv.entity.VisualizationLevel;
+import de.appsist.service.middrv.entity.VisualizationType;
+import de.appsist.service.msd.MachineTemplate;
+import de.appsist.service.msd.MachineUpdate;
+import de.appsist.service.msd.MidMessageCodec;
+
+/**
+ * Tests the encoding of messages: JSON messages are those of the MID driver, binary data messages refer to the schemas sent with
+ * their schema ID.
+ */
+public class MidMessageCodecTest {
+	private MachineTemplate template;
+
+	@Before
+	public void setUp() {
+		template = new MachineTemplate.Builder("V", "M").station("Station", "Site")
+				.field("b", MachineValueType.BOOL, "", VisualizationType.ON_OFF_LIGHT, VisualizationLevel.OVERVIEW)
+				.field("l", MachineValueType.LONG, "", VisualizationType.TEXT_FIELD, VisualizationLevel.OVERVIEW)
+				.field("d", MachineValueType.DOUBLE, "", VisualizationType.TEXT_FIELD, VisualizationLevel.OVERVIEW)
+				.field("s", MachineValueType.STRING, "", VisualizationType.TEXT_FIELD, VisualizationLevel.OVERVIEW)
+				.build();
+	}
+
+	@Test
+	public void jsonMessagesAreThoseOfTheMidDriver() throws Exception {
+		List<MachineUpdate> updates = Arrays.asList(new MachineUpdate(template, "SN-1").set(0, true).set(1, 7L).set(2, 0.25).set(3, "Wert"),
+				new MachineUpdate(template, "SN-2").set(0, false).set(1, -1L).set(2, 1.5).set(3, "\"Wert\"\n"));
+		MidMessageCodec codec = new MidMessageCodec();
+		assertEquals(Json.encode(MidMessageCodec.createSchemaMessage(updates)), codec.encodeSchemas(updates).toString());
+		assertEquals(Json.encode(MidMessageCodec.createDataMessage(updates)), codec.encodeData(updates).toString());
+	}
+
+	@Test
+	public void binaryEncoding() throws Exception {
+		MachineUpdate update = new MachineUpdate(template, "SN").set(0, true).set(1, -1L).set(2, 1.5).set(3, "\u00e4\ud800");
+		byte[] message = new MidMessageCodec(MidMessageCodec.DataFormat.BINARY).encodeData(Arrays.asList(update, update)).getBytes();
+
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		expected.write(new byte[] { MidMessageCodec.BINARY_VERSION, 2 });
+		byte[] entry = createBinaryEntry();
+		// The type is defined by the first entry and referenced by the second.
+		expected.write(new byte[] { 0, 1, 'V', 1, 'M', 0 });
+		int schemaId = template.getFingerprint().hashCode();
+		expected.write(new byte[] { (byte) (schemaId >>> 24), (byte) (schemaId >>> 16), (byte) (schemaId >>> 8), (byte) schemaId });
+		expected.write(entry);
+		expected.write(0);
+		expected.write(entry);
+		assertArrayEquals(expected.toByteArray(), message);
+	}
+
+	@Test
+	public void schemaIdIsSentWithSchemaForBinaryData() {
+		MidMessageCodec codec = new MidMessageCodec(MidMessageCodec.DataFormat.BINARY);
+		String message = codec.encodeSchemas(Arrays.asList(new MachineUpdate(template, "SN"))).toString();
+		JsonObject schema = new JsonObject(message).getArray("schemas").get(0);
+		assertEquals(MidMessageCodec.getSchemaId(template), schema.getInteger("schemaId").intValue());
+	}
+
+	private static byte[] createBinaryEntry() throws Exception {
+		ByteArrayOutputStream entry = new ByteArrayOutputStream();
+		entry.write(new byte[] { 2, 'S', 'N', 4 });
+		entry.write(new byte[] { 0, 1 }); // true
+		entry.write(new byte[] { 1, 1 }); // Zigzag encoding of -1
+		entry.write(2);
+		long bits = Double.doubleToLongBits(1.5);
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			entry.write((byte) (bits >>> shift));
+		}
+		byte[] string = "\u00e4\ufffd".getBytes(StandardCharsets.UTF_8);
+		entry.write(new byte[] { 3, (byte) string.length });
+		entry.write(string);
+		return entry.toByteArray();
+	}
+}
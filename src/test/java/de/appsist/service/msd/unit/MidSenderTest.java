@@ -0,0 +1,150 @@
+package de.appsist.service.msd.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.impl.DefaultFutureResult;
+
+import de.appsist.service.middrv.entity.MachineValueType;
+import de.appsist.service.middrv.entity.VisualizationLevel;
+import de.appsist.service.middrv.entity.VisualizationType;
+import de.appsist.service.msd.MachineTemplate;
+import de.appsist.service.msd.MachineUpdate;
+import de.appsist.service.msd.MidRequestException;
+import de.appsist.service.msd.MidSender;
+import de.appsist.service.msd.MidTransport;
+import de.appsist.service.msd.SchemaRegistry;
+
+/**
+ * Tests that a schema is sent once while it awaits its acknowledgement and that data is only sent after its schemas.
+ */
+public class MidSenderTest {
+	private RecordingTransport mid;
+	private SchemaRegistry registry;
+	private MidSender sender;
+	private MachineTemplate template;
+
+	@Before
+	public void setUp() {
+		mid = new RecordingTransport();
+		registry = new SchemaRegistry();
+		sender = new MidSender(mid, registry);
+		sender.connect();
+		template = new MachineTemplate.Builder("Festo", "Pilotanlage").station("Station", "Site")
+				.field("Teilezaehler", MachineValueType.LONG, "", VisualizationType.TEXT_FIELD, VisualizationLevel.OVERVIEW)
+				.build();
+	}
+
+	private Result send(long value) {
+		Result result = new Result();
+		sender.send(new MachineUpdate(template, "SN-1").set(0, value), result);
+		return result;
+	}
+
+	@Test
+	public void pendingSchemaIsNotSentAgain() {
+		Result first = send(1L);
+		Result second = send(2L);
+		// The second update waits for the schema dispatched with the first one instead of sending it again.
+		assertEquals(1, mid.pending.size());
+		assertTrue(mid.pending.get(0).schema);
+		assertEquals(1, registry.asJson().getInteger("pendingSchemas").intValue());
+
+		mid.succeed();
+		assertEquals(2, mid.pending.size());
+		assertFalse(mid.pending.get(0).schema);
+		assertFalse(mid.pending.get(1).schema);
+		mid.succeed();
+		mid.succeed();
+		assertTrue(first.result.succeeded());
+		assertTrue(second.result.succeeded());
+		assertEquals(1L, registry.getSchemasSent());
+		assertEquals(0, registry.asJson().getInteger("pendingSchemas").intValue());
+
+		send(3L);
+		assertEquals(1, mid.pending.size());
+		assertFalse(mid.pending.get(0).schema);
+	}
+
+	@Test
+	public void failedSchemaIsSentAgain() {
+		Result first = send(1L);
+		Result second = send(2L);
+		mid.fail(new MidRequestException(503, "Unavailable"));
+		// Neither update is sent without the schema.
+		assertTrue(first.result.failed());
+		assertTrue(second.result.failed());
+		assertTrue(mid.pending.isEmpty());
+		assertEquals(0, registry.asJson().getInteger("pendingSchemas").intValue());
+
+		Result third = send(3L);
+		assertEquals(1, mid.pending.size());
+		assertTrue(mid.pending.get(0).schema);
+		mid.succeed();
+		mid.succeed();
+		assertTrue(third.result.succeeded());
+	}
+
+	private static class Result implements Handler<AsyncResult<Void>> {
+		private AsyncResult<Void> result;
+
+		@Override
+		public void handle(AsyncResult<Void> result) {
+			assertNull("Completed twice", this.result);
+			this.result = result;
+		}
+	}
+
+	/**
+	 * Transport completing its requests in order when told by the test.
+	 */
+	private static class RecordingTransport implements MidTransport {
+		private final List<Request> pending = new ArrayList<>();
+
+		@Override
+		public void sendSchemas(List<MachineUpdate> machines, Handler<AsyncResult<Void>> doneHandler) {
+			pending.add(new Request(true, doneHandler));
+		}
+
+		@Override
+		public void sendData(List<MachineUpdate> updates, Handler<AsyncResult<Void>> doneHandler) {
+			pending.add(new Request(false, doneHandler));
+		}
+
+		private void succeed() {
+			pending.remove(0).doneHandler.handle(new DefaultFutureResult<Void>((Void) null));
+		}
+
+		private void fail(Throwable cause) {
+			pending.remove(0).doneHandler.handle(new DefaultFutureResult<Void>(cause));
+		}
+
+		@Override
+		public int getInFlight() {
+			return pending.size();
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	private static class Request {
+		private final boolean schema;
+		private final Handler<AsyncResult<Void>> doneHandler;
+
+		Request(boolean schema, Handler<AsyncResult<Void>> doneHandler) {
+			this.schema = schema;
+			this.doneHandler = doneHandler;
+		}
+	}
+}
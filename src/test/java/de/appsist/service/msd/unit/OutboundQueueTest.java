@@ -0,0 +1,182 @@
+package de.appsist.service.msd.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.impl.DefaultFutureResult;
+
+import de.appsist.service.middrv.entity.MachineValueType;
+import de.appsist.service.middrv.entity.VisualizationLevel;
+import de.appsist.service.middrv.entity.VisualizationType;
+import de.appsist.service.msd.MachineTemplate;
+import de.appsist.service.msd.MachineUpdate;
+import de.appsist.service.msd.OutboundQueue;
+import de.appsist.service.msd.OutboundQueue.OverflowPolicy;
+import de.appsist.service.msd.QueueOverflowException;
+import de.appsist.service.msd.SimulatorMetrics;
+
+/**
+ * Tests the overflow policies of the queue with one message in flight at a time.
+ */
+public class OutboundQueueTest {
+	private static final int CAPACITY = 3;
+
+	private MachineTemplate template;
+	private RecordingDispatcher dispatcher;
+	private int nextMachine;
+
+	@Before
+	public void setUp() {
+		template = new MachineTemplate.Builder("Festo", "Pilotanlage").station("Station", "Site")
+				.field("Teilezaehler", MachineValueType.LONG, "", VisualizationType.TEXT_FIELD, VisualizationLevel.OVERVIEW)
+				.build();
+		dispatcher = new RecordingDispatcher();
+		nextMachine = 0;
+	}
+
+	private OutboundQueue create(OverflowPolicy policy) {
+		return new OutboundQueue(CAPACITY, 1, policy, dispatcher, new SimulatorMetrics());
+	}
+
+	/**
+	 * Offers a message with updates of machines not queued yet.
+	 */
+	private Result offer(OutboundQueue queue, int size) {
+		List<MachineUpdate> updates = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			updates.add(new MachineUpdate(template, "SN-" + nextMachine++).set(0, 1L));
+		}
+		Result result = new Result();
+		queue.offer(updates, null, result);
+		return result;
+	}
+
+	@Test
+	public void blockRejectsMessagesNotFitting() {
+		OutboundQueue queue = create(OverflowPolicy.BLOCK);
+		Result inFlight = offer(queue, 1);
+		Result queued = offer(queue, 2);
+		Result overflowing = offer(queue, 2);
+		assertTrue(overflowing.result.failed());
+		assertTrue(overflowing.result.cause() instanceof QueueOverflowException);
+		// Queued messages are never dropped under this policy.
+		assertNull(queued.result);
+		assertEquals(2, queue.getQueued());
+		assertFalse(queue.isBlocking());
+
+		Result fitting = offer(queue, 1);
+		assertNull(fitting.result);
+		assertEquals(CAPACITY, queue.getQueued());
+		assertTrue(queue.isBlocking());
+		assertEquals(2, queue.asJson().getNumber("updatesRejected").intValue());
+
+		dispatcher.succeed();
+		assertTrue(inFlight.result.succeeded());
+		assertEquals(2, dispatcher.pending.get(0).updates.size());
+		dispatcher.succeed();
+		dispatcher.succeed();
+		assertTrue(queued.result.succeeded());
+		assertTrue(fitting.result.succeeded());
+	}
+
+	@Test
+	public void blockAdmitsOversizeMessageIntoEmptyQueue() {
+		OutboundQueue queue = create(OverflowPolicy.BLOCK);
+		offer(queue, 1);
+		Result oversize = offer(queue, CAPACITY + 2);
+		assertNull(oversize.result);
+		assertEquals(CAPACITY + 2, queue.getQueued());
+		assertTrue(offer(queue, 1).result.failed());
+
+		dispatcher.succeed();
+		assertEquals(0, queue.getQueued());
+		dispatcher.succeed();
+		assertTrue(oversize.result.succeeded());
+	}
+
+	@Test
+	public void dropOldestMakesRoom() {
+		OutboundQueue queue = create(OverflowPolicy.DROP_OLDEST);
+		offer(queue, 1);
+		Result oldest = offer(queue, 2);
+		Result newest = offer(queue, 2);
+		assertTrue(oldest.result.cause() instanceof QueueOverflowException);
+		assertNull(newest.result);
+		assertEquals(2, queue.getQueued());
+		assertEquals(2, queue.asJson().getNumber("updatesDropped").intValue());
+
+		dispatcher.succeed();
+		dispatcher.succeed();
+		assertTrue(newest.result.succeeded());
+	}
+
+	@Test
+	public void coalesceMergesQueuedMachine() {
+		OutboundQueue queue = create(OverflowPolicy.COALESCE);
+		offer(queue, 1);
+		List<MachineUpdate> updates = new ArrayList<>();
+		updates.add(new MachineUpdate(template, "SN-X").set(0, 1L));
+		Result first = new Result();
+		queue.offer(updates, null, first);
+		List<MachineUpdate> later = new ArrayList<>();
+		later.add(new MachineUpdate(template, "SN-X").set(0, 2L));
+		Result second = new Result();
+		queue.offer(later, null, second);
+		assertEquals(1, queue.getQueued());
+
+		dispatcher.succeed();
+		MachineUpdate sent = dispatcher.pending.get(0).updates.get(0);
+		assertSame(updates.get(0), sent);
+		assertEquals(2L, sent.get(0));
+		dispatcher.succeed();
+		assertTrue(first.result.succeeded());
+		assertTrue(second.result.succeeded());
+	}
+
+	private static class Result implements Handler<AsyncResult<Void>> {
+		private AsyncResult<Void> result;
+
+		@Override
+		public void handle(AsyncResult<Void> result) {
+			assertNull("Completed twice", this.result);
+			this.result = result;
+		}
+	}
+
+	/**
+	 * Dispatcher completing its messages in order when told by the test.
+	 */
+	private static class RecordingDispatcher implements OutboundQueue.Dispatcher {
+		private final List<Dispatched> pending = new ArrayList<>();
+
+		@Override
+		public void dispatch(List<MachineUpdate> updates, Buffer data, Handler<AsyncResult<Void>> doneHandler) {
+			pending.add(new Dispatched(updates, doneHandler));
+		}
+
+		private void succeed() {
+			pending.remove(0).doneHandler.handle(new DefaultFutureResult<Void>((Void) null));
+		}
+	}
+
+	private static class Dispatched {
+		private final List<MachineUpdate> updates;
+		private final Handler<AsyncResult<Void>> doneHandler;
+
+		private Dispatched(List<MachineUpdate> updates, Handler<AsyncResult<Void>> doneHandler) {
+			this.updates = updates;
+			this.doneHandler = doneHandler;
+		}
+	}
+}
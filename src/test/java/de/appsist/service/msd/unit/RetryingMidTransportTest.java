@@ -0,0 +1,266 @@
+package de.appsist.service.msd.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.impl.DefaultFutureResult;
+
+import de.appsist.service.middrv.entity.MachineValueType;
+import de.appsist.service.middrv.entity.VisualizationLevel;
+import de.appsist.service.middrv.entity.VisualizationType;
+import de.appsist.service.msd.EncodedMidTransport;
+import de.appsist.service.msd.MachineTemplate;
+import de.appsist.service.msd.MachineUpdate;
+import de.appsist.service.msd.MidMessageCodec;
+import de.appsist.service.msd.MidRequestException;
+import de.appsist.service.msd.MidTransport;
+import de.appsist.service.msd.RetryingMidTransport;
+import de.appsist.service.msd.RetryingMidTransport.CircuitState;
+import de.appsist.service.msd.SimulatorMetrics;
+
+/**
+ * Tests the retries and the state transitions of the circuit breaker. Timers are fired by the test instead of the clock.
+ */
+public class RetryingMidTransportTest {
+	private ManualTimers vertx;
+	private RecordingTransport mid;
+	private List<MachineUpdate> updates;
+	private int recoveries;
+
+	@Before
+	public void setUp() {
+		vertx = new ManualTimers();
+		mid = new RecordingTransport();
+		MachineTemplate template = new MachineTemplate.Builder("Festo", "Pilotanlage").station("Station", "Site")
+				.field("Teilezaehler", MachineValueType.LONG, "", VisualizationType.TEXT_FIELD, VisualizationLevel.OVERVIEW)
+				.build();
+		updates = Collections.singletonList(new MachineUpdate(template, "SN-1").set(0, 1L));
+		recoveries = 0;
+	}
+
+	private RetryingMidTransport create(int maxRetries, int failureThreshold) {
+		return RetryingMidTransport.create(vertx, mid, new SimulatorMetrics(), maxRetries, 100L, 1000L, failureThreshold, 5000L, new Handler<Void>() {
+			@Override
+			public void handle(Void event) {
+				recoveries++;
+			}
+		});
+	}
+
+	private Result send(RetryingMidTransport transport) {
+		Result result = new Result();
+		transport.sendData(updates, result);
+		return result;
+	}
+
+	@Test
+	public void transientFailureIsRetried() {
+		RetryingMidTransport transport = create(3, 5);
+		Result result = send(transport);
+		mid.fail(0, new MidRequestException(503, "Unavailable"));
+		assertNull(result.result);
+		assertEquals(1, transport.getInFlight());
+		assertEquals(1, vertx.fireAll());
+		assertEquals(1, mid.pending.size());
+		mid.succeed(0);
+		assertTrue(result.result.succeeded());
+		assertEquals(CircuitState.CLOSED, transport.getState());
+		assertEquals(1, transport.asJson().getNumber("requestsRetried").intValue());
+		assertEquals(0, transport.getInFlight());
+	}
+
+	@Test
+	public void clientErrorIsNotRetried() {
+		RetryingMidTransport transport = create(3, 1);
+		Result result = send(transport);
+		mid.fail(0, new MidRequestException(400, "Unknown machine"));
+		assertTrue(result.result.failed());
+		assertEquals(0, vertx.timers.size());
+		assertEquals(CircuitState.CLOSED, transport.getState());
+	}
+
+	@Test
+	public void requestFailsAfterMaxRetries() {
+		RetryingMidTransport transport = create(1, 5);
+		Result result = send(transport);
+		mid.fail(0, new MidRequestException(503, "Unavailable"));
+		vertx.fireAll();
+		mid.fail(0, new MidRequestException(503, "Unavailable"));
+		assertTrue(result.result.failed());
+		assertEquals(1, transport.asJson().getNumber("requestsFailed").intValue());
+	}
+
+	@Test
+	public void circuitOpensAndClosesAfterSuccessfulProbe() {
+		RetryingMidTransport transport = create(3, 1);
+		Result first = send(transport);
+		mid.fail(0, new MidRequestException(503, "Unavailable"));
+		assertEquals(CircuitState.OPEN, transport.getState());
+		Result second = send(transport);
+		assertEquals(0, mid.pending.size());
+		assertEquals(2, transport.getInFlight());
+
+		vertx.fireAll();
+		assertEquals(CircuitState.HALF_OPEN, transport.getState());
+		assertEquals(1, mid.pending.size());
+		mid.succeed(0);
+		assertEquals(CircuitState.CLOSED, transport.getState());
+		assertTrue(first.result.succeeded());
+		assertEquals(1, recoveries);
+		// The held request is sent once the circuit closed.
+		assertEquals(1, mid.pending.size());
+		mid.succeed(0);
+		assertTrue(second.result.succeeded());
+		assertEquals(1, transport.asJson().getNumber("circuitOpened").intValue());
+	}
+
+	@Test
+	public void failedProbeReopensCircuit() {
+		RetryingMidTransport transport = create(3, 1);
+		Result result = send(transport);
+		mid.fail(0, new MidRequestException(503, "Unavailable"));
+		vertx.fireAll();
+		mid.fail(0, new MidRequestException(503, "Still unavailable"));
+		assertEquals(CircuitState.OPEN, transport.getState());
+		assertNull(result.result);
+		assertEquals(1, transport.getInFlight());
+		assertEquals(1, transport.asJson().getNumber("circuitOpened").intValue());
+
+		vertx.fireAll();
+		mid.succeed(0);
+		assertTrue(result.result.succeeded());
+		assertEquals(CircuitState.CLOSED, transport.getState());
+	}
+
+	@Test
+	public void closeFailsHeldAndWaitingRequests() {
+		RetryingMidTransport transport = create(3, 2);
+		Result waiting = send(transport);
+		mid.fail(0, new MidRequestException(503, "Unavailable"));
+		Result held = send(transport);
+		mid.fail(0, new MidRequestException(503, "Unavailable"));
+		assertEquals(CircuitState.OPEN, transport.getState());
+		assertEquals(2, transport.getInFlight());
+
+		transport.close();
+		assertTrue(mid.closed);
+		assertTrue(waiting.result.failed());
+		assertTrue(waiting.result.cause() instanceof IllegalStateException);
+		assertTrue(held.result.failed());
+		assertEquals(0, transport.getInFlight());
+		// The timer of the retry has been cancelled, the one of the open circuit does not probe anymore.
+		assertEquals(1, vertx.fireAll());
+		assertEquals(0, mid.pending.size());
+
+		Result afterClose = send(transport);
+		assertTrue(afterClose.result.failed());
+	}
+
+	@Test
+	public void encodedMessagesAreOnlyRetriedForEncodingTransport() {
+		assertFalse(create(3, 1) instanceof EncodedMidTransport);
+		RetryingMidTransport transport = RetryingMidTransport.create(vertx, new EncodingTransport(), new SimulatorMetrics(), 3, 100L, 1000L, 1, 5000L, null);
+		assertTrue(transport instanceof EncodedMidTransport);
+		Buffer data = new Buffer("{}");
+		Result result = new Result();
+		((EncodedMidTransport) transport).sendEncodedData(updates, data, result);
+		assertSame(data, ((EncodingTransport) mid).data);
+		mid.fail(0, new MidRequestException(503, "Unavailable"));
+		vertx.fireAll();
+		mid.succeed(0);
+		assertTrue(result.result.succeeded());
+	}
+
+	/**
+	 * Completion handler remembering the result.
+	 */
+	private static class Result implements Handler<AsyncResult<Void>> {
+		private AsyncResult<Void> result;
+
+		@Override
+		public void handle(AsyncResult<Void> result) {
+			assertNull("Completed twice", this.result);
+			this.result = result;
+		}
+	}
+
+	/**
+	 * Transport completing its requests when told by the test.
+	 */
+	private static class RecordingTransport implements MidTransport {
+		private final List<Request> pending = new ArrayList<>();
+		private boolean closed = false;
+
+		@Override
+		public void sendSchemas(List<MachineUpdate> machines, Handler<AsyncResult<Void>> doneHandler) {
+			pending.add(new Request(machines, doneHandler));
+		}
+
+		@Override
+		public void sendData(List<MachineUpdate> updates, Handler<AsyncResult<Void>> doneHandler) {
+			pending.add(new Request(updates, doneHandler));
+		}
+
+		private void succeed(int index) {
+			pending.remove(index).doneHandler.handle(new DefaultFutureResult<Void>((Void) null));
+		}
+
+		private void fail(int index, Throwable cause) {
+			pending.remove(index).doneHandler.handle(new DefaultFutureResult<Void>(cause));
+		}
+
+		@Override
+		public int getInFlight() {
+			return pending.size();
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+
+		private static class Request {
+			private final List<MachineUpdate> updates;
+			private final Handler<AsyncResult<Void>> doneHandler;
+
+			private Request(List<MachineUpdate> updates, Handler<AsyncResult<Void>> doneHandler) {
+				this.updates = updates;
+				this.doneHandler = doneHandler;
+			}
+		}
+	}
+
+	/**
+	 * Transport also sending encoded data messages, completing them like the recording transport.
+	 */
+	private class EncodingTransport extends RecordingTransport implements EncodedMidTransport {
+		private Buffer data;
+
+		private EncodingTransport() {
+			mid = this;
+		}
+
+		@Override
+		public MidMessageCodec createCodec() {
+			return new MidMessageCodec();
+		}
+
+		@Override
+		public void sendEncodedData(List<MachineUpdate> updates, Buffer data, Handler<AsyncResult<Void>> doneHandler) {
+			this.data = data;
+			sendData(updates, doneHandler);
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package de.appsist.service.msd.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.java.core.json.JsonObject;
+
+import de.appsist.service.msd.Scenario;
+import de.appsist.service.msd.StatePersistence;
+
+/**
+ * Tests restoring the scenario states from the snapshot and the log, including torn records and the margin of counters after a
+ * crash. A crash is simulated by writing the files of the persistence or by abandoning an instance without closing it.
+ */
+public class StatePersistenceTest {
+	private static final long FLUSH_INTERVAL = 100L;
+	private static final String DEFINITION = "{\"scenario\": \"press\", \"vendorId\": \"V\", \"machineId\": \"M\", \"stationId\": \"S\","
+			+ " \"siteId\": \"Site\", \"serialNumber\": \"SN-1\", \"fields\": ["
+			+ " {\"name\": \"Teilezaehler\", \"type\": \"long\", \"initial\": 0},"
+			+ " {\"name\": \"Fett\", \"type\": \"double\", \"initial\": 1.0},"
+			+ " {\"name\": \"Tuer offen\", \"type\": \"bool\"}],"
+			+ " \"actions\": {\"produce\": {\"set\": {\"Teilezaehler\": {\"add\": 5}}}, \"useFat\": {\"set\": {\"Fett\": 0.5}}}}";
+
+	private ManualTimers vertx;
+	private Path directory;
+	private Scenario scenario;
+
+	@Before
+	public void setUp() throws IOException {
+		vertx = new ManualTimers();
+		directory = Files.createTempDirectory("msd-state");
+		scenario = Scenario.fromJson(new JsonObject(DEFINITION));
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+			for (Path file : files) {
+				Files.delete(file);
+			}
+		}
+		Files.delete(directory);
+	}
+
+	private StatePersistence restore() throws IOException {
+		scenario = Scenario.fromJson(new JsonObject(DEFINITION));
+		JsonObject config = new JsonObject().putString("directory", directory.toString()).putNumber("flushInterval", FLUSH_INTERVAL);
+		Map<String, Scenario> scenarios = Collections.singletonMap(scenario.getName(), scenario);
+		return new StatePersistence(vertx, config, scenarios);
+	}
+
+	private void write(String file, String content) throws IOException {
+		Files.write(directory.resolve(file), content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private JsonObject readSnapshot() throws IOException {
+		return new JsonObject(new String(Files.readAllBytes(directory.resolve("snapshot.json")), StandardCharsets.UTF_8));
+	}
+
+	private long getCounter() {
+		return (Long) scenario.getValue(0);
+	}
+
+	@Test
+	public void stateIsRestoredAfterStop() throws IOException {
+		StatePersistence persistence = restore();
+		scenario.getActions().get("produce").perform();
+		scenario.getActions().get("produce").perform();
+		scenario.getActions().get("useFat").perform();
+		assertEquals(1, vertx.firePeriodic(FLUSH_INTERVAL));
+		scenario.getActions().get("produce").perform();
+		persistence.close();
+
+		JsonObject snapshot = readSnapshot();
+		assertTrue(snapshot.getBoolean("stopped"));
+		assertEquals(10L, snapshot.getObject("margins").getObject("press").getNumber("Teilezaehler").longValue());
+		assertEquals(0L, Files.size(directory.resolve("state.log")));
+
+		persistence = restore();
+		// The final snapshot contains all values sent, so the counter is not increased by its margin.
+		assertEquals(15L, getCounter());
+		assertEquals(0.5, (Double) scenario.getValue(1), 0d);
+		assertEquals(0, persistence.asJson().getInteger("increasedCounters").intValue());
+		persistence.close();
+	}
+
+	@Test
+	public void logIsReplayedAfterSnapshot() throws IOException {
+		write("snapshot.json", "{\"sequence\": 3, \"scenarios\": {\"press\": {\"Teilezaehler\": 3, \"Fett\": 0.8}}}");
+		write("state.log", "{\"sequence\": 2, \"scenario\": \"press\", \"values\": {\"Teilezaehler\": 2, \"Fett\": 0.9}}\n"
+				+ "{\"sequence\": 4, \"scenario\": \"press\", \"values\": {\"Fett\": 0.6}}\n"
+				+ "{\"sequence\": 5, \"scenario\": \"unknown\", \"values\": {\"Fett\": 0.1}}\n"
+				+ "{\"sequence\": 6, \"scenario\": \"press\", \"values\": {\"Teilezaehler\": 7, \"Tuer offen\": true}}\n");
+		StatePersistence persistence = restore();
+		// The record with sequence number 2 is contained in the snapshot and must not overwrite it.
+		assertEquals(7L, getCounter());
+		assertEquals(0.6, (Double) scenario.getValue(1), 0d);
+		assertEquals(true, scenario.getValue(2));
+		assertEquals(6L, persistence.asJson().getLong("sequence").longValue());
+
+		// The restored state is compacted into a new snapshot before the service continues.
+		JsonObject snapshot = readSnapshot();
+		assertEquals(6L, snapshot.getLong("sequence").longValue());
+		assertFalse(snapshot.getBoolean("stopped"));
+		assertEquals(7L, snapshot.getObject("scenarios").getObject("press").getLong("Teilezaehler").longValue());
+		assertEquals(0L, Files.size(directory.resolve("state.log")));
+		persistence.close();
+	}
+
+	@Test
+	public void tornRecordEndsLog() throws IOException {
+		write("state.log", "{\"sequence\": 1, \"scenario\": \"press\", \"values\": {\"Teilezaehler\": 4}}\n"
+				+ "{\"sequence\": 2, \"scenario\": \"press\", \"values\": {\"Teilez");
+		StatePersistence persistence = restore();
+		assertEquals(4L, getCounter());
+		assertEquals(1L, persistence.asJson().getLong("sequence").longValue());
+		assertEquals(0L, Files.size(directory.resolve("state.log")));
+		persistence.close();
+	}
+
+	@Test
+	public void countersAreIncreasedByMarginAfterCrash() throws IOException {
+		write("snapshot.json", "{\"sequence\": 1, \"scenarios\": {\"press\": {\"Teilezaehler\": 10, \"Fett\": 0.8}},"
+				+ " \"margins\": {\"press\": {\"Teilezaehler\": 5}}}");
+		write("state.log", "{\"sequence\": 2, \"scenario\": \"press\", \"values\": {\"Teilezaehler\": 20, \"Fett\": 0.7},"
+				+ " \"margins\": {\"Teilezaehler\": 10}}\n");
+		StatePersistence persistence = restore();
+		// The MID may have received values of one flush interval not yet persisted, so the counter continues above them.
+		assertEquals(40L, getCounter());
+		assertEquals(0.7, (Double) scenario.getValue(1), 0d);
+		assertEquals(1, persistence.asJson().getInteger("increasedCounters").intValue());
+
+		// Crashing again continues from the increased value, as it has been persisted before any value was sent.
+		restore();
+		assertEquals(60L, getCounter());
+		persistence.close();
+	}
+}